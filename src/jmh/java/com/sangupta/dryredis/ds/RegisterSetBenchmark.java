@@ -0,0 +1,126 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the chunked merge and histogram of {@link RegisterSet} against
+ * going register by register, for the 16384 registers of a Redis
+ * HyperLogLog. Both sides use the current 6-bit registers; the 5-bit
+ * register set used before is not part of the comparison. Run with:
+ * 
+ * <pre>
+ * mvn -P benchmark test-compile exec:exec
+ * </pre>
+ * 
+ * @author sangupta
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegisterSetBenchmark {
+	
+	private static final int REGISTERS = 1 << HyperLogLog.DEFAULT_LOG2M;
+	
+	private RegisterSet initial;
+	
+	private RegisterSet other;
+	
+	private RegisterSet target;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		this.initial = new RegisterSet(REGISTERS);
+		this.other = new RegisterSet(REGISTERS);
+		this.target = new RegisterSet(REGISTERS);
+		
+		// values as found in a counter of a few million elements
+		for (int index = 0; index < REGISTERS; index++) {
+			this.initial.set(index, 6 + Long.numberOfTrailingZeros(random.nextLong() | (1l << 20)));
+			this.other.set(index, 6 + Long.numberOfTrailingZeros(random.nextLong() | (1l << 20)));
+		}
+	}
+	
+	@Benchmark
+	public RegisterSet mergeByRegister() {
+		this.target.setFrom(this.initial);
+		for (int index = 0; index < REGISTERS; index++) {
+			this.target.updateIfGreater(index, this.other.get(index));
+		}
+		
+		return this.target;
+	}
+	
+	@Benchmark
+	public RegisterSet mergeByChunk() {
+		this.target.setFrom(this.initial);
+		this.target.merge(this.other);
+		return this.target;
+	}
+	
+	@Benchmark
+	public double sumByRegister() {
+		// the raw estimate as computed before the histogram
+		double sum = 0;
+		for (int index = 0; index < REGISTERS; index++) {
+			sum += Math.scalb(1.0, -this.initial.get(index));
+		}
+		
+		return sum;
+	}
+	
+	@Benchmark
+	public int[] histogramByRegister() {
+		int[] histogram = new int[RegisterSet.REGISTER_MAX + 1];
+		for (int index = 0; index < REGISTERS; index++) {
+			histogram[this.initial.get(index)]++;
+		}
+		
+		return histogram;
+	}
+	
+	@Benchmark
+	public int[] histogramByChunk() {
+		int[] histogram = new int[RegisterSet.REGISTER_MAX + 1];
+		this.initial.histogram(histogram, REGISTERS);
+		return histogram;
+	}
+
+}
@@ -34,7 +34,7 @@ import java.util.Map;
  */
 public class DryRedis extends DryRedisOperationFacade {
     
-    public static final int DRY_REDIS_DUMP_VERSION = 1;
+    public static final int DRY_REDIS_DUMP_VERSION = 2;
     
     private static final Map<String, DryRedis> INSTANCES = new HashMap<String, DryRedis>();
     
@@ -51,6 +51,34 @@ public class DryRedis extends DryRedisOperationFacade {
         // do nothing
     }
     
+    /**
+     * Private constructor for a database that may be used from multiple
+     * threads.
+     * 
+     * @param concurrent
+     *            whether the database is shared between threads
+     */
+    private DryRedis(boolean concurrent) {
+        super(concurrent);
+    }
+    
+    /**
+     * Create a new unnamed database for use by a {@link DryRedisExecutor}.
+     * Blocking commands on this database never wait.
+     * 
+     * @return the new {@link DryRedis} instance
+     */
+    static DryRedis newExecutorDatabase() {
+        return new DryRedis(false) {
+            
+            @Override
+            protected boolean canBlock() {
+                return false;
+            }
+            
+        };
+    }
+    
     public static DryRedis getDatabase() {
         return DEFAULT_DATABASE;
     }
@@ -69,14 +97,54 @@ public class DryRedis extends DryRedisOperationFacade {
             return DEFAULT_DATABASE;
         }
         
-        DryRedis instance = INSTANCES.get(dbName);
-        if(instance != null) {
+        synchronized (INSTANCES) {
+            DryRedis instance = INSTANCES.get(dbName);
+            if(instance != null) {
+                return instance;
+            }
+            
+            instance = new DryRedis();
+            INSTANCES.put(dbName, instance);
             return instance;
         }
+    }
+    
+    /**
+     * Get the {@link DryRedis} instance for the given database that can be
+     * safely used from multiple threads. For a given name the same database
+     * instance is returned always.
+     * 
+     * @param dbName
+     *            the name of the database
+     * 
+     * @return the concurrent {@link DryRedis} instance for that database
+     * 
+     * @throws IllegalArgumentException
+     *             if the database name is empty
+     * 
+     * @throws IllegalStateException
+     *             if a database with the same name was already created using
+     *             {@link #getDatabase(String)}
+     */
+    public static DryRedis getConcurrentDatabase(String dbName) {
+        if(dbName == null || dbName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Database name cannot be empty");
+        }
         
-        instance = new DryRedis();
-        INSTANCES.put(dbName, instance);
-        return instance;
+        synchronized (INSTANCES) {
+            DryRedis instance = INSTANCES.get(dbName);
+            if(instance != null) {
+                if(!instance.isConcurrent()) {
+                    throw new IllegalStateException("Database already exists in single-threaded mode: " + dbName);
+                }
+                
+                return instance;
+            }
+            
+            instance = new DryRedis(true);
+            INSTANCES.put(dbName, instance);
+            return instance;
+        }
     }
     
 }
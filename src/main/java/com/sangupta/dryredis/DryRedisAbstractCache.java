@@ -21,7 +21,6 @@
 
 package com.sangupta.dryredis;
 
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -40,51 +39,49 @@ import com.sangupta.dryredis.support.DryRedisUtils;
  */
 abstract class DryRedisAbstractCache<T> implements DryRedisCache {
     
-    protected final Map<String, T> store = new HashMap<String, T>();
-
-    // TODO: change this into guava cache - so that we can clean up old timers
-    private final Map<String, Long> EXPIRE_TIMES = new HashMap<String, Long>();
+    /**
+     * The keyspace this cache stores its keys in
+     */
+    protected final DryRedisKeyspace keyspace;
     
-    public int pexpireat(String key, long epochAsMilliseconds) {
-        if(!this.hasKey(key)) {
-            return 0;
-        }
-        
-        EXPIRE_TIMES.put(key, epochAsMilliseconds);
-        return 1;
+    /**
+     * View over the keyspace for all keys of the type of this cache
+     */
+    protected final Map<String, T> store;
+    
+    /**
+     * Create a cache that uses its own private keyspace.
+     */
+    protected DryRedisAbstractCache() {
+        this(new DryRedisKeyspace());
     }
     
     /**
-     * Check if a key has expired or not.
+     * Create a cache that stores its keys in the given keyspace. This allows
+     * multiple caches to share one keyspace.
      * 
-     * @param key
-     * @return
+     * @param keyspace
+     *            the {@link DryRedisKeyspace} to use
      */
-    protected boolean isExpired(String key) {
-        Long expiry = EXPIRE_TIMES.get(key);
-        if(expiry == null) {
-            return false;
-        }
-        
-        long value = expiry.longValue();
-        if(System.currentTimeMillis() >= value) {
-            return true;
+    protected DryRedisAbstractCache(DryRedisKeyspace keyspace) {
+        this.keyspace = keyspace;
+        this.store = keyspace.view(this.getType());
+    }
+    
+    public int pexpireat(String key, long epochAsMilliseconds) {
+        if(!this.hasKey(key)) {
+            return 0;
         }
         
-        return false;
+        return this.keyspace.pexpireat(key, epochAsMilliseconds);
     }
-
+    
     @Override
     public int del(String keyPattern) {
         if(keyPattern.contains("*") || keyPattern.contains("?")) {
             // wildcard-match
-            Set<String> keySet = this.store.keySet();
-            if(keySet == null || keySet.isEmpty()) {
-                return 0;
-            }
-            
             Set<String> toRemove = new HashSet<String>();
-            for(String key : keySet) {
+            for(String key : this.store.keySet()) {
                 if(DryRedisUtils.wildcardMatch(key, keyPattern)) {
                     toRemove.add(key);
                 }
@@ -112,27 +109,17 @@ abstract class DryRedisAbstractCache<T> implements DryRedisCache {
 
     @Override
     public boolean hasKey(String key) {
-        if(!this.store.containsKey(key)) {
-            return false;
-        }
-
-        // check for expiry
-        if(isExpired(key)) {
-            this.del(key);
+        DryRedisKeyspace.KeyEntry entry = this.keyspace.getEntry(key);
+        if(entry == null) {
             return false;
         }
         
-        return true;
+        return entry.type == this.getType();
     }
     
     @Override
     public void keys(String pattern, List<String> keys) {
-        Set<String> keySet = this.store.keySet();
-        if(keySet == null || keySet.isEmpty()) {
-            return;
-        }
-        
-        for(String key : keySet) {
+        for(String key : this.store.keySet()) {
             if(DryRedisUtils.wildcardMatch(key, pattern)) {
                 keys.add(key);
             }
@@ -146,13 +133,90 @@ abstract class DryRedisAbstractCache<T> implements DryRedisCache {
     
     @Override
     public byte[] dump(String key) {
-        return DryRedisUtils.createDump(this.getType(), key, this.store.get(key));
+        T value = this.store.get(key);
+        if(value == null) {
+            return null;
+        }
+        
+        return DryRedisEncoder.dump(this, value);
+    }
+    
+    /**
+     * Read a value written by {@link #writeValue(Object, DryRedisEncoder)}
+     * and store it against the key, replacing any existing key along with its
+     * expiration. The existing key is left alone if the value cannot be read.
+     * 
+     * @param key
+     *            the key to store the value against
+     * 
+     * @param decoder
+     *            the decoder positioned at the value
+     */
+    void restore(String key, DryRedisDecoder decoder) {
+        T value = this.readValue(decoder);
+        this.keyspace.remove(key);
+        this.store.put(key, value);
+    }
+
+    /**
+     * Write a value of this cache as found in the keyspace.
+     * 
+     * @param value
+     *            a value stored by this cache
+     * 
+     * @param encoder
+     *            the encoder to write to
+     */
+    @SuppressWarnings("unchecked")
+    void writeStoredValue(Object value, DryRedisEncoder encoder) {
+        this.writeValue((T) value, encoder);
     }
 
     @Override
     public void rename(String key, String newKey) {
-        T value = this.store.remove(key);
-        this.store.put(newKey, value);
+        this.keyspace.rename(key, newKey);
+    }
+    
+    @Override
+    public String encoding(String key) {
+        T value = this.store.get(key);
+        if(value == null) {
+            return null;
+        }
+        
+        return this.getEncoding(value);
     }
     
+    /**
+     * Return the name of the internal encoding of the given value.
+     * 
+     * @param value
+     *            a value stored by this cache
+     * 
+     * @return the name of the encoding, as used by Redis
+     */
+    protected abstract String getEncoding(T value);
+    
+    /**
+     * Write the given value in the binary format used by DUMP.
+     * 
+     * @param value
+     *            a value stored by this cache
+     * 
+     * @param encoder
+     *            the encoder to write to
+     */
+    protected abstract void writeValue(T value, DryRedisEncoder encoder);
+    
+    /**
+     * Read a value written by {@link #writeValue(Object, DryRedisEncoder)}.
+     * 
+     * @param decoder
+     *            the decoder to read from
+     * 
+     * @return the value, in the encoding that a new value of this cache
+     *         would use
+     */
+    protected abstract T readValue(DryRedisDecoder decoder);
+    
 }
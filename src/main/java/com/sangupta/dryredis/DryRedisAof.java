@@ -0,0 +1,943 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sangupta.dryredis.ds.MpscLinkedQueue;
+import com.sangupta.dryredis.support.DryRedisFsyncPolicy;
+import com.sangupta.dryredis.support.DryRedisRangeArgument;
+
+/**
+ * Logs every change made to a database into an append only file, much like
+ * the AOF of Redis, so that the database can be rebuilt after a restart.
+ * 
+ * The file starts with the magic bytes <code>DRYAOF</code> and the format
+ * version in 2 bytes, followed by records. Each record is its length in 4
+ * bytes and a payload written by {@link DryRedisEncoder}: an opcode, the key,
+ * and the arguments of the change. Changes are logged by their effect rather
+ * than as issued, so that replaying them gives the same result: a
+ * <code>SPOP</code> is logged as the removal of the members popped, an
+ * <code>EXPIRE</code> with the absolute time of expiry, and commands that
+ * store computed values, like <code>SUNIONSTORE</code>, as the new value of
+ * the key.
+ * 
+ * Commands hand their records to a lock-free {@link MpscLinkedQueue}, and a
+ * single writer thread drains the queue into the file. All records queued
+ * while the writer was busy are written together and share one sync, so with
+ * {@link DryRedisFsyncPolicy#ALWAYS} many commands wait for a single sync
+ * instead of one each.
+ * 
+ * A rewrite builds a new file from the current state of the keys while
+ * commands go on, see {@link Rewrite}, and the writer switches over to the
+ * new file once it is complete.
+ * 
+ * @author sangupta
+ *
+ */
+class DryRedisAof {
+    
+    static final byte SET = 1;
+    
+    static final byte APPEND = 2;
+    
+    static final byte INCRBY = 3;
+    
+    static final byte SETRANGE = 4;
+    
+    static final byte SETBIT = 5;
+    
+    static final byte BITFIELD = 6;
+    
+    static final byte MSET = 7;
+    
+    static final byte LPUSH = 10;
+    
+    static final byte RPUSH = 11;
+    
+    static final byte LPUSHX = 12;
+    
+    static final byte RPUSHX = 13;
+    
+    static final byte LPOP = 14;
+    
+    static final byte RPOP = 15;
+    
+    static final byte LINSERT = 16;
+    
+    static final byte LREM = 17;
+    
+    static final byte LSET = 18;
+    
+    static final byte LTRIM = 19;
+    
+    static final byte SADD = 20;
+    
+    static final byte SREM = 21;
+    
+    static final byte HSET = 30;
+    
+    static final byte HDEL = 31;
+    
+    static final byte HINCRBY = 32;
+    
+    static final byte HMSET = 33;
+    
+    static final byte ZADD = 40;
+    
+    static final byte ZINCRBY = 41;
+    
+    static final byte ZREM = 42;
+    
+    static final byte ZREMRANGEBYRANK = 43;
+    
+    static final byte ZREMRANGEBYSCORE = 44;
+    
+    static final byte ZREMRANGEBYLEX = 45;
+    
+    static final byte GEOADD = 50;
+    
+    static final byte PFADD = 60;
+    
+    static final byte DEL = 70;
+    
+    static final byte PEXPIREAT = 71;
+    
+    static final byte PERSIST = 72;
+    
+    static final byte RENAME = 73;
+    
+    static final byte FLUSHDB = 74;
+    
+    /**
+     * The whole value of a key with its expiry time
+     */
+    static final byte STATE = 75;
+    
+    static final byte[] MAGIC = { 'D', 'R', 'Y', 'A', 'O', 'F' };
+    
+    static final int HEADER_SIZE = MAGIC.length + 2;
+    
+    /**
+     * Size of the buffer records are collected in before being written
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    /**
+     * Number of bytes after which a group of records is written and synced
+     * even if more are queued
+     */
+    private static final int MAX_GROUP_BYTES = 1 << 20;
+    
+    private static final long EVERYSEC_NANOS = TimeUnit.SECONDS.toNanos(1);
+    
+    /**
+     * Targets of a record
+     */
+    private static final int MAIN = 1;
+    
+    private static final int REWRITE = 2;
+    
+    /**
+     * Kinds of records
+     */
+    private static final int DATA = 0;
+    
+    private static final int BEGIN_REWRITE = 1;
+    
+    private static final int SWITCH = 2;
+    
+    private static final int CLOSE = 3;
+    
+    /**
+     * A record queued for the writer thread.
+     */
+    private static final class Record {
+        
+        final int kind;
+        
+        final int targets;
+        
+        final byte[] bytes;
+        
+        /**
+         * The thread waiting for the record to be written, if any
+         */
+        Thread waiter;
+        
+        volatile boolean done;
+        
+        /**
+         * Whether a rewrite failed, set before {@link #done}
+         */
+        boolean failed;
+        
+        Record(int kind, int targets, byte[] bytes) {
+            this.kind = kind;
+            this.targets = targets;
+            this.bytes = bytes;
+        }
+        
+        void await() {
+            boolean interrupted = false;
+            while(!this.done) {
+                LockSupport.park(this);
+                if(Thread.interrupted()) {
+                    interrupted = true;
+                }
+            }
+            
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+    }
+    
+    /**
+     * Keeps track of the keys during a rewrite that runs while commands go
+     * on. The rewrite visits the keys one by one, and under the lock of each
+     * key writes its whole value to the new file and marks it as based. From
+     * then on, every change to the key is written to both files. Changes to
+     * keys not yet based go to the old file only, as the value written later
+     * on includes them.
+     * 
+     * Keys created after the rewrite started may be missed by the visit, and
+     * a change that spans a based and an unbased key, like a RENAME, cannot
+     * go to the new file. Such keys are kept as pending, and their values are
+     * written once more at the end of the rewrite while all keys are locked.
+     */
+    static final class Rewrite {
+        
+        private final Set<String> based = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        
+        private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        
+        /**
+         * Set once the database was flushed, after which all keys are based
+         */
+        private volatile boolean allBased;
+        
+        boolean isBased(String key) {
+            return this.allBased || this.based.contains(key);
+        }
+        
+        boolean isAllBased() {
+            return this.allBased;
+        }
+        
+        void base(String key) {
+            this.based.add(key);
+        }
+        
+        /**
+         * Return the pending keys that are not based. All keys must be locked.
+         */
+        Set<String> unbased() {
+            Set<String> keys = new HashSet<String>();
+            if(this.allBased) {
+                return keys;
+            }
+            
+            for(String key : this.pending) {
+                if(!this.based.contains(key)) {
+                    keys.add(key);
+                }
+            }
+            
+            return keys;
+        }
+        
+        /**
+         * Find the targets of a change to the given keys, where no keys stand
+         * for all keys.
+         */
+        int targets(String[] keys) {
+            if(keys.length == 0) {
+                this.allBased = true;
+                return MAIN | REWRITE;
+            }
+            
+            if(this.allBased) {
+                return MAIN | REWRITE;
+            }
+            
+            boolean covered = true;
+            for(String key : keys) {
+                if(!this.based.contains(key)) {
+                    covered = false;
+                    break;
+                }
+            }
+            
+            if(covered) {
+                return MAIN | REWRITE;
+            }
+            
+            for(String key : keys) {
+                this.based.remove(key);
+                this.pending.add(key);
+            }
+            
+            return MAIN;
+        }
+        
+    }
+    
+    private final File file;
+    
+    private final DryRedisFsyncPolicy policy;
+    
+    /**
+     * Records waiting to be written
+     */
+    private final MpscLinkedQueue<Record> queue = new MpscLinkedQueue<Record>();
+    
+    /**
+     * Set by the writer thread just before it parks
+     */
+    private final AtomicBoolean sleeping = new AtomicBoolean(false);
+    
+    /**
+     * The last record queued by each thread, which waits for it to be synced
+     * once it released its locks
+     */
+    private final ThreadLocal<Record> lastQueued = new ThreadLocal<Record>();
+    
+    private final Thread writer;
+    
+    /**
+     * The rewrite in progress, if it tracks keys
+     */
+    private volatile Rewrite rewrite;
+    
+    /**
+     * The switch of the last rewrite
+     */
+    private volatile Record lastSwitch;
+    
+    /**
+     * The error that stopped the writer from writing the file
+     */
+    private volatile IOException failure;
+    
+    // the following fields are only used by the writer thread
+    
+    private Output output;
+    
+    private Output rewriteOutput;
+    
+    private File rewriteFile;
+    
+    private long lastSync = System.nanoTime();
+    
+    /**
+     * Open the append only file for appending, and start the writer thread.
+     * 
+     * @param file
+     *            the file to append to
+     * 
+     * @param policy
+     *            when to sync the file
+     * 
+     * @param length
+     *            the length of the valid records in the file, as found by
+     *            replaying it, beyond which the file is truncated. The file
+     *            is created anew if <code>0</code>.
+     * 
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    DryRedisAof(File file, DryRedisFsyncPolicy policy, long length) throws IOException {
+        this.file = file;
+        this.policy = policy;
+        
+        if(length > 0) {
+            // drop a record that was only partly written
+            RandomAccessFile existing = new RandomAccessFile(file, "rw");
+            try {
+                if(existing.length() > length) {
+                    existing.setLength(length);
+                }
+            } finally {
+                existing.close();
+            }
+            
+            this.output = new Output(file, true);
+        } else {
+            this.output = new Output(file, false);
+            this.output.writeHeader();
+            this.output.sync();
+        }
+        
+        this.writer = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                DryRedisAof.this.runLoop();
+            }
+            
+        }, "dry-redis-aof-" + file.getName());
+        
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    
+    /**
+     * Encode a change.
+     * 
+     * @param opcode
+     *            the kind of change
+     * 
+     * @param key
+     *            the key changed, or <code>null</code> if the arguments name
+     *            the keys
+     * 
+     * @param arguments
+     *            the arguments, each a {@link String}, <code>byte[]</code>,
+     *            {@link Integer}, {@link Long}, {@link Double},
+     *            {@link Boolean}, {@link DryRedisRangeArgument}, a
+     *            {@link Collection} or array of {@link String}s, or a
+     *            {@link Map} of {@link String}s
+     * 
+     * @return the record
+     */
+    static byte[] record(byte opcode, String key, Object... arguments) {
+        DryRedisEncoder encoder = new DryRedisEncoder();
+        encoder.writeByte(opcode);
+        if(key != null) {
+            encoder.writeString(key);
+        }
+        
+        for(Object argument : arguments) {
+            write(encoder, argument);
+        }
+        
+        return encoder.toByteArray();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static void write(DryRedisEncoder encoder, Object argument) {
+        if(argument instanceof String) {
+            encoder.writeString((String) argument);
+        } else if(argument instanceof byte[]) {
+            encoder.writeBytes((byte[]) argument);
+        } else if(argument instanceof Double) {
+            encoder.writeDouble((Double) argument);
+        } else if(argument instanceof Integer || argument instanceof Long) {
+            encoder.writeSignedVarint(((Number) argument).longValue());
+        } else if(argument instanceof Boolean) {
+            encoder.writeByte(((Boolean) argument) ? 1 : 0);
+        } else if(argument instanceof DryRedisRangeArgument) {
+            DryRedisRangeArgument range = (DryRedisRangeArgument) argument;
+            if(range.isInfinity()) {
+                encoder.writeString(range.getValue());
+            } else {
+                encoder.writeString((range.isInclusive() ? "[" : "(") + range.getValue());
+            }
+        } else if(argument instanceof String[]) {
+            String[] values = (String[]) argument;
+            encoder.writeVarint(values.length);
+            for(String value : values) {
+                encoder.writeString(value);
+            }
+        } else if(argument instanceof Collection) {
+            Collection<String> values = (Collection<String>) argument;
+            encoder.writeVarint(values.size());
+            for(String value : values) {
+                encoder.writeString(value);
+            }
+        } else if(argument instanceof Map) {
+            Map<String, String> values = (Map<String, String>) argument;
+            encoder.writeVarint(values.size());
+            for(Map.Entry<String, String> entry : values.entrySet()) {
+                encoder.writeString(entry.getKey());
+                encoder.writeString(entry.getValue());
+            }
+        } else if(argument == null) {
+            // a missing collection
+            encoder.writeVarint(0);
+        } else {
+            throw new IllegalArgumentException("Cannot log argument of type " + argument.getClass().getName());
+        }
+    }
+    
+    /**
+     * Queue a record. The locks of the keys changed must be held, so that
+     * records of a key are queued in the same order as the changes were made.
+     * 
+     * @param bytes
+     *            the record
+     * 
+     * @param keys
+     *            the keys changed, none for all keys
+     */
+    void append(byte[] bytes, String... keys) {
+        int targets = MAIN;
+        Rewrite rewrite = this.rewrite;
+        if(rewrite != null) {
+            targets = rewrite.targets(keys);
+        }
+        
+        Record record = new Record(DATA, targets, bytes);
+        if(this.policy == DryRedisFsyncPolicy.ALWAYS) {
+            record.waiter = Thread.currentThread();
+            this.lastQueued.set(record);
+        }
+        
+        this.enqueue(record);
+    }
+    
+    /**
+     * Wait till the records queued by this thread are synced, when every
+     * command must be synced. Called once the locks of a command have been
+     * released, so that other commands are not held up by the sync.
+     * 
+     * @throws IllegalStateException
+     *             if the file could not be written
+     */
+    void awaitSync() {
+        if(this.policy != DryRedisFsyncPolicy.ALWAYS) {
+            return;
+        }
+        
+        Record record = this.lastQueued.get();
+        if(record == null) {
+            return;
+        }
+        
+        this.lastQueued.remove();
+        record.await();
+        
+        IOException failure = this.failure;
+        if(failure != null) {
+            throw new IllegalStateException("Errors writing to the append only file: " + failure.getMessage(), failure);
+        }
+    }
+    
+    /**
+     * Start writing a new file next to the current one.
+     * 
+     * @param track
+     *            whether commands may change keys while the rewrite runs, in
+     *            which case their changes are tracked
+     * 
+     * @return the tracked keys, or <code>null</code> if not tracking
+     */
+    Rewrite beginRewrite(boolean track) {
+        // queued first, so that no record for the new file comes before it
+        this.enqueue(new Record(BEGIN_REWRITE, 0, null));
+        
+        if(!track) {
+            return null;
+        }
+        
+        Rewrite rewrite = new Rewrite();
+        this.rewrite = rewrite;
+        return rewrite;
+    }
+    
+    /**
+     * Queue a record for the new file only.
+     */
+    void appendToRewrite(byte[] bytes) {
+        this.enqueue(new Record(DATA, REWRITE, bytes));
+    }
+    
+    /**
+     * Switch over to the new file once all records queued so far are
+     * written. All keys must be locked if the rewrite tracks keys.
+     */
+    void finishRewrite() {
+        this.rewrite = null;
+        
+        Record record = new Record(SWITCH, 0, null);
+        this.lastSwitch = record;
+        this.enqueue(record);
+    }
+    
+    /**
+     * Wait till the last rewrite has switched over to the new file.
+     * 
+     * @return <code>true</code> if the new file replaced the old one
+     */
+    boolean awaitRewrite() {
+        Record record = this.lastSwitch;
+        if(record == null) {
+            return false;
+        }
+        
+        while(!record.done) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        
+        return !record.failed;
+    }
+    
+    /**
+     * Write and sync all records queued so far, and close the file. No
+     * records may be queued afterwards.
+     * 
+     * @throws IOException
+     *             if the file could not be written
+     */
+    void close() throws IOException {
+        Record record = new Record(CLOSE, 0, null);
+        record.waiter = Thread.currentThread();
+        this.enqueue(record);
+        record.await();
+        
+        boolean interrupted = false;
+        while(true) {
+            try {
+                this.writer.join();
+                break;
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        if(this.failure != null) {
+            throw this.failure;
+        }
+    }
+    
+    private void enqueue(Record record) {
+        this.queue.offer(record);
+        if(this.sleeping.get() && this.sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(this.writer);
+        }
+    }
+    
+    /**
+     * Write records as they come, in groups of all records queued at the
+     * time, and sync each group as the policy asks for.
+     */
+    private void runLoop() {
+        final List<Record> group = new ArrayList<Record>();
+        long groupBytes = 0;
+        
+        while(true) {
+            Record record = this.queue.poll();
+            if(record != null) {
+                if(record.kind == CLOSE) {
+                    this.commit(group, true);
+                    this.closeFiles();
+                    this.done(record);
+                    return;
+                }
+                
+                this.write(record);
+                if(record.waiter != null) {
+                    group.add(record);
+                }
+                
+                if(record.bytes != null) {
+                    groupBytes += record.bytes.length;
+                }
+                
+                if(groupBytes < MAX_GROUP_BYTES) {
+                    continue;
+                }
+            }
+            
+            this.commit(group, false);
+            group.clear();
+            groupBytes = 0;
+            
+            if(record != null) {
+                continue;
+            }
+            
+            this.sleeping.set(true);
+            
+            // check again to not miss a record queued before the flag was set
+            if(this.queue.isEmpty()) {
+                if(this.policy == DryRedisFsyncPolicy.EVERYSEC && this.output.unsynced && this.failure == null) {
+                    long wait = EVERYSEC_NANOS - (System.nanoTime() - this.lastSync);
+                    if(wait > 0) {
+                        LockSupport.parkNanos(this, wait);
+                    }
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            
+            this.sleeping.set(false);
+        }
+    }
+    
+    private void write(Record record) {
+        switch(record.kind) {
+            case DATA:
+                if((record.targets & MAIN) != 0 && this.failure == null) {
+                    try {
+                        this.output.write(record.bytes);
+                    } catch(IOException e) {
+                        this.failure = e;
+                    }
+                }
+                
+                if((record.targets & REWRITE) != 0 && this.rewriteOutput != null) {
+                    try {
+                        this.rewriteOutput.write(record.bytes);
+                    } catch(IOException e) {
+                        this.abandonRewrite();
+                    }
+                }
+                
+                return;
+                
+            case BEGIN_REWRITE:
+                this.abandonRewrite();
+                
+                File directory = this.file.getAbsoluteFile().getParentFile();
+                this.rewriteFile = new File(directory, "temp-rewriteaof-" + System.nanoTime() + "-" + this.file.getName());
+                try {
+                    this.rewriteOutput = new Output(this.rewriteFile, false);
+                    this.rewriteOutput.writeHeader();
+                } catch(IOException e) {
+                    this.abandonRewrite();
+                }
+                
+                return;
+                
+            case SWITCH:
+                record.failed = !this.switchOver();
+                this.done(record);
+                return;
+        }
+    }
+    
+    /**
+     * Replace the file with the completely written new one, and go on
+     * appending to the new one.
+     * 
+     * @return <code>true</code> if the file was replaced
+     */
+    private boolean switchOver() {
+        if(this.rewriteOutput == null) {
+            return false;
+        }
+        
+        try {
+            this.rewriteOutput.sync();
+            
+            // the old file may still be needed if the rename fails
+            if(this.failure == null) {
+                this.output.sync();
+            }
+            
+            if(!this.rewriteFile.renameTo(this.file)) {
+                // some platforms cannot rename over an open file
+                this.output.close();
+                if(!this.file.delete() || !this.rewriteFile.renameTo(this.file)) {
+                    throw new IOException("Unable to rename append only file to " + this.file);
+                }
+            } else {
+                this.output.close();
+            }
+        } catch(IOException e) {
+            this.abandonRewrite();
+            if(!this.output.isOpen()) {
+                this.failure = e;
+            }
+            
+            return false;
+        }
+        
+        this.output = this.rewriteOutput;
+        this.rewriteOutput = null;
+        this.rewriteFile = null;
+        this.failure = null;
+        this.lastSync = System.nanoTime();
+        return true;
+    }
+    
+    /**
+     * Drop the new file of a failed rewrite.
+     */
+    private void abandonRewrite() {
+        if(this.rewriteOutput != null) {
+            try {
+                this.rewriteOutput.close();
+            } catch(IOException e) {
+                // nothing more to do
+            }
+            
+            this.rewriteOutput = null;
+        }
+        
+        if(this.rewriteFile != null) {
+            this.rewriteFile.delete();
+            this.rewriteFile = null;
+        }
+    }
+    
+    /**
+     * Write out the records of a group and sync them as the policy asks for,
+     * then release the threads waiting for them.
+     */
+    private void commit(List<Record> group, boolean sync) {
+        if(this.failure == null) {
+            try {
+                this.output.flush();
+                
+                long now = System.nanoTime();
+                if(sync || this.policy == DryRedisFsyncPolicy.ALWAYS
+                        || (this.policy == DryRedisFsyncPolicy.EVERYSEC && now - this.lastSync >= EVERYSEC_NANOS)) {
+                    this.output.sync();
+                    this.lastSync = now;
+                }
+            } catch(IOException e) {
+                this.failure = e;
+            }
+        }
+        
+        for(Record record : group) {
+            this.done(record);
+        }
+    }
+    
+    private void closeFiles() {
+        this.abandonRewrite();
+        try {
+            this.output.close();
+        } catch(IOException e) {
+            if(this.failure == null) {
+                this.failure = e;
+            }
+        }
+    }
+    
+    private void done(Record record) {
+        Thread waiter = record.waiter;
+        record.done = true;
+        if(waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+    
+    /**
+     * Writes records through a buffered channel.
+     */
+    private static final class Output {
+        
+        private final FileOutputStream stream;
+        
+        private final FileChannel channel;
+        
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        
+        /**
+         * Whether bytes were written since the last sync
+         */
+        boolean unsynced;
+        
+        Output(File file, boolean append) throws IOException {
+            this.stream = new FileOutputStream(file, append);
+            this.channel = this.stream.getChannel();
+        }
+        
+        void writeHeader() throws IOException {
+            this.buffer.put(MAGIC);
+            this.buffer.putShort((short) DryRedis.DRY_REDIS_DUMP_VERSION);
+            this.flush();
+        }
+        
+        void write(byte[] bytes) throws IOException {
+            if(this.buffer.remaining() < 4 + bytes.length) {
+                this.flush();
+            }
+            
+            this.buffer.putInt(bytes.length);
+            if(bytes.length > this.buffer.remaining()) {
+                // large records go straight to the channel
+                this.flush();
+                ByteBuffer large = ByteBuffer.wrap(bytes);
+                while(large.hasRemaining()) {
+                    this.channel.write(large);
+                }
+                
+                return;
+            }
+            
+            this.buffer.put(bytes);
+        }
+        
+        void flush() throws IOException {
+            this.buffer.flip();
+            if(this.buffer.hasRemaining()) {
+                this.unsynced = true;
+            }
+            
+            while(this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            
+            this.buffer.clear();
+        }
+        
+        void sync() throws IOException {
+            this.flush();
+            if(this.unsynced) {
+                this.channel.force(false);
+                this.unsynced = false;
+            }
+        }
+        
+        boolean isOpen() {
+            return this.channel.isOpen();
+        }
+        
+        void close() throws IOException {
+            if(this.channel.isOpen()) {
+                this.flush();
+            }
+            
+            this.stream.close();
+        }
+        
+    }
+    
+}
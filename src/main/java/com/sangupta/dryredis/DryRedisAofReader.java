@@ -0,0 +1,366 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.sangupta.dryredis.support.DryRedisInsertOrder;
+import com.sangupta.dryredis.support.DryRedisRangeArgument;
+
+/**
+ * Replays an append only file written by {@link DryRedisAof} into a database.
+ * The file is mapped into memory a window at a time, and each record is
+ * decoded right from the mapped bytes without copying them first.
+ * 
+ * A record that was only partly written, as happens when the process dies
+ * while appending, ends the replay, and the file is truncated to the records
+ * before it once appending resumes. A change that fails when replayed is
+ * skipped, as it failed just the same when first made.
+ * 
+ * @author sangupta
+ *
+ */
+class DryRedisAofReader {
+    
+    /**
+     * The largest part of the file that is mapped at once
+     */
+    private static final int WINDOW_SIZE = 1 << 26;
+    
+    private DryRedisAofReader() {
+        // static methods only
+    }
+    
+    /**
+     * Replay all records of the file into the database, whose keys must all
+     * be locked.
+     * 
+     * @param file
+     *            the file to read
+     * 
+     * @param redis
+     *            the database to replay into
+     * 
+     * @return the length of the file up to the end of the last complete
+     *         record, or <code>0</code> if the file does not exist or holds
+     *         no complete header
+     * 
+     * @throws IOException
+     *             if the file cannot be read or is not an append only file
+     */
+    static long replay(File file, DryRedisOperationFacade redis) throws IOException {
+        if(!file.exists()) {
+            return 0;
+        }
+        
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            final long size = channel.size();
+            if(size < DryRedisAof.HEADER_SIZE) {
+                return 0;
+            }
+            
+            ByteBuffer window = map(channel, 0, DryRedisAof.HEADER_SIZE, size);
+            long windowStart = 0;
+            
+            for(int index = 0; index < DryRedisAof.MAGIC.length; index++) {
+                if(window.get(index) != DryRedisAof.MAGIC[index]) {
+                    throw new IOException("Not an append only file: " + file);
+                }
+            }
+            
+            int version = window.getShort(DryRedisAof.MAGIC.length) & 0xffff;
+            if(version != DryRedis.DRY_REDIS_DUMP_VERSION) {
+                throw new IOException("Unsupported append only file version " + version + ": " + file);
+            }
+            
+            long position = DryRedisAof.HEADER_SIZE;
+            while(size - position >= 4) {
+                if(position + 4 > windowStart + window.limit()) {
+                    window = map(channel, position, 4, size);
+                    windowStart = position;
+                }
+                
+                int length = window.getInt((int) (position - windowStart));
+                if(length < 0) {
+                    throw new IOException("Bad append only file at offset " + position + ": " + file);
+                }
+                
+                if(length == 0 || size - position - 4 < length) {
+                    // a record that was only partly written
+                    break;
+                }
+                
+                if(position + 4 + length > windowStart + window.limit()) {
+                    window = map(channel, position, 4 + length, size);
+                    windowStart = position;
+                }
+                
+                ByteBuffer record = window.duplicate();
+                int offset = (int) (position - windowStart) + 4;
+                record.limit(offset + length);
+                record.position(offset);
+                
+                apply(new DryRedisDecoder(record.slice()), redis, position);
+                position += 4 + length;
+            }
+            
+            return position;
+        } finally {
+            input.close();
+        }
+    }
+    
+    /**
+     * Map a window of the file starting at the given position, as large as
+     * allowed but at least the given number of bytes.
+     */
+    private static ByteBuffer map(FileChannel channel, long position, int minimum, long size) throws IOException {
+        long length = Math.max(minimum, Math.min(WINDOW_SIZE, size - position));
+        return channel.map(MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * Make the change of a single record.
+     */
+    private static void apply(DryRedisDecoder decoder, DryRedisOperationFacade redis, long position) throws IOException {
+        final byte opcode = decoder.readByte();
+        try {
+            switch(opcode) {
+                case DryRedisAof.SET:
+                    redis.set(decoder.readString(), decoder.readBytes());
+                    return;
+                    
+                case DryRedisAof.APPEND:
+                    redis.append(decoder.readString(), decoder.readString());
+                    return;
+                    
+                case DryRedisAof.INCRBY:
+                    redis.incrby(decoder.readString(), decoder.readSignedVarint());
+                    return;
+                    
+                case DryRedisAof.SETRANGE:
+                    redis.setrange(decoder.readString(), (int) decoder.readSignedVarint(), decoder.readString());
+                    return;
+                    
+                case DryRedisAof.SETBIT:
+                    redis.setbit(decoder.readString(), decoder.readSignedVarint(), decoder.readByte() != 0);
+                    return;
+                    
+                case DryRedisAof.BITFIELD: {
+                    String key = decoder.readString();
+                    List<String> arguments = readStrings(decoder);
+                    redis.bitfield(key, arguments.toArray(new String[arguments.size()]));
+                    return;
+                }
+                
+                case DryRedisAof.MSET:
+                    redis.mset(readMap(decoder));
+                    return;
+                    
+                case DryRedisAof.LPUSH:
+                    redis.lpush(decoder.readString(), readStrings(decoder));
+                    return;
+                    
+                case DryRedisAof.RPUSH:
+                    redis.rpush(decoder.readString(), readStrings(decoder));
+                    return;
+                    
+                case DryRedisAof.LPUSHX:
+                    redis.lpushx(decoder.readString(), readStrings(decoder));
+                    return;
+                    
+                case DryRedisAof.RPUSHX: {
+                    String key = decoder.readString();
+                    for(String value : readStrings(decoder)) {
+                        redis.rpushx(key, value);
+                    }
+                    
+                    return;
+                }
+                
+                case DryRedisAof.LPOP:
+                    redis.lpop(decoder.readString());
+                    return;
+                    
+                case DryRedisAof.RPOP:
+                    redis.rpop(decoder.readString());
+                    return;
+                    
+                case DryRedisAof.LINSERT: {
+                    String key = decoder.readString();
+                    DryRedisInsertOrder order = decoder.readByte() != 0 ? DryRedisInsertOrder.BEFORE : DryRedisInsertOrder.AFTER;
+                    redis.linsert(key, order, decoder.readString(), decoder.readString());
+                    return;
+                }
+                
+                case DryRedisAof.LREM:
+                    redis.lrem(decoder.readString(), (int) decoder.readSignedVarint(), decoder.readString());
+                    return;
+                    
+                case DryRedisAof.LSET:
+                    redis.lset(decoder.readString(), (int) decoder.readSignedVarint(), decoder.readString());
+                    return;
+                    
+                case DryRedisAof.LTRIM:
+                    redis.ltrim(decoder.readString(), (int) decoder.readSignedVarint(), (int) decoder.readSignedVarint());
+                    return;
+                    
+                case DryRedisAof.SADD:
+                    redis.sadd(decoder.readString(), readStrings(decoder));
+                    return;
+                    
+                case DryRedisAof.SREM:
+                    redis.srem(decoder.readString(), readStrings(decoder));
+                    return;
+                    
+                case DryRedisAof.HSET:
+                    redis.hset(decoder.readString(), decoder.readString(), decoder.readString());
+                    return;
+                    
+                case DryRedisAof.HDEL:
+                    redis.hdel(decoder.readString(), readStrings(decoder));
+                    return;
+                    
+                case DryRedisAof.HINCRBY:
+                    redis.hincrby(decoder.readString(), decoder.readString(), decoder.readSignedVarint());
+                    return;
+                    
+                case DryRedisAof.HMSET:
+                    redis.hmset(decoder.readString(), readMap(decoder));
+                    return;
+                    
+                case DryRedisAof.ZADD: {
+                    String key = decoder.readString();
+                    double score = decoder.readDouble();
+                    redis.zadd(key, score, decoder.readString());
+                    return;
+                }
+                
+                case DryRedisAof.ZINCRBY: {
+                    String key = decoder.readString();
+                    double increment = decoder.readDouble();
+                    redis.zincrby(key, increment, decoder.readString());
+                    return;
+                }
+                
+                case DryRedisAof.ZREM:
+                    redis.zrem(decoder.readString(), new HashSet<String>(readStrings(decoder)));
+                    return;
+                    
+                case DryRedisAof.ZREMRANGEBYRANK:
+                    redis.zremrangebyrank(decoder.readString(), (int) decoder.readSignedVarint(), (int) decoder.readSignedVarint());
+                    return;
+                    
+                case DryRedisAof.ZREMRANGEBYSCORE:
+                    redis.zremrangebyscore(decoder.readString(), new DryRedisRangeArgument(decoder.readString()), new DryRedisRangeArgument(decoder.readString()));
+                    return;
+                    
+                case DryRedisAof.ZREMRANGEBYLEX:
+                    redis.zremrangebylex(decoder.readString(), new DryRedisRangeArgument(decoder.readString()), new DryRedisRangeArgument(decoder.readString()));
+                    return;
+                    
+                case DryRedisAof.GEOADD: {
+                    String key = decoder.readString();
+                    double longitude = decoder.readDouble();
+                    double latitude = decoder.readDouble();
+                    redis.geoadd(key, longitude, latitude, decoder.readString());
+                    return;
+                }
+                
+                case DryRedisAof.PFADD: {
+                    String key = decoder.readString();
+                    List<String> elements = readStrings(decoder);
+                    if(elements.isEmpty()) {
+                        redis.pfadd(key);
+                    } else {
+                        redis.pfadd(key, elements);
+                    }
+                    
+                    return;
+                }
+                
+                case DryRedisAof.DEL:
+                    redis.replayDelete(decoder.readString());
+                    return;
+                    
+                case DryRedisAof.PEXPIREAT:
+                    redis.pexpireat(decoder.readString(), decoder.readSignedVarint());
+                    return;
+                    
+                case DryRedisAof.PERSIST:
+                    redis.persist(decoder.readString());
+                    return;
+                    
+                case DryRedisAof.RENAME:
+                    redis.rename(decoder.readString(), decoder.readString());
+                    return;
+                    
+                case DryRedisAof.FLUSHDB:
+                    redis.flushdb();
+                    return;
+                    
+                case DryRedisAof.STATE:
+                    redis.replayState(decoder.readString(), decoder);
+                    return;
+            }
+        } catch(RuntimeException e) {
+            // failed the same way when first made
+            return;
+        }
+        
+        throw new IOException("Bad append only file at offset " + position + ": unknown opcode " + opcode);
+    }
+    
+    private static List<String> readStrings(DryRedisDecoder decoder) {
+        int count = decoder.readLength();
+        List<String> values = new ArrayList<String>(count);
+        for(int index = 0; index < count; index++) {
+            values.add(decoder.readString());
+        }
+        
+        return values;
+    }
+    
+    private static Map<String, String> readMap(DryRedisDecoder decoder) {
+        int count = decoder.readLength();
+        Map<String, String> values = new HashMap<String, String>();
+        for(int index = 0; index < count; index++) {
+            values.put(decoder.readString(), decoder.readString());
+        }
+        
+        return values;
+    }
+    
+}
@@ -0,0 +1,500 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sangupta.dryredis.ds.QuickList;
+
+/**
+ * Keeps track of clients blocked on list keys, much like the
+ * <code>blocking_keys</code> dictionary in Redis. Each key has its own queue
+ * of waiters in arrival order, and a push to a key serves the waiters of that
+ * key only, by handing the popped value over directly. A blocked client holds
+ * no lock while waiting, so idle consumers cost nothing but their entry in the
+ * queue.
+ *
+ * The queues are guarded by striped locks. A push must hold the stripe of its
+ * key from the time the value is added till the waiters are served, and a
+ * client must hold the stripes of all its keys while it checks the lists and
+ * registers itself. This way a push can never slip in between the check and
+ * the registration.
+ *
+ * A client of <code>BRPOPLPUSH</code> gets its value moved to the destination
+ * by the push that serves it, while the push still holds the stripe of the
+ * source, so that the value is never missing from both lists. As the push
+ * cannot wait for the locks of the destination at that point, it only tries
+ * them. If they are taken, or the destination is not a list, the value is
+ * left in the source and the client tries again by itself.
+ *
+ * @author sangupta
+ *
+ */
+class DryRedisBlockingKeys {
+
+    /**
+     * The default number of stripes to use
+     */
+    static final int DEFAULT_STRIPES = 64;
+
+    /**
+     * Stripes guarding the waiter queues
+     */
+    private final DryRedisKeyLocks locks = new DryRedisKeyLocks(DEFAULT_STRIPES);
+
+    /**
+     * The waiters of each key, oldest first
+     */
+    private final ConcurrentHashMap<String, ArrayDeque<Waiter>> waiters = new ConcurrentHashMap<String, ArrayDeque<Waiter>>();
+    
+    /**
+     * The append only file pops are logged to, if enabled
+     */
+    private volatile DryRedisAof aof;
+    
+    /**
+     * The lists values are moved to for clients of <code>BRPOPLPUSH</code>
+     */
+    private volatile Destinations destinations;
+    
+    /**
+     * The lists that clients of <code>BRPOPLPUSH</code> push to, which are
+     * guarded by locks other than these stripes.
+     */
+    interface Destinations {
+        
+        /**
+         * Try to lock the destination without waiting, and check that it may
+         * be pushed to.
+         * 
+         * @param key
+         *            the destination
+         * 
+         * @return <code>true</code> if the destination was locked and is a
+         *         list or does not exist, <code>false</code> if it is left
+         *         unlocked
+         */
+        boolean tryLock(String key);
+        
+        /**
+         * Push a value to the head of the locked destination.
+         * 
+         * @param key
+         *            the destination
+         * 
+         * @param value
+         *            the value to push
+         */
+        void push(String key, String value);
+        
+        /**
+         * Release the lock acquired by {@link #tryLock(String)}.
+         * 
+         * @param key
+         *            the destination
+         */
+        void unlock(String key);
+        
+    }
+
+    /**
+     * A client blocked on one or more keys.
+     */
+    static final class Waiter {
+
+        private static final int WAITING = 0;
+
+        private static final int SERVED = 1;
+
+        private static final int CANCELLED = 2;
+
+        final List<String> keys;
+
+        /**
+         * The list to move the value to, or <code>null</code> to just pop
+         */
+        final String destination;
+
+        final boolean fromHead;
+
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private final CountDownLatch delivered = new CountDownLatch(1);
+
+        private String key;
+
+        private String value;
+
+        /**
+         * Whether the waiter was added to the queues of its keys
+         */
+        private boolean registered;
+
+        /**
+         * Whether the value could not be moved to the destination, and the
+         * client must try again
+         */
+        private boolean retry;
+
+        Waiter(List<String> keys, String destination, boolean fromHead) {
+            this.keys = keys;
+            this.destination = destination;
+            this.fromHead = fromHead;
+        }
+
+        /**
+         * Mark the waiter as served. Only one of {@link #claim()} and
+         * {@link #cancel()} may succeed.
+         */
+        boolean claim() {
+            return this.state.compareAndSet(WAITING, SERVED);
+        }
+
+        boolean cancel() {
+            return this.state.compareAndSet(WAITING, CANCELLED);
+        }
+
+        void deliver(String key, String value) {
+            this.key = key;
+            this.value = value;
+            this.delivered.countDown();
+        }
+
+        /**
+         * Wake up a claimed waiter without a value, leaving it to try again.
+         */
+        void retry() {
+            this.retry = true;
+            this.delivered.countDown();
+        }
+
+        /**
+         * Whether the waiter was woken up by {@link #retry()}. Valid once
+         * {@link DryRedisBlockingKeys#await(Waiter, long)} returns.
+         */
+        boolean shouldRetry() {
+            return this.retry;
+        }
+
+        /**
+         * Whether the waiter was added to the queues of its keys, rather
+         * than being served right away.
+         */
+        boolean isRegistered() {
+            return this.registered;
+        }
+
+        List<String> result() {
+            return Arrays.asList(this.key, this.value);
+        }
+
+    }
+
+    /**
+     * Acquire the stripes for the given keys.
+     *
+     * @param keys
+     *            the keys to lock
+     *
+     * @return the stripes to pass to {@link #unlock(int[])}
+     */
+    int[] lock(List<String> keys) {
+        return this.locks.lock(keys);
+    }
+
+    void unlock(int[] stripes) {
+        this.locks.unlock(stripes);
+    }
+
+    void lock(String key) {
+        this.locks.lock(key);
+    }
+
+    void unlock(String key) {
+        this.locks.unlock(key);
+    }
+    
+    void setAof(DryRedisAof aof) {
+        this.aof = aof;
+    }
+    
+    void setDestinations(Destinations destinations) {
+        this.destinations = destinations;
+    }
+
+    /**
+     * Pop from the first of the given lists that has a value, or register a
+     * waiter on all of them. The stripes of all keys must be held.
+     *
+     * @param lists
+     *            the lists, in the same order as the keys, with
+     *            <code>null</code> for keys that do not exist
+     *
+     * @param keys
+     *            the keys
+     *
+     * @param destination
+     *            the list the value is moved to, may be <code>null</code>
+     *
+     * @param fromHead
+     *            whether to pop from the head or the tail
+     *
+     * @param register
+     *            whether to register a waiter if all lists are empty
+     *
+     * @return a waiter that is already served if a value was popped, a waiter
+     *         registered on all keys, or <code>null</code> if nothing was
+     *         popped and no waiter was registered
+     */
+    Waiter popOrRegister(List<QuickList<String>> lists, List<String> keys, String destination, boolean fromHead, boolean register) {
+        Waiter waiter = new Waiter(keys, destination, fromHead);
+        for(int index = 0; index < keys.size(); index++) {
+            QuickList<String> list = lists.get(index);
+            if(list != null && !list.isEmpty()) {
+                waiter.claim();
+                waiter.deliver(keys.get(index), fromHead ? list.pollFirst() : list.pollLast());
+                this.logPop(keys.get(index), fromHead);
+                return waiter;
+            }
+        }
+
+        if(!register) {
+            return null;
+        }
+
+        for(String key : keys) {
+            ArrayDeque<Waiter> queue = this.waiters.get(key);
+            if(queue == null) {
+                queue = new ArrayDeque<Waiter>();
+                this.waiters.put(key, queue);
+            }
+
+            queue.add(waiter);
+        }
+
+        waiter.registered = true;
+        return waiter;
+    }
+
+    /**
+     * Check if any client may be blocked on the given key. Used to skip
+     * serving when nobody waits.
+     *
+     * @param key
+     *            the key
+     *
+     * @return <code>true</code> if the key has waiters
+     */
+    boolean hasWaiters(String key) {
+        return this.waiters.containsKey(key);
+    }
+
+    /**
+     * Count the clients queued on the given key, including ones that timed
+     * out or were served by another key and are yet to leave the queue.
+     *
+     * @param key
+     *            the key
+     *
+     * @return the number of queued waiters
+     */
+    int countWaiters(String key) {
+        this.locks.lock(key);
+        try {
+            ArrayDeque<Waiter> queue = this.waiters.get(key);
+            return queue == null ? 0 : queue.size();
+        } finally {
+            this.locks.unlock(key);
+        }
+    }
+
+    /**
+     * Hand values of the list over to the waiters of the key, oldest first,
+     * as long as both last. The stripe of the key must be held.
+     *
+     * @param key
+     *            the key that was pushed to
+     *
+     * @param list
+     *            the list of the key
+     */
+    void serve(String key, QuickList<String> list) {
+        ArrayDeque<Waiter> queue = this.waiters.get(key);
+        if(queue == null) {
+            return;
+        }
+
+        while(!list.isEmpty() && !queue.isEmpty()) {
+            Waiter waiter = queue.poll();
+
+            // the waiter may have timed out, or been served by another key
+            if(!waiter.claim()) {
+                continue;
+            }
+
+            if(waiter.destination != null) {
+                this.move(key, list, waiter);
+                continue;
+            }
+
+            waiter.deliver(key, waiter.fromHead ? list.pollFirst() : list.pollLast());
+            this.logPop(key, waiter.fromHead);
+        }
+
+        if(queue.isEmpty()) {
+            this.waiters.remove(key);
+        }
+    }
+
+    /**
+     * Move a value of the list to the destination of a claimed waiter, the
+     * same as <code>RPOPLPUSH</code>. The stripe of the key is held, so the
+     * locks of the destination are only tried. If that fails, the value stays
+     * in the list and the waiter tries again by itself, taking all locks in
+     * order.
+     */
+    private void move(String key, QuickList<String> list, Waiter waiter) {
+        final Destinations destinations = this.destinations;
+        if(!destinations.tryLock(waiter.destination)) {
+            waiter.retry();
+            return;
+        }
+
+        try {
+            if(!this.locks.tryLock(waiter.destination)) {
+                waiter.retry();
+                return;
+            }
+
+            try {
+                String value = waiter.fromHead ? list.pollFirst() : list.pollLast();
+                this.logPop(key, waiter.fromHead);
+                destinations.push(waiter.destination, value);
+                waiter.deliver(key, value);
+            } finally {
+                this.locks.unlock(waiter.destination);
+            }
+        } finally {
+            destinations.unlock(waiter.destination);
+        }
+    }
+
+    /**
+     * Wait till the waiter is served or the timeout passes. No stripes may be
+     * held by the caller.
+     *
+     * @param waiter
+     *            the waiter, may be <code>null</code>
+     *
+     * @param timeoutMillis
+     *            the maximum time to wait in milliseconds
+     *
+     * @return the key and the value that was popped, or <code>null</code> if
+     *         nothing was popped in time
+     */
+    List<String> await(Waiter waiter, long timeoutMillis) {
+        if(waiter == null) {
+            return null;
+        }
+
+        boolean interrupted = false;
+        boolean done;
+        try {
+            done = waiter.delivered.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            interrupted = true;
+            done = false;
+        }
+
+        if(!done) {
+            if(waiter.cancel()) {
+                this.unregister(waiter);
+                if(interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return null;
+            }
+
+            // served concurrently - the value is being handed over
+            while(true) {
+                try {
+                    waiter.delivered.await();
+                    break;
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        this.unregister(waiter);
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return waiter.result();
+    }
+
+    /**
+     * Log a pop made on behalf of a client, so that replaying the log takes
+     * the value off the list as well. Like all changes, it is logged under
+     * the key lock of the list.
+     */
+    private void logPop(String key, boolean fromHead) {
+        DryRedisAof aof = this.aof;
+        if(aof != null) {
+            aof.append(DryRedisAof.record(fromHead ? DryRedisAof.LPOP : DryRedisAof.RPOP, key), key);
+        }
+    }
+    
+    /**
+     * Remove the waiter from the queues of all its keys.
+     */
+    private void unregister(Waiter waiter) {
+        if(!waiter.registered) {
+            return;
+        }
+
+        for(String key : waiter.keys) {
+            if(!this.hasWaiters(key)) {
+                continue;
+            }
+
+            this.locks.lock(key);
+            try {
+                ArrayDeque<Waiter> queue = this.waiters.get(key);
+                if(queue != null && queue.remove(waiter) && queue.isEmpty()) {
+                    this.waiters.remove(key);
+                }
+            } finally {
+                this.locks.unlock(key);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+/**
+ * A unit of work to be run against a {@link DryRedis} database by a
+ * {@link DryRedisExecutor}. All calls made on the database from within one
+ * command run without any other command interleaving, much like a
+ * <code>MULTI/EXEC</code> block in Redis.
+ * 
+ * @author sangupta
+ *
+ * @param <T>
+ *            the type of result returned by the command
+ */
+public interface DryRedisCommand<T> {
+
+    /**
+     * Run this command.
+     * 
+     * @param redis
+     *            the {@link DryRedis} database owned by the executor
+     * 
+     * @return the result of the command
+     */
+    public T execute(DryRedis redis);
+
+}
@@ -0,0 +1,180 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sangupta.dryredis.ds.PackedHashMap;
+import com.sangupta.dryredis.ds.PackedStringSet;
+import com.sangupta.dryredis.ds.SortedSetWithPriority;
+import com.sangupta.dryredis.support.DryRedisUtils;
+
+/**
+ * The configuration parameters of a database that can be read and changed
+ * using CONFIG GET and CONFIG SET. Only the parameters that control the
+ * compact encodings of small values are supported, along with the
+ * <code>hll-parallel-merge-keys</code> parameter of dry-redis. Changes apply
+ * to values created afterwards.
+ * 
+ * The <code>ziplist</code> names of parameters used by older Redis versions
+ * are accepted as aliases of the <code>listpack</code> ones.
+ * 
+ * @author sangupta
+ *
+ */
+class DryRedisConfig {
+    
+    static final String HASH_MAX_LISTPACK_ENTRIES = "hash-max-listpack-entries";
+    
+    static final String HASH_MAX_LISTPACK_VALUE = "hash-max-listpack-value";
+    
+    static final String SET_MAX_INTSET_ENTRIES = "set-max-intset-entries";
+    
+    static final String SET_MAX_LISTPACK_ENTRIES = "set-max-listpack-entries";
+    
+    static final String SET_MAX_LISTPACK_VALUE = "set-max-listpack-value";
+    
+    static final String ZSET_MAX_LISTPACK_ENTRIES = "zset-max-listpack-entries";
+    
+    static final String ZSET_MAX_LISTPACK_VALUE = "zset-max-listpack-value";
+    
+    static final String HLL_PARALLEL_MERGE_KEYS = "hll-parallel-merge-keys";
+    
+    /**
+     * Older names of parameters mapped to the current ones
+     */
+    private static final Map<String, String> ALIASES = new HashMap<String, String>();
+    
+    static {
+        ALIASES.put("hash-max-ziplist-entries", HASH_MAX_LISTPACK_ENTRIES);
+        ALIASES.put("hash-max-ziplist-value", HASH_MAX_LISTPACK_VALUE);
+        ALIASES.put("zset-max-ziplist-entries", ZSET_MAX_LISTPACK_ENTRIES);
+        ALIASES.put("zset-max-ziplist-value", ZSET_MAX_LISTPACK_VALUE);
+    }
+    
+    /**
+     * Current value of each parameter
+     */
+    private final Map<String, Integer> values = new ConcurrentHashMap<String, Integer>();
+    
+    DryRedisConfig() {
+        this.values.put(HASH_MAX_LISTPACK_ENTRIES, PackedHashMap.DEFAULT_MAX_PACKED_ENTRIES);
+        this.values.put(HASH_MAX_LISTPACK_VALUE, PackedHashMap.DEFAULT_MAX_PACKED_VALUE);
+        this.values.put(SET_MAX_INTSET_ENTRIES, PackedStringSet.DEFAULT_MAX_INTSET_ENTRIES);
+        this.values.put(SET_MAX_LISTPACK_ENTRIES, PackedStringSet.DEFAULT_MAX_PACKED_ENTRIES);
+        this.values.put(SET_MAX_LISTPACK_VALUE, PackedStringSet.DEFAULT_MAX_PACKED_VALUE);
+        this.values.put(ZSET_MAX_LISTPACK_ENTRIES, SortedSetWithPriority.DEFAULT_MAX_PACKED_ENTRIES);
+        this.values.put(ZSET_MAX_LISTPACK_VALUE, SortedSetWithPriority.DEFAULT_MAX_PACKED_VALUE);
+        this.values.put(HLL_PARALLEL_MERGE_KEYS, DryRedisHyperLogLog.DEFAULT_PARALLEL_MERGE_KEYS);
+    }
+    
+    /**
+     * Return the value of the given parameter.
+     * 
+     * @param name
+     *            one of the parameter names defined in this class
+     * 
+     * @return the value
+     */
+    int getInt(String name) {
+        return this.values.get(name);
+    }
+    
+    /**
+     * Return the parameters matching the given glob-style pattern.
+     * 
+     * @param pattern
+     *            the pattern to match
+     * 
+     * @return the names and values of matching parameters one after the
+     *         other, sorted by name
+     */
+    List<String> get(String pattern) {
+        Map<String, Integer> matched = new TreeMap<String, Integer>();
+        for(Map.Entry<String, Integer> entry : this.values.entrySet()) {
+            if(DryRedisUtils.wildcardMatch(entry.getKey(), pattern)) {
+                matched.put(entry.getKey(), entry.getValue());
+            }
+        }
+        
+        for(Map.Entry<String, String> alias : ALIASES.entrySet()) {
+            if(DryRedisUtils.wildcardMatch(alias.getKey(), pattern)) {
+                matched.put(alias.getKey(), this.values.get(alias.getValue()));
+            }
+        }
+        
+        List<String> result = new ArrayList<String>(matched.size() * 2);
+        for(Map.Entry<String, Integer> entry : matched.entrySet()) {
+            result.add(entry.getKey());
+            result.add(String.valueOf(entry.getValue()));
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Change the value of a parameter.
+     * 
+     * @param name
+     *            the name of the parameter
+     * 
+     * @param value
+     *            the new value
+     * 
+     * @throws IllegalArgumentException
+     *             if the parameter is not supported, or the value is not a
+     *             non-negative integer
+     */
+    void set(String name, String value) {
+        if(name == null) {
+            throw new IllegalArgumentException("Parameter name cannot be null");
+        }
+        
+        name = name.toLowerCase();
+        if(ALIASES.containsKey(name)) {
+            name = ALIASES.get(name);
+        }
+        
+        if(!this.values.containsKey(name)) {
+            throw new IllegalArgumentException("Unsupported CONFIG parameter: " + name);
+        }
+        
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid argument '" + value + "' for CONFIG SET '" + name + "'");
+        }
+        
+        if(parsed < 0) {
+            throw new IllegalArgumentException("Invalid argument '" + value + "' for CONFIG SET '" + name + "'");
+        }
+        
+        this.values.put(name, parsed);
+    }
+
+}
@@ -0,0 +1,271 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sangupta.dryredis.ds.StripedCounter;
+
+/**
+ * Keeps track of the string keys and hash fields that are in counter mode. An
+ * increment of such a counter is added to a {@link StripedCounter} without
+ * taking the lock of its key. The increments collected so far are drained into
+ * the stored value whenever a command takes the lock of the key, so that every
+ * command other than an increment sees the exact value, the same as if each
+ * increment had been applied by itself.
+ *
+ * Each counter remembers the value returned by the last increment that ran
+ * under the lock. Increments without the lock return that value plus the
+ * increments collected since, which is exact as long as no other thread
+ * increments the counter at the same time. Once another command has taken the
+ * lock of the key the remembered value may be out of date, and the next
+ * increment runs under the lock again.
+ *
+ * @author sangupta
+ *
+ */
+class DryRedisCounters {
+
+    /**
+     * The counters of string keys
+     */
+    private final ConcurrentHashMap<String, Counter> strings = new ConcurrentHashMap<String, Counter>();
+
+    /**
+     * The counters of hash fields, by key and then by field
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Counter>> fields = new ConcurrentHashMap<String, ConcurrentHashMap<String, Counter>>();
+
+    /**
+     * A single counter in counter mode.
+     */
+    static final class Counter {
+
+        /**
+         * The increments not yet applied to the stored value
+         */
+        private final StripedCounter pending = new StripedCounter();
+
+        /**
+         * The value returned by the last increment under the lock
+         */
+        private volatile long base;
+
+        /**
+         * Whether {@link #base} may be out of date
+         */
+        private volatile boolean stale = true;
+
+        /**
+         * Whether the counter has left counter mode
+         */
+        private volatile boolean closed;
+
+        /**
+         * Add to the counter without any lock.
+         *
+         * @param delta
+         *            the value to add
+         *
+         * @return the value of the counter, or <code>null</code> if the
+         *         increment must be made under the lock
+         */
+        Long add(long delta) {
+            if(this.stale || this.closed) {
+                return null;
+            }
+
+            this.pending.add(delta);
+            return this.base + this.pending.sum();
+        }
+
+        /**
+         * Whether increments may have been left behind after the counter was
+         * closed, and must be drained by the thread that added them.
+         */
+        boolean isClosed() {
+            return this.closed;
+        }
+
+        /**
+         * Remember the value of the counter after an increment under the
+         * lock. The increments collected since the last drain are added
+         * later on.
+         */
+        void update(long value) {
+            this.base = value;
+            this.stale = false;
+        }
+
+        /**
+         * Take the increments collected so far, marking the remembered value
+         * out of date.
+         */
+        long drain() {
+            this.stale = true;
+            return this.pending.sumThenReset();
+        }
+
+    }
+
+    boolean isEmpty() {
+        return this.strings.isEmpty() && this.fields.isEmpty();
+    }
+
+    /**
+     * Return the keys that are in counter mode, or have hash fields in counter
+     * mode.
+     */
+    Set<String> keys() {
+        Set<String> keys = new HashSet<String>(this.strings.keySet());
+        keys.addAll(this.fields.keySet());
+        return keys;
+    }
+
+    Counter get(String key) {
+        return this.strings.get(key);
+    }
+
+    Counter get(String key, String field) {
+        Map<String, Counter> counters = this.fields.get(key);
+        if(counters == null) {
+            return null;
+        }
+
+        return counters.get(field);
+    }
+
+    /**
+     * Put the string key in counter mode. The lock of the key must be held.
+     *
+     * @return <code>true</code> if the key was not in counter mode
+     */
+    boolean enable(String key) {
+        return this.strings.putIfAbsent(key, new Counter()) == null;
+    }
+
+    /**
+     * Put the hash field in counter mode. The lock of the key must be held.
+     *
+     * @return <code>true</code> if the field was not in counter mode
+     */
+    boolean enable(String key, String field) {
+        ConcurrentHashMap<String, Counter> counters = this.fields.get(key);
+        if(counters == null) {
+            counters = new ConcurrentHashMap<String, Counter>();
+            this.fields.put(key, counters);
+        }
+
+        return counters.putIfAbsent(field, new Counter()) == null;
+    }
+
+    /**
+     * Take the string key out of counter mode. The lock of the key must be
+     * held, and the increments left in the returned counter must be drained
+     * afterwards.
+     *
+     * @return the counter, or <code>null</code> if the key was not in
+     *         counter mode
+     */
+    Counter disable(String key) {
+        return close(this.strings.remove(key));
+    }
+
+    /**
+     * Take the hash field out of counter mode. The lock of the key must be
+     * held, and the increments left in the returned counter must be drained
+     * afterwards.
+     *
+     * @return the counter, or <code>null</code> if the field was not in
+     *         counter mode
+     */
+    Counter disable(String key, String field) {
+        ConcurrentHashMap<String, Counter> counters = this.fields.get(key);
+        if(counters == null) {
+            return null;
+        }
+
+        Counter counter = counters.remove(field);
+        if(counters.isEmpty()) {
+            this.fields.remove(key);
+        }
+
+        return close(counter);
+    }
+
+    /**
+     * Return the counters of the hash fields of the given key.
+     *
+     * @return the counters by field, or <code>null</code> if no field of the
+     *         key is in counter mode
+     */
+    Map<String, Counter> fieldsOf(String key) {
+        return this.fields.get(key);
+    }
+
+    /**
+     * Drop all increments not yet applied, as when the database is flushed.
+     * All locks must be held.
+     */
+    void discard() {
+        for(Counter counter : this.strings.values()) {
+            counter.drain();
+        }
+
+        for(Map<String, Counter> counters : this.fields.values()) {
+            for(Counter counter : counters.values()) {
+                counter.drain();
+            }
+        }
+    }
+
+    /**
+     * Drop the increments not yet applied to the given key, as when it
+     * expires. The lock of the key must be held. The counters stay in
+     * counter mode, and the next increment runs under the lock again.
+     */
+    void expired(String key) {
+        Counter counter = this.strings.get(key);
+        if(counter != null) {
+            counter.drain();
+        }
+
+        Map<String, Counter> counters = this.fields.get(key);
+        if(counters != null) {
+            for(Counter field : counters.values()) {
+                field.drain();
+            }
+        }
+    }
+
+    private static Counter close(Counter counter) {
+        if(counter != null) {
+            counter.closed = true;
+        }
+
+        return counter;
+    }
+
+}
@@ -0,0 +1,172 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.sangupta.dryredis.ds.Crc64;
+import com.sangupta.dryredis.ds.DynamicString;
+import com.sangupta.dryredis.support.DryRedisCacheType;
+
+/**
+ * Reads values written by {@link DryRedisEncoder}. Reading past the end of
+ * the data, or data that is not in the expected format, raises an
+ * {@link IllegalArgumentException}.
+ * 
+ * @author sangupta
+ *
+ */
+class DryRedisDecoder {
+    
+    /**
+     * Size of the version and checksum at the end of a DUMP payload
+     */
+    private static final int DUMP_TRAILER_SIZE = 10;
+    
+    private final ByteBuffer buffer;
+    
+    DryRedisDecoder(ByteBuffer buffer) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * Create a decoder over the value of a DUMP payload, after checking its
+     * version and checksum.
+     * 
+     * @param payload
+     *            the payload created by DUMP
+     * 
+     * @return a decoder positioned at the type code of the value
+     * 
+     * @throws IllegalArgumentException
+     *             if the version or the checksum do not match
+     */
+    static DryRedisDecoder forDump(byte[] payload) {
+        if(payload == null || payload.length < DUMP_TRAILER_SIZE + 1) {
+            throw new IllegalArgumentException("DUMP payload version or checksum are wrong");
+        }
+        
+        final int end = payload.length - DUMP_TRAILER_SIZE;
+        ByteBuffer trailer = ByteBuffer.wrap(payload, end, DUMP_TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int version = trailer.getShort() & 0xffff;
+        long checksum = trailer.getLong();
+        if(version != DryRedis.DRY_REDIS_DUMP_VERSION || checksum != Crc64.update(0, payload, 0, end + 2)) {
+            throw new IllegalArgumentException("DUMP payload version or checksum are wrong");
+        }
+        
+        return new DryRedisDecoder(ByteBuffer.wrap(payload, 0, end));
+    }
+    
+    DryRedisCacheType readType() {
+        byte code = this.readByte();
+        for(DryRedisCacheType type : DryRedisCacheType.values()) {
+            if(type.getCode() == code) {
+                return type;
+            }
+        }
+        
+        throw new IllegalArgumentException("Bad data format: unknown type " + code);
+    }
+    
+    byte readByte() {
+        try {
+            return this.buffer.get();
+        } catch(BufferUnderflowException e) {
+            throw truncated();
+        }
+    }
+    
+    long readVarint() {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = this.readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        
+        throw new IllegalArgumentException("Bad data format: varint too long");
+    }
+    
+    long readSignedVarint() {
+        long value = this.readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    /**
+     * Read a count or a length, which must fit into the remaining data if
+     * each item takes at least one byte.
+     */
+    int readLength() {
+        long length = this.readVarint();
+        if(length < 0 || length > this.buffer.remaining()) {
+            throw truncated();
+        }
+        
+        return (int) length;
+    }
+    
+    long readLong() {
+        try {
+            return this.buffer.getLong();
+        } catch(BufferUnderflowException e) {
+            throw truncated();
+        }
+    }
+    
+    double readDouble() {
+        return Double.longBitsToDouble(this.readLong());
+    }
+    
+    byte[] readBytes() {
+        byte[] bytes = new byte[this.readLength()];
+        this.buffer.get(bytes);
+        return bytes;
+    }
+    
+    String readString() {
+        int length = this.readLength();
+        String value;
+        if(this.buffer.hasArray()) {
+            value = new String(this.buffer.array(), this.buffer.arrayOffset() + this.buffer.position(), length, DynamicString.UTF_8);
+            this.buffer.position(this.buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            this.buffer.get(bytes);
+            value = new String(bytes, DynamicString.UTF_8);
+        }
+        
+        return value;
+    }
+    
+    boolean hasRemaining() {
+        return this.buffer.hasRemaining();
+    }
+    
+    private static IllegalArgumentException truncated() {
+        return new IllegalArgumentException("Bad data format: truncated value");
+    }
+
+}
@@ -0,0 +1,170 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.sangupta.dryredis.ds.Crc64;
+import com.sangupta.dryredis.ds.DynamicString;
+
+/**
+ * Writes values in the binary format of dry-redis into a growing byte array.
+ * Lengths and counts are written as unsigned varints of 7 bits per byte,
+ * strings as their length followed by their UTF-8 bytes, and doubles as their
+ * 8 bytes in little-endian order.
+ * 
+ * The payload of DUMP is the type code of the value, followed by the value
+ * as written by {@link DryRedisAbstractCache#writeValue(Object, DryRedisEncoder)},
+ * the format version in 2 bytes, and the CRC-64 of everything before in 8
+ * bytes, all in little-endian order like the payloads of Redis.
+ * 
+ * @author sangupta
+ *
+ */
+class DryRedisEncoder {
+    
+    private byte[] buffer;
+    
+    private int size;
+    
+    DryRedisEncoder() {
+        this(64);
+    }
+    
+    DryRedisEncoder(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+    
+    /**
+     * Create the DUMP payload of a value.
+     * 
+     * @param cache
+     *            the cache holding the value
+     * 
+     * @param value
+     *            the value
+     * 
+     * @return the payload
+     */
+    static <T> byte[] dump(DryRedisAbstractCache<T> cache, T value) {
+        DryRedisEncoder encoder = new DryRedisEncoder();
+        encoder.writeByte(cache.getType().getCode());
+        cache.writeValue(value, encoder);
+        
+        encoder.writeByte(DryRedis.DRY_REDIS_DUMP_VERSION);
+        encoder.writeByte(DryRedis.DRY_REDIS_DUMP_VERSION >>> 8);
+        encoder.writeLong(Crc64.update(0, encoder.buffer, 0, encoder.size));
+        
+        return encoder.toByteArray();
+    }
+    
+    void writeByte(int value) {
+        this.ensureCapacity(1);
+        this.buffer[this.size++] = (byte) value;
+    }
+    
+    /**
+     * Write a non-negative value in as few bytes as needed.
+     */
+    void writeVarint(long value) {
+        this.ensureCapacity(10);
+        while((value & ~0x7fl) != 0) {
+            this.buffer[this.size++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        
+        this.buffer[this.size++] = (byte) value;
+    }
+    
+    /**
+     * Write a value that may be negative, zig-zag encoded so that small
+     * negative values take few bytes as well.
+     */
+    void writeSignedVarint(long value) {
+        this.writeVarint((value << 1) ^ (value >> 63));
+    }
+    
+    void writeLong(long value) {
+        this.ensureCapacity(8);
+        for(int index = 0; index < 8; index++) {
+            this.buffer[this.size++] = (byte) (value >>> (index << 3));
+        }
+    }
+    
+    void writeDouble(double value) {
+        this.writeLong(Double.doubleToRawLongBits(value));
+    }
+    
+    void writeBytes(byte[] bytes) {
+        this.writeVarint(bytes.length);
+        this.ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+        this.size += bytes.length;
+    }
+    
+    /**
+     * Write bytes encoded by another encoder as they are, with no length
+     * before them.
+     */
+    void writeRaw(byte[] bytes) {
+        this.ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+        this.size += bytes.length;
+    }
+    
+    void writeString(String value) {
+        this.writeBytes(value.getBytes(DynamicString.UTF_8));
+    }
+    
+    int size() {
+        return this.size;
+    }
+    
+    byte[] toByteArray() {
+        return Arrays.copyOf(this.buffer, this.size);
+    }
+    
+    /**
+     * Return the bytes written so far, without copying them.
+     * 
+     * @return a buffer over the written bytes, valid till the next write or
+     *         {@link #reset()}
+     */
+    ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(this.buffer, 0, this.size);
+    }
+    
+    /**
+     * Discard the bytes written so far, keeping the allocated buffer.
+     */
+    void reset() {
+        this.size = 0;
+    }
+    
+    private void ensureCapacity(int needed) {
+        if(this.size + needed > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.size + needed, this.buffer.length * 2));
+        }
+    }
+
+}
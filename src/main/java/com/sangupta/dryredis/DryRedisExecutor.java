@@ -0,0 +1,277 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sangupta.dryredis.ds.MpscLinkedQueue;
+
+/**
+ * Runs all commands over a {@link DryRedis} database on one single owner
+ * thread, the way Redis runs its event loop. Callers from any number of
+ * threads submit {@link DryRedisCommand}s that are queued in a lock-free
+ * {@link MpscLinkedQueue} and run one after the other. This makes every
+ * command, and every group of calls made within one command, atomic without
+ * any locking on the database itself.
+ * 
+ * The owner thread runs all commands queued at the time it wakes up before
+ * going back to sleep, so that a burst of commands from many callers needs
+ * only a single wake-up.
+ * 
+ * Blocking list commands like <code>BLPOP</code> never wait when run by the
+ * executor, as no other command could push a value while the owner thread is
+ * blocked. They behave as their non-blocking counterparts, just as they do
+ * inside a <code>MULTI</code> block in Redis.
+ * 
+ * @author sangupta
+ *
+ */
+public class DryRedisExecutor {
+    
+    /**
+     * Marker task queued by {@link #shutdown()}
+     */
+    private static final FutureTask<Object> SHUTDOWN_TASK = new FutureTask<Object>(new Runnable() {
+        
+        @Override
+        public void run() {
+            // do nothing
+        }
+        
+    }, null);
+    
+    /**
+     * The database owned by this executor
+     */
+    private final DryRedis redis = DryRedis.newExecutorDatabase();
+    
+    /**
+     * Commands waiting to be run
+     */
+    private final MpscLinkedQueue<FutureTask<?>> queue = new MpscLinkedQueue<FutureTask<?>>();
+    
+    /**
+     * Set by the owner thread just before it parks
+     */
+    private final AtomicBoolean sleeping = new AtomicBoolean(false);
+    
+    /**
+     * Whether {@link #shutdown()} has been called
+     */
+    private volatile boolean shutdown = false;
+    
+    /**
+     * Whether the owner thread has stopped running commands
+     */
+    private volatile boolean terminated = false;
+    
+    /**
+     * The thread that runs all commands
+     */
+    private final Thread owner;
+    
+    /**
+     * Create a new executor with its own empty database and start its owner
+     * thread.
+     * 
+     * @param name
+     *            the name of the executor, used to name the owner thread
+     */
+    public DryRedisExecutor(String name) {
+        this.owner = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                DryRedisExecutor.this.runLoop();
+            }
+            
+        }, "dry-redis-executor-" + name);
+        
+        this.owner.setDaemon(true);
+        this.owner.start();
+    }
+    
+    /**
+     * Queue the command to be run by the owner thread and return a
+     * {@link Future} that completes with its result.
+     * 
+     * @param command
+     *            the command to run
+     * 
+     * @return the {@link Future} for the result of the command. Any exception
+     *         thrown by the command is available via
+     *         {@link ExecutionException#getCause()}
+     * 
+     * @throws IllegalArgumentException
+     *             if the command is <code>null</code>
+     * 
+     * @throws IllegalStateException
+     *             if the executor has been shutdown
+     */
+    public <T> Future<T> submit(final DryRedisCommand<T> command) {
+        if(command == null) {
+            throw new IllegalArgumentException("Command cannot be null");
+        }
+        
+        if(this.shutdown) {
+            throw new IllegalStateException("Executor has been shutdown");
+        }
+        
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            
+            @Override
+            public T call() throws Exception {
+                return command.execute(DryRedisExecutor.this.redis);
+            }
+            
+        });
+        
+        this.enqueue(task);
+        
+        if(this.terminated) {
+            // the owner thread may have exited before our task was queued
+            task.cancel(false);
+        }
+        
+        return task;
+    }
+    
+    /**
+     * Run the command on the owner thread and wait for its result. When called
+     * from within a command the nested command is run right away.
+     * 
+     * @param command
+     *            the command to run
+     * 
+     * @return the result of the command
+     * 
+     * @throws IllegalArgumentException
+     *             if the command is <code>null</code>
+     * 
+     * @throws IllegalStateException
+     *             if the executor has been shutdown
+     * 
+     * @throws RuntimeException
+     *             if the command throws one, or the calling thread is
+     *             interrupted while waiting
+     */
+    public <T> T execute(DryRedisCommand<T> command) {
+        if(Thread.currentThread() == this.owner) {
+            return command.execute(this.redis);
+        }
+        
+        Future<T> future = this.submit(command);
+        try {
+            return future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            
+            throw new RuntimeException(cause);
+        }
+    }
+    
+    /**
+     * Stop accepting new commands. Commands already submitted are still run,
+     * after which the owner thread exits.
+     */
+    public void shutdown() {
+        if(this.shutdown) {
+            return;
+        }
+        
+        this.shutdown = true;
+        this.enqueue(SHUTDOWN_TASK);
+    }
+    
+    /**
+     * Check if the owner thread has exited after a {@link #shutdown()}.
+     * 
+     * @return <code>true</code> if terminated, <code>false</code> otherwise
+     */
+    public boolean isTerminated() {
+        return this.terminated;
+    }
+    
+    /**
+     * Add a task to the queue and wake up the owner thread if it is sleeping.
+     * 
+     * @param task
+     *            the task to add
+     */
+    private void enqueue(FutureTask<?> task) {
+        this.queue.offer(task);
+        
+        if(this.sleeping.get() && this.sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(this.owner);
+        }
+    }
+    
+    /**
+     * The loop run by the owner thread.
+     */
+    private void runLoop() {
+        while(true) {
+            FutureTask<?> task = this.queue.poll();
+            if(task == null) {
+                this.sleeping.set(true);
+                
+                // check again to not miss a task queued before the flag was set
+                if(this.queue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                
+                this.sleeping.set(false);
+                continue;
+            }
+            
+            if(task == SHUTDOWN_TASK) {
+                break;
+            }
+            
+            task.run();
+        }
+        
+        this.terminated = true;
+        
+        // cancel anything that raced with the shutdown
+        FutureTask<?> task;
+        while((task = this.queue.poll()) != null) {
+            task.cancel(false);
+        }
+    }
+    
+}
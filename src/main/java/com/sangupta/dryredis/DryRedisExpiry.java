@@ -0,0 +1,243 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.util.PriorityQueue;
+
+/**
+ * Keeps track of the keys in a {@link DryRedisKeyspace} that have an expiry
+ * time set, ordered by the time they expire at. This allows the keyspace to
+ * find and reclaim expired keys in active expiry cycles without scanning
+ * all keys, even if the keys are never read again.
+ * 
+ * The deadlines are kept in a min-heap. Updates to a key's expiry never
+ * search the heap: a deadline is only added when a key is to expire earlier
+ * than it is already scheduled for. Deadlines that no longer match their key
+ * are dropped or rescheduled when they reach the top of the heap. A deadline
+ * holds just the key and the time, so that a key removed or overwritten
+ * before its deadline does not keep its value in memory till then.
+ * 
+ * How often cycles run and how much time they may take is configured using
+ * {@link #configure(long, int)}, similar to the <code>hz</code> setting and
+ * the active expire cycle time limit in Redis.
+ * 
+ * @author sangupta
+ *
+ */
+class DryRedisExpiry {
+    
+    /**
+     * Default time between two active expiry cycles
+     */
+    static final long DEFAULT_CYCLE_INTERVAL_MILLIS = 100;
+    
+    /**
+     * Default share of the cycle interval that a cycle may use
+     */
+    static final int DEFAULT_CPU_BUDGET_PERCENT = 25;
+    
+    /**
+     * Pending deadlines, earliest first
+     */
+    private final PriorityQueue<Deadline> deadlines = new PriorityQueue<Deadline>();
+    
+    /**
+     * The time between two active expiry cycles
+     */
+    private volatile long cycleIntervalMillis = DEFAULT_CYCLE_INTERVAL_MILLIS;
+    
+    /**
+     * The share of the cycle interval that a cycle may use, <code>0</code>
+     * disables active expiry
+     */
+    private volatile int cpuBudgetPercent = DEFAULT_CPU_BUDGET_PERCENT;
+    
+    /**
+     * The earliest epoch millis at which the next cycle may start
+     */
+    private volatile long nextCycle = 0;
+    
+    /**
+     * Whether there are any deadlines at all, so that writes to keyspaces
+     * without any expiring keys never need to look at the clock
+     */
+    private volatile boolean hasDeadlines = false;
+    
+    /**
+     * Configure the active expiry cycles.
+     * 
+     * @param cycleIntervalMillis
+     *            the time between two cycles
+     * 
+     * @param cpuBudgetPercent
+     *            the percentage of the interval that one cycle may use,
+     *            <code>0</code> disables active expiry leaving only lazy
+     *            expiry of keys when they are read. Unless disabled, the
+     *            next command runs a cycle right away.
+     * 
+     * @throws IllegalArgumentException
+     *             if the interval is not positive or the budget is not
+     *             within <code>0</code> to <code>100</code>
+     */
+    void configure(long cycleIntervalMillis, int cpuBudgetPercent) {
+        if(cycleIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Cycle interval must be positive");
+        }
+        
+        if(cpuBudgetPercent < 0 || cpuBudgetPercent > 100) {
+            throw new IllegalArgumentException("CPU budget must be between 0 and 100 percent");
+        }
+        
+        this.cycleIntervalMillis = cycleIntervalMillis;
+        this.cpuBudgetPercent = cpuBudgetPercent;
+        this.nextCycle = 0;
+    }
+    
+    long getCycleIntervalMillis() {
+        return this.cycleIntervalMillis;
+    }
+    
+    /**
+     * Schedule the given entry to be checked at its expiry time.
+     * 
+     * @param key
+     *            the key of the entry
+     * 
+     * @param entry
+     *            the entry with its new expiry time set
+     */
+    synchronized void schedule(String key, DryRedisKeyspace.KeyEntry entry) {
+        final long expiry = entry.expiry;
+        if(expiry == DryRedisKeyspace.NO_EXPIRY) {
+            return;
+        }
+        
+        if(entry.scheduled != DryRedisKeyspace.NO_EXPIRY && entry.scheduled <= expiry) {
+            // the existing deadline comes first and will reschedule the entry
+            return;
+        }
+        
+        entry.scheduled = expiry;
+        this.deadlines.add(new Deadline(key, expiry));
+        this.hasDeadlines = true;
+    }
+    
+    /**
+     * Put back a deadline taken by {@link #pollDue(long)} whose key could not
+     * be checked.
+     * 
+     * @param deadline
+     *            the deadline
+     */
+    synchronized void requeue(Deadline deadline) {
+        this.deadlines.add(deadline);
+        this.hasDeadlines = true;
+    }
+    
+    /**
+     * Check if an active expiry cycle should be run now. Also claims the cycle
+     * so that no other thread starts one before the next interval.
+     * 
+     * @return the time in nanoseconds the cycle may run for, or <code>0</code>
+     *         if no cycle is due
+     */
+    long claimCycle() {
+        if(!this.hasDeadlines || this.cpuBudgetPercent == 0) {
+            return 0;
+        }
+        
+        final long now = System.currentTimeMillis();
+        if(now < this.nextCycle) {
+            return 0;
+        }
+        
+        synchronized (this) {
+            if(now < this.nextCycle) {
+                return 0;
+            }
+            
+            this.nextCycle = now + this.cycleIntervalMillis;
+        }
+        
+        return this.cycleIntervalMillis * this.cpuBudgetPercent * 10000l;
+    }
+    
+    /**
+     * Remove and return the earliest deadline if it is due.
+     * 
+     * @param now
+     *            the current epoch millis
+     * 
+     * @return the due {@link Deadline} or <code>null</code> if none is due
+     */
+    synchronized Deadline pollDue(long now) {
+        Deadline deadline = this.deadlines.peek();
+        if(deadline == null || deadline.expiry > now) {
+            return null;
+        }
+        
+        this.deadlines.poll();
+        this.hasDeadlines = !this.deadlines.isEmpty();
+        return deadline;
+    }
+    
+    /**
+     * Remove all deadlines.
+     */
+    synchronized void clear() {
+        this.deadlines.clear();
+        this.hasDeadlines = false;
+    }
+    
+    /**
+     * The time at which a key was scheduled to be checked for expiry.
+     * 
+     * @author sangupta
+     *
+     */
+    static final class Deadline implements Comparable<Deadline> {
+        
+        final String key;
+        
+        final long expiry;
+        
+        Deadline(String key, long expiry) {
+            this.key = key;
+            this.expiry = expiry;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            if(this.expiry < other.expiry) {
+                return -1;
+            }
+            
+            if(this.expiry > other.expiry) {
+                return 1;
+            }
+            
+            return 0;
+        }
+        
+    }
+
+}
@@ -22,17 +22,38 @@
 package com.sangupta.dryredis;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.PriorityQueue;
 
+import com.sangupta.dryredis.ds.GeoIndex;
 import com.sangupta.dryredis.support.DryRedisCache;
 import com.sangupta.dryredis.support.DryRedisCacheType;
 import com.sangupta.dryredis.support.DryRedisGeoPoint;
 import com.sangupta.dryredis.support.DryRedisGeoUnit;
+import com.sangupta.dryredis.support.DryRedisSortOrder;
 import com.sangupta.dryredis.support.Haversine;
+import com.sangupta.dryredis.support.RedisGeoHash;
 
-class DryRedisGeo extends DryRedisAbstractCache<Map<String, DryRedisGeoPoint>> implements DryRedisCache, DryRedisGeoOperations {
+class DryRedisGeo extends DryRedisAbstractCache<GeoIndex> implements DryRedisCache, DryRedisGeoOperations {
+
+	/**
+	 * Create an instance that uses its own keyspace.
+	 */
+	DryRedisGeo() {
+	    super();
+	}
+	
+	/**
+	 * Create an instance that stores its keys in the given keyspace.
+	 * 
+	 * @param keyspace
+	 *            the {@link DryRedisKeyspace} to use
+	 */
+	DryRedisGeo(DryRedisKeyspace keyspace) {
+	    super(keyspace);
+	}
 	
 	// redis commands
 	
@@ -41,19 +62,21 @@ class DryRedisGeo extends DryRedisAbstractCache<Map<String, DryRedisGeoPoint>> i
      */
 	@Override
     public int geoadd(String key, double longitude, double latitude, String member) {
-		Map<String, DryRedisGeoPoint> points = this.store.get(key);
-		int result = 0;
+		if(!RedisGeoHash.isValid(latitude, longitude)) {
+			throw new IllegalArgumentException("Invalid longitude, latitude pair: " + longitude + ", " + latitude);
+		}
 		
+		GeoIndex points = this.store.get(key);
 		if(points == null) {
-			points = new HashMap<String, DryRedisGeoPoint>();
+			points = this.newIndex();
 			this.store.put(key, points);
 		}
 		
-        if(!points.containsKey(member)) {
-            result = 1;
-        }
-		points.put(member, new DryRedisGeoPoint(member, latitude, longitude));
-		return result;
+		if(points.add(new DryRedisGeoPoint(member, latitude, longitude))) {
+			return 1;
+		}
+		
+		return 0;
 	}
 	
 	/* (non-Javadoc)
@@ -61,7 +84,7 @@ class DryRedisGeo extends DryRedisAbstractCache<Map<String, DryRedisGeoPoint>> i
      */
 	@Override
     public String geohash(String key, String member) {
-		Map<String, DryRedisGeoPoint> points = this.store.get(key);
+		GeoIndex points = this.store.get(key);
 		if(points == null) {
 			return null;
 		}
@@ -79,7 +102,7 @@ class DryRedisGeo extends DryRedisAbstractCache<Map<String, DryRedisGeoPoint>> i
      */
 	@Override
     public double[] geopos(String key, String member) {
-		Map<String, DryRedisGeoPoint> points = this.store.get(key);
+		GeoIndex points = this.store.get(key);
 		if(points == null) {
 			return null;
 		}
@@ -97,7 +120,7 @@ class DryRedisGeo extends DryRedisAbstractCache<Map<String, DryRedisGeoPoint>> i
      */
 	@Override
     public Double geodist(String key, String member1, String member2, DryRedisGeoUnit unit) {
-		Map<String, DryRedisGeoPoint> points = this.store.get(key);
+		GeoIndex points = this.store.get(key);
 		if(points == null) {
 			return null;
 		}
@@ -136,7 +159,7 @@ class DryRedisGeo extends DryRedisAbstractCache<Map<String, DryRedisGeoPoint>> i
      */
 	@Override
     public List<String> georadius(String key, double longitude, double latitude, double radius, DryRedisGeoUnit unit) {
-		return this.georadius(key, latitude, longitude, radius, unit, false, false, false, 0);
+		return this.georadius(key, longitude, latitude, radius, unit, false, false, false, 0);
 	}
 	
 	/* (non-Javadoc)
@@ -144,8 +167,16 @@ class DryRedisGeo extends DryRedisAbstractCache<Map<String, DryRedisGeoPoint>> i
      */
 	@Override
     public List<String> georadius(String key, double longitude, double latitude, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count) {
+		return this.georadius(key, longitude, latitude, radius, unit, withCoordinates, withDistance, withHash, count, null);
+	}
+	
+	/* (non-Javadoc)
+     * @see com.sangupta.dryredis.DryRedisGeoOperations#georadius(java.lang.String, double, double, double, com.sangupta.dryredis.support.DryRedisGeoUnit, boolean, boolean, boolean, int, com.sangupta.dryredis.support.DryRedisSortOrder)
+     */
+	@Override
+    public List<String> georadius(String key, double longitude, double latitude, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count, DryRedisSortOrder order) {
 		DryRedisGeoPoint origin = new DryRedisGeoPoint("origin", latitude, longitude);
-		return this.getUsingRadius(key, origin, radius, unit, withCoordinates, withDistance, withHash, count);
+		return this.getUsingRadius(key, origin, radius, unit, withCoordinates, withDistance, withHash, count, order);
 	}
 	
 	/* (non-Javadoc)
@@ -161,7 +192,15 @@ class DryRedisGeo extends DryRedisAbstractCache<Map<String, DryRedisGeoPoint>> i
      */
 	@Override
     public List<String> georadiusbymember(String key, String member, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count) {
-		Map<String, DryRedisGeoPoint> points = this.store.get(key);
+		return this.georadiusbymember(key, member, radius, unit, withCoordinates, withDistance, withHash, count, null);
+	}
+	
+	/* (non-Javadoc)
+     * @see com.sangupta.dryredis.DryRedisGeoOperations#georadiusbymember(java.lang.String, java.lang.String, double, com.sangupta.dryredis.support.DryRedisGeoUnit, boolean, boolean, boolean, int, com.sangupta.dryredis.support.DryRedisSortOrder)
+     */
+	@Override
+    public List<String> georadiusbymember(String key, String member, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count, DryRedisSortOrder order) {
+		GeoIndex points = this.store.get(key);
 		if(points == null) {
 			return null;
 		}
@@ -171,11 +210,18 @@ class DryRedisGeo extends DryRedisAbstractCache<Map<String, DryRedisGeoPoint>> i
 			return null;
 		}
 		
-		return this.getUsingRadius(key, origin, radius, unit, withCoordinates, withDistance, withHash, count);
+		return this.getUsingRadius(key, origin, radius, unit, withCoordinates, withDistance, withHash, count, order);
 	}
 	
-	private List<String> getUsingRadius(String key, DryRedisGeoPoint origin, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count) {
-		Map<String, DryRedisGeoPoint> points = this.store.get(key);
+	/**
+	 * Find the members within the radius of the origin. Only the geohash cell
+	 * of the origin and its 8 neighbours are scanned, at a precision where
+	 * these cells cover the whole circle. With a count, only the nearest (or
+	 * farthest, when sorting in descending order) members are kept in a
+	 * bounded heap.
+	 */
+	private List<String> getUsingRadius(String key, DryRedisGeoPoint origin, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count, DryRedisSortOrder order) {
+		GeoIndex points = this.store.get(key);
 		if(points == null) {
 			return null;
 		}
@@ -190,38 +236,96 @@ class DryRedisGeo extends DryRedisAbstractCache<Map<String, DryRedisGeoPoint>> i
 			radius = toKilometers(radius, unit);
 		}
 		
-		int pointsFound = 0;
-		for(DryRedisGeoPoint point : points.values()) {
-			double distance = Haversine.distance(origin.latitude, origin.longitude, point.latitude, point.longitude);
-			if(distance < radius) {
-				result.add(point.name);
-				pointsFound++;
-				
-				if(withCoordinates) {
-					result.add(String.valueOf(point.latitude));
-					result.add(String.valueOf(point.longitude));
-				}
-				
-				if(withDistance) {
-					result.add(String.valueOf(distance));
+		// like Redis, a count without an order returns the nearest members
+		if(count > 0 && order == null) {
+			order = DryRedisSortOrder.ASC;
+		}
+		
+		final Comparator<GeoMatch> comparator = order == DryRedisSortOrder.DESC ? DESCENDING : ASCENDING;
+		PriorityQueue<GeoMatch> heap = null;
+		if(count > 0) {
+			// the head of the heap is the worst match kept so far
+			heap = new PriorityQueue<GeoMatch>(count, Collections.reverseOrder(comparator));
+		}
+		
+		List<GeoMatch> matches = new ArrayList<GeoMatch>();
+		List<DryRedisGeoPoint> candidates = new ArrayList<DryRedisGeoPoint>();
+		long[] ranges = RedisGeoHash.getRadiusRanges(origin.latitude, origin.longitude, asMeters(radius));
+		for(int index = 0; index < ranges.length; index += 2) {
+			candidates.clear();
+			points.collect(ranges[index], ranges[index + 1], candidates);
+			
+			for(DryRedisGeoPoint point : candidates) {
+				double distance = Haversine.distance(origin.latitude, origin.longitude, point.latitude, point.longitude);
+				if(distance > radius) {
+					continue;
 				}
 				
-				if(withHash) {
-					result.add(point.getGeoHash());
+				GeoMatch match = new GeoMatch(point, distance);
+				if(heap == null) {
+					matches.add(match);
+					continue;
 				}
 				
-				if(count > 0) {
-					if(pointsFound == count) {
-						// we have enough matches
-						break;
-					}
+				if(heap.size() < count) {
+					heap.add(match);
+				} else if(comparator.compare(match, heap.peek()) < 0) {
+					heap.poll();
+					heap.add(match);
 				}
 			}
 		}
 		
+		if(heap != null) {
+			matches.addAll(heap);
+		}
+		
+		if(order != null) {
+			Collections.sort(matches, comparator);
+		}
+		
+		for(GeoMatch match : matches) {
+			DryRedisGeoPoint point = match.point;
+			result.add(point.name);
+			
+			if(withCoordinates) {
+				result.add(String.valueOf(point.latitude));
+				result.add(String.valueOf(point.longitude));
+			}
+			
+			if(withDistance) {
+				result.add(String.valueOf(fromKilometers(match.distance, unit)));
+			}
+			
+			if(withHash) {
+				result.add(String.valueOf(points.getScore(point.name)));
+			}
+		}
+		
 		return result;
 	}
 	
+	private double fromKilometers(double distance, DryRedisGeoUnit unit) {
+		switch(unit) {
+			case Feet:
+				return asFeet(distance);
+			
+			case KiloMeters:
+				return distance;
+			
+			case Meters:
+				return asMeters(distance);
+			
+			case Miles:
+				return asMiles(distance);
+			
+			default:
+		
+		}
+		
+		throw new IllegalArgumentException("Distance is not in a unit that is understood yet.");
+	}
+	
 	private double toKilometers(double radius, DryRedisGeoUnit unit) {
 		switch(unit) {
 			case Feet:
@@ -262,4 +366,69 @@ class DryRedisGeo extends DryRedisAbstractCache<Map<String, DryRedisGeoPoint>> i
 		return DryRedisCacheType.GEO;
 	}
 
+	@Override
+	protected String getEncoding(GeoIndex value) {
+		return value.isPacked() ? "listpack" : "skiplist";
+	}
+	
+	@Override
+	protected void writeValue(GeoIndex value, DryRedisEncoder encoder) {
+		List<DryRedisGeoPoint> points = new ArrayList<DryRedisGeoPoint>(value.size());
+		value.collect(0, Long.MAX_VALUE, points);
+		
+		encoder.writeVarint(points.size());
+		for(DryRedisGeoPoint point : points) {
+			encoder.writeString(point.name);
+			encoder.writeDouble(point.latitude);
+			encoder.writeDouble(point.longitude);
+		}
+	}
+	
+	@Override
+	protected GeoIndex readValue(DryRedisDecoder decoder) {
+		GeoIndex index = this.newIndex();
+		for(int count = decoder.readLength(); count > 0; count--) {
+			index.add(new DryRedisGeoPoint(decoder.readString(), decoder.readDouble(), decoder.readDouble()));
+		}
+		
+		return index;
+	}
+	
+	private GeoIndex newIndex() {
+		DryRedisConfig config = this.keyspace.getConfig();
+		return new GeoIndex(config.getInt(DryRedisConfig.ZSET_MAX_LISTPACK_ENTRIES), config.getInt(DryRedisConfig.ZSET_MAX_LISTPACK_VALUE));
+	}
+	
+	/**
+	 * A member found within the radius, along with its distance in kilometers
+	 */
+	private static class GeoMatch {
+		
+		final DryRedisGeoPoint point;
+		
+		final double distance;
+		
+		GeoMatch(DryRedisGeoPoint point, double distance) {
+			this.point = point;
+			this.distance = distance;
+		}
+		
+	}
+	
+	private static final Comparator<GeoMatch> ASCENDING = new Comparator<GeoMatch>() {
+		
+		@Override
+		public int compare(GeoMatch match1, GeoMatch match2) {
+			int result = Double.compare(match1.distance, match2.distance);
+			if(result != 0) {
+				return result;
+			}
+			
+			return match1.point.name.compareTo(match2.point.name);
+		}
+		
+	};
+	
+	private static final Comparator<GeoMatch> DESCENDING = Collections.reverseOrder(ASCENDING);
+
 }
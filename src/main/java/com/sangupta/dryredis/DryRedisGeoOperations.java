@@ -24,6 +24,7 @@ package com.sangupta.dryredis;
 import java.util.List;
 
 import com.sangupta.dryredis.support.DryRedisGeoUnit;
+import com.sangupta.dryredis.support.DryRedisSortOrder;
 
 interface DryRedisGeoOperations {
 
@@ -39,8 +40,12 @@ interface DryRedisGeoOperations {
 
     public List<String> georadius(String key, double longitude, double latitude, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count);
 
+    public List<String> georadius(String key, double longitude, double latitude, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count, DryRedisSortOrder order);
+
     public List<String> georadiusbymember(String key, String member, double radius, DryRedisGeoUnit unit);
 
     public List<String> georadiusbymember(String key, String member, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count);
 
+    public List<String> georadiusbymember(String key, String member, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count, DryRedisSortOrder order);
+
 }
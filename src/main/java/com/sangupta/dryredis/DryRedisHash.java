@@ -22,11 +22,11 @@
 package com.sangupta.dryredis;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import com.sangupta.dryredis.ds.PackedHashMap;
 import com.sangupta.dryredis.support.DryRedisCache;
 import com.sangupta.dryredis.support.DryRedisCacheType;
 
@@ -40,6 +40,23 @@ import com.sangupta.dryredis.support.DryRedisCacheType;
  * @param <HV> type of hash value
  */
 class DryRedisHash extends DryRedisAbstractCache<Map<String, String>> implements DryRedisCache, DryRedisHashOperations {
+
+	/**
+	 * Create an instance that uses its own keyspace.
+	 */
+	DryRedisHash() {
+	    super();
+	}
+	
+	/**
+	 * Create an instance that stores its keys in the given keyspace.
+	 * 
+	 * @param keyspace
+	 *            the {@link DryRedisKeyspace} to use
+	 */
+	DryRedisHash(DryRedisKeyspace keyspace) {
+	    super(keyspace);
+	}
 	
 	// commands from redis
 	
@@ -165,7 +182,7 @@ class DryRedisHash extends DryRedisAbstractCache<Map<String, String>> implements
     public int hset(String key, String field, String value) {
 		Map<String, String> map = this.store.get(key);
 		if(map == null) {
-			map = new HashMap<String, String>();
+			map = this.newMap();
 			this.store.put(key, map);
 		}
 		
@@ -185,7 +202,7 @@ class DryRedisHash extends DryRedisAbstractCache<Map<String, String>> implements
     public int hsetnx(String key, String field, String value) {
 		Map<String, String> map = this.store.get(key);
 		if(map == null) {
-			map = new HashMap<String, String>();
+			map = this.newMap();
 			this.store.put(key, map);
 		}
 		
@@ -242,7 +259,7 @@ class DryRedisHash extends DryRedisAbstractCache<Map<String, String>> implements
     public long hincrby(String key, String field, long increment) {
 		Map<String, String> map = this.store.get(key);
 		if(map == null) {
-			map = new HashMap<String, String>();
+			map = this.newMap();
 			this.store.put(key, map);
 		}
 		
@@ -263,7 +280,7 @@ class DryRedisHash extends DryRedisAbstractCache<Map<String, String>> implements
     public double hincrbyfloat(String key, String field, double increment) {
 		Map<String, String> map = this.store.get(key);
 		if(map == null) {
-			map = new HashMap<String, String>();
+			map = this.newMap();
 			this.store.put(key, map);
 		}
 		
@@ -302,7 +319,7 @@ class DryRedisHash extends DryRedisAbstractCache<Map<String, String>> implements
     public String hmset(String key, Map<String, String> fieldValues) {
 		Map<String, String> map = this.store.get(key);
 		if(map == null) {
-			map = new HashMap<String, String>();
+			map = this.newMap();
 			this.store.put(key, map);
 		}
 		
@@ -310,6 +327,16 @@ class DryRedisHash extends DryRedisAbstractCache<Map<String, String>> implements
 		return "OK";
 	}
 	
+	// private methods
+	
+	/**
+	 * Create the map for a new key, packed up to the configured limits.
+	 */
+	Map<String, String> newMap() {
+	    DryRedisConfig config = this.keyspace.getConfig();
+	    return new PackedHashMap<String, String>(config.getInt(DryRedisConfig.HASH_MAX_LISTPACK_ENTRIES), config.getInt(DryRedisConfig.HASH_MAX_LISTPACK_VALUE));
+	}
+	
 	// commands for DryRedisCache
 
 	@Override
@@ -317,4 +344,32 @@ class DryRedisHash extends DryRedisAbstractCache<Map<String, String>> implements
 		return DryRedisCacheType.HASH;
 	}
 
+	@Override
+	protected String getEncoding(Map<String, String> value) {
+		if(value instanceof PackedHashMap && ((PackedHashMap<String, String>) value).isPacked()) {
+			return "listpack";
+		}
+		
+		return "hashtable";
+	}
+	
+	@Override
+	protected void writeValue(Map<String, String> value, DryRedisEncoder encoder) {
+		encoder.writeVarint(value.size());
+		for(Map.Entry<String, String> entry : value.entrySet()) {
+			encoder.writeString(entry.getKey());
+			encoder.writeString(entry.getValue());
+		}
+	}
+	
+	@Override
+	protected Map<String, String> readValue(DryRedisDecoder decoder) {
+		Map<String, String> map = this.newMap();
+		for(int count = decoder.readLength(); count > 0; count--) {
+			map.put(decoder.readString(), decoder.readString());
+		}
+		
+		return map;
+	}
+
 }
@@ -22,7 +22,11 @@
 package com.sangupta.dryredis;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.sangupta.dryredis.ds.HyperLogLog;
 import com.sangupta.dryredis.support.DryRedisCache;
@@ -30,6 +34,61 @@ import com.sangupta.dryredis.support.DryRedisCacheType;
 
 class DryRedisHyperLogLog extends DryRedisAbstractCache<HyperLogLog> implements DryRedisCache, DryRedisHyperLogLogOperations {
 	
+	/**
+	 * Default number of keys from which a union of keys is merged in parallel
+	 */
+	static final int DEFAULT_PARALLEL_MERGE_KEYS = 8;
+	
+	/**
+	 * The estimator of each thread that multi-key PFCOUNT merges into, so that
+	 * counting does not allocate registers
+	 */
+	private static final ThreadLocal<HyperLogLog> SCRATCH = new ThreadLocal<HyperLogLog>() {
+		
+		@Override
+		protected HyperLogLog initialValue() {
+			HyperLogLog hll = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+			hll.clear();
+			return hll;
+		}
+		
+	};
+	
+	/**
+	 * Holds the pool for parallel merges, created on first use
+	 */
+	private static final class PoolHolder {
+		
+		static final ExecutorService POOL = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "dry-redis-hll-merge");
+				thread.setDaemon(true);
+				return thread;
+			}
+			
+		});
+		
+	}
+
+	/**
+	 * Create an instance that uses its own keyspace.
+	 */
+	DryRedisHyperLogLog() {
+	    super();
+	}
+	
+	/**
+	 * Create an instance that stores its keys in the given keyspace.
+	 * 
+	 * @param keyspace
+	 *            the {@link DryRedisKeyspace} to use
+	 */
+	DryRedisHyperLogLog(DryRedisKeyspace keyspace) {
+	    super(keyspace);
+	}
+	
 	// redis commands
 	
 	/* (non-Javadoc)
@@ -54,11 +113,28 @@ class DryRedisHyperLogLog extends DryRedisAbstractCache<HyperLogLog> implements
 		HyperLogLog hll = this.store.get(key);
 		if(hll == null) {
 			hll = getNewHLL();
+			hll.offer(element);
 			this.store.put(key, hll);
+			return 1;
 		}
 		
-		hll.offer(element);
-		return 1;
+		return hll.offer(element) ? 1 : 0;
+	}
+	
+	/* (non-Javadoc)
+     * @see com.sangupta.dryredis.cache.impl.DryRedisHyperLogLogOperations#pfadd(java.lang.String, java.util.Collection)
+     */
+	@Override
+    public int pfadd(String key, Collection<String> elements) {
+		HyperLogLog hll = this.store.get(key);
+		if(hll == null) {
+			hll = getNewHLL();
+			hll.offerAll(elements);
+			this.store.put(key, hll);
+			return 1;
+		}
+		
+		return hll.offerAll(elements) ? 1 : 0;
 	}
 	
 	/* (non-Javadoc)
@@ -105,12 +181,7 @@ class DryRedisHyperLogLog extends DryRedisAbstractCache<HyperLogLog> implements
 			return estimators.get(0).cardinality();
 		}
 		
-		HyperLogLog cloned = estimators.get(0).clone();
-		for(int index = 1; index < estimators.size(); index++) {
-			cloned.merge(estimators.get(index));
-		}
-		
-		return cloned.cardinality();
+		return merge(estimators, SCRATCH.get()).cardinality();
 	}
 	
 	/* (non-Javadoc)
@@ -153,24 +224,42 @@ class DryRedisHyperLogLog extends DryRedisAbstractCache<HyperLogLog> implements
 			return "OK";
 		}
 		
-		HyperLogLog cloned = estimators.get(0).clone();
-		for(int index = 1; index < estimators.size(); index++) {
-			cloned.merge(estimators.get(index));
-		}
-		
-		this.store.put(destination, cloned);
+		this.store.put(destination, merge(estimators, getNewHLL()));
 		return "OK";
 	}
 
 	/**
 	 * Method to return a new instance of {@link HyperLogLog} instance. We use this
 	 * method rather than creating a new instance every place. This allows us to keep
-	 * the standard deviation factor under control.
+	 * the standard deviation factor under control. Same as Redis we use 16384
+	 * registers, that start out in the sparse representation.
 	 * 
 	 * @return
 	 */
 	private HyperLogLog getNewHLL() {
-		return new HyperLogLog(24);
+		return new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+	}
+	
+	/**
+	 * Merge the given estimators into the target, which is cleared first.
+	 * Unions of at least <code>hll-parallel-merge-keys</code> keys are merged
+	 * in parallel, a value of zero merging always on the calling thread.
+	 * 
+	 * @param estimators
+	 *            the estimators to merge, at least two
+	 * 
+	 * @param target
+	 *            the estimator to merge into
+	 * 
+	 * @return the target
+	 */
+	private HyperLogLog merge(List<HyperLogLog> estimators, HyperLogLog target) {
+		int threshold = this.keyspace.getConfig().getInt(DryRedisConfig.HLL_PARALLEL_MERGE_KEYS);
+		boolean parallel = threshold > 0 && estimators.size() >= threshold;
+		
+		target.clear();
+		target.addAll(estimators, parallel ? PoolHolder.POOL : null);
+		return target;
 	}
 	
 	// for interface
@@ -179,5 +268,20 @@ class DryRedisHyperLogLog extends DryRedisAbstractCache<HyperLogLog> implements
 	public DryRedisCacheType getType() {
 		return DryRedisCacheType.HYPER_LOG_LOG;
 	}
+
+	@Override
+	protected String getEncoding(HyperLogLog value) {
+		return "raw";
+	}
+	
+	@Override
+	protected void writeValue(HyperLogLog value, DryRedisEncoder encoder) {
+		encoder.writeBytes(value.toByteArray());
+	}
+	
+	@Override
+	protected HyperLogLog readValue(DryRedisDecoder decoder) {
+		return HyperLogLog.fromByteArray(decoder.readBytes());
+	}
 	
 }
@@ -21,6 +21,7 @@
 
 package com.sangupta.dryredis;
 
+import java.util.Collection;
 import java.util.List;
 
 interface DryRedisHyperLogLogOperations {
@@ -29,6 +30,8 @@ interface DryRedisHyperLogLogOperations {
 
     int pfadd(String key, String element);
 
+    int pfadd(String key, Collection<String> elements);
+
     long pfcount(String key);
 
     long pfcount(List<String> keys);
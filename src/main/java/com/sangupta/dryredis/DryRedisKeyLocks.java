@@ -0,0 +1,198 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A striped set of locks that guard keys of a {@link DryRedis} instance that
+ * runs in concurrent mode. Each key maps to one stripe, and commands over
+ * different stripes run in parallel.
+ * 
+ * Commands that touch more than one key acquire all the stripes they need in
+ * ascending stripe order, so that two multi-key commands can never deadlock
+ * each other.
+ * 
+ * @author sangupta
+ *
+ */
+class DryRedisKeyLocks {
+    
+    /**
+     * The default number of stripes to use
+     */
+    static final int DEFAULT_STRIPES = 256;
+    
+    /**
+     * The stripes
+     */
+    private final ReentrantLock[] locks;
+    
+    /**
+     * Mask to convert a hash into a stripe index
+     */
+    private final int mask;
+    
+    /**
+     * Create a new set of locks.
+     * 
+     * @param stripes
+     *            the number of stripes, rounded up to the next power of two
+     */
+    DryRedisKeyLocks(int stripes) {
+        if(stripes <= 0) {
+            throw new IllegalArgumentException("Number of stripes must be positive");
+        }
+        
+        int size = Integer.highestOneBit(stripes);
+        if(size < stripes) {
+            size = size << 1;
+        }
+        
+        this.locks = new ReentrantLock[size];
+        for(int index = 0; index < size; index++) {
+            this.locks[index] = new ReentrantLock();
+        }
+        
+        this.mask = size - 1;
+    }
+    
+    /**
+     * Find the stripe for the given key.
+     * 
+     * @param key
+     *            the key, may be <code>null</code>
+     * 
+     * @return the stripe index
+     */
+    int stripe(String key) {
+        if(key == null) {
+            return 0;
+        }
+        
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & this.mask;
+    }
+    
+    /**
+     * Acquire the lock for the given key.
+     * 
+     * @param key
+     *            the key to lock
+     */
+    void lock(String key) {
+        this.locks[this.stripe(key)].lock();
+    }
+    
+    /**
+     * Release the lock for the given key.
+     * 
+     * @param key
+     *            the key to unlock
+     */
+    void unlock(String key) {
+        this.locks[this.stripe(key)].unlock();
+    }
+    
+    /**
+     * Try to acquire the lock for the given key without waiting.
+     * 
+     * @param key
+     *            the key to lock
+     * 
+     * @return <code>true</code> if the lock was acquired
+     */
+    boolean tryLock(String key) {
+        return this.locks[this.stripe(key)].tryLock();
+    }
+    
+    /**
+     * Acquire the locks for all the given keys.
+     * 
+     * @param keys
+     *            the keys to lock
+     * 
+     * @return the stripes that were locked, to be passed to
+     *         {@link #unlock(int[])}
+     */
+    int[] lock(Collection<String> keys) {
+        int[] stripes = new int[keys.size()];
+        int index = 0;
+        for(String key : keys) {
+            stripes[index++] = this.stripe(key);
+        }
+        
+        // sort and remove duplicates
+        Arrays.sort(stripes);
+        int unique = 0;
+        for(index = 0; index < stripes.length; index++) {
+            if(unique == 0 || stripes[unique - 1] != stripes[index]) {
+                stripes[unique++] = stripes[index];
+            }
+        }
+        
+        if(unique < stripes.length) {
+            stripes = Arrays.copyOf(stripes, unique);
+        }
+        
+        for(int stripe : stripes) {
+            this.locks[stripe].lock();
+        }
+        
+        return stripes;
+    }
+    
+    /**
+     * Release the locks acquired using {@link #lock(Collection)}.
+     * 
+     * @param stripes
+     *            the stripes to unlock
+     */
+    void unlock(int[] stripes) {
+        for(int index = stripes.length - 1; index >= 0; index--) {
+            this.locks[stripes[index]].unlock();
+        }
+    }
+    
+    /**
+     * Acquire all stripes. Used by commands that work over the entire
+     * database.
+     */
+    void lockAll() {
+        for(ReentrantLock lock : this.locks) {
+            lock.lock();
+        }
+    }
+    
+    /**
+     * Release all stripes acquired using {@link #lockAll()}.
+     */
+    void unlockAll() {
+        for(int index = this.locks.length - 1; index >= 0; index--) {
+            this.locks[index].unlock();
+        }
+    }
+    
+}
@@ -21,11 +21,20 @@
 
 package com.sangupta.dryredis;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.sangupta.dryredis.support.DryRedisCache;
 import com.sangupta.dryredis.support.DryRedisCacheType;
+import com.sangupta.dryredis.support.DryRedisFsyncPolicy;
 
 /**
  * Implements the methods that are required to work with keys.
@@ -38,61 +47,151 @@ import com.sangupta.dryredis.support.DryRedisCacheType;
  */
 abstract class DryRedisKeys {
     
+    /**
+     * The single keyspace shared by all {@link DryRedisCache} implementations
+     */
+    protected final DryRedisKeyspace keyspace;
+    
+    /**
+     * The striped locks that guard keys when running in concurrent mode,
+     * <code>null</code> otherwise
+     */
+    private final DryRedisKeyLocks locks;
+    
+    /**
+     * The string keys and hash fields in counter mode
+     */
+    protected final DryRedisCounters counters = new DryRedisCounters();
+    
     /**
      * A list of all {@link DryRedisCache} implementations that reflect a
      * category of redis commands.
      */
 	private final List<DryRedisCache> caches = new ArrayList<DryRedisCache>();
 	
+	/**
+	 * All {@link DryRedisCache} implementations indexed by the
+	 * {@link DryRedisCacheType} they store
+	 */
+	private final Map<DryRedisCacheType, DryRedisCache> cachesByType = new EnumMap<DryRedisCacheType, DryRedisCache>(DryRedisCacheType.class);
+	
+	/**
+	 * Whether a BGSAVE is writing its snapshot
+	 */
+	private final AtomicBoolean bgsaveInProgress = new AtomicBoolean();
+	
+	/**
+	 * The thread of the last BGSAVE
+	 */
+	private volatile Thread bgsaveThread;
+	
+	/**
+	 * The snapshot a BGSAVE in concurrent mode is writing, into which keys
+	 * are copied before they change, <code>null</code> when none
+	 */
+	private volatile DryRedisSnapshot.Epoch snapshotEpoch;
+	
+	/**
+	 * The epoch millis of the last successful save
+	 */
+	private volatile long lastSave = System.currentTimeMillis();
+	
+	/**
+	 * The append only file all changes are logged to, <code>null</code> when
+	 * not enabled
+	 */
+	private volatile DryRedisAof aof;
+	
+	/**
+	 * Guards enabling, disabling and rewriting the append only file
+	 */
+	private final Object aofLock = new Object();
+	
+	/**
+	 * The thread of the last BGREWRITEAOF
+	 */
+	private volatile Thread rewriteThread;
+	
 	/**
 	 * Redis GEO commands implementation
 	 */
-	protected final DryRedisGeo geoCommands = new DryRedisGeo();
+	protected final DryRedisGeo geoCommands;
 	
 	/**
 	 * Redis HASH commands implementation
 	 */
-	protected final DryRedisHash hashCommands = new DryRedisHash();
+	protected final DryRedisHash hashCommands;
 	
 	/**
 	 * Redis HyperLogLog commands implementation
 	 */
-	protected final DryRedisHyperLogLog hyperLogLogCommands = new DryRedisHyperLogLog();
+	protected final DryRedisHyperLogLog hyperLogLogCommands;
 	
 	/**
 	 * Redis LIST commands implementation
 	 */
-	protected final DryRedisList listCommands = new DryRedisList();
+	protected final DryRedisList listCommands;
 	
 	/**
 	 * Redis SET commands implementation
 	 */
-	protected final DryRedisSet setCommands = new DryRedisSet();
+	protected final DryRedisSet setCommands;
 	
 	/**
 	 * Redis STRING commands implementation
 	 */
-	protected final DryRedisString stringCommands = new DryRedisString();
+	protected final DryRedisString stringCommands;
 	
 	/**
 	 * Redis SORTED SET commands implementation
 	 */
-	protected final DryRedisSortedSet sortedSetCommands = new DryRedisSortedSet();
+	protected final DryRedisSortedSet sortedSetCommands;
 	
 	/**
 	 * Constructor
 	 */
 	public DryRedisKeys() {
-        caches.add(this.geoCommands);
-        caches.add(this.hashCommands);
-        caches.add(this.hyperLogLogCommands);
-        caches.add(this.listCommands);
-        caches.add(this.setCommands);
-        caches.add(this.geoCommands);
-        caches.add(this.stringCommands);
-        caches.add(this.sortedSetCommands);
+	    this(false);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param concurrent
+	 *            if <code>true</code> the instance can be shared between
+	 *            multiple threads
+	 */
+	public DryRedisKeys(boolean concurrent) {
+	    if(concurrent) {
+	        this.locks = new DryRedisKeyLocks(DryRedisKeyLocks.DEFAULT_STRIPES);
+	    } else {
+	        this.locks = null;
+	    }
+	    
+	    this.keyspace = new DryRedisKeyspace(this.locks, this.counters);
+	    
+	    this.geoCommands = new DryRedisGeo(this.keyspace);
+	    this.hashCommands = new DryRedisHash(this.keyspace);
+	    this.hyperLogLogCommands = new DryRedisHyperLogLog(this.keyspace);
+	    this.listCommands = new DryRedisList(this.keyspace);
+	    this.setCommands = new DryRedisSet(this.keyspace);
+	    this.stringCommands = new DryRedisString(this.keyspace);
+	    this.sortedSetCommands = new DryRedisSortedSet(this.keyspace);
+	    
+        this.register(this.geoCommands);
+        this.register(this.hashCommands);
+        this.register(this.hyperLogLogCommands);
+        this.register(this.listCommands);
+        this.register(this.setCommands);
+        this.register(this.stringCommands);
+        this.register(this.sortedSetCommands);
     }
 	
+	private void register(DryRedisCache cache) {
+	    this.caches.add(cache);
+	    this.cachesByType.put(cache.getType(), cache);
+	}
+	
 	/**
 	 * Delete the keys from this redis instance.
 	 * 
@@ -102,12 +201,36 @@ abstract class DryRedisKeys {
 	 * @return the total number of keys removed
 	 */
 	public int del(String key) {
-	    int deleted = 0;
-	    for(DryRedisCache cache : caches) {
-	        deleted = deleted + cache.del(key);
+	    if(key.contains("*") || key.contains("?")) {
+	        if(this.locks == null && this.aof == null) {
+	            return this.keyspace.removeMatching(key);
+	        }
+	        
+	        // remove each matching key under its own lock, so that each is logged
+	        int deleted = 0;
+	        for(String matched : this.keys(key)) {
+	            deleted += this.del(matched);
+	        }
+	        
+	        return deleted;
 	    }
 	    
-	    return deleted;
+	    this.lockKey(key);
+	    try {
+    	    DryRedisCache cache = this.getCache(key);
+    	    if(cache == null) {
+    	        return 0;
+    	    }
+    	    
+    	    int deleted = cache.del(key);
+    	    if(deleted > 0) {
+    	        this.propagate(DryRedisAof.DEL, key);
+    	    }
+    	    
+    	    return deleted;
+	    } finally {
+	        this.unlockKey(key);
+	    }
 	}
 
 	/**
@@ -120,12 +243,17 @@ abstract class DryRedisKeys {
 	 * @return the dumped byte-array, or <code>null</code> if no such key exists
 	 */
 	public byte[] dump(String key) {
-	    DryRedisCache cache = this.getCache(key);
-	    if(cache == null) {
-	        return null;
+	    this.lockKey(key);
+	    try {
+    	    DryRedisCache cache = this.getCache(key);
+    	    if(cache == null) {
+    	        return null;
+    	    }
+    	    
+    	    return cache.dump(key);
+	    } finally {
+	        this.unlockKey(key);
 	    }
-	    
-	    return cache.dump(key);
 	}
 	
 	/**
@@ -134,11 +262,24 @@ abstract class DryRedisKeys {
 	 * @return "OK" at the end
 	 */
 	public String flushdb() {
-	    for(DryRedisCache cache : caches) {
-	        cache.flushCache();
+	    if(this.locks != null) {
+	        this.locks.lockAll();
 	    }
 	    
-	    return "OK";
+	    try {
+    	    // all caches keep their keys in the keyspace
+    	    this.keyspace.clear();
+    	    this.counters.discard();
+    	    
+    	    DryRedisAof aof = this.aof;
+    	    if(aof != null) {
+    	        aof.append(DryRedisAof.record(DryRedisAof.FLUSHDB, null));
+    	    }
+    	    
+    	    return "OK";
+	    } finally {
+	        this.unlockAllKeys();
+	    }
 	}
 	
 	/**
@@ -150,13 +291,16 @@ abstract class DryRedisKeys {
 	 * @return <code>1</code> if key is found, <code>0</code> otherwise
 	 */
 	public int exists(String key) {
-	    for(DryRedisCache cache : caches) {
-	        if(cache.hasKey(key)) {
-	            return 1;
-	        }
+	    this.lockKey(key);
+	    try {
+    	    if(this.keyspace.getEntry(key) != null) {
+    	        return 1;
+    	    }
+    	    
+    	    return 0;
+	    } finally {
+	        this.unlockKey(key);
 	    }
-	    
-	    return 0;
 	}
 	
 	/**
@@ -197,14 +341,22 @@ abstract class DryRedisKeys {
 	}
 	
 	public int pexpireat(String key, long epochAsMilliseconds) {
-	    for(DryRedisCache cache : this.caches) {
-	        int result = cache.pexpireat(key, epochAsMilliseconds);
-	        if(result > 0) {
-	            return result;
-	        }
+	    this.lockKey(key);
+	    try {
+    	    DryRedisCache cache = this.getCache(key);
+    	    if(cache == null) {
+    	        return 0;
+    	    }
+    	    
+    	    int result = cache.pexpireat(key, epochAsMilliseconds);
+    	    if(result == 1) {
+    	        this.propagate(DryRedisAof.PEXPIREAT, key, epochAsMilliseconds);
+    	    }
+    	    
+    	    return result;
+	    } finally {
+	        this.unlockKey(key);
 	    }
-	    
-	    return 0;
 	}
 	
 	/**
@@ -227,13 +379,19 @@ abstract class DryRedisKeys {
 	        return "ERROR";
 	    }
 	    
-	    if(this.exists(key) == 0) {
-	        return "ERROR";
+	    final int[] stripes = this.lockKeys(key, newKey);
+	    try {
+    	    DryRedisCache cache = this.getCache(key);
+    	    if(cache == null) {
+    	        return "ERROR";
+    	    }
+    	    
+    	    cache.rename(key, newKey);
+    	    this.propagateRename(key, newKey);
+    	    return "OK";
+	    } finally {
+	        this.unlockKeys(stripes);
 	    }
-	    
-	    DryRedisCache cache = this.getCache(key);
-	    cache.rename(key, newKey);
-	    return "OK";
 	}
 	
 	public int renamenx(String key, String newKey) {
@@ -245,31 +403,41 @@ abstract class DryRedisKeys {
             return 0;
         }
         
-        if(this.exists(key) == 0) {
-            return 0;
-        }
-        
-        if(this.exists(newKey) == 1) {
-            return 0;
+        final int[] stripes = this.lockKeys(key, newKey);
+        try {
+            DryRedisCache cache = this.getCache(key);
+            if(cache == null) {
+                return 0;
+            }
+            
+            if(this.exists(newKey) == 1) {
+                return 0;
+            }
+            
+            cache.rename(key, newKey);
+            this.propagateRename(key, newKey);
+            return 1;
+        } finally {
+            this.unlockKeys(stripes);
         }
-        
-        DryRedisCache cache = this.getCache(key);
-        cache.rename(key, newKey);
-        return 1;
 	}
 	
 	public List<String> keys(String pattern) {
 	    List<String> keys = new ArrayList<String>();
-	    
-	    for(DryRedisCache cache : caches) {
-	        cache.keys(pattern, keys);
-	    }
-	    
+	    this.keyspace.keys(pattern, keys);
 	    return keys;
 	}
 	
 	public String type(String key) {
-	    DryRedisCacheType type = keyType(key);
+	    DryRedisCacheType type;
+	    
+	    this.lockKey(key);
+	    try {
+	        type = keyType(key);
+	    } finally {
+	        this.unlockKey(key);
+	    }
+	    
 	    if(type == null) {
 	        return null;
 	    }
@@ -293,32 +461,220 @@ abstract class DryRedisKeys {
         throw new RuntimeException("not yet implemented");
     }
     
+    /**
+     * Inspect the internals of the value stored against a key. Only the
+     * <code>ENCODING</code> sub-command is supported, that returns the name
+     * of the internal encoding used for the value, such as
+     * <code>listpack</code> for a small hash or <code>skiplist</code> for a
+     * large sorted set.
+     * 
+     * @param subCommand
+     *            the sub-command to run
+     * 
+     * @param arguments
+     *            the key to inspect
+     * 
+     * @return the result of the sub-command, <code>null</code> if the key does
+     *         not exist
+     */
     public Object object(String subCommand, String... arguments) {
-        throw new RuntimeException("not yet implemented");
+        if(!"encoding".equalsIgnoreCase(subCommand)) {
+            throw new RuntimeException("not yet implemented");
+        }
+        
+        if(arguments == null || arguments.length != 1) {
+            throw new IllegalArgumentException("OBJECT ENCODING needs exactly one key");
+        }
+        
+        final String key = arguments[0];
+        this.lockKey(key);
+        try {
+            DryRedisCache cache = this.getCache(key);
+            if(cache == null) {
+                return null;
+            }
+            
+            return cache.encoding(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
+    /**
+     * Remove the expiration time of the key.
+     * 
+     * @param key
+     *            the key to persist
+     * 
+     * @return <code>1</code> if the expiration was removed, <code>0</code> if
+     *         the key does not exist or has no expiration set
+     */
     public int persist(String key) {
-        throw new RuntimeException("not yet implemented");
+        this.lockKey(key);
+        try {
+            int result = this.keyspace.persist(key);
+            if(result == 1) {
+                this.propagate(DryRedisAof.PERSIST, key);
+            }
+            
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public Object randomkey() {
         throw new RuntimeException("not yet implemented");
     }
     
+    /**
+     * Create a key from a value obtained using {@link #dump(String)}, without
+     * any expiration.
+     * 
+     * @param key
+     *            the key to create
+     * 
+     * @param data
+     *            the serialized value
+     * 
+     * @return "OK" if the key was created
+     * 
+     * @throws IllegalArgumentException
+     *             if the key already exists, or the data is not a valid dump
+     */
     public String restore(String key, byte[] data) {
-        throw new RuntimeException("not yet implemented");
+        return this.restore(key, 0, data, false, false);
+    }
+    
+    /**
+     * Create a key from a value obtained using {@link #dump(String)}.
+     * 
+     * @param key
+     *            the key to create
+     * 
+     * @param ttl
+     *            the time to live in milliseconds, or <code>0</code> for no
+     *            expiration
+     * 
+     * @param data
+     *            the serialized value
+     * 
+     * @return "OK" if the key was created
+     * 
+     * @throws IllegalArgumentException
+     *             if the key already exists, or the data is not a valid dump
+     */
+    public String restore(String key, long ttl, byte[] data) {
+        return this.restore(key, ttl, data, false, false);
+    }
+    
+    /**
+     * Create a key from a value obtained using {@link #dump(String)}.
+     * 
+     * @param key
+     *            the key to create
+     * 
+     * @param ttl
+     *            the time to live in milliseconds, or <code>0</code> for no
+     *            expiration
+     * 
+     * @param data
+     *            the serialized value
+     * 
+     * @param replace
+     *            whether an existing key may be replaced
+     * 
+     * @param absttl
+     *            whether the ttl is an absolute epoch time in milliseconds
+     * 
+     * @return "OK" if the key was created, or the given absolute time has
+     *         already passed
+     * 
+     * @throws IllegalArgumentException
+     *             if the key already exists and is not to be replaced, or the
+     *             data is not a valid dump
+     */
+    public String restore(String key, long ttl, byte[] data, boolean replace, boolean absttl) {
+        if(ttl < 0) {
+            throw new IllegalArgumentException("Invalid TTL value, must be >= 0");
+        }
+        
+        if(data == null) {
+            throw new IllegalArgumentException("DUMP payload version or checksum are wrong");
+        }
+        
+        this.lockKey(key);
+        try {
+            if(!replace && this.keyspace.getEntry(key) != null) {
+                throw new IllegalArgumentException("BUSYKEY Target key name already exists.");
+            }
+            
+            DryRedisDecoder decoder = DryRedisDecoder.forDump(data);
+            DryRedisAbstractCache<?> cache = (DryRedisAbstractCache<?>) this.cachesByType.get(decoder.readType());
+            
+            long expiry = 0;
+            if(ttl > 0) {
+                expiry = absttl ? ttl : System.currentTimeMillis() + ttl;
+                if(expiry <= System.currentTimeMillis()) {
+                    // the key would expire right away, only the replaced key goes
+                    if(this.keyspace.remove(key) > 0) {
+                        this.propagate(DryRedisAof.DEL, key);
+                    }
+                    
+                    return "OK";
+                }
+            }
+            
+            cache.restore(key, decoder);
+            if(expiry > 0) {
+                cache.pexpireat(key, expiry);
+            }
+            
+            this.propagateState(key);
+            return "OK";
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public void sort(String key) {
         throw new RuntimeException("not yet implemented");
     }
     
+    /**
+     * Return the remaining time to live of the key in seconds.
+     * 
+     * @param key
+     *            the key to look for
+     * 
+     * @return the remaining seconds, <code>-1</code> if the key has no
+     *         expiration set, <code>-2</code> if the key does not exist
+     */
     public long ttl(String key) {
-        throw new RuntimeException("not yet implemented");
+        long pttl = this.pttl(key);
+        if(pttl < 0) {
+            return pttl;
+        }
+        
+        return (pttl + 500) / 1000;
     }
     
+    /**
+     * Return the remaining time to live of the key in milliseconds.
+     * 
+     * @param key
+     *            the key to look for
+     * 
+     * @return the remaining milliseconds, <code>-1</code> if the key has no
+     *         expiration set, <code>-2</code> if the key does not exist
+     */
     public long pttl(String key) {
-        throw new RuntimeException("not yet implemented");
+        this.lockKey(key);
+        try {
+            return this.keyspace.pttl(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     /**
@@ -338,60 +694,1149 @@ abstract class DryRedisKeys {
         return 0; 
     }
     
-	// private methods
-	
-	/**
-	 * Find the exact cache in which a given key is present.
-	 * 
-	 * @param key
-	 *            the key we are looking for
-	 * 
-	 * @return the {@link DryRedisCache} where key is present, <code>null</code>
-	 *         otherwise
-	 */
-	protected DryRedisCache getCache(String key) {
-        for(DryRedisCache cache : caches) {
-            if(cache.hasKey(key)) {
-                return cache;
+    /**
+     * Save a point-in-time snapshot of all keys to the given file. All
+     * commands wait till the snapshot has been written. The file is written
+     * under a temporary name first, and only replaces an existing file once
+     * it is complete.
+     * 
+     * @param file
+     *            the file to write
+     * 
+     * @return "OK"
+     * 
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public String save(File file) throws IOException {
+        this.lockAllKeys();
+        try {
+            DryRedisSnapshot.save(file, this.keyspace, this.cachesByType);
+        } finally {
+            this.unlockAllKeys();
+        }
+        
+        this.lastSave = System.currentTimeMillis();
+        return "OK";
+    }
+    
+    /**
+     * Save a point-in-time snapshot of all keys to the given file in the
+     * background. In concurrent mode commands go on while the file is
+     * written by another thread, and a command copies the value a key had
+     * when the save started just before it first changes the key. Otherwise
+     * commands wait while the keys are encoded into memory, and only the
+     * file is written by another thread.
+     * 
+     * @param file
+     *            the file to write
+     * 
+     * @return "Background saving started"
+     * 
+     * @throws IllegalStateException
+     *             if a background save is already in progress
+     */
+    public String bgsave(final File file) {
+        if(!this.bgsaveInProgress.compareAndSet(false, true)) {
+            throw new IllegalStateException("Background save already in progress");
+        }
+        
+        final List<DryRedisSnapshot.Section> sections;
+        final DryRedisSnapshot.Epoch epoch;
+        this.lockAllKeys();
+        try {
+            if(this.locks != null) {
+                sections = null;
+                epoch = new DryRedisSnapshot.Epoch(this.keyspace, this.cachesByType);
+                this.snapshotEpoch = epoch;
+            } else {
+                sections = DryRedisSnapshot.encode(this.keyspace, this.cachesByType);
+                epoch = null;
             }
+        } catch(RuntimeException e) {
+            this.bgsaveInProgress.set(false);
+            throw e;
+        } finally {
+            this.unlockAllKeys();
         }
         
-        return null;
-	}
-	
-	/**
-	 * Find the cache type for the cache in which the given key is present.
-	 * 
-	 * @param key
-	 *            the key we are looking for
-	 * 
-	 * @return the {@link DryRedisCacheType} where key is present,
-	 *         <code>null</code> otherwise
-	 */
-	protected DryRedisCacheType keyType(String key) {
-	    DryRedisCache cache = this.getCache(key);
-	    if(cache == null) {
-	        return null;
-	    }
-	    
-	    return cache.getType();
-	}
-	
-	/**
-     * Check if the {@link DryRedisCacheType} for the given key is the same as
-     * the provided {@link DryRedisCacheType}. If not, an
-     * {@link IllegalArgumentException} is raised.
+        Thread thread = new Thread("dry-redis-bgsave") {
+            
+            @Override
+            public void run() {
+                try {
+                    if(epoch != null) {
+                        DryRedisSnapshot.save(file, epoch, locks);
+                    } else {
+                        DryRedisSnapshot.save(file, sections);
+                    }
+                    
+                    lastSave = System.currentTimeMillis();
+                } catch(IOException e) {
+                    // like Redis, a failed background save leaves LASTSAVE alone
+                } finally {
+                    snapshotEpoch = null;
+                    bgsaveInProgress.set(false);
+                }
+            }
+            
+        };
+        
+        thread.setDaemon(true);
+        this.bgsaveThread = thread;
+        thread.start();
+        return "Background saving started";
+    }
+    
+    /**
+     * Return the time of the last successful save.
      * 
-     * @param key
-     *            the key to check cache type for
+     * @return the epoch seconds when the last SAVE or BGSAVE completed, or
+     *         when this instance was created if none did
+     */
+    public long lastsave() {
+        return this.lastSave / 1000;
+    }
+    
+    /**
+     * Wait for the background save in progress, if any, to complete.
      * 
-     * @param type
-     *            the type to match with
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    void awaitBackgroundSave() throws InterruptedException {
+        Thread thread = this.bgsaveThread;
+        if(thread != null) {
+            thread.join();
+        }
+    }
+    
+    /**
+     * Replace all keys of this instance with the keys of a snapshot written
+     * by {@link #save(File)} or {@link #bgsave(File)}. The file is read and
+     * decoded on multiple threads, and its checksum is verified, before any
+     * key is replaced, so a damaged file leaves this instance untouched. Keys
+     * that expired since the snapshot was taken are not loaded.
      * 
-     * @throws IllegalArgumentException
-     *             if there is a mismatch in cache type
+     * @param file
+     *            the file to read
+     * 
+     * @return the number of keys loaded
+     * 
+     * @throws IOException
+     *             if the file cannot be read, or is not a valid snapshot
      */
-	protected void matchKeyType(String key, DryRedisCacheType type) {
+    public int load(File file) throws IOException {
+        return this.replaceAll(DryRedisSnapshot.load(file, this.cachesByType, Runtime.getRuntime().availableProcessors()));
+    }
+    
+    /**
+     * Replace all keys of this instance with the keys of database 0 of an RDB
+     * file written by Redis.
+     * 
+     * @param file
+     *            the file to read
+     * 
+     * @return the number of keys loaded
+     * 
+     * @throws IOException
+     *             if the file cannot be read, is not a valid RDB file, or
+     *             holds values that cannot be loaded
+     * 
+     * @see #loadRdb(File, int)
+     */
+    public int loadRdb(File file) throws IOException {
+        return this.loadRdb(file, 0);
+    }
+    
+    /**
+     * Replace all keys of this instance with the keys of one database of an
+     * RDB file written by Redis, up to RDB version 12. The file is mapped into
+     * memory and read in a single pass, and its checksum is verified, before
+     * any key is replaced, so a damaged file leaves this instance untouched.
+     * Keys that have expired, and keys of other databases, are skipped
+     * without being decoded.
+     * 
+     * Strings, lists, sets, hashes, sorted sets and HyperLogLogs are loaded
+     * from any of their encodings. Geo keys are loaded as the sorted sets that
+     * Redis keeps them in. Files holding streams, module values or hash fields
+     * with an expiry cannot be loaded.
+     * 
+     * @param file
+     *            the file to read
+     * 
+     * @param database
+     *            the number of the database to load
+     * 
+     * @return the number of keys loaded
+     * 
+     * @throws IOException
+     *             if the file cannot be read, is not a valid RDB file, or
+     *             holds values that cannot be loaded
+     */
+    public int loadRdb(File file, int database) throws IOException {
+        return this.replaceAll(DryRedisRdbReader.read(file, database, this.cachesByType));
+    }
+    
+    /**
+     * Replace all keys with the keys read from a file, leaving out those that
+     * have expired.
+     */
+    private int replaceAll(List<DryRedisSnapshot.LoadedSection> sections) {
+        this.lockAllKeys();
+        try {
+            this.keyspace.clear();
+            this.counters.discard();
+            
+            final long now = System.currentTimeMillis();
+            int loaded = 0;
+            for(DryRedisSnapshot.LoadedSection section : sections) {
+                for(int index = 0; index < section.keys.length; index++) {
+                    long expiry = section.expiries[index];
+                    if(expiry != DryRedisKeyspace.NO_EXPIRY && expiry <= now) {
+                        continue;
+                    }
+                    
+                    this.keyspace.load(section.keys[index], section.type, section.values[index], expiry);
+                    loaded++;
+                }
+            }
+            
+            DryRedisAof aof = this.aof;
+            if(aof != null) {
+                aof.append(DryRedisAof.record(DryRedisAof.FLUSHDB, null));
+                for(DryRedisSnapshot.LoadedSection section : sections) {
+                    for(String key : section.keys) {
+                        this.propagateState(key);
+                    }
+                }
+            }
+            
+            return loaded;
+        } finally {
+            this.unlockAllKeys();
+        }
+    }
+    
+    /**
+     * Log every change made from now on to the given append only file, so
+     * that the keys can be rebuilt after a restart. If the file exists, the
+     * changes it holds are replayed first, on top of the keys this instance
+     * already has. Otherwise it is created, and written from the current
+     * keys by a rewrite.
+     * 
+     * A record that was only partly written when the process died is dropped
+     * from the end of the file.
+     * 
+     * @param file
+     *            the file to append to
+     * 
+     * @param policy
+     *            how often the file is synced to disk
+     * 
+     * @return "OK"
+     * 
+     * @throws IOException
+     *             if the file cannot be read or written, or is not an append
+     *             only file
+     * 
+     * @throws IllegalStateException
+     *             if an append only file is already enabled
+     */
+    public String appendonly(File file, DryRedisFsyncPolicy policy) throws IOException {
+        if(file == null || policy == null) {
+            throw new IllegalArgumentException("File and fsync policy cannot be null");
+        }
+        
+        synchronized(this.aofLock) {
+            if(this.aof != null) {
+                throw new IllegalStateException("Append only file is already enabled");
+            }
+            
+            final boolean rewrite;
+            this.lockAllKeys();
+            try {
+                long length = DryRedisAofReader.replay(file, (DryRedisOperationFacade) this);
+                
+                DryRedisAof aof = new DryRedisAof(file, policy, length);
+                this.aof = aof;
+                this.listCommands.setAof(aof);
+                
+                rewrite = length == 0 && this.keyspace.size() > 0;
+            } finally {
+                this.unlockAllKeys();
+            }
+            
+            if(rewrite) {
+                this.bgrewriteaof();
+            }
+            
+            return "OK";
+        }
+    }
+    
+    /**
+     * Rewrite the append only file from the current keys, so that it holds
+     * just one record per key instead of every change ever made. Commands go
+     * on while the new file is written, and only wait for a moment when the
+     * new file replaces the old one.
+     * 
+     * @return "Background append only file rewriting started"
+     * 
+     * @throws IllegalStateException
+     *             if no append only file is enabled, or a rewrite is already
+     *             in progress
+     */
+    public String bgrewriteaof() {
+        synchronized(this.aofLock) {
+            final DryRedisAof aof = this.aof;
+            if(aof == null) {
+                throw new IllegalStateException("Append only file is not enabled");
+            }
+            
+            Thread running = this.rewriteThread;
+            if(running != null && running.isAlive()) {
+                throw new IllegalStateException("Background append only file rewriting already in progress");
+            }
+            
+            if(this.locks == null) {
+                // no other thread may change keys, only the file is written in the background
+                this.rewriteAof(aof);
+                return "Background append only file rewriting started";
+            }
+            
+            Thread thread = new Thread("dry-redis-bgrewriteaof") {
+                
+                @Override
+                public void run() {
+                    rewriteAof(aof);
+                }
+                
+            };
+            
+            thread.setDaemon(true);
+            this.rewriteThread = thread;
+            thread.start();
+            return "Background append only file rewriting started";
+        }
+    }
+    
+    /**
+     * Stop logging changes, and close the append only file once all changes
+     * logged so far are synced to disk. A rewrite in progress is waited for.
+     * 
+     * @return "OK"
+     * 
+     * @throws IOException
+     *             if the file could not be written
+     */
+    public String closeAppendOnly() throws IOException {
+        synchronized(this.aofLock) {
+            DryRedisAof aof = this.aof;
+            if(aof == null) {
+                return "OK";
+            }
+            
+            this.awaitRewriteThread();
+            
+            this.lockAllKeys();
+            try {
+                this.aof = null;
+                this.listCommands.setAof(null);
+            } finally {
+                this.unlockAllKeys();
+            }
+            
+            aof.close();
+            return "OK";
+        }
+    }
+    
+    /**
+     * Check if changes are logged to an append only file.
+     * 
+     * @return <code>true</code> if an append only file is enabled
+     */
+    public boolean isAppendOnly() {
+        return this.aof != null;
+    }
+    
+    /**
+     * Wait for the last rewrite of the append only file to replace the old
+     * file.
+     * 
+     * @return <code>true</code> if the old file was replaced
+     */
+    boolean awaitRewrite() {
+        this.awaitRewriteThread();
+        
+        DryRedisAof aof = this.aof;
+        return aof != null && aof.awaitRewrite();
+    }
+    
+    private void awaitRewriteThread() {
+        Thread thread = this.rewriteThread;
+        if(thread == null) {
+            return;
+        }
+        
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Write the whole value of every key to a new append only file. In
+     * concurrent mode each key is written under its own lock, and all keys
+     * are locked only at the end, to write the keys changed in ways the
+     * rewrite could not follow and switch over to the new file.
+     */
+    private void rewriteAof(DryRedisAof aof) {
+        if(this.locks == null) {
+            aof.beginRewrite(false);
+            for(Map.Entry<String, DryRedisKeyspace.KeyEntry> entry : this.keyspace.entries()) {
+                byte[] state = this.encodeState(entry.getKey());
+                if(state != null) {
+                    aof.appendToRewrite(state);
+                }
+            }
+            
+            aof.finishRewrite();
+            return;
+        }
+        
+        DryRedisAof.Rewrite rewrite = aof.beginRewrite(true);
+        for(Map.Entry<String, DryRedisKeyspace.KeyEntry> entry : this.keyspace.entries()) {
+            if(rewrite.isAllBased()) {
+                // flushed, every change goes to the new file from then on
+                break;
+            }
+            
+            final String key = entry.getKey();
+            this.lockKey(key);
+            try {
+                if(!rewrite.isBased(key)) {
+                    byte[] state = this.encodeState(key);
+                    if(state != null) {
+                        aof.appendToRewrite(state);
+                    }
+                    
+                    rewrite.base(key);
+                }
+            } finally {
+                this.unlockKey(key);
+            }
+        }
+        
+        this.lockAllKeys();
+        try {
+            for(String key : rewrite.unbased()) {
+                byte[] state = this.encodeState(key);
+                aof.appendToRewrite(state != null ? state : DryRedisAof.record(DryRedisAof.DEL, key));
+            }
+            
+            aof.finishRewrite();
+        } finally {
+            this.unlockAllKeys();
+        }
+    }
+    
+    /**
+     * Replace a key with a value read back from an append only file.
+     * 
+     * @param key
+     *            the key
+     * 
+     * @param decoder
+     *            the decoder positioned after the key of a
+     *            {@link DryRedisAof#STATE} record
+     */
+    void replayState(String key, DryRedisDecoder decoder) {
+        long expiry = decoder.readSignedVarint();
+        DryRedisAbstractCache<?> cache = (DryRedisAbstractCache<?>) this.cachesByType.get(decoder.readType());
+        
+        this.lockKey(key);
+        try {
+            cache.restore(key, decoder);
+            if(expiry != DryRedisKeyspace.NO_EXPIRY) {
+                cache.pexpireat(key, expiry);
+            }
+        } finally {
+            this.unlockKey(key);
+        }
+    }
+    
+    /**
+     * Remove a single key as logged in an append only file, whose name is
+     * never a pattern.
+     * 
+     * @param key
+     *            the key
+     */
+    void replayDelete(String key) {
+        this.lockKey(key);
+        try {
+            this.keyspace.remove(key);
+        } finally {
+            this.unlockKey(key);
+        }
+    }
+    
+	/**
+	 * Configure the active expiry of keys. Expired keys are always removed
+	 * when they are accessed. In addition, commands periodically run a cycle
+	 * that removes keys which have expired but are never accessed again.
+	 * 
+	 * @param cycleIntervalMillis
+	 *            the time between two active expiry cycles, defaults to
+	 *            <code>100</code> milliseconds
+	 * 
+	 * @param cpuBudgetPercent
+	 *            the percentage of the interval that one cycle may run for,
+	 *            defaults to <code>25</code>. A value of <code>0</code>
+	 *            disables active expiry.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the interval is not positive or the budget is not within
+	 *             <code>0</code> to <code>100</code>
+	 */
+	public void setActiveExpiry(long cycleIntervalMillis, int cpuBudgetPercent) {
+	    this.keyspace.configureActiveExpiry(cycleIntervalMillis, cpuBudgetPercent);
+	}
+	
+	/**
+	 * Run the active expiry cycles from a background daemon thread as well,
+	 * once every cycle interval. Without it cycles only run from commands, so
+	 * an idle instance keeps its expired keys in memory till the next command.
+	 * 
+	 * Background expiry is only available in concurrent mode, as other
+	 * instances must only be used by one thread at a time.
+	 * 
+	 * @param enabled
+	 *            whether to run expiry cycles in the background
+	 * 
+	 * @return <code>true</code> if the setting was applied,
+	 *         <code>false</code> if this instance is not concurrent
+	 */
+	public boolean setBackgroundExpiry(boolean enabled) {
+	    if(this.locks == null) {
+	        return false;
+	    }
+	    
+	    this.keyspace.setBackgroundExpiry(enabled);
+	    return true;
+	}
+	
+	/**
+	 * Read the configuration parameters matching the pattern.
+	 * 
+	 * @param pattern
+	 *            the glob-style pattern of parameter names
+	 * 
+	 * @return the names and values of the matching parameters one after the
+	 *         other
+	 */
+	public List<String> configGet(String pattern) {
+	    return this.keyspace.getConfig().get(pattern);
+	}
+	
+	/**
+	 * Change a configuration parameter. The thresholds up to which small
+	 * hashes, sets and sorted sets use a compact encoding can be changed, and
+	 * apply to values created afterwards:
+	 * 
+	 * <ul>
+	 * <li><code>hash-max-listpack-entries</code>, defaults to
+	 * <code>128</code></li>
+	 * <li><code>hash-max-listpack-value</code>, defaults to
+	 * <code>64</code></li>
+	 * <li><code>set-max-intset-entries</code>, defaults to
+	 * <code>512</code></li>
+	 * <li><code>set-max-listpack-entries</code>, defaults to
+	 * <code>128</code></li>
+	 * <li><code>set-max-listpack-value</code>, defaults to
+	 * <code>64</code></li>
+	 * <li><code>zset-max-listpack-entries</code>, defaults to
+	 * <code>128</code></li>
+	 * <li><code>zset-max-listpack-value</code>, defaults to
+	 * <code>64</code></li>
+	 * </ul>
+	 * 
+	 * In addition, <code>hll-parallel-merge-keys</code> sets the number of
+	 * HyperLogLog keys from which PFCOUNT and PFMERGE merge the registers in
+	 * parallel, defaults to <code>8</code>. A value of <code>0</code> disables
+	 * parallel merges.
+	 * 
+	 * @param parameter
+	 *            the name of the parameter
+	 * 
+	 * @param value
+	 *            the new value
+	 * 
+	 * @return "OK"
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the parameter is not supported or the value is invalid
+	 */
+	public String configSet(String parameter, String value) {
+	    this.keyspace.getConfig().set(parameter, value);
+	    return "OK";
+	}
+	
+	/**
+	 * Check if this instance can be shared between multiple threads.
+	 * 
+	 * @return <code>true</code> if running in concurrent mode
+	 */
+	public boolean isConcurrent() {
+	    return this.locks != null;
+	}
+	
+	/**
+	 * Put a string key in counter mode. Increments of the key no longer take
+	 * its lock, and are collected in a striped counter instead, so that many
+	 * threads can increment the key without waiting for each other. Every
+	 * other command on the key sees the exact value, as the increments are
+	 * applied whenever the lock of the key is taken.
+	 * 
+	 * Increments return the value seen by the last increment that held the
+	 * lock plus the increments made since, which is exact only when no other
+	 * thread increments the key at the same time. Increments of a key that
+	 * does not hold an integer are dropped instead of failing. KEYS, SCAN and
+	 * DBSIZE do not see a key that was only created by such increments till
+	 * another command on the key applies them.
+	 * 
+	 * Counter mode is only available in concurrent mode.
+	 * 
+	 * @param key
+	 *            the key
+	 * 
+	 * @return <code>true</code> if the key was put in counter mode,
+	 *         <code>false</code> if it already was or this instance is not
+	 *         concurrent
+	 */
+	public boolean enableCounter(String key) {
+	    if(this.locks == null) {
+	        return false;
+	    }
+	    
+	    this.lockKey(key);
+	    try {
+	        return this.counters.enable(key);
+	    } finally {
+	        this.unlockKey(key);
+	    }
+	}
+	
+	/**
+	 * Put a field of a hash in counter mode. See
+	 * {@link #enableCounter(String)} for details.
+	 * 
+	 * @param key
+	 *            the key of the hash
+	 * 
+	 * @param field
+	 *            the field
+	 * 
+	 * @return <code>true</code> if the field was put in counter mode,
+	 *         <code>false</code> if it already was or this instance is not
+	 *         concurrent
+	 */
+	public boolean enableCounter(String key, String field) {
+	    if(this.locks == null) {
+	        return false;
+	    }
+	    
+	    this.lockKey(key);
+	    try {
+	        return this.counters.enable(key, field);
+	    } finally {
+	        this.unlockKey(key);
+	    }
+	}
+	
+	/**
+	 * Take a string key out of counter mode, applying all its increments.
+	 * 
+	 * @param key
+	 *            the key
+	 * 
+	 * @return <code>true</code> if the key was in counter mode
+	 */
+	public boolean disableCounter(String key) {
+	    this.lockKey(key);
+	    try {
+	        DryRedisCounters.Counter counter = this.counters.disable(key);
+	        if(counter == null) {
+	            return false;
+	        }
+	        
+	        this.applyIncrement(key, null, counter.drain());
+	        return true;
+	    } finally {
+	        this.unlockKey(key);
+	    }
+	}
+	
+	/**
+	 * Take a field of a hash out of counter mode, applying all its increments.
+	 * 
+	 * @param key
+	 *            the key of the hash
+	 * 
+	 * @param field
+	 *            the field
+	 * 
+	 * @return <code>true</code> if the field was in counter mode
+	 */
+	public boolean disableCounter(String key, String field) {
+	    this.lockKey(key);
+	    try {
+	        DryRedisCounters.Counter counter = this.counters.disable(key, field);
+	        if(counter == null) {
+	            return false;
+	        }
+	        
+	        this.applyIncrement(key, field, counter.drain());
+	        return true;
+	    } finally {
+	        this.unlockKey(key);
+	    }
+	}
+	
+	// private methods
+	
+	/**
+	 * Acquire the lock for the given key when running in concurrent mode.
+	 * Does nothing otherwise.
+	 * 
+	 * @param key
+	 *            the key to lock
+	 */
+	protected final void lockKey(String key) {
+	    if(this.locks != null) {
+	        this.locks.lock(key);
+	        this.preserve(key);
+	        this.drainCounters(key);
+	    }
+	}
+	
+	/**
+	 * Release the lock acquired using {@link #lockKey(String)}.
+	 * 
+	 * @param key
+	 *            the key to unlock
+	 */
+	protected final void unlockKey(String key) {
+	    if(this.locks != null) {
+	        this.locks.unlock(key);
+	    }
+	    
+	    this.awaitSync();
+	}
+	
+	/**
+	 * Try to acquire the lock for the given key without waiting, when running
+	 * in concurrent mode. Used when other key locks are held already, and
+	 * waiting could deadlock. Always succeeds otherwise.
+	 * 
+	 * @param key
+	 *            the key to lock
+	 * 
+	 * @return <code>true</code> if the lock was acquired
+	 */
+	protected final boolean tryLockKey(String key) {
+	    if(this.locks == null) {
+	        return true;
+	    }
+	    
+	    if(!this.locks.tryLock(key)) {
+	        return false;
+	    }
+	    
+	    this.preserve(key);
+	    this.drainCounters(key);
+	    return true;
+	}
+	
+	/**
+	 * Release the lock acquired using {@link #tryLockKey(String)}. Waiting for
+	 * the append only file is left to the command that holds the other locks.
+	 * 
+	 * @param key
+	 *            the key to unlock
+	 */
+	protected final void releaseKey(String key) {
+	    if(this.locks != null) {
+	        this.locks.unlock(key);
+	    }
+	}
+	
+	/**
+	 * Acquire the locks of all keys when running in concurrent mode, and
+	 * apply the increments of all counters, so that no key changes till
+	 * {@link #unlockAllKeys()}.
+	 */
+	private void lockAllKeys() {
+	    if(this.locks == null) {
+	        return;
+	    }
+	    
+	    this.locks.lockAll();
+	    if(!this.counters.isEmpty()) {
+	        for(String key : this.counters.keys()) {
+	            this.preserve(key);
+	            this.drainCounters(key);
+	        }
+	    }
+	}
+	
+	private void unlockAllKeys() {
+	    if(this.locks != null) {
+	        this.locks.unlockAll();
+	    }
+	    
+	    this.awaitSync();
+	}
+	
+	/**
+	 * Acquire the locks for all given keys when running in concurrent mode.
+	 * 
+	 * @param keys
+	 *            the keys to lock, may be <code>null</code>
+	 * 
+	 * @return the stripes locked, to be passed to {@link #unlockKeys(int[])}
+	 */
+	protected final int[] lockKeys(String... keys) {
+	    if(this.locks == null || keys == null) {
+	        return null;
+	    }
+	    
+	    return this.lockAndDrain(Arrays.asList(keys));
+	}
+	
+	protected final int[] lockKeys(Collection<String> keys) {
+	    if(this.locks == null || keys == null) {
+	        return null;
+	    }
+	    
+	    return this.lockAndDrain(keys);
+	}
+	
+	protected final int[] lockKeys(String key, Collection<String> otherKeys) {
+	    if(this.locks == null) {
+	        return null;
+	    }
+	    
+	    List<String> keys = new ArrayList<String>();
+	    keys.add(key);
+	    if(otherKeys != null) {
+	        keys.addAll(otherKeys);
+	    }
+	    
+	    return this.lockAndDrain(keys);
+	}
+	
+	protected final int[] lockKeys(String key, String[] otherKeys) {
+	    return this.lockKeys(key, otherKeys == null ? null : Arrays.asList(otherKeys));
+	}
+	
+	protected final int[] lockKeys(String destination, String key, String[] otherKeys) {
+	    if(this.locks == null) {
+	        return null;
+	    }
+	    
+	    List<String> keys = new ArrayList<String>();
+	    keys.add(destination);
+	    keys.add(key);
+	    if(otherKeys != null) {
+	        keys.addAll(Arrays.asList(otherKeys));
+	    }
+	    
+	    return this.lockAndDrain(keys);
+	}
+	
+	/**
+	 * Release the locks acquired using one of the <code>lockKeys</code>
+	 * methods.
+	 * 
+	 * @param stripes
+	 *            the stripes as returned when locking
+	 */
+	protected final void unlockKeys(int[] stripes) {
+	    if(stripes != null) {
+	        this.locks.unlock(stripes);
+	    }
+	    
+	    this.awaitSync();
+	}
+	
+	/**
+	 * Log a change of a key to the append only file, if enabled. The lock of
+	 * the key must be held, and the change made already.
+	 * 
+	 * @param opcode
+	 *            the kind of change, one of the constants of
+	 *            {@link DryRedisAof}
+	 * 
+	 * @param key
+	 *            the key changed
+	 */
+	protected final void propagate(byte opcode, String key) {
+	    DryRedisAof aof = this.aof;
+	    if(aof != null) {
+	        aof.append(DryRedisAof.record(opcode, key), key);
+	    }
+	}
+	
+	protected final void propagate(byte opcode, String key, Object argument) {
+	    DryRedisAof aof = this.aof;
+	    if(aof != null) {
+	        aof.append(DryRedisAof.record(opcode, key, argument), key);
+	    }
+	}
+	
+	protected final void propagate(byte opcode, String key, Object first, Object second) {
+	    DryRedisAof aof = this.aof;
+	    if(aof != null) {
+	        aof.append(DryRedisAof.record(opcode, key, first, second), key);
+	    }
+	}
+	
+	protected final void propagate(byte opcode, String key, Object first, Object second, Object third) {
+	    DryRedisAof aof = this.aof;
+	    if(aof != null) {
+	        aof.append(DryRedisAof.record(opcode, key, first, second, third), key);
+	    }
+	}
+	
+	/**
+	 * Log string values set on many keys, whose locks must be held.
+	 * 
+	 * @param values
+	 *            the values by key
+	 */
+	protected final void propagateMset(Map<String, String> values) {
+	    DryRedisAof aof = this.aof;
+	    if(aof != null && values != null && !values.isEmpty()) {
+	        Set<String> keys = values.keySet();
+	        aof.append(DryRedisAof.record(DryRedisAof.MSET, null, values), keys.toArray(new String[keys.size()]));
+	    }
+	}
+	
+	/**
+	 * Log the whole value of the key as it is now, or its removal if it does
+	 * not exist. Used for changes that cannot be replayed by their arguments
+	 * alone.
+	 * 
+	 * @param key
+	 *            the key, whose lock must be held
+	 */
+	protected final void propagateState(String key) {
+	    DryRedisAof aof = this.aof;
+	    if(aof != null) {
+	        byte[] state = this.encodeState(key);
+	        aof.append(state != null ? state : DryRedisAof.record(DryRedisAof.DEL, key), key);
+	    }
+	}
+	
+	/**
+	 * Log the expiry time of the key, if it has one.
+	 * 
+	 * @param key
+	 *            the key, whose lock must be held
+	 */
+	protected final void propagateExpiry(String key) {
+	    if(this.aof == null) {
+	        return;
+	    }
+	    
+	    DryRedisKeyspace.KeyEntry entry = this.keyspace.getEntry(key);
+	    if(entry != null && entry.expiry != DryRedisKeyspace.NO_EXPIRY) {
+	        this.propagate(DryRedisAof.PEXPIREAT, key, entry.expiry);
+	    }
+	}
+	
+	private void propagateRename(String key, String newKey) {
+	    DryRedisAof aof = this.aof;
+	    if(aof != null) {
+	        aof.append(DryRedisAof.record(DryRedisAof.RENAME, key, newKey), key, newKey);
+	    }
+	}
+	
+	/**
+	 * Encode the whole value of a key with its expiry time.
+	 * 
+	 * @return the {@link DryRedisAof#STATE} record, or <code>null</code> if
+	 *         the key does not exist
+	 */
+	private byte[] encodeState(String key) {
+	    DryRedisKeyspace.KeyEntry entry = this.keyspace.getEntry(key);
+	    if(entry == null) {
+	        return null;
+	    }
+	    
+	    DryRedisEncoder encoder = new DryRedisEncoder();
+	    encoder.writeByte(DryRedisAof.STATE);
+	    encoder.writeString(key);
+	    encoder.writeSignedVarint(entry.expiry);
+	    encoder.writeByte(entry.type.getCode());
+	    ((DryRedisAbstractCache<?>) this.cachesByType.get(entry.type)).writeStoredValue(entry.value, encoder);
+	    return encoder.toByteArray();
+	}
+	
+	/**
+	 * Wait till the changes logged by this thread are synced, if the policy
+	 * asks for it. Called whenever locks are released.
+	 */
+	private void awaitSync() {
+	    DryRedisAof aof = this.aof;
+	    if(aof != null) {
+	        aof.awaitSync();
+	    }
+	}
+	
+	/**
+	 * Apply increments of a counter that were collected without the lock of
+	 * its key, which must be held. Increments of a key that no longer holds
+	 * a number of the right type are dropped, as they could not have been
+	 * applied when made.
+	 * 
+	 * @param key
+	 *            the key
+	 * 
+	 * @param field
+	 *            the field of the hash, or <code>null</code> for a string key
+	 * 
+	 * @param delta
+	 *            the sum of the increments
+	 */
+	protected final void applyIncrement(String key, String field, long delta) {
+	    if(delta == 0) {
+	        return;
+	    }
+	    
+	    DryRedisCacheType type = this.keyspace.type(key);
+	    try {
+	        if(field == null) {
+	            if(type == null || type == DryRedisCacheType.STRING) {
+	                this.stringCommands.incrby(key, delta);
+	                this.propagate(DryRedisAof.INCRBY, key, delta);
+	            }
+	        } else if(type == null || type == DryRedisCacheType.HASH) {
+	            this.hashCommands.hincrby(key, field, delta);
+	            this.propagate(DryRedisAof.HINCRBY, key, field, delta);
+	        }
+	    } catch(NumberFormatException e) {
+	        // not a number, dropped
+	    }
+	}
+	
+	private int[] lockAndDrain(Collection<String> keys) {
+	    int[] stripes = this.locks.lock(keys);
+	    for(String key : keys) {
+	        this.preserve(key);
+	        this.drainCounters(key);
+	    }
+	    
+	    return stripes;
+	}
+	
+	/**
+	 * Copy the key into the snapshot of a running BGSAVE, if it is part of
+	 * it and was not written yet, before the key changes. The lock of the
+	 * key must be held.
+	 */
+	private void preserve(String key) {
+	    DryRedisSnapshot.Epoch epoch = this.snapshotEpoch;
+	    if(epoch != null && key != null) {
+	        epoch.preserve(key);
+	    }
+	}
+	
+	/**
+	 * Apply the increments collected so far for the counters of the given
+	 * key, whose lock must be held.
+	 */
+	private void drainCounters(String key) {
+	    if(key == null || this.counters.isEmpty()) {
+	        return;
+	    }
+	    
+	    DryRedisCounters.Counter counter = this.counters.get(key);
+	    Map<String, DryRedisCounters.Counter> fields = this.counters.fieldsOf(key);
+	    if(counter == null && fields == null) {
+	        return;
+	    }
+	    
+	    // an expired key is reclaimed first, dropping the increments made
+	    // before it expired
+	    this.keyspace.getEntry(key);
+	    
+	    if(counter != null) {
+	        this.applyIncrement(key, null, counter.drain());
+	    }
+	    
+	    if(fields != null) {
+	        for(Map.Entry<String, DryRedisCounters.Counter> entry : fields.entrySet()) {
+	            this.applyIncrement(key, entry.getKey(), entry.getValue().drain());
+	        }
+	    }
+	}
+	
+	
+	/**
+	 * Find the exact cache in which a given key is present.
+	 * 
+	 * @param key
+	 *            the key we are looking for
+	 * 
+	 * @return the {@link DryRedisCache} where key is present, <code>null</code>
+	 *         otherwise
+	 */
+	protected DryRedisCache getCache(String key) {
+	    DryRedisCacheType type = this.keyspace.type(key);
+	    if(type == null) {
+	        return null;
+	    }
+	    
+	    return this.cachesByType.get(type);
+	}
+	
+	/**
+	 * Find the cache type for the cache in which the given key is present.
+	 * 
+	 * @param key
+	 *            the key we are looking for
+	 * 
+	 * @return the {@link DryRedisCacheType} where key is present,
+	 *         <code>null</code> otherwise
+	 */
+	protected DryRedisCacheType keyType(String key) {
+	    return this.keyspace.type(key);
+	}
+	
+	/**
+     * Check if the {@link DryRedisCacheType} for the given key is the same as
+     * the provided {@link DryRedisCacheType}. If not, an
+     * {@link IllegalArgumentException} is raised.
+     * 
+     * @param key
+     *            the key to check cache type for
+     * 
+     * @param type
+     *            the type to match with
+     * 
+     * @throws IllegalArgumentException
+     *             if there is a mismatch in cache type
+     */
+	protected void matchKeyType(String key, DryRedisCacheType type) {
+	    // every command passes through here, which makes it a good place to
+	    // reclaim expired keys
+	    this.keyspace.maybeActiveExpireCycle();
+	    
 	    DryRedisCacheType foundKeyType = keyType(key);
 	    if(foundKeyType == null) {
 	        return;
@@ -0,0 +1,817 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.sangupta.dryredis.support.DryRedisCache;
+import com.sangupta.dryredis.support.DryRedisCacheType;
+import com.sangupta.dryredis.support.DryRedisUtils;
+
+/**
+ * The single dictionary of all keys in a database. Each key maps to an
+ * {@link KeyEntry} that holds the {@link DryRedisCacheType} of the key, the value
+ * and the expiry time of the key. This allows us to find the type of a key, and
+ * thus the {@link DryRedisCache} that owns it, using just one lookup.
+ *
+ * Every {@link DryRedisCache} works over a typed view of this dictionary, as
+ * returned by {@link #view(DryRedisCacheType)}, that only sees keys of its own
+ * type.
+ * 
+ * A concurrent keyspace is backed by a {@link ConcurrentHashMap}. It does not
+ * guard the values themselves, and callers must make sure that a key is not
+ * updated by two threads at the same time - {@link DryRedisKeys} does this
+ * using {@link DryRedisKeyLocks}.
+ * 
+ * Expired keys are removed lazily when they are looked up, and actively by
+ * expiry cycles run from {@link #maybeActiveExpireCycle()} that reclaim keys
+ * which are never looked up again. See {@link DryRedisExpiry}. A concurrent
+ * keyspace may also run these cycles from a background thread, see
+ * {@link #setBackgroundExpiry(boolean)}.
+ *
+ * @author sangupta
+ *
+ */
+class DryRedisKeyspace {
+
+    /**
+     * Value of {@link KeyEntry#expiry} when no expiry has been set on a key
+     */
+    static final long NO_EXPIRY = -1;
+
+    /**
+     * All keys in this keyspace
+     */
+    private final Map<String, KeyEntry> entries;
+    
+    /**
+     * The locks guarding the keys, <code>null</code> for a keyspace used from
+     * a single thread
+     */
+    private final DryRedisKeyLocks locks;
+    
+    /**
+     * The keys and hash fields in counter mode, <code>null</code> if counter
+     * mode is not used
+     */
+    private final DryRedisCounters counters;
+    
+    /**
+     * The expiry times of all keys that have one
+     */
+    private final DryRedisExpiry expiry = new DryRedisExpiry();
+    
+    /**
+     * The configuration used by the caches that store their keys here
+     */
+    private final DryRedisConfig config = new DryRedisConfig();
+    
+    /**
+     * The expiry cycles run in the background, <code>null</code> if cycles
+     * are only run by commands
+     */
+    private ScheduledFuture<?> backgroundCycles;
+    
+    /**
+     * Holds the thread that runs the background expiry cycles of all
+     * keyspaces, created on first use
+     */
+    private static final class SchedulerHolder {
+        
+        static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "dry-redis-expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+            
+        });
+        
+    }
+    
+    /**
+     * Create a keyspace for use from a single thread.
+     */
+    DryRedisKeyspace() {
+        this(null, null);
+    }
+    
+    /**
+     * Create a keyspace.
+     * 
+     * @param locks
+     *            if not <code>null</code> the keyspace can be read and updated
+     *            from multiple threads as long as each key is only updated by
+     *            the thread holding its lock
+     * 
+     * @param counters
+     *            the keys in counter mode, whose increments not yet applied
+     *            are dropped when the key expires, may be <code>null</code>
+     */
+    DryRedisKeyspace(DryRedisKeyLocks locks, DryRedisCounters counters) {
+        this.locks = locks;
+        this.counters = counters;
+        
+        if(locks != null) {
+            this.entries = new ConcurrentHashMap<String, KeyEntry>();
+        } else {
+            this.entries = new HashMap<String, KeyEntry>();
+        }
+    }
+
+    /**
+     * The value holder for one key in the keyspace.
+     *
+     * @author sangupta
+     *
+     */
+    static final class KeyEntry {
+
+        /**
+         * The type of data-structure stored
+         */
+        final DryRedisCacheType type;
+
+        /**
+         * The value as stored by the owning {@link DryRedisCache}
+         */
+        Object value;
+
+        /**
+         * The epoch millis when this key expires, or {@link DryRedisKeyspace#NO_EXPIRY}
+         */
+        long expiry = NO_EXPIRY;
+        
+        /**
+         * The deadline this entry is queued in {@link DryRedisExpiry} for, or
+         * {@link DryRedisKeyspace#NO_EXPIRY}
+         */
+        long scheduled = NO_EXPIRY;
+
+        KeyEntry(DryRedisCacheType type, Object value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        boolean isExpired(long now) {
+            return this.expiry != NO_EXPIRY && now >= this.expiry;
+        }
+
+    }
+
+    /**
+     * Return the live {@link KeyEntry} for the given key. Expired keys are removed
+     * and <code>null</code> is returned.
+     *
+     * @param key
+     *            the key to look for
+     *
+     * @return the {@link KeyEntry} if found, <code>null</code> otherwise
+     */
+    KeyEntry getEntry(String key) {
+        KeyEntry entry = this.entries.get(key);
+        if(entry == null) {
+            return null;
+        }
+
+        if(entry.expiry != NO_EXPIRY && entry.isExpired(System.currentTimeMillis())) {
+            this.entries.remove(key);
+            this.expired(key);
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Check if the given key has an expiry time that has passed, without
+     * removing it. Used by callers that do not hold the lock of the key.
+     *
+     * @param key
+     *            the key to look for
+     *
+     * @return <code>true</code> if the key exists and has expired
+     */
+    boolean isExpired(String key) {
+        KeyEntry entry = this.entries.get(key);
+        return entry != null && entry.expiry != NO_EXPIRY && entry.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Return the {@link DryRedisCacheType} of the given key.
+     *
+     * @param key
+     *            the key to look for
+     *
+     * @return the {@link DryRedisCacheType} if key exists, <code>null</code>
+     *         otherwise
+     */
+    DryRedisCacheType type(String key) {
+        KeyEntry entry = this.getEntry(key);
+        if(entry == null) {
+            return null;
+        }
+
+        return entry.type;
+    }
+
+    /**
+     * Set the expiry time of the given key.
+     *
+     * @param key
+     *            the key to set expiry for
+     *
+     * @param epochAsMilliseconds
+     *            the expiry time as epoch millis
+     *
+     * @return <code>1</code> if expiry was set, <code>0</code> if no such key
+     *         exists
+     */
+    int pexpireat(String key, long epochAsMilliseconds) {
+        KeyEntry entry = this.getEntry(key);
+        if(entry == null) {
+            return 0;
+        }
+
+        entry.expiry = epochAsMilliseconds;
+        this.expiry.schedule(key, entry);
+        return 1;
+    }
+    
+    /**
+     * Remove the expiry time of the given key.
+     * 
+     * @param key
+     *            the key to persist
+     * 
+     * @return <code>1</code> if the expiry was removed, <code>0</code> if no
+     *         such key exists or it has no expiry
+     */
+    int persist(String key) {
+        KeyEntry entry = this.getEntry(key);
+        if(entry == null || entry.expiry == NO_EXPIRY) {
+            return 0;
+        }
+        
+        entry.expiry = NO_EXPIRY;
+        return 1;
+    }
+    
+    /**
+     * Return the time to live of the given key.
+     * 
+     * @param key
+     *            the key to look for
+     * 
+     * @return the remaining milliseconds, <code>-1</code> if the key has no
+     *         expiry, <code>-2</code> if no such key exists
+     */
+    long pttl(String key) {
+        KeyEntry entry = this.getEntry(key);
+        if(entry == null) {
+            return -2;
+        }
+        
+        if(entry.expiry == NO_EXPIRY) {
+            return -1;
+        }
+        
+        return Math.max(0, entry.expiry - System.currentTimeMillis());
+    }
+
+    /**
+     * Remove the given key.
+     *
+     * @param key
+     *            the key to remove
+     *
+     * @return <code>1</code> if the key was removed, <code>0</code> otherwise
+     */
+    int remove(String key) {
+        KeyEntry entry = this.entries.remove(key);
+        if(entry == null) {
+            return 0;
+        }
+
+        return 1;
+    }
+
+    /**
+     * Remove all keys that match the given wildcard pattern. Matching keys
+     * that have expired but are not yet reclaimed are removed as well, but
+     * are not counted.
+     *
+     * @param keyPattern
+     *            the pattern to match
+     *
+     * @return the number of live keys removed
+     */
+    int removeMatching(String keyPattern) {
+        final long now = System.currentTimeMillis();
+        int removed = 0;
+
+        Iterator<Map.Entry<String, KeyEntry>> iterator = this.entries.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<String, KeyEntry> mapEntry = iterator.next();
+            if(!DryRedisUtils.wildcardMatch(mapEntry.getKey(), keyPattern)) {
+                continue;
+            }
+
+            iterator.remove();
+            if(mapEntry.getValue().isExpired(now)) {
+                this.expired(mapEntry.getKey());
+            } else {
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Move the entry for the given key to a new key name. Any existing value
+     * against the new key is overwritten. The expiry time moves along with the
+     * value.
+     *
+     * @param key
+     *            the source key name
+     *
+     * @param newKey
+     *            the destination key name
+     */
+    void rename(String key, String newKey) {
+        KeyEntry entry = this.entries.remove(key);
+        if(entry == null) {
+            return;
+        }
+
+        // a fresh entry, as deadlines already queued refer to the old key
+        KeyEntry moved = new KeyEntry(entry.type, entry.value);
+        moved.expiry = entry.expiry;
+        
+        this.entries.put(newKey, moved);
+        this.expiry.schedule(newKey, moved);
+    }
+
+    /**
+     * Add all keys that match the given pattern to the list.
+     *
+     * @param pattern
+     *            the pattern to match
+     *
+     * @param keys
+     *            the list to add the keys to
+     */
+    void keys(String pattern, List<String> keys) {
+        final long now = System.currentTimeMillis();
+        for(Map.Entry<String, KeyEntry> mapEntry : this.entries.entrySet()) {
+            if(mapEntry.getValue().isExpired(now)) {
+                continue;
+            }
+
+            String key = mapEntry.getKey();
+            if(DryRedisUtils.wildcardMatch(key, pattern)) {
+                keys.add(key);
+            }
+        }
+    }
+
+    /**
+     * Return all entries of this keyspace, including expired ones that have
+     * not yet been reclaimed. The caller must make sure that no key is
+     * updated while iterating.
+     * 
+     * @return the live set of entries
+     */
+    Set<Map.Entry<String, KeyEntry>> entries() {
+        return this.entries.entrySet();
+    }
+    
+    /**
+     * Add a key read back from a snapshot, replacing any existing key.
+     * 
+     * @param key
+     *            the key to add
+     * 
+     * @param type
+     *            the {@link DryRedisCacheType} of the value
+     * 
+     * @param value
+     *            the value as stored by the owning {@link DryRedisCache}
+     * 
+     * @param epochAsMilliseconds
+     *            the expiry time as epoch millis, or {@link #NO_EXPIRY}
+     */
+    void load(String key, DryRedisCacheType type, Object value, long epochAsMilliseconds) {
+        KeyEntry entry = new KeyEntry(type, value);
+        entry.expiry = epochAsMilliseconds;
+        
+        this.entries.put(key, entry);
+        if(epochAsMilliseconds != NO_EXPIRY) {
+            this.expiry.schedule(key, entry);
+        }
+    }
+    
+    /**
+     * Remove all keys from this keyspace.
+     */
+    void clear() {
+        this.entries.clear();
+        this.expiry.clear();
+    }
+    
+    /**
+     * Return the number of entries in this keyspace, including expired ones
+     * that have not yet been reclaimed.
+     * 
+     * @return the number of entries
+     */
+    int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Return the configuration of the database this keyspace belongs to.
+     *
+     * @return the {@link DryRedisConfig}
+     */
+    DryRedisConfig getConfig() {
+        return this.config;
+    }
+
+    /**
+     * Configure the active expiry cycles of this keyspace.
+     * 
+     * @see DryRedisExpiry#configure(long, int)
+     */
+    synchronized void configureActiveExpiry(long cycleIntervalMillis, int cpuBudgetPercent) {
+        this.expiry.configure(cycleIntervalMillis, cpuBudgetPercent);
+        
+        // background cycles follow the new interval
+        if(this.backgroundCycles != null) {
+            this.setBackgroundExpiry(true);
+        }
+    }
+    
+    /**
+     * Also run the active expiry cycles from a background thread, once every
+     * cycle interval, the way Redis runs them from its server cron. Keys of
+     * an idle keyspace are then reclaimed even when no command runs. Cycles
+     * skip keys whose lock is held, so this is only possible for a concurrent
+     * keyspace.
+     * 
+     * @param enabled
+     *            whether to run the cycles in the background, rather than only
+     *            from commands
+     */
+    synchronized void setBackgroundExpiry(boolean enabled) {
+        if(this.backgroundCycles != null) {
+            this.backgroundCycles.cancel(false);
+            this.backgroundCycles = null;
+        }
+        
+        if(!enabled) {
+            return;
+        }
+        
+        if(this.locks == null) {
+            throw new IllegalStateException("Background expiry needs a concurrent keyspace");
+        }
+        
+        final long interval = this.expiry.getCycleIntervalMillis();
+        this.backgroundCycles = SchedulerHolder.SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+            
+            @Override
+            public void run() {
+                maybeActiveExpireCycle();
+            }
+            
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Run an active expiry cycle if one is due. Must not be called while
+     * iterating over the keyspace.
+     */
+    void maybeActiveExpireCycle() {
+        long budgetNanos = this.expiry.claimCycle();
+        if(budgetNanos > 0) {
+            this.activeExpireCycle(budgetNanos);
+        }
+    }
+    
+    /**
+     * Remove expired keys in the order they expired until none are left, or
+     * the time budget is used up. In a concurrent keyspace keys whose lock is
+     * held by another thread are skipped, and checked again next cycle.
+     * 
+     * @param budgetNanos
+     *            the time the cycle may run for
+     * 
+     * @return the number of keys removed
+     */
+    int activeExpireCycle(long budgetNanos) {
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        
+        List<DryRedisExpiry.Deadline> skipped = null;
+        int removed = 0;
+        int checked = 0;
+        
+        DryRedisExpiry.Deadline deadline;
+        while((deadline = this.expiry.pollDue(now)) != null) {
+            if(this.locks == null) {
+                removed += this.expireIfDue(deadline, now);
+            } else if(this.locks.tryLock(deadline.key)) {
+                try {
+                    removed += this.expireIfDue(deadline, now);
+                } finally {
+                    this.locks.unlock(deadline.key);
+                }
+            } else {
+                if(skipped == null) {
+                    skipped = new ArrayList<DryRedisExpiry.Deadline>();
+                }
+                
+                skipped.add(deadline);
+            }
+            
+            // checking the clock is costly, do it every few keys
+            if((++checked & 15) == 0 && System.nanoTime() - start > budgetNanos) {
+                break;
+            }
+        }
+        
+        if(skipped != null) {
+            for(DryRedisExpiry.Deadline pending : skipped) {
+                this.expiry.requeue(pending);
+            }
+        }
+        
+        return removed;
+    }
+    
+    /**
+     * Remove the key of the given deadline if it has expired.
+     * 
+     * @param deadline
+     *            the due {@link DryRedisExpiry.Deadline}
+     * 
+     * @param now
+     *            the current epoch millis
+     * 
+     * @return <code>1</code> if the key was removed, <code>0</code> otherwise
+     */
+    private int expireIfDue(DryRedisExpiry.Deadline deadline, long now) {
+        KeyEntry entry = this.entries.get(deadline.key);
+        if(entry == null) {
+            // key was removed since
+            return 0;
+        }
+        
+        if(entry.scheduled == deadline.expiry) {
+            entry.scheduled = NO_EXPIRY;
+        }
+        
+        if(entry.expiry == NO_EXPIRY) {
+            return 0;
+        }
+        
+        if(!entry.isExpired(now)) {
+            // expiry was extended
+            this.expiry.schedule(deadline.key, entry);
+            return 0;
+        }
+        
+        this.entries.remove(deadline.key);
+        this.expired(deadline.key);
+        return 1;
+    }
+    
+    /**
+     * Drop the increments of the counters of a key that expired, as they
+     * were made before it did. The lock of the key must be held.
+     */
+    private void expired(String key) {
+        if(this.counters != null && !this.counters.isEmpty()) {
+            this.counters.expired(key);
+        }
+    }
+
+    /**
+     * Return a {@link Map} view of this keyspace that only contains keys of the
+     * given {@link DryRedisCacheType}. Changes to the view write through to
+     * this keyspace.
+     *
+     * @param type
+     *            the {@link DryRedisCacheType} of the keys to expose
+     *
+     * @return the typed view
+     */
+    <T> Map<String, T> view(DryRedisCacheType type) {
+        return new TypedView<T>(type);
+    }
+
+    /**
+     * A {@link Map} over the keyspace for one single {@link DryRedisCacheType}.
+     * Keys of other types are invisible to this map. A {@link #put(String, Object)}
+     * over a key of another type replaces that key.
+     *
+     * @author sangupta
+     *
+     * @param <T>
+     *            the type of value stored in this view
+     */
+    private final class TypedView<T> extends AbstractMap<String, T> {
+
+        private final DryRedisCacheType type;
+
+        TypedView(DryRedisCacheType type) {
+            this.type = type;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public T get(Object key) {
+            KeyEntry entry = DryRedisKeyspace.this.getEntry((String) key);
+            if(entry == null || entry.type != this.type) {
+                return null;
+            }
+
+            return (T) entry.value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            KeyEntry entry = DryRedisKeyspace.this.getEntry((String) key);
+            return entry != null && entry.type == this.type;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public T put(String key, T value) {
+            KeyEntry entry = DryRedisKeyspace.this.getEntry(key);
+            if(entry != null && entry.type == this.type) {
+                T previous = (T) entry.value;
+                entry.value = value;
+                return previous;
+            }
+
+            DryRedisKeyspace.this.entries.put(key, new KeyEntry(this.type, value));
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public T remove(Object key) {
+            KeyEntry entry = DryRedisKeyspace.this.getEntry((String) key);
+            if(entry == null || entry.type != this.type) {
+                return null;
+            }
+
+            DryRedisKeyspace.this.entries.remove(key);
+            return (T) entry.value;
+        }
+
+        /**
+         * Stops at the first live key of the type, rather than counting all
+         * of them as {@link AbstractMap#isEmpty()} would.
+         */
+        @Override
+        public boolean isEmpty() {
+            return !new TypedIterator<T>(this.type).hasNext();
+        }
+
+        @Override
+        public void clear() {
+            Iterator<KeyEntry> iterator = DryRedisKeyspace.this.entries.values().iterator();
+            while(iterator.hasNext()) {
+                if(iterator.next().type == this.type) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<String, T>> entrySet() {
+            return new AbstractSet<Map.Entry<String, T>>() {
+
+                @Override
+                public Iterator<Map.Entry<String, T>> iterator() {
+                    return new TypedIterator<T>(TypedView.this.type);
+                }
+
+                @Override
+                public int size() {
+                    final long now = System.currentTimeMillis();
+                    
+                    int size = 0;
+                    for(KeyEntry entry : DryRedisKeyspace.this.entries.values()) {
+                        if(entry.type == TypedView.this.type && !entry.isExpired(now)) {
+                            size++;
+                        }
+                    }
+
+                    return size;
+                }
+
+            };
+        }
+
+    }
+
+    /**
+     * {@link Iterator} over all keyspace entries of one {@link DryRedisCacheType}.
+     *
+     * @author sangupta
+     *
+     * @param <T>
+     *            the type of value stored
+     */
+    private final class TypedIterator<T> implements Iterator<Map.Entry<String, T>> {
+
+        private final DryRedisCacheType type;
+
+        private final Iterator<Map.Entry<String, KeyEntry>> delegate = DryRedisKeyspace.this.entries.entrySet().iterator();
+
+        private final long now = System.currentTimeMillis();
+
+        private Map.Entry<String, KeyEntry> next;
+
+        TypedIterator(DryRedisCacheType type) {
+            this.type = type;
+            this.advance();
+        }
+
+        private void advance() {
+            while(this.delegate.hasNext()) {
+                Map.Entry<String, KeyEntry> candidate = this.delegate.next();
+                if(candidate.getValue().type == this.type && !candidate.getValue().isExpired(this.now)) {
+                    this.next = candidate;
+                    return;
+                }
+            }
+
+            this.next = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Map.Entry<String, T> next() {
+            if(this.next == null) {
+                throw new NoSuchElementException();
+            }
+
+            Map.Entry<String, KeyEntry> current = this.next;
+            this.advance();
+            return new AbstractMap.SimpleImmutableEntry<String, T>(current.getKey(), (T) current.getValue().value);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Remove keys from the typed view directly");
+        }
+
+    }
+
+}
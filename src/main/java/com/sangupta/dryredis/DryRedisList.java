@@ -22,55 +22,148 @@
 package com.sangupta.dryredis;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
+import com.sangupta.dryredis.ds.QuickList;
 import com.sangupta.dryredis.support.DryRedisCache;
 import com.sangupta.dryredis.support.DryRedisCacheType;
 import com.sangupta.dryredis.support.DryRedisInsertOrder;
-import com.sangupta.dryredis.support.DryRedisUtils;
 
-class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRedisCache, DryRedisListOperations {
+class DryRedisList extends DryRedisAbstractCache<QuickList<String>> implements DryRedisCache, DryRedisListOperations {
 	
-	private final Lock reEntrantLock = new ReentrantLock();
+	/**
+	 * Clients blocked on the keys of this cache
+	 */
+	private final DryRedisBlockingKeys blocking = new DryRedisBlockingKeys();
+
+	/**
+	 * Create an instance that uses its own keyspace.
+	 */
+	DryRedisList() {
+	    super();
+	}
+	
+	/**
+	 * Create an instance that stores its keys in the given keyspace.
+	 * 
+	 * @param keyspace
+	 *            the {@link DryRedisKeyspace} to use
+	 */
+	DryRedisList(DryRedisKeyspace keyspace) {
+	    super(keyspace);
+	}
+	
+	/**
+	 * Pop from the first of the given lists that has a value, or register the
+	 * caller as blocked on all of them. In concurrent mode the caller must hold
+	 * the key locks of all keys, so that their type cannot change meanwhile.
+	 * 
+	 * @param keys
+	 *            the keys to pop from, in order
+	 * 
+	 * @param destination
+	 *            the list the value is moved to, may be <code>null</code>
+	 * 
+	 * @param fromHead
+	 *            whether to pop from the head or the tail
+	 * 
+	 * @param block
+	 *            whether to register as blocked if all lists are empty
+	 * 
+	 * @return the waiter to pass to {@link #awaitPop(DryRedisBlockingKeys.Waiter, long)}
+	 */
+	DryRedisBlockingKeys.Waiter popOrBlock(List<String> keys, String destination, boolean fromHead, boolean block) {
+	    final int[] stripes = this.blocking.lock(keys);
+	    try {
+	        List<QuickList<String>> lists = new ArrayList<QuickList<String>>(keys.size());
+	        for(String key : keys) {
+	            lists.add(this.store.get(key));
+	        }
+	        
+	        return this.blocking.popOrRegister(lists, keys, destination, fromHead, block);
+	    } finally {
+	        this.blocking.unlock(stripes);
+	    }
+	}
+	
+	/**
+	 * Wait for a value handed over by a push. Must be called without holding
+	 * any key lock.
+	 * 
+	 * @param waiter
+	 *            the waiter returned by
+	 *            {@link #popOrBlock(List, String, boolean, boolean)}
+	 * 
+	 * @param timeoutMillis
+	 *            the maximum time to wait in milliseconds
+	 * 
+	 * @return the key and the value popped, or <code>null</code> if nothing
+	 *         was popped in time
+	 */
+	List<String> awaitPop(DryRedisBlockingKeys.Waiter waiter, long timeoutMillis) {
+	    return this.blocking.await(waiter, timeoutMillis);
+	}
+	
+	private List<String> blockingPop(List<String> keys, boolean fromHead, long timeoutMillis) {
+	    return this.awaitPop(this.popOrBlock(keys, null, fromHead, timeoutMillis > 0), timeoutMillis);
+	}
 	
-	private final Condition waitingCondition = this.reEntrantLock.newCondition();
+	/**
+	 * Set the lists that values handed over to clients of
+	 * <code>BRPOPLPUSH</code> are moved to.
+	 * 
+	 * @param destinations
+	 *            the destination lists
+	 */
+	void setDestinations(DryRedisBlockingKeys.Destinations destinations) {
+	    this.blocking.setDestinations(destinations);
+	}
+	
+	/**
+	 * Count the clients blocked on the given key.
+	 * 
+	 * @param key
+	 *            the key
+	 * 
+	 * @return the number of clients waiting for a push to the key
+	 */
+	int countBlocked(String key) {
+	    return this.blocking.countWaiters(key);
+	}
+	
+	/**
+	 * Set the append only file to log values handed over to blocked clients
+	 * to, as pops from their lists.
+	 * 
+	 * @param aof
+	 *            the append only file, or <code>null</code> to stop logging
+	 */
+	void setAof(DryRedisAof aof) {
+	    this.blocking.setAof(aof);
+	}
 	
 	/* (non-Javadoc)
      * @see com.sangupta.dryredis.cache.impl.DryRedisListOperations#blpop(java.lang.String, int)
      */
 	@Override
     public String blpop(String key, int maxSecondsToBlock) {
-        final long millis = maxSecondsToBlock * 1000l;
-        final long end = System.currentTimeMillis() + millis;
-
-        try {
-            this.reEntrantLock.lockInterruptibly();
-            
-    	    do {
-    		    String result = this.lpop(key);
-    		    if(result != null) {
-    		        return result;
-    		    }
-    		    
-    		    long current = System.currentTimeMillis();
-                if(current > end) {
-                    break;
-                }
-    
-                this.waitingCondition.await(maxSecondsToBlock, TimeUnit.SECONDS);
-    		} while(true);
-    	    
-    	    return null;
-        } catch(InterruptedException e) {
-            return null;
-        } finally {
-            this.reEntrantLock.unlock();
-        }
+	    List<String> result = this.blpop(Arrays.asList(key), maxSecondsToBlock, TimeUnit.SECONDS);
+	    if(result == null) {
+	        return null;
+	    }
+	    
+	    return result.get(1);
+	}
+	
+	/* (non-Javadoc)
+     * @see com.sangupta.dryredis.DryRedisListOperations#blpop(java.util.List, long, java.util.concurrent.TimeUnit)
+     */
+	@Override
+	public List<String> blpop(List<String> keys, long timeout, TimeUnit unit) {
+	    return this.blockingPop(keys, true, unit.toMillis(timeout));
 	}
 	
 	/* (non-Javadoc)
@@ -78,32 +171,20 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public String brpop(String key, int maxSecondsToBlock) {
-	    final long millis = maxSecondsToBlock * 1000l;
-        final long end = System.currentTimeMillis() + millis;
-
-        try {
-            this.reEntrantLock.lockInterruptibly();
-            
-            do {
-                String result = this.rpop(key);
-                if(result != null) {
-                    return result;
-                }
-                
-                long current = System.currentTimeMillis();
-                if(current > end) {
-                    break;
-                }
-    
-                this.waitingCondition.await(maxSecondsToBlock, TimeUnit.SECONDS);
-            } while(true);
-            
-            return null;
-        } catch(InterruptedException e) {
-            return null;
-        } finally {
-            this.reEntrantLock.unlock();
-        }
+	    List<String> result = this.brpop(Arrays.asList(key), maxSecondsToBlock, TimeUnit.SECONDS);
+	    if(result == null) {
+	        return null;
+	    }
+	    
+	    return result.get(1);
+	}
+	
+	/* (non-Javadoc)
+     * @see com.sangupta.dryredis.DryRedisListOperations#brpop(java.util.List, long, java.util.concurrent.TimeUnit)
+     */
+	@Override
+	public List<String> brpop(List<String> keys, long timeout, TimeUnit unit) {
+	    return this.blockingPop(keys, false, unit.toMillis(timeout));
 	}
 	
 	/* (non-Javadoc)
@@ -111,13 +192,22 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public String brpoplpush(String source, String destination, int maxSecondsToBlock) {
-		String value = this.brpop(source, maxSecondsToBlock);
-		if(value == null) {
-		    return null;
-		}
-		
-		this.lpush(destination, value);
-		return value;
+		return this.brpoplpush(source, destination, maxSecondsToBlock, TimeUnit.SECONDS);
+	}
+	
+	/* (non-Javadoc)
+     * @see com.sangupta.dryredis.DryRedisListOperations#brpoplpush(java.lang.String, java.lang.String, long, java.util.concurrent.TimeUnit)
+     */
+	@Override
+	public String brpoplpush(String source, String destination, long timeout, TimeUnit unit) {
+	    List<String> result = this.blockingPop(Arrays.asList(source), false, unit.toMillis(timeout));
+	    if(result == null) {
+	        return null;
+	    }
+	    
+	    String value = result.get(1);
+	    this.lpush(destination, value);
+	    return value;
 	}
 	
 	/* (non-Javadoc)
@@ -125,7 +215,7 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public String lindex(String key, int index) {
-		List<String> list = this.store.get(key);
+		QuickList<String> list = this.store.get(key);
 		if(list == null) {
 			return null;
 		}
@@ -134,7 +224,7 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
 			index = list.size() + index;
 		}
 		
-		if(index >= list.size()) {
+		if(index < 0 || index >= list.size()) {
 		    return null;
 		}
 		
@@ -146,26 +236,31 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public int linsert(String key, DryRedisInsertOrder order, String pivot, String value) {
-		List<String> list = this.store.get(key);
+		QuickList<String> list = this.store.get(key);
 		if(list == null || list.isEmpty()) {
 			return 0;
 		}
 		
-		int size = list.size();
-		for(int index = 0; index < size; index++) {
-			String item = list.get(index);
-			
+		// find the pivot with a single pass over the chunks
+		int index = 0;
+		for(String item : list) {
 			if(item.equals(pivot)) {
-				// insert depending on the order
-				if(order == DryRedisInsertOrder.AFTER) {
-					list.add(index + 1, value);
-					return list.size();
-				}
-				
-				if(order == DryRedisInsertOrder.BEFORE) {
-					list.add(index, value);
-					return list.size();
-				}
+				break;
+			}
+			
+			index++;
+		}
+		
+		if(index < list.size()) {
+			// insert depending on the order
+			if(order == DryRedisInsertOrder.AFTER) {
+				list.add(index + 1, value);
+				return list.size();
+			}
+			
+			if(order == DryRedisInsertOrder.BEFORE) {
+				list.add(index, value);
+				return list.size();
 			}
 		}
 		
@@ -177,7 +272,7 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public int llen(String key) {
-		List<String> list = this.store.get(key);
+		QuickList<String> list = this.store.get(key);
 		if(list == null) {
 			return 0;
 		}
@@ -190,16 +285,12 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public String lpop(String key) {
-		List<String> list = this.store.get(key);
+		QuickList<String> list = this.store.get(key);
 		if(list == null) {
 			return null;
 		}
 		
-		if(list.isEmpty()) {
-			return null;
-		}
-		
-		return list.remove(0);
+		return list.pollFirst();
 	}
 	
 	/* (non-Javadoc)
@@ -207,22 +298,20 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public int lpush(String key, String value) {
+	    this.blocking.lock(key);
 	    try {
-	        this.reEntrantLock.lockInterruptibly();
-	        
-    		List<String> list = this.store.get(key);
+    		QuickList<String> list = this.store.get(key);
     		if(list == null) {
-    			list = new ArrayList<String>();
+    			list = new QuickList<String>();
     			this.store.put(key, list);
     		}
     		
-    		list.add(0, value);
-    		this.waitingCondition.signal();
-    		return list.size();
-	    } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    		list.addFirst(value);
+    		int size = list.size();
+    		this.blocking.serve(key, list);
+    		return size;
         } finally {
-	        this.reEntrantLock.unlock();
+            this.blocking.unlock(key);
 	    }
 	}
 	
@@ -231,25 +320,23 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public int lpush(String key, List<String> values) {
+	    this.blocking.lock(key);
 	    try {
-	        this.reEntrantLock.lockInterruptibly();
-	        
-    		List<String> list = this.store.get(key);
+    		QuickList<String> list = this.store.get(key);
     		if(list == null) {
-    			list = new ArrayList<String>();
+    			list = new QuickList<String>();
     			this.store.put(key, list);
     		}
     		
     		for(String item : values) {
-    			list.add(0, item);
+    			list.addFirst(item);
     		}
     		
-    		this.waitingCondition.signal();
-    		return list.size();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    		int size = list.size();
+    		this.blocking.serve(key, list);
+    		return size;
         } finally {
-            this.reEntrantLock.unlock();
+            this.blocking.unlock(key);
         }
 	}
 	
@@ -258,24 +345,22 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public int lpushx(String key, List<String> values) {
+	    this.blocking.lock(key);
 	    try {
-	        this.reEntrantLock.lockInterruptibly();
-	        
-    		List<String> list = this.store.get(key);
+    		QuickList<String> list = this.store.get(key);
     		if(list == null) {
     			return -1;
     		}
     		
     		for(String item : values) {
-    			list.add(0, item);
+    			list.addFirst(item);
     		}
     		
-    		this.waitingCondition.signal();
-    		return list.size();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    		int size = list.size();
+    		this.blocking.serve(key, list);
+    		return size;
         } finally {
-            this.reEntrantLock.unlock();
+            this.blocking.unlock(key);
         }
 	}
 	
@@ -284,7 +369,7 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public List<String> lrange(String key, int start, int stop) {
-		List<String> list = this.store.get(key);
+		QuickList<String> list = this.store.get(key);
 		if(list == null) {
 			return null;
 		}
@@ -314,8 +399,12 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
 			stop = size;
 		}
 		
-		// return sub list
-		return DryRedisUtils.subList(list, start, stop);
+		if(start >= stop) {
+			return new ArrayList<String>();
+		}
+		
+		// return a copy of the range
+		return list.copy(start, stop);
 	}
 	
 	/* (non-Javadoc)
@@ -323,7 +412,7 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public int lrem(String key, int count, String value) {
-		List<String> list = this.store.get(key);
+		QuickList<String> list = this.store.get(key);
 		if(list == null) {
 			return 0;
 		}
@@ -355,11 +444,11 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
 		// this is the case of moving from tail to head
 		count = 0 - count;
 		int removed = 0;
-		int size = list.size();
-		for(int index = size - 1; index >= 0; index--) {
-			String item = list.get(index);
+		Iterator<String> iterator = list.descendingIterator();
+		while(iterator.hasNext()) {
+			String item = iterator.next();
 			if(item.equals(value)) {
-				list.remove(index);
+				iterator.remove();
 				removed++;
 				
 				if(removed == count) {
@@ -376,7 +465,7 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public String lset(String key, int index, String value) {
-		List<String> list = this.store.get(key);
+		QuickList<String> list = this.store.get(key);
 		if(list == null) {
 			return "OK";
 		}
@@ -401,16 +490,12 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public String rpop(String key) {
-		List<String> list = this.store.get(key);
+		QuickList<String> list = this.store.get(key);
 		if(list == null) {
 			return null;
 		}
 		
-		if(list.isEmpty()) {
-			return null;
-		}
-		
-		return list.remove(list.size() - 1);
+		return list.pollLast();
 	}
 	
 	/* (non-Javadoc)
@@ -419,6 +504,10 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
 	@Override
     public String rpoplpush(String source, String destination) {
 		String value = this.rpop(source);
+		if(value == null) {
+		    return null;
+		}
+		
 		this.lpush(destination, value);
 		return value;
 	}
@@ -428,23 +517,21 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public int rpush(String key, String value) {
+	    this.blocking.lock(key);
 	    try {
-	        this.reEntrantLock.lockInterruptibly();
-	        
-    		List<String> list = this.store.get(key);
+    		QuickList<String> list = this.store.get(key);
     		if(list == null) {
-    			list = new ArrayList<String>();
+    			list = new QuickList<String>();
     			this.store.put(key, list);
     		}
     		
-    		list.add(value);
+    		list.addLast(value);
     		
-    		this.waitingCondition.signal();
-    		return list.size();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    		int size = list.size();
+    		this.blocking.serve(key, list);
+    		return size;
         } finally {
-            this.reEntrantLock.unlock();
+            this.blocking.unlock(key);
         }
 	}
 	
@@ -453,19 +540,15 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public int rpushx(String key, String value) {
+	    this.blocking.lock(key);
 	    try {
-	        this.reEntrantLock.lockInterruptibly();
-	        
     	    if(this.store.containsKey(key)) {
-    	        this.rpush(key, value);	        
+    	        return this.rpush(key, value);
     	    }
     	    
-    	    this.waitingCondition.signal();
-    	    return this.llen(key);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    	    return 0;
         } finally {
-            this.reEntrantLock.unlock();
+            this.blocking.unlock(key);
         }
 	}
 	
@@ -474,25 +557,23 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public int rpush(String key, List<String> value) {
+	    this.blocking.lock(key);
 	    try {
-	        this.reEntrantLock.lockInterruptibly();
-	        
-    		List<String> list = this.store.get(key);
+    		QuickList<String> list = this.store.get(key);
     		if(list == null) {
-    			list = new ArrayList<String>();
+    			list = new QuickList<String>();
     			this.store.put(key, list);
     		}
     		
     		for(String item : value) {
-    			list.add(item);
+    			list.addLast(item);
     		}
     		
-    		this.waitingCondition.signal();
-    		return list.size();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    		int size = list.size();
+    		this.blocking.serve(key, list);
+    		return size;
         } finally {
-            this.reEntrantLock.unlock();
+            this.blocking.unlock(key);
         }
 	}
 	
@@ -501,22 +582,20 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public int lpushx(String key, String value) {
+	    this.blocking.lock(key);
 	    try {
-	        this.reEntrantLock.lockInterruptibly();
-	        
-    		List<String> list = this.store.get(key);
+    		QuickList<String> list = this.store.get(key);
     		if(list == null) {
     			return -1;
     		}
     		
-    		list.add(value);
+    		list.addLast(value);
     		
-    		this.waitingCondition.signal();
-    		return list.size();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    		int size = list.size();
+    		this.blocking.serve(key, list);
+    		return size;
         } finally {
-            this.reEntrantLock.unlock();
+            this.blocking.unlock(key);
         }
 	}
 	
@@ -525,7 +604,7 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
      */
 	@Override
     public String ltrim(String key, int start, int stop) {
-		List<String> list = this.store.get(key);
+		QuickList<String> list = this.store.get(key);
 		if(list == null) {
 			return "OK";
 		}
@@ -556,9 +635,18 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
         if(stop > size) {
             stop = size;
         }
+        
+        if(start < 0) {
+            start = 0;
+        }
 		
-		list = new ArrayList<String>(list.subList(start, stop));
-		this.store.put(key, list);
+        // drops whole chunks outside the range
+        if(start >= stop) {
+            list.clear();
+        } else {
+            list.trim(start, stop);
+        }
+        
 		return "OK";
 	}
 	
@@ -569,4 +657,46 @@ class DryRedisList extends DryRedisAbstractCache<List<String>> implements DryRed
 		return DryRedisCacheType.LIST;
 	}
 
+	@Override
+	protected String getEncoding(QuickList<String> value) {
+		if(value.chunks() > 1) {
+			return "quicklist";
+		}
+		
+		return "listpack";
+	}
+	
+	@Override
+	protected void writeValue(QuickList<String> value, DryRedisEncoder encoder) {
+		encoder.writeVarint(value.size());
+		for(String element : value) {
+			encoder.writeString(element);
+		}
+	}
+	
+	@Override
+	protected QuickList<String> readValue(DryRedisDecoder decoder) {
+		QuickList<String> list = new QuickList<String>();
+		for(int count = decoder.readLength(); count > 0; count--) {
+			list.addLast(decoder.readString());
+		}
+		
+		return list;
+	}
+	
+	@Override
+	void restore(String key, DryRedisDecoder decoder) {
+	    QuickList<String> list = this.readValue(decoder);
+	    
+	    // clients blocked on the key get the values of the restored list
+	    this.blocking.lock(key);
+	    try {
+	        this.keyspace.remove(key);
+	        this.store.put(key, list);
+	        this.blocking.serve(key, list);
+	    } finally {
+	        this.blocking.unlock(key);
+	    }
+	}
+
 }
@@ -22,6 +22,7 @@
 package com.sangupta.dryredis;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.sangupta.dryredis.support.DryRedisInsertOrder;
 
@@ -33,6 +34,48 @@ interface DryRedisListOperations {
 
     String brpoplpush(String source, String destination, int maxSecondsToBlock);
 
+    /**
+     * Pop from the head of the first non-empty list among the given keys,
+     * waiting for a push to any of them up to the given timeout. Clients
+     * blocked on the same key are served in the order they blocked. A timeout
+     * of zero does not wait.
+     * 
+     * @param keys
+     *            the keys to pop from, in order
+     * 
+     * @param timeout
+     *            the maximum time to wait
+     * 
+     * @param unit
+     *            the unit of the timeout
+     * 
+     * @return a list with the key and the value popped, or <code>null</code>
+     *         if the timeout passed
+     */
+    List<String> blpop(List<String> keys, long timeout, TimeUnit unit);
+
+    /**
+     * Pop from the tail of the first non-empty list among the given keys,
+     * waiting for a push to any of them up to the given timeout.
+     * 
+     * @param keys
+     *            the keys to pop from, in order
+     * 
+     * @param timeout
+     *            the maximum time to wait
+     * 
+     * @param unit
+     *            the unit of the timeout
+     * 
+     * @return a list with the key and the value popped, or <code>null</code>
+     *         if the timeout passed
+     * 
+     * @see #blpop(List, long, TimeUnit)
+     */
+    List<String> brpop(List<String> keys, long timeout, TimeUnit unit);
+
+    String brpoplpush(String source, String destination, long timeout, TimeUnit unit);
+
     String lindex(String key, int index);
 
     int linsert(String key, DryRedisInsertOrder order, String pivot, String value);
@@ -21,10 +21,13 @@
 
 package com.sangupta.dryredis;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.sangupta.dryredis.support.DryRedisBitOperation;
 import com.sangupta.dryredis.support.DryRedisCacheType;
@@ -32,6 +35,7 @@ import com.sangupta.dryredis.support.DryRedisGeoUnit;
 import com.sangupta.dryredis.support.DryRedisInsertOrder;
 import com.sangupta.dryredis.support.DryRedisRangeArgument;
 import com.sangupta.dryredis.support.DryRedisSetAggregationType;
+import com.sangupta.dryredis.support.DryRedisSortOrder;
 
 /**
  * Provides a facade to all command operations of a particular group
@@ -44,667 +48,1844 @@ abstract class DryRedisOperationFacade extends DryRedisKeys implements DryRedisG
                                                                      DryRedisHashOperations, DryRedisStringOperations, DryRedisListOperations,
                                                                      DryRedisSetOperations, DryRedisHyperLogLogOperations, DryRedisSortedSetOperations {
 
+    protected DryRedisOperationFacade() {
+        super();
+        this.listCommands.setDestinations(new ListDestinations());
+    }
+    
+    protected DryRedisOperationFacade(boolean concurrent) {
+        super(concurrent);
+        this.listCommands.setDestinations(new ListDestinations());
+    }
+    
+    /**
+     * Moves values handed over to clients of <code>BRPOPLPUSH</code> into
+     * their destination, under the key lock of the destination.
+     */
+    private class ListDestinations implements DryRedisBlockingKeys.Destinations {
+        
+        @Override
+        public boolean tryLock(String key) {
+            if(!tryLockKey(key)) {
+                return false;
+            }
+            
+            DryRedisCacheType type = keyType(key);
+            if(type != null && type != DryRedisCacheType.LIST) {
+                releaseKey(key);
+                return false;
+            }
+            
+            return true;
+        }
+        
+        @Override
+        public void push(String key, String value) {
+            propagate(DryRedisAof.LPUSH, key, Arrays.asList(value));
+            listCommands.lpush(key, value);
+        }
+        
+        @Override
+        public void unlock(String key) {
+            releaseKey(key);
+        }
+        
+    }
+    
+    /**
+     * Check if blocking commands may wait for a value to become available.
+     * When they may not, they behave like their non-blocking counterparts.
+     * 
+     * @return <code>true</code> if blocking is allowed, <code>false</code>
+     *         otherwise
+     */
+    protected boolean canBlock() {
+        return true;
+    }
+    
     // GEO commands follow
 
     public int geoadd(String key, double longitude, double latitude, String member) {
-        matchKeyType(key, DryRedisCacheType.GEO);
-        return this.geoCommands.geoadd(key, latitude, longitude, member);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.GEO);
+            int added = this.geoCommands.geoadd(key, longitude, latitude, member);
+            this.propagate(DryRedisAof.GEOADD, key, longitude, latitude, member);
+            return added;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public String geohash(String key, String member) {
-        matchKeyType(key, DryRedisCacheType.GEO);
-        return this.geoCommands.geohash(key, member);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.GEO);
+            return this.geoCommands.geohash(key, member);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public double[] geopos(String key, String member) {
-        matchKeyType(key, DryRedisCacheType.GEO);
-        return this.geoCommands.geopos(key, member);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.GEO);
+            return this.geoCommands.geopos(key, member);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public Double geodist(String key, String member1, String member2, DryRedisGeoUnit unit) {
-        matchKeyType(key, DryRedisCacheType.GEO);
-        return this.geoCommands.geodist(key, member1, member2, unit);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.GEO);
+            return this.geoCommands.geodist(key, member1, member2, unit);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public List<String> georadius(String key, double longitude, double latitude, double radius, DryRedisGeoUnit unit) {
-        matchKeyType(key, DryRedisCacheType.GEO);
-        return this.geoCommands.georadius(key, latitude, longitude, radius, unit);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.GEO);
+            return this.geoCommands.georadius(key, longitude, latitude, radius, unit);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public List<String> georadius(String key, double longitude, double latitude, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count) {
-        matchKeyType(key, DryRedisCacheType.GEO);
-        return this.geoCommands.georadius(key, latitude, longitude, radius, unit, withCoordinates, withDistance, withHash, count);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.GEO);
+            return this.geoCommands.georadius(key, longitude, latitude, radius, unit, withCoordinates, withDistance, withHash, count);
+        } finally {
+            this.unlockKey(key);
+        }
+    }
+    
+    public List<String> georadius(String key, double longitude, double latitude, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count, DryRedisSortOrder order) {
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.GEO);
+            return this.geoCommands.georadius(key, longitude, latitude, radius, unit, withCoordinates, withDistance, withHash, count, order);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public List<String> georadiusbymember(String key, String member, double radius, DryRedisGeoUnit unit) {
-        matchKeyType(key, DryRedisCacheType.GEO);
-        return this.geoCommands.georadiusbymember(key, member, radius, unit);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.GEO);
+            return this.geoCommands.georadiusbymember(key, member, radius, unit);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public List<String> georadiusbymember(String key, String member, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count) {
-        matchKeyType(key, DryRedisCacheType.GEO);
-        return this.geoCommands.georadiusbymember(key, member, radius, unit, withCoordinates, withDistance, withHash, count);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.GEO);
+            return this.geoCommands.georadiusbymember(key, member, radius, unit, withCoordinates, withDistance, withHash, count);
+        } finally {
+            this.unlockKey(key);
+        }
+    }
+    
+    public List<String> georadiusbymember(String key, String member, double radius, DryRedisGeoUnit unit, boolean withCoordinates, boolean withDistance, boolean withHash, int count, DryRedisSortOrder order) {
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.GEO);
+            return this.geoCommands.georadiusbymember(key, member, radius, unit, withCoordinates, withDistance, withHash, count, order);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     // HASH commands follow
     
     public int hdel(String key, String field) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hdel(key, field);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            int deleted = this.hashCommands.hdel(key, field);
+            if(deleted > 0) {
+                this.propagate(DryRedisAof.HDEL, key, Arrays.asList(field));
+            }
+            
+            return deleted;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int hdel(String key, List<String> fields) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hdel(key, fields);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            int deleted = this.hashCommands.hdel(key, fields);
+            if(deleted > 0) {
+                this.propagate(DryRedisAof.HDEL, key, fields);
+            }
+            
+            return deleted;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int hexists(String key, String field) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hexists(key, field);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            return this.hashCommands.hexists(key, field);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public Object hget(String key, String field) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hget(key, field);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            return this.hashCommands.hget(key, field);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public List<String> hgetall(String key) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hgetall(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            return this.hashCommands.hgetall(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public List<String> hkeys(String key) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hkeys(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            return this.hashCommands.hkeys(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int hlen(String key) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hlen(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            return this.hashCommands.hlen(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int hset(String key, String field, String value) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hset(key, field, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            int result = this.hashCommands.hset(key, field, value);
+            this.propagate(DryRedisAof.HSET, key, field, value);
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int hsetnx(String key, String field, String value) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hsetnx(key, field, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            int result = this.hashCommands.hsetnx(key, field, value);
+            if(result == 1) {
+                this.propagate(DryRedisAof.HSET, key, field, value);
+            }
+            
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int hstrlen(String key, String field) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hstrlen(key, field);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            return this.hashCommands.hstrlen(key, field);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public List<String> hvals(String key) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hvals(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            return this.hashCommands.hvals(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public long hincrby(String key, String field, long increment) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hincrby(key, field, increment);
+        final DryRedisCounters.Counter counter = this.counters.get(key, field);
+        if(counter != null && !this.isAppendOnly()) {
+            Long value = this.incrementCounter(counter, key, field, increment);
+            if(value != null) {
+                return value;
+            }
+        }
+        
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            long value = this.hashCommands.hincrby(key, field, increment);
+            this.propagate(DryRedisAof.HINCRBY, key, field, increment);
+            if(counter != null) {
+                counter.update(value);
+            }
+            
+            return value;
+        } finally {
+            this.unlockKey(key);
+        }
+    }
+    
+    /**
+     * Increment a counter in counter mode without taking the lock of its key.
+     * If the counter leaves counter mode while incrementing, the increments
+     * it still holds are applied under the lock, as they may have been added
+     * after it was drained for the last time. A key that has expired but is
+     * not yet reclaimed is incremented under the lock, which reclaims it.
+     * 
+     * @param counter
+     *            the counter
+     * 
+     * @param key
+     *            the key of the counter
+     * 
+     * @param field
+     *            the field of the hash, or <code>null</code> for a string key
+     * 
+     * @param delta
+     *            the value to add
+     * 
+     * @return the value of the counter, or <code>null</code> if the increment
+     *         was not made and must be made under the lock
+     */
+    private Long incrementCounter(DryRedisCounters.Counter counter, String key, String field, long delta) {
+        if(this.keyspace.isExpired(key)) {
+            return null;
+        }
+        
+        Long value = counter.add(delta);
+        if(value == null || !counter.isClosed()) {
+            return value;
+        }
+        
+        this.lockKey(key);
+        try {
+            this.applyIncrement(key, field, counter.drain());
+            return value;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public double hincrbyfloat(String key, String field, double increment) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hincrbyfloat(key, field, increment);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            double value = this.hashCommands.hincrbyfloat(key, field, increment);
+            
+            // logged as the value stored, so that replaying does not add up rounding errors
+            this.propagate(DryRedisAof.HSET, key, field, String.valueOf(value));
+            return value;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public List<String> hmget(String key, List<String> fields) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hmget(key, fields);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            return this.hashCommands.hmget(key, fields);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public String hmset(String key, Map<String, String> fieldValues) {
-        matchKeyType(key, DryRedisCacheType.HASH);
-        return this.hashCommands.hmset(key, fieldValues);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HASH);
+            String result = this.hashCommands.hmset(key, fieldValues);
+            this.propagate(DryRedisAof.HMSET, key, fieldValues);
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     // HYPERLOGLOG commands
     
     public int pfadd(String key) {
-        matchKeyType(key, DryRedisCacheType.HYPER_LOG_LOG);
-        return this.hyperLogLogCommands.pfadd(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HYPER_LOG_LOG);
+            int changed = this.hyperLogLogCommands.pfadd(key);
+            if(changed == 1) {
+                this.propagate(DryRedisAof.PFADD, key, null);
+            }
+            
+            return changed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int pfadd(String key, String element) {
-        matchKeyType(key, DryRedisCacheType.HYPER_LOG_LOG);
-        return this.hyperLogLogCommands.pfadd(key, element);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HYPER_LOG_LOG);
+            int changed = this.hyperLogLogCommands.pfadd(key, element);
+            if(changed == 1) {
+                this.propagate(DryRedisAof.PFADD, key, Arrays.asList(element));
+            }
+            
+            return changed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
-    public long pfcount(String key) {
-        matchKeyType(key, DryRedisCacheType.HYPER_LOG_LOG);
-        return this.hyperLogLogCommands.pfcount(key);
+    public int pfadd(String key, Collection<String> elements) {
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.HYPER_LOG_LOG);
+            int changed = this.hyperLogLogCommands.pfadd(key, elements);
+            if(changed == 1) {
+                this.propagate(DryRedisAof.PFADD, key, elements);
+            }
+            
+            return changed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
-    public long pfcount(List<String> keys) {
-        for(String key : keys) {
+    public long pfcount(String key) {
+        this.lockKey(key);
+        try {
             matchKeyType(key, DryRedisCacheType.HYPER_LOG_LOG);
+            return this.hyperLogLogCommands.pfcount(key);
+        } finally {
+            this.unlockKey(key);
         }
+    }
+    
+    public long pfcount(List<String> keys) {
+        final int[] stripes = this.lockKeys(keys);
+        try {
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.HYPER_LOG_LOG);
+            }
         
-        return this.hyperLogLogCommands.pfcount(keys);
+            return this.hyperLogLogCommands.pfcount(keys);
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public String pfmerge(String destination, List<String> keys) {
-        for(String key : keys) {
-            matchKeyType(key, DryRedisCacheType.HYPER_LOG_LOG);
-        }
+        final int[] stripes = this.lockKeys(destination, keys);
+        try {
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.HYPER_LOG_LOG);
+            }
 
-        return this.hyperLogLogCommands.pfmerge(destination, keys);
+            String result = this.hyperLogLogCommands.pfmerge(destination, keys);
+            this.propagateState(destination);
+            return result;
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
 
     // LIST commands
     
     public String blpop(String key, int maxSecondsToBlock) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.blpop(key, maxSecondsToBlock);
+        List<String> result = this.blpop(Arrays.asList(key), maxSecondsToBlock, TimeUnit.SECONDS);
+        if(result == null) {
+            return null;
+        }
+        
+        return result.get(1);
+    }
+    
+    public List<String> blpop(List<String> keys, long timeout, TimeUnit unit) {
+        return this.blockingPop(keys, null, true, unit.toMillis(timeout));
     }
     
     public String brpop(String key, int maxSecondsToBlock) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.brpop(key, maxSecondsToBlock);
+        List<String> result = this.brpop(Arrays.asList(key), maxSecondsToBlock, TimeUnit.SECONDS);
+        if(result == null) {
+            return null;
+        }
+        
+        return result.get(1);
+    }
+    
+    public List<String> brpop(List<String> keys, long timeout, TimeUnit unit) {
+        return this.blockingPop(keys, null, false, unit.toMillis(timeout));
     }
     
     public String brpoplpush(String source, String destination, int maxSecondsToBlock) {
-        matchKeyType(source, DryRedisCacheType.LIST);
-        matchKeyType(destination, DryRedisCacheType.LIST);
-        return this.listCommands.brpoplpush(source, destination, maxSecondsToBlock);
+        return this.brpoplpush(source, destination, maxSecondsToBlock, TimeUnit.SECONDS);
+    }
+    
+    public String brpoplpush(String source, String destination, long timeout, TimeUnit unit) {
+        List<String> result = this.blockingPop(Arrays.asList(source), destination, false, unit.toMillis(timeout));
+        if(result == null) {
+            return null;
+        }
+        
+        return result.get(1);
+    }
+    
+    /**
+     * Blocking pop over one or more lists. Key locks are held only while
+     * trying to pop and registering as a waiter, and never while waiting, so
+     * that other threads may push to the lists in the meantime. A push hands
+     * its value over to the oldest waiter of that key directly.
+     * 
+     * A value popped for a destination is pushed to it under the same locks,
+     * either here or by the push that serves the waiter. When that push cannot
+     * take the lock of the destination without waiting, the value stays in
+     * the source, and the pop is tried again.
+     * 
+     * @param keys
+     *            the lists to pop from, in order
+     * 
+     * @param destination
+     *            the list to push the popped value to, may be <code>null</code>
+     * 
+     * @param fromHead
+     *            whether to pop from the head or the tail of the list
+     * 
+     * @param timeoutMillis
+     *            the maximum time to wait for a value, in milliseconds
+     * 
+     * @return the key and the value popped, or <code>null</code> if none was
+     *         available in time
+     */
+    private List<String> blockingPop(List<String> keys, String destination, boolean fromHead, long timeoutMillis) {
+        if(!this.canBlock()) {
+            timeoutMillis = 0;
+        }
+        
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(true) {
+            final DryRedisBlockingKeys.Waiter waiter;
+            final int[] stripes = destination == null ? this.lockKeys(keys) : this.lockKeys(destination, keys);
+            try {
+                for(String key : keys) {
+                    matchKeyType(key, DryRedisCacheType.LIST);
+                }
+                
+                if(destination != null) {
+                    matchKeyType(destination, DryRedisCacheType.LIST);
+                }
+                
+                waiter = this.listCommands.popOrBlock(keys, destination, fromHead, timeoutMillis > 0);
+                if(waiter != null && destination != null && !waiter.isRegistered()) {
+                    // popped right away, so moved while both keys are locked
+                    List<String> result = waiter.result();
+                    this.propagate(DryRedisAof.LPUSH, destination, Arrays.asList(result.get(1)));
+                    this.listCommands.lpush(destination, result.get(1));
+                    return result;
+                }
+            } finally {
+                this.unlockKeys(stripes);
+            }
+            
+            List<String> result = this.listCommands.awaitPop(waiter, timeoutMillis);
+            if(waiter == null || !waiter.shouldRetry()) {
+                return result;
+            }
+            
+            timeoutMillis = Math.max(0, deadline - System.currentTimeMillis());
+        }
     }
     
     public String lindex(String key, int index) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.lindex(key, index);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            return this.listCommands.lindex(key, index);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int linsert(String key, DryRedisInsertOrder order, String pivot, String value) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.linsert(key, order, pivot, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            int result = this.listCommands.linsert(key, order, pivot, value);
+            if(result > 0) {
+                this.propagate(DryRedisAof.LINSERT, key, order == DryRedisInsertOrder.BEFORE, pivot, value);
+            }
+            
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int llen(String key) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.llen(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            return this.listCommands.llen(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public String lpop(String key) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.lpop(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            String value = this.listCommands.lpop(key);
+            if(value != null) {
+                this.propagate(DryRedisAof.LPOP, key);
+            }
+            
+            return value;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int lpush(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.lpush(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            this.propagate(DryRedisAof.LPUSH, key, Arrays.asList(value));
+            return this.listCommands.lpush(key, value);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int lpush(String key, List<String> values) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.lpush(key, values);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            this.propagate(DryRedisAof.LPUSH, key, values);
+            return this.listCommands.lpush(key, values);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int lpushx(String key, List<String> values) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.lpushx(key, values);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            this.propagate(DryRedisAof.LPUSHX, key, values);
+            return this.listCommands.lpushx(key, values);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public List<String> lrange(String key, int start, int stop) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.lrange(key, start, stop);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            return this.listCommands.lrange(key, start, stop);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int lrem(String key, int count, String value) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.lrem(key, count, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            int removed = this.listCommands.lrem(key, count, value);
+            if(removed > 0) {
+                this.propagate(DryRedisAof.LREM, key, count, value);
+            }
+            
+            return removed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public String lset(String key, int index, String value) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.lset(key, index, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            String result = this.listCommands.lset(key, index, value);
+            this.propagate(DryRedisAof.LSET, key, index, value);
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public String ltrim(String key, int start, int stop) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.ltrim(key, start, stop);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            String result = this.listCommands.ltrim(key, start, stop);
+            this.propagate(DryRedisAof.LTRIM, key, start, stop);
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public String rpop(String key) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.rpop(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            String value = this.listCommands.rpop(key);
+            if(value != null) {
+                this.propagate(DryRedisAof.RPOP, key);
+            }
+            
+            return value;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public String rpoplpush(String source, String destination) {
-        matchKeyType(source, DryRedisCacheType.LIST);
-        matchKeyType(destination, DryRedisCacheType.LIST);
-        return this.listCommands.rpoplpush(source, destination);
+        final int[] stripes = this.lockKeys(source, destination);
+        try {
+            matchKeyType(source, DryRedisCacheType.LIST);
+            matchKeyType(destination, DryRedisCacheType.LIST);
+            if(this.isAppendOnly()) {
+                // logged before the push, which may hand the value over to a blocked client
+                String value = this.listCommands.lindex(source, -1);
+                if(value != null) {
+                    this.propagate(DryRedisAof.RPOP, source);
+                    this.propagate(DryRedisAof.LPUSH, destination, Arrays.asList(value));
+                }
+            }
+            
+            return this.listCommands.rpoplpush(source, destination);
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public int rpush(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.rpush(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            this.propagate(DryRedisAof.RPUSH, key, Arrays.asList(value));
+            return this.listCommands.rpush(key, value);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int rpushx(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.rpushx(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            this.propagate(DryRedisAof.RPUSHX, key, Arrays.asList(value));
+            return this.listCommands.rpushx(key, value);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int rpush(String key, List<String> values) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.rpush(key, values);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            this.propagate(DryRedisAof.RPUSH, key, values);
+            return this.listCommands.rpush(key, values);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int lpushx(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.LIST);
-        return this.listCommands.lpushx(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.LIST);
+            this.propagate(DryRedisAof.LPUSHX, key, Arrays.asList(value));
+            return this.listCommands.lpushx(key, value);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     // SET commands
     
     public int sadd(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.sadd(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            int added = this.setCommands.sadd(key, value);
+            if(added > 0) {
+                this.propagate(DryRedisAof.SADD, key, Arrays.asList(value));
+            }
+            
+            return added;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int sadd(String key, List<String> values) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.sadd(key, values);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            int added = this.setCommands.sadd(key, values);
+            if(added > 0) {
+                this.propagate(DryRedisAof.SADD, key, values);
+            }
+            
+            return added;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int scard(String key) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.scard(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            return this.setCommands.scard(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public Set<String> sdiff(String key, String... otherKeys) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.sdiff(key, otherKeys);
+        final int[] stripes = this.lockKeys(key, otherKeys);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            return this.setCommands.sdiff(key, otherKeys);
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public int sdiffstore(String destination, String key, String... otherKeys) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.sdiffstore(destination, key, otherKeys);
+        final int[] stripes = this.lockKeys(destination, key, otherKeys);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            int size = this.setCommands.sdiffstore(destination, key, otherKeys);
+            this.propagateState(destination);
+            return size;
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public Set<String> sinter(String key, String... otherKeys) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.sinter(key, otherKeys);
+        final int[] stripes = this.lockKeys(key, otherKeys);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            return this.setCommands.sinter(key, otherKeys);
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public int sinterstore(String destination, String key, String... otherKeys) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.sinterstore(destination, key, otherKeys);
+        final int[] stripes = this.lockKeys(destination, key, otherKeys);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            int size = this.setCommands.sinterstore(destination, key, otherKeys);
+            this.propagateState(destination);
+            return size;
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public int sismember(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.sismember(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            return this.setCommands.sismember(key, value);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public Set<String> smembers(String key) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.smembers(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            return this.setCommands.smembers(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int smove(String source, String destination, String value) {
-        matchKeyType(source, DryRedisCacheType.SET);
-        matchKeyType(destination, DryRedisCacheType.SET);
-        return this.setCommands.smove(source, destination, value);
+        final int[] stripes = this.lockKeys(source, destination);
+        try {
+            matchKeyType(source, DryRedisCacheType.SET);
+            matchKeyType(destination, DryRedisCacheType.SET);
+            int moved = this.setCommands.smove(source, destination, value);
+            if(moved == 1) {
+                this.propagate(DryRedisAof.SREM, source, Arrays.asList(value));
+                this.propagate(DryRedisAof.SADD, destination, Arrays.asList(value));
+            }
+            
+            return moved;
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public String spop(String key) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.spop(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            String value = this.setCommands.spop(key);
+            if(value != null) {
+                this.propagate(DryRedisAof.SREM, key, Arrays.asList(value));
+            }
+            
+            return value;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public List<String> spop(String key, int count) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.spop(key, count);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            List<String> values = this.setCommands.spop(key, count);
+            if(values != null && !values.isEmpty()) {
+                this.propagate(DryRedisAof.SREM, key, values);
+            }
+            
+            return values;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     @Override
     public String srandmember(String key) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.srandmember(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            return this.setCommands.srandmember(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public List<String> srandmember(String key, int count) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.srandmember(key, count);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            return this.setCommands.srandmember(key, count);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int srem(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.srem(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            int removed = this.setCommands.srem(key, value);
+            if(removed > 0) {
+                this.propagate(DryRedisAof.SREM, key, Arrays.asList(value));
+            }
+            
+            return removed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int srem(String key, List<String> values) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.srem(key, values);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            int removed = this.setCommands.srem(key, values);
+            if(removed > 0) {
+                this.propagate(DryRedisAof.SREM, key, values);
+            }
+            
+            return removed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public Set<String> sunion(String key, String... otherKeys) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.sunion(key, otherKeys);
+        final int[] stripes = this.lockKeys(key, otherKeys);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            return this.setCommands.sunion(key, otherKeys);
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public int sunionstore(String destination, String key, String... otherKeys) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.sunionstore(destination, key, otherKeys);
+        final int[] stripes = this.lockKeys(destination, key, otherKeys);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            int size = this.setCommands.sunionstore(destination, key, otherKeys);
+            this.propagateState(destination);
+            return size;
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public List<String> sscan(String key, int cursor) {
-        matchKeyType(key, DryRedisCacheType.SET);
-        return this.setCommands.sscan(key, cursor);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SET);
+            return this.setCommands.sscan(key, cursor);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     // SORTED-SET commands
     
     public int zadd(String key, double score, String member) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zadd(key, score, member);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            int added = this.sortedSetCommands.zadd(key, score, member);
+            this.propagate(DryRedisAof.ZADD, key, score, member);
+            return added;
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public long zcard(String key) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zcard(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zcard(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public long zcount(String key, double min, double max) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zcount(key, min, max);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zcount(key, min, max);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public double zincrby(String key, double increment, String member) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zincrby(key, increment, member);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            double score = this.sortedSetCommands.zincrby(key, increment, member);
+            this.propagate(DryRedisAof.ZINCRBY, key, increment, member);
+            return score;
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public Integer zrank(String key, String member) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zrank(key, member);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrank(key, member);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public Integer zrevrank(String key, String member) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zrevrank(key, member);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrevrank(key, member);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public int zrem(String key, String member) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zrem(key, member);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            int removed = this.sortedSetCommands.zrem(key, member);
+            if(removed > 0) {
+                this.propagate(DryRedisAof.ZREM, key, Arrays.asList(member));
+            }
+            
+            return removed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public int zrem(String key, Set<String> members) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zrem(key, members);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            int removed = this.sortedSetCommands.zrem(key, members);
+            if(removed > 0) {
+                this.propagate(DryRedisAof.ZREM, key, members);
+            }
+            
+            return removed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public Double zscore(String key, String member) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zscore(key, member);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zscore(key, member);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public List<String> zrange(String key, int start, int stop, boolean withScores) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zrange(key, start, stop, withScores);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrange(key, start, stop, withScores);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public List<String> zrangebylex(String key, String min, String max) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zrangebylex(key, min, max);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrangebylex(key, min, max);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public List<String> zrangebylex(String key, DryRedisRangeArgument min, DryRedisRangeArgument max) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zrangebylex(key, min, max);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrangebylex(key, min, max);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public List<String> zrevrangebylex(String key, String min, String max) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zrevrangebylex(key, min, max);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrevrangebylex(key, min, max);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public List<String> zrevrangebylex(String key, DryRedisRangeArgument max, DryRedisRangeArgument min) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zrevrangebylex(key, max, min);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrevrangebylex(key, max, min);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public int zlexcount(String key, String min, String max) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zlexcount(key, min, max);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zlexcount(key, min, max);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int zlexcount(String key, DryRedisRangeArgument min, DryRedisRangeArgument max) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zlexcount(key, min, max);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zlexcount(key, min, max);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public int zremrangebylex(String key, String min, String max) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zremrangebylex(key, min, max);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            int removed = this.sortedSetCommands.zremrangebylex(key, min, max);
+            if(removed > 0) {
+                this.propagate(DryRedisAof.ZREMRANGEBYLEX, key, min, max);
+            }
+            
+            return removed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public int zremrangebylex(String key, DryRedisRangeArgument min, DryRedisRangeArgument max) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zremrangebylex(key, min, max);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            int removed = this.sortedSetCommands.zremrangebylex(key, min, max);
+            if(removed > 0) {
+                this.propagate(DryRedisAof.ZREMRANGEBYLEX, key, min, max);
+            }
+            
+            return removed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public int zremrangebyrank(String key, int start, int stop) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zremrangebyrank(key, start, stop);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            int removed = this.sortedSetCommands.zremrangebyrank(key, start, stop);
+            if(removed > 0) {
+                this.propagate(DryRedisAof.ZREMRANGEBYRANK, key, start, stop);
+            }
+            
+            return removed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public int zremrangebyscore(String key, DryRedisRangeArgument min, DryRedisRangeArgument max) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zremrangebyscore(key, min, max);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            int removed = this.sortedSetCommands.zremrangebyscore(key, min, max);
+            if(removed > 0) {
+                this.propagate(DryRedisAof.ZREMRANGEBYSCORE, key, min, max);
+            }
+            
+            return removed;
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
-    public List<String> zrevrange(String key, int start, int stop, boolean withScores) {
-        matchKeyType(key, DryRedisCacheType.SORTED_SET);
-        return this.sortedSetCommands.zrevrange(key, start, stop, withScores);
+    public List<String> zrangebyscore(String key, DryRedisRangeArgument min, DryRedisRangeArgument max, boolean withScores) {
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrangebyscore(key, min, max, withScores);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
-    public int zinterstore(String destination, List<String> keys) {
-        if(keys == null) {
-            return 0;
+    public List<String> zrangebyscore(String key, DryRedisRangeArgument min, DryRedisRangeArgument max, boolean withScores, int offset, int count) {
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrangebyscore(key, min, max, withScores, offset, count);
+        } finally {
+            this.unlockKey(key);
         }
-        
-        for(String key : keys) {
+    }
+
+    public List<String> zrevrangebyscore(String key, DryRedisRangeArgument max, DryRedisRangeArgument min, boolean withScores) {
+        this.lockKey(key);
+        try {
             matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrevrangebyscore(key, max, min, withScores);
+        } finally {
+            this.unlockKey(key);
         }
-        
-        return this.sortedSetCommands.zinterstore(destination, keys);
     }
 
-    public int zinterstore(String destination, List<String> keys, double[] weights, DryRedisSetAggregationType aggregation) {
-        if(keys == null) {
-            return 0;
+    public List<String> zrevrangebyscore(String key, DryRedisRangeArgument max, DryRedisRangeArgument min, boolean withScores, int offset, int count) {
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrevrangebyscore(key, max, min, withScores, offset, count);
+        } finally {
+            this.unlockKey(key);
         }
-        
-        for(String key : keys) {
+    }
+
+    public List<String> zrevrange(String key, int start, int stop, boolean withScores) {
+        this.lockKey(key);
+        try {
             matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            return this.sortedSetCommands.zrevrange(key, start, stop, withScores);
+        } finally {
+            this.unlockKey(key);
         }
+    }
+
+    public int zinterstore(String destination, List<String> keys) {
+        final int[] stripes = this.lockKeys(destination, keys);
+        try {
+            if(keys == null) {
+                return 0;
+            }
+        
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            }
+        
+            int size = this.sortedSetCommands.zinterstore(destination, keys);
+            this.propagateState(destination);
+            return size;
+        } finally {
+            this.unlockKeys(stripes);
+        }
+    }
+
+    public int zinterstore(String destination, List<String> keys, double[] weights, DryRedisSetAggregationType aggregation) {
+        final int[] stripes = this.lockKeys(destination, keys);
+        try {
+            if(keys == null) {
+                return 0;
+            }
+        
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            }
         
-        return this.sortedSetCommands.zinterstore(destination, keys, weights, aggregation);
+            int size = this.sortedSetCommands.zinterstore(destination, keys, weights, aggregation);
+            this.propagateState(destination);
+            return size;
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
 
     public int zunionstore(String destination, List<String> keys) {
-        if(keys == null) {
-            return 0;
+        final int[] stripes = this.lockKeys(destination, keys);
+        try {
+            if(keys == null) {
+                return 0;
+            }
+        
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            }
+
+            int size = this.sortedSetCommands.zunionstore(destination, keys);
+            this.propagateState(destination);
+            return size;
+        } finally {
+            this.unlockKeys(stripes);
         }
+    }
+
+    public int zunionstore(String destination, List<String> keys, double[] weights, DryRedisSetAggregationType aggregation) {
+        final int[] stripes = this.lockKeys(destination, keys);
+        try {
+            if(keys == null) {
+                return 0;
+            }
         
-        for(String key : keys) {
-            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            }
+
+            int size = this.sortedSetCommands.zunionstore(destination, keys, weights, aggregation);
+            this.propagateState(destination);
+            return size;
+        } finally {
+            this.unlockKeys(stripes);
         }
+    }
+
+    public List<String> zinter(List<String> keys, boolean withScores) {
+        final int[] stripes = this.lockKeys(keys);
+        try {
+            if(keys == null) {
+                return new ArrayList<String>();
+            }
+        
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            }
 
-        return this.sortedSetCommands.zunionstore(destination, keys);
+            return this.sortedSetCommands.zinter(keys, withScores);
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
 
-    public int zunionstore(String destination, List<String> keys, double[] weights, DryRedisSetAggregationType aggregation) {
-        if(keys == null) {
-            return 0;
+    public List<String> zinter(List<String> keys, double[] weights, DryRedisSetAggregationType aggregation, boolean withScores) {
+        final int[] stripes = this.lockKeys(keys);
+        try {
+            if(keys == null) {
+                return new ArrayList<String>();
+            }
+        
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            }
+
+            return this.sortedSetCommands.zinter(keys, weights, aggregation, withScores);
+        } finally {
+            this.unlockKeys(stripes);
         }
+    }
+
+    public List<String> zunion(List<String> keys, boolean withScores) {
+        final int[] stripes = this.lockKeys(keys);
+        try {
+            if(keys == null) {
+                return new ArrayList<String>();
+            }
         
-        for(String key : keys) {
-            matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            }
+
+            return this.sortedSetCommands.zunion(keys, withScores);
+        } finally {
+            this.unlockKeys(stripes);
         }
+    }
+
+    public List<String> zunion(List<String> keys, double[] weights, DryRedisSetAggregationType aggregation, boolean withScores) {
+        final int[] stripes = this.lockKeys(keys);
+        try {
+            if(keys == null) {
+                return new ArrayList<String>();
+            }
+        
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            }
 
-        return this.sortedSetCommands.zunionstore(destination, keys, weights, aggregation);
+            return this.sortedSetCommands.zunion(keys, weights, aggregation, withScores);
+        } finally {
+            this.unlockKeys(stripes);
+        }
+    }
+
+    public List<String> zdiff(List<String> keys, boolean withScores) {
+        final int[] stripes = this.lockKeys(keys);
+        try {
+            if(keys == null) {
+                return new ArrayList<String>();
+            }
+        
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.SORTED_SET);
+            }
+
+            return this.sortedSetCommands.zdiff(keys, withScores);
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     // STRING commands
 
     @Override
     public String mset(Map<String, String> values) {
-        return this.stringCommands.mset(values);
+        final int[] stripes = this.lockKeys(values == null ? null : values.keySet());
+        try {
+            String result = this.stringCommands.mset(values);
+            this.propagateMset(values);
+            return result;
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
 
     @Override
     public int msetnx(Map<String, String> values) {
-        return this.stringCommands.msetnx(values);
+        final int[] stripes = this.lockKeys(values == null ? null : values.keySet());
+        try {
+            int result = this.stringCommands.msetnx(values);
+            if(result == 1) {
+                this.propagateMset(values);
+            }
+            
+            return result;
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
 
     @Override
     public String setex(String key, long secondsToExpire, String value) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.setex(key, secondsToExpire, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            String result = this.stringCommands.setex(key, secondsToExpire, value);
+            this.propagate(DryRedisAof.SET, key, value);
+            this.propagateExpiry(key);
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     @Override
     public String psetex(String key, long milliSecondsToExpire, String value) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.psetex(key, milliSecondsToExpire, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            String result = this.stringCommands.psetex(key, milliSecondsToExpire, value);
+            this.propagate(DryRedisAof.SET, key, value);
+            this.propagateExpiry(key);
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int append(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.append(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            int length = this.stringCommands.append(key, value);
+            this.propagate(DryRedisAof.APPEND, key, value);
+            return length;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public long incr(String key) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.incr(key);
+        return this.incrby(key, 1);
     }
     
     public long incrby(String key, long delta) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.incrby(key, delta);
+        final DryRedisCounters.Counter counter = this.counters.get(key);
+        if(counter != null && !this.isAppendOnly()) {
+            Long value = this.incrementCounter(counter, key, null, delta);
+            if(value != null) {
+                return value;
+            }
+        }
+        
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            long value = this.stringCommands.incrby(key, delta);
+            this.propagate(DryRedisAof.INCRBY, key, delta);
+            if(counter != null) {
+                counter.update(value);
+            }
+            
+            return value;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public double incrbyfloat(String key, double delta) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.incrbyfloat(key, delta);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            double value = this.stringCommands.incrbyfloat(key, delta);
+            
+            // logged as the value stored, so that replaying does not add up rounding errors
+            this.propagate(DryRedisAof.SET, key, this.stringCommands.getBytes(key));
+            return value;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public List<String> mget(String[] keys) {
-        if(keys == null) {
-            return null;
-        }
+        final int[] stripes = this.lockKeys(keys);
+        try {
+            if(keys == null) {
+                return null;
+            }
         
-        for(String key : keys) {
-            matchKeyType(key, DryRedisCacheType.STRING);
-        }
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.STRING);
+            }
         
-        return this.stringCommands.mget(keys);
+            return this.stringCommands.mget(keys);
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public List<String> mget(Collection<String> keys) {
-        if(keys == null) {
-            return null;
-        }
+        final int[] stripes = this.lockKeys(keys);
+        try {
+            if(keys == null) {
+                return null;
+            }
         
-        for(String key : keys) {
-            matchKeyType(key, DryRedisCacheType.STRING);
-        }
+            for(String key : keys) {
+                matchKeyType(key, DryRedisCacheType.STRING);
+            }
         
-        return this.stringCommands.mget(keys);
+            return this.stringCommands.mget(keys);
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public String set(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.set(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            String result = this.stringCommands.set(key, value);
+            this.propagate(DryRedisAof.SET, key, value);
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
+    }
+
+    public String set(String key, byte[] value) {
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            String result = this.stringCommands.set(key, value);
+            this.propagate(DryRedisAof.SET, key, value);
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public String setnx(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.setnx(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            String result = this.stringCommands.setnx(key, value);
+            if(result != null) {
+                this.propagate(DryRedisAof.SET, key, value);
+            }
+            
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public String setxx(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.setxx(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            String result = this.stringCommands.setxx(key, value);
+            if(result != null) {
+                this.propagate(DryRedisAof.SET, key, value);
+            }
+            
+            return result;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public String getrange(String key, int start, int end) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.getrange(key, start, end);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            return this.stringCommands.getrange(key, start, end);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int setrange(String key, int offset, String value) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.setrange(key, offset, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            int length = this.stringCommands.setrange(key, offset, value);
+            this.propagate(DryRedisAof.SETRANGE, key, offset, value);
+            return length;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public long bitcount(String key, int start, int end) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.bitcount(key, start, end);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            return this.stringCommands.bitcount(key, start, end);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public long decr(String key) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.decr(key);
+        return this.incrby(key, -1);
     }
     
     public long decrby(String key, long delta) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.decrby(key, delta);
+        return this.incrby(key, -delta);
     }
     
     public String get(String key) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.get(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            return this.stringCommands.get(key);
+        } finally {
+            this.unlockKey(key);
+        }
+    }
+
+    public byte[] getBytes(String key) {
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            return this.stringCommands.getBytes(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int strlen(String key) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.strlen(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            return this.stringCommands.strlen(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public String getset(String key, String value) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.getset(key, value);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            String old = this.stringCommands.getset(key, value);
+            this.propagate(DryRedisAof.SET, key, value);
+            return old;
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public long bitcount(String key) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.bitcount(key);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            return this.stringCommands.bitcount(key);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int bitop(DryRedisBitOperation operation, String destinationKey, String sourceKey, String... otherKeys) {
-        matchKeyType(sourceKey, DryRedisCacheType.STRING);
-        return this.stringCommands.bitop(operation, destinationKey, sourceKey, otherKeys);
+        final int[] stripes = this.lockKeys(destinationKey, sourceKey, otherKeys);
+        try {
+            matchKeyType(sourceKey, DryRedisCacheType.STRING);
+            if(otherKeys != null) {
+                for(String key : otherKeys) {
+                    matchKeyType(key, DryRedisCacheType.STRING);
+                }
+            }
+            
+            int length = this.stringCommands.bitop(operation, destinationKey, sourceKey, otherKeys);
+            this.propagateState(destinationKey);
+            return length;
+        } finally {
+            this.unlockKeys(stripes);
+        }
     }
     
     public int bitpos(String key, boolean onOrOff) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.bitpos(key, onOrOff);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            return this.stringCommands.bitpos(key, onOrOff);
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
     public int bitpos(String key, boolean onOrOff, int startByte, int endByte) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.bitpos(key, onOrOff, startByte, endByte);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            return this.stringCommands.bitpos(key, onOrOff, startByte, endByte);
+        } finally {
+            this.unlockKey(key);
+        }
     }
     
     public int getbit(String key, long offset) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.getbit(key, offset);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            return this.stringCommands.getbit(key, offset);
+        } finally {
+            this.unlockKey(key);
+        }
     }
  
     public int setbit(String key, long offset, boolean onOrOff) {
-        matchKeyType(key, DryRedisCacheType.STRING);
-        return this.stringCommands.setbit(key, offset, onOrOff);
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            int old = this.stringCommands.setbit(key, offset, onOrOff);
+            this.propagate(DryRedisAof.SETBIT, key, offset, onOrOff);
+            return old;
+        } finally {
+            this.unlockKey(key);
+        }
+    }
+    
+    public List<Long> bitfield(String key, String... arguments) {
+        this.lockKey(key);
+        try {
+            matchKeyType(key, DryRedisCacheType.STRING);
+            List<Long> results = this.stringCommands.bitfield(key, arguments);
+            if(this.isAppendOnly() && DryRedisString.isBitfieldWrite(arguments)) {
+                this.propagate(DryRedisAof.BITFIELD, key, arguments);
+            }
+            
+            return results;
+        } finally {
+            this.unlockKey(key);
+        }
     }
 
 }
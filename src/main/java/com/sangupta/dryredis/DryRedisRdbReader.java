@@ -0,0 +1,1220 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sangupta.dryredis.ds.Crc64;
+import com.sangupta.dryredis.ds.DynamicString;
+import com.sangupta.dryredis.ds.ElementWithPriority;
+import com.sangupta.dryredis.ds.HyperLogLog;
+import com.sangupta.dryredis.ds.QuickList;
+import com.sangupta.dryredis.ds.SortedSetWithPriority;
+import com.sangupta.dryredis.support.DryRedisCache;
+import com.sangupta.dryredis.support.DryRedisCacheType;
+
+/**
+ * Reads the RDB files written by Redis, up to RDB version 12, and decodes the
+ * keys of one database right into the values used by the {@link DryRedisCache}
+ * implementations.
+ * 
+ * The file is mapped into memory a window at a time, and is read in a single
+ * pass: the compact encodings of Redis - ziplists, listpacks, intsets and
+ * zipmaps - are decoded from the mapped bytes without copying them first, so
+ * that only the decoded values take up heap. The CRC-64 at the end of the file
+ * is computed along the way, over the mapped bytes as well.
+ * 
+ * Strings, lists, sets, hashes and sorted sets are read in all the encodings
+ * Redis ever used. A string holding a HyperLogLog becomes a HyperLogLog key.
+ * Geo keys are sorted sets in Redis, and are read as such. Streams, module
+ * values and hashes with field expiry cannot be read, and fail the whole file.
+ * 
+ * @author sangupta
+ *
+ */
+class DryRedisRdbReader {
+    
+    /**
+     * The latest RDB version that can be read
+     */
+    static final int MAX_VERSION = 12;
+    
+    /**
+     * The largest part of the file that is mapped at once
+     */
+    private static final int WINDOW_SIZE = 1 << 26;
+    
+    /**
+     * Number of keys in each section handed back
+     */
+    private static final int SECTION_KEYS = 1024;
+    
+    private static final byte[] MAGIC = { 'R', 'E', 'D', 'I', 'S' };
+    
+    // opcodes
+    
+    private static final int OPCODE_SLOT_INFO = 244;
+    
+    private static final int OPCODE_FUNCTION2 = 245;
+    
+    private static final int OPCODE_FUNCTION_PRE_GA = 246;
+    
+    private static final int OPCODE_MODULE_AUX = 247;
+    
+    private static final int OPCODE_IDLE = 248;
+    
+    private static final int OPCODE_FREQ = 249;
+    
+    private static final int OPCODE_AUX = 250;
+    
+    private static final int OPCODE_RESIZEDB = 251;
+    
+    private static final int OPCODE_EXPIRETIME_MS = 252;
+    
+    private static final int OPCODE_EXPIRETIME = 253;
+    
+    private static final int OPCODE_SELECTDB = 254;
+    
+    private static final int OPCODE_EOF = 255;
+    
+    // value types
+    
+    private static final int TYPE_STRING = 0;
+    
+    private static final int TYPE_LIST = 1;
+    
+    private static final int TYPE_SET = 2;
+    
+    private static final int TYPE_ZSET = 3;
+    
+    private static final int TYPE_HASH = 4;
+    
+    private static final int TYPE_ZSET_2 = 5;
+    
+    private static final int TYPE_HASH_ZIPMAP = 9;
+    
+    private static final int TYPE_LIST_ZIPLIST = 10;
+    
+    private static final int TYPE_SET_INTSET = 11;
+    
+    private static final int TYPE_ZSET_ZIPLIST = 12;
+    
+    private static final int TYPE_HASH_ZIPLIST = 13;
+    
+    private static final int TYPE_LIST_QUICKLIST = 14;
+    
+    private static final int TYPE_HASH_LISTPACK = 16;
+    
+    private static final int TYPE_ZSET_LISTPACK = 17;
+    
+    private static final int TYPE_LIST_QUICKLIST_2 = 18;
+    
+    private static final int TYPE_SET_LISTPACK = 20;
+    
+    // special string encodings
+    
+    private static final int ENCODING_INT8 = 0;
+    
+    private static final int ENCODING_INT16 = 1;
+    
+    private static final int ENCODING_INT32 = 2;
+    
+    private static final int ENCODING_LZF = 3;
+    
+    // containers of quicklist nodes
+    
+    private static final int QUICKLIST_NODE_PLAIN = 1;
+    
+    private static final int QUICKLIST_NODE_PACKED = 2;
+    
+    // opcodes of module data
+    
+    private static final int MODULE_OPCODE_EOF = 0;
+    
+    private static final int MODULE_OPCODE_SINT = 1;
+    
+    private static final int MODULE_OPCODE_UINT = 2;
+    
+    private static final int MODULE_OPCODE_FLOAT = 3;
+    
+    private static final int MODULE_OPCODE_DOUBLE = 4;
+    
+    private static final int MODULE_OPCODE_STRING = 5;
+    
+    private final FileChannel channel;
+    
+    private final long size;
+    
+    private final DryRedisSet sets;
+    
+    private final DryRedisHash hashes;
+    
+    private final DryRedisSortedSet sortedSets;
+    
+    /**
+     * The mapped window of the file
+     */
+    private ByteBuffer window;
+    
+    private long windowStart;
+    
+    private long windowEnd;
+    
+    /**
+     * The offset in the file of the next byte to read
+     */
+    private long position;
+    
+    /**
+     * The checksum of the bytes before {@link #checked}
+     */
+    private long checksum;
+    
+    private long checked;
+    
+    /**
+     * The value of the last string read by {@link #readStringBytes()} that
+     * was stored as an integer
+     */
+    private long lastInteger;
+    
+    /**
+     * The sections filled so far, by type
+     */
+    private final Map<DryRedisCacheType, DryRedisSnapshot.LoadedSection> open = new EnumMap<DryRedisCacheType, DryRedisSnapshot.LoadedSection>(DryRedisCacheType.class);
+    
+    private final Map<DryRedisCacheType, Integer> openCounts = new EnumMap<DryRedisCacheType, Integer>(DryRedisCacheType.class);
+    
+    private final List<DryRedisSnapshot.LoadedSection> sections = new ArrayList<DryRedisSnapshot.LoadedSection>();
+    
+    private DryRedisRdbReader(FileChannel channel, Map<DryRedisCacheType, DryRedisCache> caches) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.sets = (DryRedisSet) caches.get(DryRedisCacheType.SET);
+        this.hashes = (DryRedisHash) caches.get(DryRedisCacheType.HASH);
+        this.sortedSets = (DryRedisSortedSet) caches.get(DryRedisCacheType.SORTED_SET);
+    }
+    
+    /**
+     * Read the keys of one database from an RDB file. Keys that have expired
+     * are left out.
+     * 
+     * @param file
+     *            the file to read
+     * 
+     * @param database
+     *            the number of the database whose keys are read
+     * 
+     * @param caches
+     *            the caches the values are created for, by type
+     * 
+     * @return the keys read, in sections of one type each
+     * 
+     * @throws IOException
+     *             if the file cannot be read, is not a valid RDB file, or
+     *             holds values that cannot be read
+     */
+    static List<DryRedisSnapshot.LoadedSection> read(File file, int database, Map<DryRedisCacheType, DryRedisCache> caches) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        DryRedisRdbReader reader = null;
+        try {
+            reader = new DryRedisRdbReader(input.getChannel(), caches);
+            return reader.read(database);
+        } catch(RuntimeException e) {
+            // malformed compact encodings run past their bounds
+            throw new IOException("Bad RDB file at offset " + (reader == null ? 0 : reader.position) + ": " + e.getMessage(), e);
+        } finally {
+            input.close();
+        }
+    }
+    
+    private List<DryRedisSnapshot.LoadedSection> read(int database) throws IOException {
+        this.ensure(MAGIC.length + 4);
+        for(int index = 0; index < MAGIC.length; index++) {
+            if(this.window.get(index) != MAGIC[index]) {
+                throw new IOException("Not an RDB file");
+            }
+        }
+        
+        int version = 0;
+        for(int index = MAGIC.length; index < MAGIC.length + 4; index++) {
+            int digit = this.window.get(index) - '0';
+            if(digit < 0 || digit > 9) {
+                throw new IOException("Not an RDB file: bad version");
+            }
+            
+            version = version * 10 + digit;
+        }
+        
+        if(version < 1 || version > MAX_VERSION) {
+            throw new IOException("Unsupported RDB version " + version);
+        }
+        
+        this.position = MAGIC.length + 4;
+        
+        final long now = System.currentTimeMillis();
+        long db = 0;
+        long expiry = DryRedisKeyspace.NO_EXPIRY;
+        while(true) {
+            int type = this.readUnsignedByte();
+            switch(type) {
+                case OPCODE_EOF:
+                    this.verifyChecksum(version);
+                    this.closeSections();
+                    return this.sections;
+                    
+                case OPCODE_SELECTDB:
+                    db = this.readLength();
+                    continue;
+                    
+                case OPCODE_EXPIRETIME:
+                    expiry = this.readInt() * 1000l;
+                    continue;
+                    
+                case OPCODE_EXPIRETIME_MS:
+                    expiry = this.readLong();
+                    continue;
+                    
+                case OPCODE_RESIZEDB:
+                    this.readLength();
+                    this.readLength();
+                    continue;
+                    
+                case OPCODE_AUX:
+                    this.skipString();
+                    this.skipString();
+                    continue;
+                    
+                case OPCODE_FREQ:
+                    this.readUnsignedByte();
+                    continue;
+                    
+                case OPCODE_IDLE:
+                    this.readLength();
+                    continue;
+                    
+                case OPCODE_MODULE_AUX:
+                    this.skipModuleAux();
+                    continue;
+                    
+                case OPCODE_FUNCTION2:
+                    this.skipString();
+                    continue;
+                    
+                case OPCODE_SLOT_INFO:
+                    this.readLength();
+                    this.readLength();
+                    this.readLength();
+                    continue;
+                    
+                case OPCODE_FUNCTION_PRE_GA:
+                    throw new IOException("Unsupported RDB file: functions of a pre-release version");
+            }
+            
+            String key = this.readString();
+            if(db == database && (expiry == DryRedisKeyspace.NO_EXPIRY || expiry > now)) {
+                this.readValue(type, key, expiry);
+            } else {
+                this.skipValue(type, key);
+            }
+            
+            expiry = DryRedisKeyspace.NO_EXPIRY;
+        }
+    }
+    
+    // values
+    
+    private void readValue(int type, String key, long expiry) throws IOException {
+        switch(type) {
+            case TYPE_STRING: {
+                byte[] bytes = this.readStringBytes();
+                if(bytes == null) {
+                    this.add(key, DryRedisCacheType.STRING, DynamicString.valueOf(this.lastInteger), expiry);
+                    return;
+                }
+                
+                HyperLogLog hll = toHyperLogLog(bytes);
+                if(hll != null) {
+                    this.add(key, DryRedisCacheType.HYPER_LOG_LOG, hll, expiry);
+                } else {
+                    this.add(key, DryRedisCacheType.STRING, DynamicString.wrap(bytes), expiry);
+                }
+                
+                return;
+            }
+            
+            case TYPE_LIST: {
+                QuickList<String> list = new QuickList<String>();
+                for(long count = this.readLength(); count > 0; count--) {
+                    list.addLast(this.readString());
+                }
+                
+                this.add(key, DryRedisCacheType.LIST, list, expiry);
+                return;
+            }
+            
+            case TYPE_LIST_ZIPLIST:
+            case TYPE_LIST_QUICKLIST:
+            case TYPE_LIST_QUICKLIST_2: {
+                QuickList<String> list = new QuickList<String>();
+                long nodes = type == TYPE_LIST_ZIPLIST ? 1 : this.readLength();
+                for( ; nodes > 0; nodes--) {
+                    if(type == TYPE_LIST_QUICKLIST_2) {
+                        long container = this.readLength();
+                        if(container == QUICKLIST_NODE_PLAIN) {
+                            list.addLast(this.readString());
+                            continue;
+                        }
+                        
+                        if(container != QUICKLIST_NODE_PACKED) {
+                            throw new IOException("Bad RDB file: unknown quicklist container " + container + " of key " + key);
+                        }
+                        
+                        list.addAll(listpack(this.readBlob()));
+                    } else {
+                        list.addAll(ziplist(this.readBlob()));
+                    }
+                }
+                
+                this.add(key, DryRedisCacheType.LIST, list, expiry);
+                return;
+            }
+            
+            case TYPE_SET: {
+                Set<String> set = this.sets.newSet();
+                for(long count = this.readLength(); count > 0; count--) {
+                    set.add(this.readString());
+                }
+                
+                this.add(key, DryRedisCacheType.SET, set, expiry);
+                return;
+            }
+            
+            case TYPE_SET_INTSET:
+            case TYPE_SET_LISTPACK: {
+                Set<String> set = this.sets.newSet();
+                set.addAll(type == TYPE_SET_INTSET ? intset(this.readBlob()) : listpack(this.readBlob()));
+                this.add(key, DryRedisCacheType.SET, set, expiry);
+                return;
+            }
+            
+            case TYPE_HASH: {
+                Map<String, String> map = this.hashes.newMap();
+                for(long count = this.readLength(); count > 0; count--) {
+                    map.put(this.readString(), this.readString());
+                }
+                
+                this.add(key, DryRedisCacheType.HASH, map, expiry);
+                return;
+            }
+            
+            case TYPE_HASH_ZIPMAP:
+            case TYPE_HASH_ZIPLIST:
+            case TYPE_HASH_LISTPACK: {
+                ByteBuffer blob = this.readBlob();
+                List<String> entries = type == TYPE_HASH_ZIPMAP ? zipmap(blob) : type == TYPE_HASH_ZIPLIST ? ziplist(blob) : listpack(blob);
+                Map<String, String> map = this.hashes.newMap();
+                for(int index = 0; index + 1 < entries.size(); index += 2) {
+                    map.put(entries.get(index), entries.get(index + 1));
+                }
+                
+                this.add(key, DryRedisCacheType.HASH, map, expiry);
+                return;
+            }
+            
+            case TYPE_ZSET:
+            case TYPE_ZSET_2: {
+                long count = this.readLength();
+                List<ElementWithPriority<String>> elements = new ArrayList<ElementWithPriority<String>>((int) Math.min(count, Integer.MAX_VALUE));
+                for( ; count > 0; count--) {
+                    String member = this.readString();
+                    double score = type == TYPE_ZSET_2 ? this.readBinaryDouble() : this.readStringDouble();
+                    elements.add(new ElementWithPriority<String>(member, score));
+                }
+                
+                this.add(key, DryRedisCacheType.SORTED_SET, this.sortedSet(elements), expiry);
+                return;
+            }
+            
+            case TYPE_ZSET_ZIPLIST:
+            case TYPE_ZSET_LISTPACK: {
+                ByteBuffer blob = this.readBlob();
+                List<String> entries = type == TYPE_ZSET_ZIPLIST ? ziplist(blob) : listpack(blob);
+                List<ElementWithPriority<String>> elements = new ArrayList<ElementWithPriority<String>>(entries.size() / 2);
+                for(int index = 0; index + 1 < entries.size(); index += 2) {
+                    elements.add(new ElementWithPriority<String>(entries.get(index), parseScore(entries.get(index + 1))));
+                }
+                
+                this.add(key, DryRedisCacheType.SORTED_SET, this.sortedSet(elements), expiry);
+                return;
+            }
+            
+            default:
+                throw unsupported(type, key);
+        }
+    }
+    
+    private void skipValue(int type, String key) throws IOException {
+        switch(type) {
+            case TYPE_STRING:
+            case TYPE_HASH_ZIPMAP:
+            case TYPE_LIST_ZIPLIST:
+            case TYPE_SET_INTSET:
+            case TYPE_ZSET_ZIPLIST:
+            case TYPE_HASH_ZIPLIST:
+            case TYPE_HASH_LISTPACK:
+            case TYPE_ZSET_LISTPACK:
+            case TYPE_SET_LISTPACK:
+                this.skipString();
+                return;
+                
+            case TYPE_LIST:
+            case TYPE_SET:
+            case TYPE_LIST_QUICKLIST:
+                for(long count = this.readLength(); count > 0; count--) {
+                    this.skipString();
+                }
+                
+                return;
+                
+            case TYPE_HASH:
+                for(long count = this.readLength(); count > 0; count--) {
+                    this.skipString();
+                    this.skipString();
+                }
+                
+                return;
+                
+            case TYPE_ZSET:
+                for(long count = this.readLength(); count > 0; count--) {
+                    this.skipString();
+                    this.readStringDouble();
+                }
+                
+                return;
+                
+            case TYPE_ZSET_2:
+                for(long count = this.readLength(); count > 0; count--) {
+                    this.skipString();
+                    this.skip(8);
+                }
+                
+                return;
+                
+            case TYPE_LIST_QUICKLIST_2:
+                for(long count = this.readLength(); count > 0; count--) {
+                    this.readLength();
+                    this.skipString();
+                }
+                
+                return;
+                
+            default:
+                throw unsupported(type, key);
+        }
+    }
+    
+    private SortedSetWithPriority<String> sortedSet(List<ElementWithPriority<String>> elements) {
+        SortedSetWithPriority<String> set = this.sortedSets.newSet();
+        set.load(elements);
+        return set;
+    }
+    
+    private static IOException unsupported(int type, String key) {
+        return new IOException("Unsupported RDB value type " + type + " of key " + key);
+    }
+    
+    /**
+     * Return the HyperLogLog held in the string value, or <code>null</code>
+     * if it holds none.
+     */
+    private static HyperLogLog toHyperLogLog(byte[] bytes) {
+        if(bytes.length < 16 || bytes[0] != 'H' || bytes[1] != 'Y' || bytes[2] != 'L' || bytes[3] != 'L') {
+            return null;
+        }
+        
+        try {
+            return HyperLogLog.fromByteArray(bytes);
+        } catch(IllegalArgumentException e) {
+            // just a string that starts the same way
+            return null;
+        }
+    }
+    
+    /**
+     * Add a key to the open section of its type, closing the section once
+     * full.
+     */
+    private void add(String key, DryRedisCacheType type, Object value, long expiry) {
+        DryRedisSnapshot.LoadedSection section = this.open.get(type);
+        int count = 0;
+        if(section == null) {
+            section = new DryRedisSnapshot.LoadedSection(type, SECTION_KEYS);
+            this.open.put(type, section);
+        } else {
+            count = this.openCounts.get(type);
+        }
+        
+        section.keys[count] = key;
+        section.values[count] = value;
+        section.expiries[count] = expiry;
+        count++;
+        
+        if(count == SECTION_KEYS) {
+            this.sections.add(section);
+            this.open.remove(type);
+            this.openCounts.remove(type);
+        } else {
+            this.openCounts.put(type, count);
+        }
+    }
+    
+    /**
+     * Move the keys of the sections not yet full into sections of their
+     * exact size.
+     */
+    private void closeSections() {
+        for(Map.Entry<DryRedisCacheType, DryRedisSnapshot.LoadedSection> entry : this.open.entrySet()) {
+            int count = this.openCounts.get(entry.getKey());
+            DryRedisSnapshot.LoadedSection full = entry.getValue();
+            DryRedisSnapshot.LoadedSection section = new DryRedisSnapshot.LoadedSection(entry.getKey(), count);
+            System.arraycopy(full.keys, 0, section.keys, 0, count);
+            System.arraycopy(full.values, 0, section.values, 0, count);
+            System.arraycopy(full.expiries, 0, section.expiries, 0, count);
+            this.sections.add(section);
+        }
+        
+        this.open.clear();
+        this.openCounts.clear();
+    }
+    
+    // compact encodings
+    
+    /**
+     * Decode all entries of a ziplist.
+     */
+    private static List<String> ziplist(ByteBuffer bytes) {
+        int count = bytes.getShort(8) & 0xffff;
+        List<String> entries = new ArrayList<String>(count == 0xffff ? 16 : count);
+        
+        int position = 10;
+        while(true) {
+            int previous = bytes.get(position) & 0xff;
+            if(previous == 0xff) {
+                return entries;
+            }
+            
+            position += previous < 254 ? 1 : 5;
+            int encoding = bytes.get(position) & 0xff;
+            switch(encoding >>> 6) {
+                case 0: {
+                    int length = encoding & 0x3f;
+                    entries.add(string(bytes, position + 1, length));
+                    position += 1 + length;
+                    continue;
+                }
+                
+                case 1: {
+                    int length = ((encoding & 0x3f) << 8) | (bytes.get(position + 1) & 0xff);
+                    entries.add(string(bytes, position + 2, length));
+                    position += 2 + length;
+                    continue;
+                }
+                
+                case 2: {
+                    int length = Integer.reverseBytes(bytes.getInt(position + 1));
+                    entries.add(string(bytes, position + 5, length));
+                    position += 5 + length;
+                    continue;
+                }
+            }
+            
+            position++;
+            switch(encoding) {
+                case 0xc0:
+                    entries.add(Long.toString(bytes.getShort(position)));
+                    position += 2;
+                    break;
+                    
+                case 0xd0:
+                    entries.add(Long.toString(bytes.getInt(position)));
+                    position += 4;
+                    break;
+                    
+                case 0xe0:
+                    entries.add(Long.toString(bytes.getLong(position)));
+                    position += 8;
+                    break;
+                    
+                case 0xf0:
+                    entries.add(Long.toString(int24(bytes, position)));
+                    position += 3;
+                    break;
+                    
+                case 0xfe:
+                    entries.add(Long.toString(bytes.get(position)));
+                    position += 1;
+                    break;
+                    
+                default:
+                    if(encoding < 0xf1 || encoding > 0xfd) {
+                        throw new IllegalArgumentException("unknown ziplist encoding " + encoding);
+                    }
+                    
+                    // a value of 0 to 12 held in the encoding itself
+                    entries.add(Long.toString((encoding & 0x0f) - 1));
+            }
+        }
+    }
+    
+    /**
+     * Decode all entries of a listpack.
+     */
+    private static List<String> listpack(ByteBuffer bytes) {
+        int count = bytes.getShort(4) & 0xffff;
+        List<String> entries = new ArrayList<String>(count == 0xffff ? 16 : count);
+        
+        int position = 6;
+        while(true) {
+            final int start = position;
+            final int encoding = bytes.get(position) & 0xff;
+            if(encoding == 0xff) {
+                return entries;
+            }
+            
+            if((encoding & 0x80) == 0) {
+                entries.add(Integer.toString(encoding));
+                position += 1;
+            } else if((encoding & 0xc0) == 0x80) {
+                int length = encoding & 0x3f;
+                entries.add(string(bytes, position + 1, length));
+                position += 1 + length;
+            } else if((encoding & 0xe0) == 0xc0) {
+                int value = ((encoding & 0x1f) << 8) | (bytes.get(position + 1) & 0xff);
+                entries.add(Integer.toString((value << 19) >> 19));
+                position += 2;
+            } else if((encoding & 0xf0) == 0xe0) {
+                int length = ((encoding & 0x0f) << 8) | (bytes.get(position + 1) & 0xff);
+                entries.add(string(bytes, position + 2, length));
+                position += 2 + length;
+            } else {
+                switch(encoding) {
+                    case 0xf0: {
+                        int length = bytes.getInt(position + 1);
+                        entries.add(string(bytes, position + 5, length));
+                        position += 5 + length;
+                        break;
+                    }
+                    
+                    case 0xf1:
+                        entries.add(Long.toString(bytes.getShort(position + 1)));
+                        position += 3;
+                        break;
+                        
+                    case 0xf2:
+                        entries.add(Long.toString(int24(bytes, position + 1)));
+                        position += 4;
+                        break;
+                        
+                    case 0xf3:
+                        entries.add(Long.toString(bytes.getInt(position + 1)));
+                        position += 5;
+                        break;
+                        
+                    case 0xf4:
+                        entries.add(Long.toString(bytes.getLong(position + 1)));
+                        position += 9;
+                        break;
+                        
+                    default:
+                        throw new IllegalArgumentException("unknown listpack encoding " + encoding);
+                }
+            }
+            
+            // skip the length of the entry kept for reading backwards
+            int length = position - start;
+            position += length <= 127 ? 1 : length < 16383 ? 2 : length < 2097151 ? 3 : length < 268435455 ? 4 : 5;
+        }
+    }
+    
+    /**
+     * Decode all integers of an intset.
+     */
+    private static List<String> intset(ByteBuffer bytes) {
+        int width = bytes.getInt(0);
+        int count = bytes.getInt(4);
+        if(width != 2 && width != 4 && width != 8) {
+            throw new IllegalArgumentException("unknown intset encoding " + width);
+        }
+        
+        List<String> entries = new ArrayList<String>(count);
+        for(int index = 0; index < count; index++) {
+            int position = 8 + index * width;
+            long value = width == 2 ? bytes.getShort(position) : width == 4 ? bytes.getInt(position) : bytes.getLong(position);
+            entries.add(Long.toString(value));
+        }
+        
+        return entries;
+    }
+    
+    /**
+     * Decode all fields and values of a zipmap, the encoding of small hashes
+     * before RDB version 4.
+     */
+    private static List<String> zipmap(ByteBuffer bytes) {
+        List<String> entries = new ArrayList<String>();
+        
+        int position = 1;
+        while(true) {
+            int length = bytes.get(position) & 0xff;
+            if(length == 0xff) {
+                return entries;
+            }
+            
+            // the field
+            if(length == 254) {
+                length = bytes.getInt(position + 1);
+                position += 5;
+            } else {
+                position += 1;
+            }
+            
+            entries.add(string(bytes, position, length));
+            position += length;
+            
+            // the value, followed by free bytes
+            length = bytes.get(position) & 0xff;
+            if(length == 254) {
+                length = bytes.getInt(position + 1);
+                position += 5;
+            } else {
+                position += 1;
+            }
+            
+            int free = bytes.get(position) & 0xff;
+            entries.add(string(bytes, position + 1, length));
+            position += 1 + length + free;
+        }
+    }
+    
+    private static int int24(ByteBuffer bytes, int position) {
+        int value = (bytes.get(position) & 0xff) | ((bytes.get(position + 1) & 0xff) << 8) | ((bytes.get(position + 2) & 0xff) << 16);
+        return (value << 8) >> 8;
+    }
+    
+    private static String string(ByteBuffer bytes, int position, int length) {
+        byte[] value = new byte[length];
+        ByteBuffer source = bytes.duplicate();
+        source.position(position);
+        source.get(value);
+        return new String(value, DynamicString.UTF_8);
+    }
+    
+    /**
+     * Parse a score as formatted by Redis, which writes infinity as
+     * <code>inf</code>.
+     */
+    private static double parseScore(String value) {
+        if("inf".equals(value) || "+inf".equals(value)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        
+        if("-inf".equals(value)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        
+        return Double.parseDouble(value);
+    }
+    
+    // strings
+    
+    /**
+     * Read a string value.
+     * 
+     * @return the bytes of the string, or <code>null</code> if the string was
+     *         stored as an integer, whose value is then in
+     *         {@link #lastInteger}
+     */
+    private byte[] readStringBytes() throws IOException {
+        int first = this.readUnsignedByte();
+        if((first >>> 6) != 3) {
+            return this.readBytes(toInt(this.length(first)));
+        }
+        
+        switch(first & 0x3f) {
+            case ENCODING_INT8:
+                this.ensure(1);
+                this.lastInteger = this.window.get(this.offset());
+                this.position += 1;
+                return null;
+                
+            case ENCODING_INT16:
+                this.ensure(2);
+                this.lastInteger = this.window.getShort(this.offset());
+                this.position += 2;
+                return null;
+                
+            case ENCODING_INT32:
+                this.lastInteger = this.readInt();
+                return null;
+                
+            case ENCODING_LZF:
+                return this.readCompressed();
+                
+            default:
+                throw new IOException("Bad RDB file: unknown string encoding " + (first & 0x3f));
+        }
+    }
+    
+    private String readString() throws IOException {
+        byte[] bytes = this.readStringBytes();
+        if(bytes == null) {
+            return Long.toString(this.lastInteger);
+        }
+        
+        return new String(bytes, DynamicString.UTF_8);
+    }
+    
+    /**
+     * Read a string holding a compact encoding, right from the mapped bytes
+     * unless compressed.
+     */
+    private ByteBuffer readBlob() throws IOException {
+        int first = this.readUnsignedByte();
+        if(first == (0xc0 | ENCODING_LZF)) {
+            return ByteBuffer.wrap(this.readCompressed()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        if((first >>> 6) == 3) {
+            throw new IOException("Bad RDB file: expected an encoded value");
+        }
+        
+        int length = toInt(this.length(first));
+        this.ensure(length);
+        
+        ByteBuffer blob = this.window.duplicate();
+        blob.position(this.offset());
+        blob.limit(this.offset() + length);
+        this.position += length;
+        return blob.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    private void skipString() throws IOException {
+        int first = this.readUnsignedByte();
+        if((first >>> 6) != 3) {
+            this.skip(toInt(this.length(first)));
+            return;
+        }
+        
+        switch(first & 0x3f) {
+            case ENCODING_INT8:
+                this.skip(1);
+                return;
+                
+            case ENCODING_INT16:
+                this.skip(2);
+                return;
+                
+            case ENCODING_INT32:
+                this.skip(4);
+                return;
+                
+            case ENCODING_LZF:
+                int compressed = toInt(this.readLength());
+                this.readLength();
+                this.skip(compressed);
+                return;
+                
+            default:
+                throw new IOException("Bad RDB file: unknown string encoding " + (first & 0x3f));
+        }
+    }
+    
+    /**
+     * Read a string compressed with LZF.
+     */
+    private byte[] readCompressed() throws IOException {
+        final int compressed = toInt(this.readLength());
+        final int length = toInt(this.readLength());
+        this.ensure(compressed);
+        
+        final ByteBuffer input = this.window;
+        final int end = this.offset() + compressed;
+        int in = this.offset();
+        
+        byte[] output = new byte[length];
+        int out = 0;
+        while(in < end) {
+            int control = input.get(in++) & 0xff;
+            if(control < 32) {
+                // a run of literal bytes
+                int run = control + 1;
+                if(out + run > length || in + run > end) {
+                    throw new IOException("Bad RDB file: invalid LZF data");
+                }
+                
+                for(int index = 0; index < run; index++) {
+                    output[out++] = input.get(in++);
+                }
+                
+                continue;
+            }
+            
+            // a back reference into the output
+            int run = control >>> 5;
+            if(run == 7) {
+                run += input.get(in++) & 0xff;
+            }
+            
+            run += 2;
+            int reference = out - ((control & 0x1f) << 8) - 1 - (input.get(in++) & 0xff);
+            if(reference < 0 || out + run > length || in > end) {
+                throw new IOException("Bad RDB file: invalid LZF data");
+            }
+            
+            for(int index = 0; index < run; index++) {
+                output[out++] = output[reference++];
+            }
+        }
+        
+        if(out != length) {
+            throw new IOException("Bad RDB file: invalid LZF data");
+        }
+        
+        this.position += compressed;
+        return output;
+    }
+    
+    /**
+     * Read a score written as a string of at most 255 bytes, as before RDB
+     * version 8.
+     */
+    private double readStringDouble() throws IOException {
+        int length = this.readUnsignedByte();
+        switch(length) {
+            case 253:
+                return Double.NaN;
+                
+            case 254:
+                return Double.POSITIVE_INFINITY;
+                
+            case 255:
+                return Double.NEGATIVE_INFINITY;
+                
+            default:
+                return Double.parseDouble(new String(this.readBytes(length), DynamicString.UTF_8));
+        }
+    }
+    
+    private double readBinaryDouble() throws IOException {
+        return Double.longBitsToDouble(this.readLong());
+    }
+    
+    /**
+     * Skip the data a module saved along with the keys, as written since
+     * RDB version 9.
+     */
+    private void skipModuleAux() throws IOException {
+        // the module id, and when the data was saved
+        this.readLength();
+        this.readLength();
+        this.readLength();
+        
+        while(true) {
+            long opcode = this.readLength();
+            switch((int) opcode) {
+                case MODULE_OPCODE_EOF:
+                    return;
+                    
+                case MODULE_OPCODE_SINT:
+                case MODULE_OPCODE_UINT:
+                    this.readLength();
+                    break;
+                    
+                case MODULE_OPCODE_FLOAT:
+                    this.skip(4);
+                    break;
+                    
+                case MODULE_OPCODE_DOUBLE:
+                    this.skip(8);
+                    break;
+                    
+                case MODULE_OPCODE_STRING:
+                    this.skipString();
+                    break;
+                    
+                default:
+                    throw new IOException("Bad RDB file: unknown module opcode " + opcode);
+            }
+        }
+    }
+    
+    // lengths and numbers
+    
+    private long readLength() throws IOException {
+        int first = this.readUnsignedByte();
+        if((first >>> 6) == 3) {
+            throw new IOException("Bad RDB file: expected a length");
+        }
+        
+        return this.length(first);
+    }
+    
+    /**
+     * Read the rest of a length that starts with the given byte.
+     */
+    private long length(int first) throws IOException {
+        switch(first >>> 6) {
+            case 0:
+                return first & 0x3f;
+                
+            case 1:
+                return ((first & 0x3f) << 8) | this.readUnsignedByte();
+                
+            default:
+                if(first == 0x80) {
+                    return Integer.reverseBytes(this.readInt()) & 0xffffffffl;
+                }
+                
+                if(first == 0x81) {
+                    return Long.reverseBytes(this.readLong());
+                }
+                
+                throw new IOException("Bad RDB file: unknown length encoding " + first);
+        }
+    }
+    
+    private static int toInt(long length) throws IOException {
+        if(length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Bad RDB file: length too large " + length);
+        }
+        
+        return (int) length;
+    }
+    
+    private int readUnsignedByte() throws IOException {
+        this.ensure(1);
+        int value = this.window.get(this.offset()) & 0xff;
+        this.position += 1;
+        return value;
+    }
+    
+    private int readInt() throws IOException {
+        this.ensure(4);
+        int value = this.window.getInt(this.offset());
+        this.position += 4;
+        return value;
+    }
+    
+    private long readLong() throws IOException {
+        this.ensure(8);
+        long value = this.window.getLong(this.offset());
+        this.position += 8;
+        return value;
+    }
+    
+    private byte[] readBytes(int length) throws IOException {
+        this.ensure(length);
+        
+        byte[] bytes = new byte[length];
+        ByteBuffer source = this.window.duplicate();
+        source.position(this.offset());
+        source.get(bytes);
+        this.position += length;
+        return bytes;
+    }
+    
+    private void skip(int length) throws IOException {
+        this.ensure(length);
+        this.position += length;
+    }
+    
+    // the mapped window
+    
+    private int offset() {
+        return (int) (this.position - this.windowStart);
+    }
+    
+    /**
+     * Make sure the next bytes are mapped, mapping a new window from the
+     * current position if not.
+     */
+    private void ensure(int length) throws IOException {
+        if(this.position + length <= this.windowEnd) {
+            return;
+        }
+        
+        if(this.position + length > this.size) {
+            throw new IOException("Bad RDB file: unexpected end of file");
+        }
+        
+        this.updateChecksum();
+        
+        long mapped = Math.max(length, Math.min(WINDOW_SIZE, this.size - this.position));
+        this.window = this.channel.map(MapMode.READ_ONLY, this.position, mapped).order(ByteOrder.LITTLE_ENDIAN);
+        this.windowStart = this.position;
+        this.windowEnd = this.position + mapped;
+    }
+    
+    /**
+     * Add the bytes read from the current window to the checksum.
+     */
+    private void updateChecksum() {
+        if(this.window == null || this.checked >= this.position) {
+            return;
+        }
+        
+        ByteBuffer bytes = this.window.duplicate();
+        bytes.limit(this.offset());
+        bytes.position((int) (this.checked - this.windowStart));
+        this.checksum = Crc64.update(this.checksum, bytes);
+        this.checked = this.position;
+    }
+    
+    /**
+     * Check the CRC-64 that follows the end of file marker, written since
+     * RDB version 5. A checksum of zero means it was turned off.
+     */
+    private void verifyChecksum(int version) throws IOException {
+        if(version < 5) {
+            return;
+        }
+        
+        this.updateChecksum();
+        long expected = this.readLong();
+        if(expected != 0 && expected != this.checksum) {
+            throw new IOException("Bad RDB file: checksum mismatch");
+        }
+    }
+    
+}
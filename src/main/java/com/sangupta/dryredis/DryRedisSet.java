@@ -27,10 +27,28 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import com.sangupta.dryredis.ds.PackedStringSet;
 import com.sangupta.dryredis.support.DryRedisCache;
 import com.sangupta.dryredis.support.DryRedisCacheType;
 
 class DryRedisSet extends DryRedisAbstractCache<Set<String>> implements DryRedisCache, DryRedisSetOperations {
+
+	/**
+	 * Create an instance that uses its own keyspace.
+	 */
+	DryRedisSet() {
+	    super();
+	}
+	
+	/**
+	 * Create an instance that stores its keys in the given keyspace.
+	 * 
+	 * @param keyspace
+	 *            the {@link DryRedisKeyspace} to use
+	 */
+	DryRedisSet(DryRedisKeyspace keyspace) {
+	    super(keyspace);
+	}
 	
 	// commands from redis
 	
@@ -41,7 +59,7 @@ class DryRedisSet extends DryRedisAbstractCache<Set<String>> implements DryRedis
     public int sadd(String key, String value) {
 		Set<String> set = this.store.get(key);
 		if(set == null) {
-			set = new HashSet<String>();
+			set = this.newSet();
 			this.store.put(key, set);
 		}
 		
@@ -60,7 +78,7 @@ class DryRedisSet extends DryRedisAbstractCache<Set<String>> implements DryRedis
     public int sadd(String key, List<String> values) {
 		Set<String> set = this.store.get(key);
 		if(set == null) {
-			set = new HashSet<String>();
+			set = this.newSet();
 			this.store.put(key, set);
 		}
 		
@@ -119,7 +137,8 @@ class DryRedisSet extends DryRedisAbstractCache<Set<String>> implements DryRedis
      */
 	@Override
     public int sdiffstore(String destination, String key, String... otherKeys) {
-		Set<String> setToStore = this.sdiff(key, otherKeys);
+		Set<String> setToStore = this.newSet();
+		setToStore.addAll(this.sdiff(key, otherKeys));
 		this.store.put(destination, setToStore);
 		return setToStore.size();
 	}
@@ -163,7 +182,8 @@ class DryRedisSet extends DryRedisAbstractCache<Set<String>> implements DryRedis
      */
 	@Override
     public int sinterstore(String destination, String key, String... otherKeys) {
-		Set<String> setToStore = this.sinter(key, otherKeys);
+		Set<String> setToStore = this.newSet();
+		setToStore.addAll(this.sinter(key, otherKeys));
 		this.store.put(destination, setToStore);
 		return setToStore.size();
 	}
@@ -359,7 +379,8 @@ class DryRedisSet extends DryRedisAbstractCache<Set<String>> implements DryRedis
      */
 	@Override
     public int sunionstore(String destination, String key, String... otherKeys) {
-		Set<String> setToStore = this.sunion(key, otherKeys);
+		Set<String> setToStore = this.newSet();
+		setToStore.addAll(this.sunion(key, otherKeys));
 		this.store.put(destination, setToStore);
 		return setToStore.size();
 	}
@@ -372,6 +393,16 @@ class DryRedisSet extends DryRedisAbstractCache<Set<String>> implements DryRedis
 		throw new RuntimeException("Not yet implemented");
 	}
 	
+	// private methods
+	
+	/**
+	 * Create the set for a new key, packed up to the configured limits.
+	 */
+	Set<String> newSet() {
+	    DryRedisConfig config = this.keyspace.getConfig();
+	    return new PackedStringSet(config.getInt(DryRedisConfig.SET_MAX_INTSET_ENTRIES), config.getInt(DryRedisConfig.SET_MAX_LISTPACK_ENTRIES), config.getInt(DryRedisConfig.SET_MAX_LISTPACK_VALUE));
+	}
+	
 	// commands for DryRedisCache
 
 	@Override
@@ -379,4 +410,38 @@ class DryRedisSet extends DryRedisAbstractCache<Set<String>> implements DryRedis
 		return DryRedisCacheType.SET;
 	}
 
+	@Override
+	protected String getEncoding(Set<String> value) {
+		if(value instanceof PackedStringSet) {
+			PackedStringSet set = (PackedStringSet) value;
+			if(set.isIntSet()) {
+				return "intset";
+			}
+		
+			if(set.isPacked()) {
+				return "listpack";
+			}
+		}
+		
+		return "hashtable";
+	}
+	
+	@Override
+	protected void writeValue(Set<String> value, DryRedisEncoder encoder) {
+		encoder.writeVarint(value.size());
+		for(String member : value) {
+			encoder.writeString(member);
+		}
+	}
+	
+	@Override
+	protected Set<String> readValue(DryRedisDecoder decoder) {
+		Set<String> set = this.newSet();
+		for(int count = decoder.readLength(); count > 0; count--) {
+			set.add(decoder.readString());
+		}
+		
+		return set;
+	}
+
 }
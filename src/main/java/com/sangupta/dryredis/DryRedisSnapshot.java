@@ -0,0 +1,884 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sangupta.dryredis.ds.Crc64;
+import com.sangupta.dryredis.ds.MpscLinkedQueue;
+import com.sangupta.dryredis.support.DryRedisCache;
+import com.sangupta.dryredis.support.DryRedisCacheType;
+
+/**
+ * Reads and writes point-in-time snapshots of a database, much like the RDB
+ * files of Redis.
+ * 
+ * A snapshot starts with the magic bytes <code>DRYREDIS</code> and the format
+ * version in 2 bytes, the same as used by DUMP. Then come the sections, each
+ * holding keys of one single type: the type code, the number of keys and the
+ * length of the section in 4 bytes each, followed by every key with its
+ * expiry time and its value as written by
+ * {@link DryRedisAbstractCache#writeValue(Object, DryRedisEncoder)}. The
+ * file ends with the byte <code>0xff</code> and the CRC-64 of everything
+ * before it. Numbers are stored in little-endian order.
+ * 
+ * Sections are cut at about {@link #SECTION_BYTES}, so that a large snapshot
+ * has many of them. The loader reads the file in one pass and decodes the
+ * sections on a pool of threads, while the keys are added to the keyspace
+ * only once the whole file was read and its checksum verified.
+ * 
+ * A background save in concurrent mode is written from an {@link Epoch},
+ * which stands in for the copy-on-write of a forked process.
+ * 
+ * @author sangupta
+ *
+ */
+class DryRedisSnapshot {
+    
+    /**
+     * The size after which a section is closed
+     */
+    static final int SECTION_BYTES = 1 << 20;
+    
+    private static final byte[] MAGIC = { 'D', 'R', 'Y', 'R', 'E', 'D', 'I', 'S' };
+    
+    private static final int END_OF_FILE = 0xff;
+    
+    /**
+     * Size of the buffer used to read and write files
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    /**
+     * Time to wait for a command that is copying a key into an {@link Epoch}
+     */
+    private static final long PRESERVE_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    
+    /**
+     * One section of a snapshot held in memory.
+     */
+    static final class Section {
+        
+        final DryRedisCacheType type;
+        
+        final int count;
+        
+        final byte[] bytes;
+        
+        Section(DryRedisCacheType type, int count, byte[] bytes) {
+            this.type = type;
+            this.count = count;
+            this.bytes = bytes;
+        }
+        
+    }
+    
+    /**
+     * The keys of one section read back from a snapshot.
+     */
+    static final class LoadedSection {
+        
+        final DryRedisCacheType type;
+        
+        final String[] keys;
+        
+        final Object[] values;
+        
+        final long[] expiries;
+        
+        LoadedSection(DryRedisCacheType type, int count) {
+            this.type = type;
+            this.keys = new String[count];
+            this.values = new Object[count];
+            this.expiries = new long[count];
+        }
+        
+    }
+    
+    /**
+     * Receives the sections of a snapshot as they are encoded.
+     */
+    private static abstract class SectionSink {
+        
+        abstract void section(DryRedisCacheType type, int count, DryRedisEncoder encoder) throws IOException;
+        
+    }
+    
+    /**
+     * Collects encoded keys into one section per type, handing each section
+     * to a {@link SectionSink} once it is full.
+     */
+    private static final class Sections {
+        
+        private final SectionSink sink;
+        
+        private final DryRedisCacheType[] types = DryRedisCacheType.values();
+        
+        private final DryRedisEncoder[] encoders = new DryRedisEncoder[this.types.length];
+        
+        private final int[] counts = new int[this.types.length];
+        
+        Sections(SectionSink sink) {
+            this.sink = sink;
+        }
+        
+        /**
+         * Return the encoder to write the next key of the given type to.
+         */
+        DryRedisEncoder encoder(DryRedisCacheType type) {
+            final int index = type.ordinal();
+            DryRedisEncoder encoder = this.encoders[index];
+            if(encoder == null) {
+                encoder = new DryRedisEncoder(SECTION_BYTES + (SECTION_BYTES >>> 3));
+                this.encoders[index] = encoder;
+            }
+            
+            return encoder;
+        }
+        
+        /**
+         * Count a key written to the encoder of its type, closing the section
+         * if it is full.
+         */
+        void added(DryRedisCacheType type) throws IOException {
+            final int index = type.ordinal();
+            this.counts[index]++;
+            
+            DryRedisEncoder encoder = this.encoders[index];
+            if(encoder.size() >= SECTION_BYTES) {
+                this.sink.section(type, this.counts[index], encoder);
+                encoder.reset();
+                this.counts[index] = 0;
+            }
+        }
+        
+        /**
+         * Close the sections that are not empty.
+         */
+        void finish() throws IOException {
+            for(int index = 0; index < this.types.length; index++) {
+                if(this.counts[index] > 0) {
+                    this.sink.section(this.types[index], this.counts[index], this.encoders[index]);
+                }
+            }
+        }
+        
+    }
+    
+    /**
+     * The keyspace as of the moment a background save started, written out
+     * while commands go on. Java cannot fork the process and let the
+     * operating system copy pages on write the way Redis does, so the copy
+     * is made per key: a command about to change a key that was not written
+     * yet first encodes the value the key had when the save started, using
+     * {@link #preserve(String)}. The saving thread writes all other keys
+     * under their lock, one key at a time, along with the keys preserved by
+     * commands.
+     * 
+     * Keys added after the save started are not part of it, and cost
+     * commands just one lookup among the keys not yet written.
+     */
+    static final class Epoch {
+        
+        private final Map<DryRedisCacheType, DryRedisCache> caches;
+        
+        /**
+         * The keys not yet written, with their entries as of the start
+         */
+        private final ConcurrentHashMap<String, DryRedisKeyspace.KeyEntry> pending = new ConcurrentHashMap<String, DryRedisKeyspace.KeyEntry>();
+        
+        /**
+         * The keys encoded by commands, waiting to be written
+         */
+        private final MpscLinkedQueue<Preserved> preserved = new MpscLinkedQueue<Preserved>();
+        
+        /**
+         * The number of keys in the snapshot
+         */
+        private final int count;
+        
+        /**
+         * Start a snapshot of all keys of the keyspace. No key may be
+         * updated till the constructor returns.
+         * 
+         * @param keyspace
+         *            the keyspace to save
+         * 
+         * @param caches
+         *            the caches owning the keys, by type
+         */
+        Epoch(DryRedisKeyspace keyspace, Map<DryRedisCacheType, DryRedisCache> caches) {
+            this.caches = caches;
+            
+            final long now = System.currentTimeMillis();
+            for(Map.Entry<String, DryRedisKeyspace.KeyEntry> mapEntry : keyspace.entries()) {
+                if(!mapEntry.getValue().isExpired(now)) {
+                    this.pending.put(mapEntry.getKey(), mapEntry.getValue());
+                }
+            }
+            
+            this.count = this.pending.size();
+        }
+        
+        /**
+         * Copy the key into the snapshot if it was not written yet. Must be
+         * called with the lock of the key held, before the key is changed in
+         * any way.
+         * 
+         * @param key
+         *            the key about to be changed
+         */
+        void preserve(String key) {
+            DryRedisKeyspace.KeyEntry entry = this.pending.remove(key);
+            if(entry == null) {
+                return;
+            }
+            
+            byte[] bytes = null;
+            try {
+                DryRedisEncoder encoder = new DryRedisEncoder();
+                this.encode(key, entry, encoder);
+                bytes = encoder.toByteArray();
+            } finally {
+                // queued even if encoding failed, so that the saving thread does not wait for it
+                this.preserved.offer(new Preserved(entry.type, bytes));
+            }
+        }
+        
+        private void encode(String key, DryRedisKeyspace.KeyEntry entry, DryRedisEncoder encoder) {
+            encoder.writeString(key);
+            encoder.writeSignedVarint(entry.expiry);
+            ((DryRedisAbstractCache<?>) this.caches.get(entry.type)).writeStoredValue(entry.value, encoder);
+        }
+        
+        /**
+         * Write the keys preserved by commands so far.
+         * 
+         * @return the number of keys written
+         */
+        private int drain(Sections sections) throws IOException {
+            int drained = 0;
+            Preserved preserved;
+            while((preserved = this.preserved.poll()) != null) {
+                if(preserved.bytes == null) {
+                    throw new IOException("Unable to copy a key into the snapshot");
+                }
+                
+                sections.encoder(preserved.type).writeRaw(preserved.bytes);
+                sections.added(preserved.type);
+                drained++;
+            }
+            
+            return drained;
+        }
+        
+    }
+    
+    /**
+     * A key copied into an {@link Epoch} by a command.
+     */
+    private static final class Preserved {
+        
+        final DryRedisCacheType type;
+        
+        /**
+         * The encoded key, or <code>null</code> if it could not be encoded
+         */
+        final byte[] bytes;
+        
+        Preserved(DryRedisCacheType type, byte[] bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+        
+    }
+    
+    private DryRedisSnapshot() {
+        // static methods only
+    }
+    
+    /**
+     * Write all keys of the keyspace straight to the given file. No key may
+     * be updated till the method returns.
+     * 
+     * @param file
+     *            the file to write
+     * 
+     * @param keyspace
+     *            the keyspace to save
+     * 
+     * @param caches
+     *            the caches owning the keys, by type
+     * 
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    static void save(File file, DryRedisKeyspace keyspace, Map<DryRedisCacheType, DryRedisCache> caches) throws IOException {
+        File temp = tempFile(file);
+        final Output output = new Output(temp);
+        boolean written = false;
+        try {
+            output.writeHeader();
+            encode(keyspace, caches, new SectionSink() {
+                
+                @Override
+                void section(DryRedisCacheType type, int count, DryRedisEncoder encoder) throws IOException {
+                    output.section(type, count, encoder.asByteBuffer());
+                }
+                
+            });
+            
+            output.finish();
+            written = true;
+        } finally {
+            output.close(written);
+        }
+        
+        replace(temp, file);
+    }
+    
+    /**
+     * Encode all keys of the keyspace into memory, to be written later on
+     * using {@link #save(File, List)}. No key may be updated till the method
+     * returns.
+     * 
+     * @param keyspace
+     *            the keyspace to save
+     * 
+     * @param caches
+     *            the caches owning the keys, by type
+     * 
+     * @return the encoded sections
+     */
+    static List<Section> encode(DryRedisKeyspace keyspace, Map<DryRedisCacheType, DryRedisCache> caches) {
+        final List<Section> sections = new ArrayList<Section>();
+        try {
+            encode(keyspace, caches, new SectionSink() {
+                
+                @Override
+                void section(DryRedisCacheType type, int count, DryRedisEncoder encoder) {
+                    sections.add(new Section(type, count, encoder.toByteArray()));
+                }
+                
+            });
+        } catch(IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        
+        return sections;
+    }
+    
+    /**
+     * Write sections encoded using {@link #encode(DryRedisKeyspace, Map)} to
+     * the given file.
+     * 
+     * @param file
+     *            the file to write
+     * 
+     * @param sections
+     *            the sections to write
+     * 
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    static void save(File file, List<Section> sections) throws IOException {
+        File temp = tempFile(file);
+        Output output = new Output(temp);
+        boolean written = false;
+        try {
+            output.writeHeader();
+            for(Section section : sections) {
+                output.section(section.type, section.count, ByteBuffer.wrap(section.bytes));
+            }
+            
+            output.finish();
+            written = true;
+        } finally {
+            output.close(written);
+        }
+        
+        replace(temp, file);
+    }
+    
+    /**
+     * Write the keys of an {@link Epoch} to the given file while commands go
+     * on. Each key not yet copied by a command is encoded under its lock,
+     * which is held for that key only.
+     * 
+     * @param file
+     *            the file to write
+     * 
+     * @param epoch
+     *            the snapshot to write
+     * 
+     * @param locks
+     *            the locks guarding the keys
+     * 
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    static void save(File file, Epoch epoch, DryRedisKeyLocks locks) throws IOException {
+        File temp = tempFile(file);
+        final Output output = new Output(temp);
+        boolean written = false;
+        try {
+            output.writeHeader();
+            Sections sections = new Sections(new SectionSink() {
+                
+                @Override
+                void section(DryRedisCacheType type, int count, DryRedisEncoder encoder) throws IOException {
+                    output.section(type, count, encoder.asByteBuffer());
+                }
+                
+            });
+            
+            int remaining = epoch.count;
+            for(String key : epoch.pending.keySet()) {
+                locks.lock(key);
+                try {
+                    DryRedisKeyspace.KeyEntry entry = epoch.pending.remove(key);
+                    if(entry != null) {
+                        epoch.encode(key, entry, sections.encoder(entry.type));
+                        sections.added(entry.type);
+                        remaining--;
+                    }
+                } finally {
+                    locks.unlock(key);
+                }
+                
+                remaining -= epoch.drain(sections);
+            }
+            
+            // commands may still be copying the last keys they took
+            while(remaining > 0) {
+                int drained = epoch.drain(sections);
+                if(drained == 0) {
+                    LockSupport.parkNanos(PRESERVE_WAIT_NANOS);
+                }
+                
+                remaining -= drained;
+            }
+            
+            sections.finish();
+            output.finish();
+            written = true;
+        } finally {
+            output.close(written);
+        }
+        
+        replace(temp, file);
+    }
+    
+    /**
+     * Read all keys of a snapshot, decoding its sections in parallel.
+     * 
+     * @param file
+     *            the file to read
+     * 
+     * @param caches
+     *            the caches to decode the values with, by type
+     * 
+     * @param threads
+     *            the number of threads to decode with
+     * 
+     * @return the decoded sections, in the order of the file
+     * 
+     * @throws IOException
+     *             if the file cannot be read, or is not a valid snapshot
+     */
+    static List<LoadedSection> load(File file, final Map<DryRedisCacheType, DryRedisCache> caches, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Input input = new Input(file);
+        try {
+            List<Future<LoadedSection>> futures = new ArrayList<Future<LoadedSection>>();
+            
+            input.readHeader();
+            while(true) {
+                int code = input.readByte();
+                if(code == END_OF_FILE) {
+                    input.readTrailer();
+                    break;
+                }
+                
+                final DryRedisCacheType type = typeOf((byte) code);
+                final int count = input.readInt();
+                final byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                
+                futures.add(executor.submit(new Callable<LoadedSection>() {
+                    
+                    @Override
+                    public LoadedSection call() {
+                        return decode(type, count, bytes, (DryRedisAbstractCache<?>) caches.get(type));
+                    }
+                    
+                }));
+            }
+            
+            List<LoadedSection> sections = new ArrayList<LoadedSection>(futures.size());
+            for(Future<LoadedSection> future : futures) {
+                sections.add(future.get());
+            }
+            
+            return sections;
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IllegalArgumentException) {
+                throw new IOException("Bad snapshot file: " + e.getCause().getMessage());
+            }
+            
+            throw new IOException("Failed to decode snapshot file", e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading snapshot file");
+        } finally {
+            executor.shutdownNow();
+            input.close();
+        }
+    }
+    
+    private static void encode(DryRedisKeyspace keyspace, Map<DryRedisCacheType, DryRedisCache> caches, SectionSink sink) throws IOException {
+        final Sections sections = new Sections(sink);
+        final long now = System.currentTimeMillis();
+        
+        for(Map.Entry<String, DryRedisKeyspace.KeyEntry> mapEntry : keyspace.entries()) {
+            DryRedisKeyspace.KeyEntry entry = mapEntry.getValue();
+            if(entry.isExpired(now)) {
+                continue;
+            }
+            
+            DryRedisEncoder encoder = sections.encoder(entry.type);
+            encoder.writeString(mapEntry.getKey());
+            encoder.writeSignedVarint(entry.expiry);
+            ((DryRedisAbstractCache<?>) caches.get(entry.type)).writeStoredValue(entry.value, encoder);
+            sections.added(entry.type);
+        }
+        
+        sections.finish();
+    }
+    
+    private static LoadedSection decode(DryRedisCacheType type, int count, byte[] bytes, DryRedisAbstractCache<?> cache) {
+        DryRedisDecoder decoder = new DryRedisDecoder(ByteBuffer.wrap(bytes));
+        LoadedSection section = new LoadedSection(type, count);
+        for(int index = 0; index < count; index++) {
+            section.keys[index] = decoder.readString();
+            section.expiries[index] = decoder.readSignedVarint();
+            section.values[index] = cache.readValue(decoder);
+        }
+        
+        if(decoder.hasRemaining()) {
+            throw new IllegalArgumentException("Bad data format: trailing bytes in section");
+        }
+        
+        return section;
+    }
+    
+    private static DryRedisCacheType typeOf(byte code) throws IOException {
+        for(DryRedisCacheType type : DryRedisCacheType.values()) {
+            if(type.getCode() == code) {
+                return type;
+            }
+        }
+        
+        throw new IOException("Bad snapshot file: unknown type " + code);
+    }
+    
+    private static File tempFile(File file) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        return new File(directory, "temp-" + System.nanoTime() + "-" + file.getName());
+    }
+    
+    /**
+     * Move the fully written temporary file over the target, so that readers
+     * never see a partly written snapshot.
+     */
+    private static void replace(File temp, File file) throws IOException {
+        if(temp.renameTo(file)) {
+            return;
+        }
+        
+        // some platforms cannot rename over an existing file
+        if(file.delete() && temp.renameTo(file)) {
+            return;
+        }
+        
+        temp.delete();
+        throw new IOException("Unable to rename snapshot file to " + file);
+    }
+    
+    /**
+     * Writes a snapshot through a buffered channel, keeping the checksum of
+     * everything written.
+     */
+    private static final class Output {
+        
+        private final File file;
+        
+        private final FileOutputStream stream;
+        
+        private final FileChannel channel;
+        
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        
+        /**
+         * Scratch space to compute the checksum of small writes
+         */
+        private final byte[] scratch = new byte[16];
+        
+        private long checksum;
+        
+        Output(File file) throws IOException {
+            this.file = file;
+            this.stream = new FileOutputStream(file);
+            this.channel = this.stream.getChannel();
+        }
+        
+        void writeHeader() throws IOException {
+            this.write(ByteBuffer.wrap(MAGIC));
+            this.writeSmall(2, DryRedis.DRY_REDIS_DUMP_VERSION);
+        }
+        
+        void section(DryRedisCacheType type, int count, ByteBuffer bytes) throws IOException {
+            this.writeSmall(1, type.getCode());
+            this.writeSmall(4, count);
+            this.writeSmall(4, bytes.remaining());
+            this.write(bytes);
+        }
+        
+        /**
+         * Write the end of the file, and make sure it reached the disk.
+         */
+        void finish() throws IOException {
+            this.writeSmall(1, END_OF_FILE);
+            
+            long checksum = this.checksum;
+            this.writeSmall(8, checksum);
+            
+            this.flush();
+            this.channel.force(true);
+        }
+        
+        /**
+         * Close the file, deleting it if it was not completely written.
+         */
+        void close(boolean written) throws IOException {
+            try {
+                this.stream.close();
+            } finally {
+                if(!written) {
+                    this.file.delete();
+                }
+            }
+        }
+        
+        private void writeSmall(int length, long value) throws IOException {
+            for(int index = 0; index < length; index++) {
+                this.scratch[index] = (byte) (value >>> (index << 3));
+            }
+            
+            this.write(ByteBuffer.wrap(this.scratch, 0, length));
+        }
+        
+        private void write(ByteBuffer bytes) throws IOException {
+            this.checksum = Crc64.update(this.checksum, bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            
+            if(bytes.remaining() >= BUFFER_SIZE) {
+                // large writes go straight to the channel
+                this.flush();
+                while(bytes.hasRemaining()) {
+                    this.channel.write(bytes);
+                }
+                
+                return;
+            }
+            
+            while(bytes.hasRemaining()) {
+                if(!this.buffer.hasRemaining()) {
+                    this.flush();
+                }
+                
+                int length = Math.min(bytes.remaining(), this.buffer.remaining());
+                ByteBuffer slice = bytes.duplicate();
+                slice.limit(slice.position() + length);
+                this.buffer.put(slice);
+                bytes.position(bytes.position() + length);
+            }
+        }
+        
+        private void flush() throws IOException {
+            this.buffer.flip();
+            while(this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            
+            this.buffer.clear();
+        }
+        
+    }
+    
+    /**
+     * Reads a snapshot through a buffered channel, keeping the checksum of
+     * everything read.
+     */
+    private static final class Input {
+        
+        private final FileInputStream stream;
+        
+        private final FileChannel channel;
+        
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        
+        private final byte[] scratch = new byte[16];
+        
+        private long checksum;
+        
+        Input(File file) throws IOException {
+            this.stream = new FileInputStream(file);
+            this.channel = this.stream.getChannel();
+            this.buffer.limit(0);
+        }
+        
+        void readHeader() throws IOException {
+            byte[] magic = new byte[MAGIC.length];
+            this.readFully(magic);
+            for(int index = 0; index < MAGIC.length; index++) {
+                if(magic[index] != MAGIC[index]) {
+                    throw new IOException("Bad snapshot file: wrong signature");
+                }
+            }
+            
+            int version = (int) this.readSmall(2);
+            if(version != DryRedis.DRY_REDIS_DUMP_VERSION) {
+                throw new IOException("Can't handle snapshot format version " + version);
+            }
+        }
+        
+        /**
+         * Verify the checksum at the end of the file.
+         */
+        void readTrailer() throws IOException {
+            long expected = this.checksum;
+            if(this.readSmall(8) != expected) {
+                throw new IOException("Bad snapshot file: wrong checksum");
+            }
+            
+            if(this.buffer.hasRemaining() || this.channel.position() != this.channel.size()) {
+                throw new IOException("Bad snapshot file: data after the end of the snapshot");
+            }
+        }
+        
+        int readByte() throws IOException {
+            return (int) this.readSmall(1);
+        }
+        
+        int readInt() throws IOException {
+            long value = this.readSmall(4);
+            if(value > Integer.MAX_VALUE) {
+                throw new IOException("Bad snapshot file: section too large");
+            }
+            
+            return (int) value;
+        }
+        
+        void readFully(byte[] bytes) throws IOException {
+            int offset = 0;
+            
+            // take what is buffered, and read large arrays straight from the channel
+            int buffered = Math.min(bytes.length, this.buffer.remaining());
+            this.buffer.get(bytes, 0, buffered);
+            offset += buffered;
+            
+            if(bytes.length - offset >= BUFFER_SIZE) {
+                ByteBuffer target = ByteBuffer.wrap(bytes, offset, bytes.length - offset);
+                while(target.hasRemaining()) {
+                    if(this.channel.read(target) < 0) {
+                        throw new EOFException("Short read loading snapshot file");
+                    }
+                }
+                
+                offset = bytes.length;
+            }
+            
+            while(offset < bytes.length) {
+                this.fill();
+                int length = Math.min(bytes.length - offset, this.buffer.remaining());
+                this.buffer.get(bytes, offset, length);
+                offset += length;
+            }
+            
+            this.checksum = Crc64.update(this.checksum, bytes, 0, bytes.length);
+        }
+        
+        void close() throws IOException {
+            this.stream.close();
+        }
+        
+        private long readSmall(int length) throws IOException {
+            long value = 0;
+            for(int index = 0; index < length; index++) {
+                this.fill();
+                this.scratch[index] = this.buffer.get();
+                value |= (this.scratch[index] & 0xffl) << (index << 3);
+            }
+            
+            this.checksum = Crc64.update(this.checksum, this.scratch, 0, length);
+            return value;
+        }
+        
+        private void fill() throws IOException {
+            if(this.buffer.hasRemaining()) {
+                return;
+            }
+            
+            this.buffer.clear();
+            int read;
+            do {
+                read = this.channel.read(this.buffer);
+            } while(read == 0);
+            
+            this.buffer.flip();
+            if(read < 0) {
+                throw new EOFException("Short read loading snapshot file");
+            }
+        }
+        
+    }
+    
+}
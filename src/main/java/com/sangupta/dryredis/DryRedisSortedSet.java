@@ -22,9 +22,12 @@
 package com.sangupta.dryredis;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.sangupta.dryredis.ds.ElementWithPriority;
@@ -35,6 +38,23 @@ import com.sangupta.dryredis.support.DryRedisRangeArgument;
 import com.sangupta.dryredis.support.DryRedisSetAggregationType;
 
 class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<String>> implements DryRedisCache, DryRedisSortedSetOperations {
+
+    /**
+     * Create an instance that uses its own keyspace.
+     */
+    DryRedisSortedSet() {
+        super();
+    }
+    
+    /**
+     * Create an instance that stores its keys in the given keyspace.
+     * 
+     * @param keyspace
+     *            the {@link DryRedisKeyspace} to use
+     */
+    DryRedisSortedSet(DryRedisKeyspace keyspace) {
+        super(keyspace);
+    }
     
     /* (non-Javadoc)
      * @see com.sangupta.dryredis.cache.impl.DryRedisSortedSetOperations#zadd(java.lang.String, double, java.lang.String)
@@ -43,17 +63,17 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
     public int zadd(String key, double score, String member) {
         SortedSetWithPriority<String> set = this.store.get(key);
         if(set == null) {
-            set = new SortedSetWithPriority<String>();
+            set = this.newSet();
             this.store.put(key, set);
         }
         
-        ElementWithPriority<String> element = new ElementWithPriority<String>(member, score);
-        boolean added = set.add(element);
-        if(added) {
-            return 1;
+        // an existing member gets the new score
+        if(set.updatePriority(member, score)) {
+            return 0;
         }
         
-        return 0;
+        set.add(new ElementWithPriority<String>(member, score));
+        return 1;
     }
     
     /* (non-Javadoc)
@@ -79,16 +99,9 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return 0;
         }
         
-        Iterator<ElementWithPriority<String>> iterator = set.iterator();
-        long count = 0;
-        while(iterator.hasNext()) {
-            ElementWithPriority<String> element = iterator.next();
-            if(element.getPriority() >= min && element.getPriority() <= max) {
-                count++;
-            }
-        }
-        
-        return count;
+        int lower = set.lowerRankByPriority(min, true);
+        int upper = set.upperRankByPriority(max, true);
+        return Math.max(0, upper - lower + 1);
     }
     
     /* (non-Javadoc)
@@ -98,26 +111,24 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
     public double zincrby(String key, double increment, String member) {
         SortedSetWithPriority<String> set = this.store.get(key);
         if(set == null) {
-            set = new SortedSetWithPriority<String>();
+            set = this.newSet();
             this.store.put(key, set);
         }
         
-        Double priority = set.getPriority(member);
-        if(priority == null) {
-            set.add(new ElementWithPriority<String>(member, increment));
-            return increment;
+        if(Double.isNaN(increment)) {
+            throw new IllegalArgumentException("Increment is not a number");
         }
         
-        // remove first
-        ElementWithPriority<String> current = new ElementWithPriority<String>(member, priority);
-        set.remove(current);
-        
-        // add again to resort
-        double newScore = priority + increment;
-        current = new ElementWithPriority<String>(member, newScore);
-        set.add(current);
+        if(Double.isInfinite(increment)) {
+            // adding opposite infinities does not give a number
+            Double score = set.getPriority(member);
+            if(score != null && Double.isNaN(score + increment)) {
+                throw new IllegalArgumentException("Resulting score is not a number");
+            }
+        }
         
-        return newScore;
+        // updates the score of the member in place
+        return set.incrementPriority(member, increment);
     }
     
     /* (non-Javadoc)
@@ -130,22 +141,12 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return null;
         }
         
-        if(set.isEmpty()) {
+        int rank = set.rank(member);
+        if(rank < 0) {
             return null;
         }
         
-        Iterator<ElementWithPriority<String>> iterator = set.iterator();
-        int rank = 0;
-        while(iterator.hasNext()) {
-            ElementWithPriority<String> element = iterator.next();
-            if(element.getData().equals(member)) {
-                return rank;
-            }
-            
-            rank++;
-        }
-        
-        return null;
+        return rank;
     }
     
     /* (non-Javadoc)
@@ -158,22 +159,12 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return null;
         }
         
-        if(set.isEmpty()) {
+        int rank = set.rank(member);
+        if(rank < 0) {
             return null;
         }
         
-        Iterator<ElementWithPriority<String>> iterator = set.descendingIterator();
-        int rank = 0;
-        while(iterator.hasNext()) {
-            ElementWithPriority<String> element = iterator.next();
-            if(element.getData().equals(member)) {
-                return rank;
-            }
-            
-            rank++;
-        }
-        
-        return null;
+        return set.size() - 1 - rank;
     }
     
     /* (non-Javadoc)
@@ -186,17 +177,8 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return 0;
         }
         
-        if(set.isEmpty()) {
-            return 0;
-        }
-        
-        Iterator<ElementWithPriority<String>> iterator = set.iterator();
-        while(iterator.hasNext()) {
-            ElementWithPriority<String> element = iterator.next();
-            if(element.getData().equals(member)) {
-                iterator.remove();
-                return 1;
-            }
+        if(set.remove(member)) {
+            return 1;
         }
         
         return 0;
@@ -212,16 +194,9 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return 0;
         }
         
-        if(set.isEmpty()) {
-            return 0;
-        }
-        
-        Iterator<ElementWithPriority<String>> iterator = set.iterator();
         int removed = 0;
-        while(iterator.hasNext()) {
-            ElementWithPriority<String> element = iterator.next();
-            if(members.contains(element.getData())) {
-                iterator.remove();
+        for(String member : members) {
+            if(set.remove(member)) {
                 removed++;
             }
         }
@@ -256,40 +231,32 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return null;
         }
         
-        if(set.isEmpty()) {
-            return new ArrayList<String>();
-        }
+        List<String> result = new ArrayList<String>();
         
         final int size = set.size();
         if(start < 0) {
-            start = size + start;
+            start = Math.max(0, size + start);
         }
         if(stop < 0) {
             stop = size + stop;
         }
+        if(stop >= size) {
+            stop = size - 1;
+        }
         
-        // stop is inclusive
-        stop++;
-        
-        if(stop > size) {
-            stop = size;
+        if(start > stop) {
+            return result;
         }
         
-        List<String> result = new ArrayList<String>();
-        Iterator<ElementWithPriority<String>> iterator = set.iterator();
-        int index = 0;
-        while(iterator.hasNext()) {
+        // seek to the start rank, and walk till stop, which is inclusive
+        Iterator<ElementWithPriority<String>> iterator = set.iterator(start);
+        for(int index = start; index <= stop; index++) {
             ElementWithPriority<String> element = iterator.next();
             
-            if(index >= start && index <= stop) {
-                result.add(element.getData());
-                if(withScores) {
-                    result.add(String.valueOf(element.getPriority()));
-                }
+            result.add(element.getData());
+            if(withScores) {
+                result.add(String.valueOf(element.getPriority()));
             }
-            
-            // increment index at last
-            index++;
         }
         
         return result;
@@ -313,26 +280,7 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return null;
         }
         
-        if(set.isEmpty()) {
-            return new ArrayList<String>();
-        }
-        
-        List<String> result = new ArrayList<String>();
-        
-        Iterator<ElementWithPriority<String>> iterator = set.iterator();
-        while(iterator.hasNext()) {
-            ElementWithPriority<String> element = iterator.next();
-            String value = element.getData();
-            
-            if(min.lessThan(value) && max.greaterThan(value)) {
-                result.add(value);
-            }
-        }
-        
-        // must sort this result-set before returning
-        Collections.sort(result);
-        
-        return result;
+        return collect(set, lowerLexRank(set, min), upperLexRank(set, max), false, false, 0, -1);
     }
     
     /* (non-Javadoc)
@@ -353,26 +301,7 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return null;
         }
         
-        if(set.isEmpty()) {
-            return new ArrayList<String>();
-        }
-        
-        List<String> result = new ArrayList<String>();
-        
-        Iterator<ElementWithPriority<String>> iterator = set.iterator();
-        while(iterator.hasNext()) {
-            ElementWithPriority<String> element = iterator.next();
-            String value = element.getData();
-            
-            if(min.lessThan(value) && max.greaterThan(value)) {
-                result.add(value);
-            }
-        }
-        
-        // must sort this result-set before returning
-        Collections.sort(result, Collections.reverseOrder(String.CASE_INSENSITIVE_ORDER));
-        
-        return result;
+        return collect(set, lowerLexRank(set, min), upperLexRank(set, max), true, false, 0, -1);
     }
     
     /* (non-Javadoc)
@@ -393,42 +322,9 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return 0;
         }
         
-        if(set.isEmpty()) {
-            return 0;
-        }
-        
-        Iterator<ElementWithPriority<String>> iterator = set.iterator();
-        int count = 0;
-        while(iterator.hasNext()) {
-            ElementWithPriority<String> element = iterator.next();
-            String value = element.getData();
-            
-            if(min.lessThan(value) && max.greaterThan(value)) {
-                count++;
-            }
-        }
-        
-        return count;
+        return Math.max(0, upperLexRank(set, max) - lowerLexRank(set, min) + 1);
     }
     
-//    // private helper methods
-//    
-//    private Element findInSet(SortedSet<Element> set, String member) {
-//        if(set.isEmpty()) {
-//            return null;
-//        }
-//        
-//        Iterator<Element> iterator = set.iterator();
-//        while(iterator.hasNext()) {
-//            Element element = iterator.next();
-//            if(element.value.equals(member)) {
-//                return element;
-//            }
-//        }
-//        
-//        return null;
-//    }
-    
     /* (non-Javadoc)
      * @see com.sangupta.dryredis.cache.impl.DryRedisSortedSetOperations#zremrangebylex(java.lang.String, java.lang.String, java.lang.String)
      */
@@ -447,24 +343,7 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return 0;
         }
         
-        if(set.isEmpty()) {
-            return 0;
-        }
-        
-        int count = 0;
-        
-        Iterator<ElementWithPriority<String>> iterator = set.iterator();
-        while(iterator.hasNext()) {
-            ElementWithPriority<String> element = iterator.next();
-            String value = element.getData();
-            
-            if(min.lessThan(value) && max.greaterThan(value)) {
-                iterator.remove();
-                count++;
-            }
-        }
-        
-        return count;
+        return set.removeRange(lowerLexRank(set, min), upperLexRank(set, max));
     }
     
     /* (non-Javadoc)
@@ -477,12 +356,7 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return 0;
         }
         
-        if(set.isEmpty()) {
-            return 0;
-        }
-        
         final int size = set.size();
-        
         if(start < 0) {
             start = size + start;
         }
@@ -490,29 +364,8 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             stop = size + stop;
         }
         
-        // inclusive of stop
-        stop++;
-        
-        // bounds
-        if(stop > size) {
-            stop = size;
-        }
-        
-        Iterator<ElementWithPriority<String>> iterator = set.iterator();
-        int rank = 0, removed = 0;
-        while(iterator.hasNext()) {
-            iterator.next(); // just move the pointer
-            
-            if(start <= rank && rank <= stop) {
-                iterator.remove();
-                removed++;
-            }
-            
-            // increase rank at the end
-            rank++;
-        }
-        
-        return removed;
+        // stop is inclusive, bounds are checked by the set
+        return set.removeRange(start, stop);
     }
     
     /* (non-Javadoc)
@@ -525,22 +378,49 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return 0;
         }
         
-        if(set.isEmpty()) {
-            return 0;
+        return set.removeRange(lowerScoreRank(set, min), upperScoreRank(set, max));
+    }
+    
+    /* (non-Javadoc)
+     * @see com.sangupta.dryredis.DryRedisSortedSetOperations#zrangebyscore(java.lang.String, com.sangupta.dryredis.support.DryRedisRangeArgument, com.sangupta.dryredis.support.DryRedisRangeArgument, boolean)
+     */
+    @Override
+    public List<String> zrangebyscore(String key, DryRedisRangeArgument min, DryRedisRangeArgument max, boolean withScores) {
+        return this.zrangebyscore(key, min, max, withScores, 0, -1);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.sangupta.dryredis.DryRedisSortedSetOperations#zrangebyscore(java.lang.String, com.sangupta.dryredis.support.DryRedisRangeArgument, com.sangupta.dryredis.support.DryRedisRangeArgument, boolean, int, int)
+     */
+    @Override
+    public List<String> zrangebyscore(String key, DryRedisRangeArgument min, DryRedisRangeArgument max, boolean withScores, int offset, int count) {
+        SortedSetWithPriority<String> set = this.store.get(key);
+        if(set == null) {
+            return null;
         }
         
-        Iterator<ElementWithPriority<String>> iterator = set.iterator();
-        int removed = 0;
-        while(iterator.hasNext()) {
-            ElementWithPriority<String> element = iterator.next();
-            
-            if(min.lessThan(element.getPriority()) && max.greaterThan(element.getPriority())) {
-                iterator.remove();
-                removed++;
-            }
+        return collect(set, lowerScoreRank(set, min), upperScoreRank(set, max), false, withScores, offset, count);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.sangupta.dryredis.DryRedisSortedSetOperations#zrevrangebyscore(java.lang.String, com.sangupta.dryredis.support.DryRedisRangeArgument, com.sangupta.dryredis.support.DryRedisRangeArgument, boolean)
+     */
+    @Override
+    public List<String> zrevrangebyscore(String key, DryRedisRangeArgument max, DryRedisRangeArgument min, boolean withScores) {
+        return this.zrevrangebyscore(key, max, min, withScores, 0, -1);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.sangupta.dryredis.DryRedisSortedSetOperations#zrevrangebyscore(java.lang.String, com.sangupta.dryredis.support.DryRedisRangeArgument, com.sangupta.dryredis.support.DryRedisRangeArgument, boolean, int, int)
+     */
+    @Override
+    public List<String> zrevrangebyscore(String key, DryRedisRangeArgument max, DryRedisRangeArgument min, boolean withScores, int offset, int count) {
+        SortedSetWithPriority<String> set = this.store.get(key);
+        if(set == null) {
+            return null;
         }
         
-        return removed;
+        return collect(set, lowerScoreRank(set, min), upperScoreRank(set, max), true, withScores, offset, count);
     }
     
     /* (non-Javadoc)
@@ -553,40 +433,32 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
             return null;
         }
         
-        if(set.isEmpty()) {
-            return new ArrayList<String>();
-        }
+        List<String> result = new ArrayList<String>();
         
         final int size = set.size();
         if(start < 0) {
-            start = size + start;
+            start = Math.max(0, size + start);
         }
         if(stop < 0) {
             stop = size + stop;
         }
+        if(stop >= size) {
+            stop = size - 1;
+        }
         
-        // stop is inclusive
-        stop++;
-        
-        if(stop > size) {
-            stop = size;
+        if(start > stop) {
+            return result;
         }
         
-        List<String> result = new ArrayList<String>();
-        Iterator<ElementWithPriority<String>> iterator = set.descendingIterator();
-        int index = 0;
-        while(iterator.hasNext()) {
+        // seek to the start rank, and walk till stop, which is inclusive
+        Iterator<ElementWithPriority<String>> iterator = set.descendingIterator(start);
+        for(int index = start; index <= stop; index++) {
             ElementWithPriority<String> element = iterator.next();
             
-            if(index >= start && index <= stop) {
-                result.add(element.getData());
-                if(withScores) {
-                    result.add(String.valueOf(element.getPriority()));
-                }
+            result.add(element.getData());
+            if(withScores) {
+                result.add(String.valueOf(element.getPriority()));
             }
-            
-            // increment index at last
-            index++;
         }
         
         return result;
@@ -605,44 +477,7 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
      */
     @Override
     public int zinterstore(String destination, List<String> keys, double[] weights, DryRedisSetAggregationType aggregation) {
-        if(keys == null) {
-            throw new IllegalArgumentException("Keys cannot be null");
-        }
-        if(weights != null && keys.size() != weights.length) {
-            throw new IllegalArgumentException("Size of keys must match the size of weights");
-        }
-        
-        SortedSetWithPriority<String> resultSet = null;
-        for(int index = 0; index < keys.size(); index++) {
-            String key = keys.get(index);
-
-            // get weight to be used
-            double weight = 1.0d;
-            if(weights != null) {
-                weight = weights[index];
-            }
-            
-            // find the set
-            SortedSetWithPriority<String> set = this.store.get(key);
-            if(set == null || set.isEmpty()) {
-                // no resulting set is needed - intersection with empty set is empty
-                this.store.put(destination, new SortedSetWithPriority<String>());
-                return 0;
-            }
-            
-            // clone the set and update weight if needed
-            if(index == 0) {
-                resultSet = set.clone();
-                resultSet.applyWeight(weight);
-                continue;
-            }
-            
-            // run intersection
-            resultSet.retainAll(set, weight, aggregation);
-        }
-        
-        this.store.put(destination, resultSet);
-        return resultSet.size();
+        return this.store(destination, this.intersect(keys, weights, aggregation));
     }
     
     /* (non-Javadoc)
@@ -658,33 +493,336 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
      */
     @Override
     public int zunionstore(String destination, List<String> keys, double[] weights, DryRedisSetAggregationType aggregation) {
+        return this.store(destination, this.union(keys, weights, aggregation));
+    }
+    
+    /* (non-Javadoc)
+     * @see com.sangupta.dryredis.cache.impl.DryRedisSortedSetOperations#zinter(java.util.List, boolean)
+     */
+    @Override
+    public List<String> zinter(List<String> keys, boolean withScores) {
+        return this.zinter(keys, null, DryRedisSetAggregationType.SUM, withScores);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.sangupta.dryredis.cache.impl.DryRedisSortedSetOperations#zinter(java.util.List, double[], com.sangupta.dryredis.support.DryRedisSetAggregationType, boolean)
+     */
+    @Override
+    public List<String> zinter(List<String> keys, double[] weights, DryRedisSetAggregationType aggregation, boolean withScores) {
+        List<ElementWithPriority<String>> elements = this.intersect(keys, weights, aggregation);
+        SortedSetWithPriority.sort(elements);
+        return toResult(elements, withScores);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.sangupta.dryredis.cache.impl.DryRedisSortedSetOperations#zunion(java.util.List, boolean)
+     */
+    @Override
+    public List<String> zunion(List<String> keys, boolean withScores) {
+        return this.zunion(keys, null, DryRedisSetAggregationType.SUM, withScores);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.sangupta.dryredis.cache.impl.DryRedisSortedSetOperations#zunion(java.util.List, double[], com.sangupta.dryredis.support.DryRedisSetAggregationType, boolean)
+     */
+    @Override
+    public List<String> zunion(List<String> keys, double[] weights, DryRedisSetAggregationType aggregation, boolean withScores) {
+        List<ElementWithPriority<String>> elements = this.union(keys, weights, aggregation);
+        SortedSetWithPriority.sort(elements);
+        return toResult(elements, withScores);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.sangupta.dryredis.cache.impl.DryRedisSortedSetOperations#zdiff(java.util.List, boolean)
+     */
+    @Override
+    public List<String> zdiff(List<String> keys, boolean withScores) {
         if(keys == null) {
             throw new IllegalArgumentException("Keys cannot be null");
         }
-        if(weights != null && keys.size() != weights.length) {
-            throw new IllegalArgumentException("Size of keys must match the size of weights");
+        
+        List<ElementWithPriority<String>> elements = new ArrayList<ElementWithPriority<String>>();
+        if(keys.isEmpty()) {
+            return toResult(elements, withScores);
+        }
+        
+        SortedSetWithPriority<String> first = this.store.get(keys.get(0));
+        if(first == null) {
+            return toResult(elements, withScores);
+        }
+        
+        List<SortedSetWithPriority<String>> others = new ArrayList<SortedSetWithPriority<String>>();
+        for(int index = 1; index < keys.size(); index++) {
+            SortedSetWithPriority<String> set = this.store.get(keys.get(index));
+            if(set != null && !set.isEmpty()) {
+                others.add(set);
+            }
+        }
+        
+        // walking the first set keeps the result in order
+        for(ElementWithPriority<String> element : first) {
+            if(!containedInAny(others, element.getData())) {
+                elements.add(element);
+            }
         }
         
-        SortedSetWithPriority<String> resultSet = new SortedSetWithPriority<String>();
+        return toResult(elements, withScores);
+    }
+    
+    // private helper methods
+    
+    /**
+     * Store the aggregated elements at the destination, building the sorted
+     * set in one pass.
+     * 
+     * @return the number of elements stored
+     */
+    private int store(String destination, List<ElementWithPriority<String>> elements) {
+        SortedSetWithPriority<String> set = this.newSet();
+        set.load(elements);
+        
+        this.store.put(destination, set);
+        return set.size();
+    }
+    
+    /**
+     * Aggregate the weighted scores of all elements of the given sets in a
+     * hash table. Each input is read once, in order, and no sorted structure
+     * is touched till the result is loaded.
+     * 
+     * @return the elements with their aggregated scores, in no particular
+     *         order
+     */
+    private List<ElementWithPriority<String>> union(List<String> keys, double[] weights, DryRedisSetAggregationType aggregation) {
+        checkArguments(keys, weights);
         
+        Map<String, ElementWithPriority<String>> aggregated = new HashMap<String, ElementWithPriority<String>>();
         for(int index = 0; index < keys.size(); index++) {
-            String key = keys.get(index);
-            
-            SortedSetWithPriority<String> set = this.store.get(key);
+            SortedSetWithPriority<String> set = this.store.get(keys.get(index));
             if(set == null || set.isEmpty()) {
                 continue;
             }
             
-            double weight = 1.0d;
-            if(weights != null) {
-                weight = weights[index];
+            double weight = weights == null ? 1.0d : weights[index];
+            for(ElementWithPriority<String> incoming : set) {
+                double priority = incoming.getPriority() * weight;
+                
+                ElementWithPriority<String> existing = aggregated.get(incoming.getData());
+                if(existing == null) {
+                    aggregated.put(incoming.getData(), new ElementWithPriority<String>(incoming.getData(), priority));
+                } else {
+                    existing.setPriority(aggregation.aggregate(existing.getPriority(), priority));
+                }
+            }
+        }
+        
+        return new ArrayList<ElementWithPriority<String>>(aggregated.values());
+    }
+    
+    /**
+     * Intersect the given sets, like Redis, by walking the smallest set and
+     * probing the others in increasing order of size. Probes are dictionary
+     * lookups, so the cost depends on the smallest input only.
+     * 
+     * @return the elements present in all sets with their aggregated scores,
+     *         in no particular order
+     */
+    private List<ElementWithPriority<String>> intersect(List<String> keys, double[] weights, DryRedisSetAggregationType aggregation) {
+        checkArguments(keys, weights);
+        
+        List<ElementWithPriority<String>> result = new ArrayList<ElementWithPriority<String>>();
+        
+        final List<SortedSetWithPriority<String>> sets = new ArrayList<SortedSetWithPriority<String>>(keys.size());
+        Integer[] order = new Integer[keys.size()];
+        for(int index = 0; index < keys.size(); index++) {
+            SortedSetWithPriority<String> set = this.store.get(keys.get(index));
+            if(set == null || set.isEmpty()) {
+                // intersection with empty set is empty
+                return result;
+            }
+            
+            sets.add(set);
+            order[index] = index;
+        }
+        
+        if(sets.isEmpty()) {
+            return result;
+        }
+        
+        Arrays.sort(order, new Comparator<Integer>() {
+            
+            @Override
+            public int compare(Integer index1, Integer index2) {
+                int size1 = sets.get(index1).size();
+                int size2 = sets.get(index2).size();
+                return size1 < size2 ? -1 : (size1 == size2 ? 0 : 1);
+            }
+            
+        });
+        
+        int smallest = order[0];
+        double smallestWeight = weights == null ? 1.0d : weights[smallest];
+        for(ElementWithPriority<String> element : sets.get(smallest)) {
+            String data = element.getData();
+            double priority = element.getPriority() * smallestWeight;
+            
+            boolean present = true;
+            for(int index = 1; index < order.length; index++) {
+                int other = order[index];
+                Double incoming = sets.get(other).getPriority(data);
+                if(incoming == null) {
+                    present = false;
+                    break;
+                }
+                
+                priority = aggregation.aggregate(priority, incoming * (weights == null ? 1.0d : weights[other]));
+            }
+            
+            if(present) {
+                result.add(new ElementWithPriority<String>(data, priority));
             }
+        }
+        
+        return result;
+    }
+    
+    private static void checkArguments(List<String> keys, double[] weights) {
+        if(keys == null) {
+            throw new IllegalArgumentException("Keys cannot be null");
+        }
+        if(weights != null && keys.size() != weights.length) {
+            throw new IllegalArgumentException("Size of keys must match the size of weights");
+        }
+    }
+    
+    private static boolean containedInAny(List<SortedSetWithPriority<String>> sets, String data) {
+        for(SortedSetWithPriority<String> set : sets) {
+            if(set.getPriority(data) != null) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Convert sorted elements to a reply, adding the score after each element
+     * if needed.
+     */
+    private static List<String> toResult(List<ElementWithPriority<String>> elements, boolean withScores) {
+        List<String> result = new ArrayList<String>(withScores ? elements.size() * 2 : elements.size());
+        for(ElementWithPriority<String> element : elements) {
+            result.add(element.getData());
+            if(withScores) {
+                result.add(String.valueOf(element.getPriority()));
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Create the sorted set for a new key, packed up to the configured limits.
+     */
+    SortedSetWithPriority<String> newSet() {
+        DryRedisConfig config = this.keyspace.getConfig();
+        return new SortedSetWithPriority<String>(config.getInt(DryRedisConfig.ZSET_MAX_LISTPACK_ENTRIES), config.getInt(DryRedisConfig.ZSET_MAX_LISTPACK_VALUE));
+    }
+    
+    /**
+     * Rank of the first element within the lex lower bound.
+     */
+    private static int lowerLexRank(SortedSetWithPriority<String> set, DryRedisRangeArgument min) {
+        if(min.isInfinity()) {
+            return DryRedisRangeArgument.MINUS_INFINITY.equals(min.getValue()) ? 0 : set.size();
+        }
+        
+        return set.lowerRankByData(min.getValue(), min.isInclusive());
+    }
+    
+    /**
+     * Rank of the last element within the lex upper bound.
+     */
+    private static int upperLexRank(SortedSetWithPriority<String> set, DryRedisRangeArgument max) {
+        if(max.isInfinity()) {
+            return DryRedisRangeArgument.PLUS_INFINITY.equals(max.getValue()) ? set.size() - 1 : -1;
+        }
+        
+        return set.upperRankByData(max.getValue(), max.isInclusive());
+    }
+    
+    /**
+     * Rank of the first element within the score lower bound.
+     */
+    private static int lowerScoreRank(SortedSetWithPriority<String> set, DryRedisRangeArgument min) {
+        return set.lowerRankByPriority(min.getScore(), min.isInclusive());
+    }
+    
+    /**
+     * Rank of the last element within the score upper bound.
+     */
+    private static int upperScoreRank(SortedSetWithPriority<String> set, DryRedisRangeArgument max) {
+        return set.upperRankByPriority(max.getScore(), max.isInclusive());
+    }
+    
+    /**
+     * Collect the elements between the two ranks, both inclusive.
+     * 
+     * @param set
+     *            the set to read from
+     * 
+     * @param lower
+     *            the rank of the first element in range
+     * 
+     * @param upper
+     *            the rank of the last element in range
+     * 
+     * @param reverse
+     *            whether to collect from the upper rank downwards
+     * 
+     * @param withScores
+     *            whether to add the score after each element
+     * 
+     * @param offset
+     *            the number of elements in range to skip
+     * 
+     * @param count
+     *            the maximum number of elements to return, negative for all
+     * 
+     * @return the collected elements
+     */
+    private static List<String> collect(SortedSetWithPriority<String> set, int lower, int upper, boolean reverse, boolean withScores, int offset, int count) {
+        List<String> result = new ArrayList<String>();
+        if(offset < 0) {
+            return result;
+        }
+        
+        int available = upper - lower + 1 - offset;
+        if(count >= 0 && count < available) {
+            available = count;
+        }
+        
+        if(available <= 0) {
+            return result;
+        }
+        
+        Iterator<ElementWithPriority<String>> iterator;
+        if(reverse) {
+            iterator = set.descendingIterator(set.size() - 1 - upper + offset);
+        } else {
+            iterator = set.iterator(lower + offset);
+        }
+        
+        for(int index = 0; index < available; index++) {
+            ElementWithPriority<String> element = iterator.next();
             
-            resultSet.addAll(set, weight, aggregation);
+            result.add(element.getData());
+            if(withScores) {
+                result.add(String.valueOf(element.getPriority()));
+            }
         }
         
-        this.store.put(destination, resultSet);
-        return resultSet.size();
+        return result;
     }
     
     // from DryRedisCache interface
@@ -694,4 +832,36 @@ class DryRedisSortedSet extends DryRedisAbstractCache<SortedSetWithPriority<Stri
         return DryRedisCacheType.SORTED_SET;
     }
 
+    @Override
+    protected String getEncoding(SortedSetWithPriority<String> value) {
+        if(value.isPacked()) {
+            return "listpack";
+        }
+        
+        return "skiplist";
+    }
+    
+    @Override
+    protected void writeValue(SortedSetWithPriority<String> value, DryRedisEncoder encoder) {
+        encoder.writeVarint(value.size());
+        for(ElementWithPriority<String> element : value) {
+            encoder.writeString(element.getData());
+            encoder.writeDouble(element.getPriority());
+        }
+    }
+    
+    @Override
+    protected SortedSetWithPriority<String> readValue(DryRedisDecoder decoder) {
+        int count = decoder.readLength();
+        List<ElementWithPriority<String>> elements = new ArrayList<ElementWithPriority<String>>(count);
+        for( ; count > 0; count--) {
+            elements.add(new ElementWithPriority<String>(decoder.readString(), decoder.readDouble()));
+        }
+        
+        // elements were written in order, which keeps the sort cheap
+        SortedSetWithPriority<String> set = this.newSet();
+        set.load(elements);
+        return set;
+    }
+
 }
@@ -69,6 +69,14 @@ interface DryRedisSortedSetOperations {
 
     public int zremrangebyscore(String key, DryRedisRangeArgument min, DryRedisRangeArgument max);
 
+    public List<String> zrangebyscore(String key, DryRedisRangeArgument min, DryRedisRangeArgument max, boolean withScores);
+
+    public List<String> zrangebyscore(String key, DryRedisRangeArgument min, DryRedisRangeArgument max, boolean withScores, int offset, int count);
+
+    public List<String> zrevrangebyscore(String key, DryRedisRangeArgument max, DryRedisRangeArgument min, boolean withScores);
+
+    public List<String> zrevrangebyscore(String key, DryRedisRangeArgument max, DryRedisRangeArgument min, boolean withScores, int offset, int count);
+
     public List<String> zrevrange(String key, int start, int stop, boolean withScores);
 
     public int zinterstore(String destination, List<String> keys);
@@ -79,4 +87,14 @@ interface DryRedisSortedSetOperations {
 
     public int zunionstore(String destination, List<String> keys, double[] weights, DryRedisSetAggregationType aggregation);
 
+    public List<String> zinter(List<String> keys, boolean withScores);
+
+    public List<String> zinter(List<String> keys, double[] weights, DryRedisSetAggregationType aggregation, boolean withScores);
+
+    public List<String> zunion(List<String> keys, boolean withScores);
+
+    public List<String> zunion(List<String> keys, double[] weights, DryRedisSetAggregationType aggregation, boolean withScores);
+
+    public List<String> zdiff(List<String> keys, boolean withScores);
+
 }
@@ -22,31 +22,67 @@
 package com.sangupta.dryredis;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import com.sangupta.dryredis.ds.DynamicString;
 import com.sangupta.dryredis.support.DryRedisBitOperation;
 import com.sangupta.dryredis.support.DryRedisCache;
 import com.sangupta.dryredis.support.DryRedisCacheType;
-import com.sangupta.dryredis.support.DryRedisUtils;
 
-class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCache, DryRedisStringOperations {
+class DryRedisString extends DryRedisAbstractCache<DynamicString> implements DryRedisCache, DryRedisStringOperations {
+    
+    /**
+     * Offsets of bits must be below this, which limits strings to 512 MB
+     */
+    private static final long MAX_BIT_OFFSET = 1l << 32;
+    
+    private static final String BITFIELD_WRAP = "WRAP";
+    
+    private static final String BITFIELD_SAT = "SAT";
+    
+    private static final String BITFIELD_FAIL = "FAIL";
+    
+    /**
+     * Encoding of an integer value in a DUMP payload
+     */
+    private static final byte DUMP_INT = 0;
+    
+    /**
+     * Encoding of a raw value in a DUMP payload
+     */
+    private static final byte DUMP_RAW = 1;
+
+	/**
+	 * Create an instance that uses its own keyspace.
+	 */
+	DryRedisString() {
+	    super();
+	}
+	
+	/**
+	 * Create an instance that stores its keys in the given keyspace.
+	 * 
+	 * @param keyspace
+	 *            the {@link DryRedisKeyspace} to use
+	 */
+	DryRedisString(DryRedisKeyspace keyspace) {
+	    super(keyspace);
+	}
 	
 	@Override
     public int append(String key, String value) {
-		String oldValue = this.store.get(key);
+		DynamicString oldValue = this.unshare(key, this.store.get(key));
 		if(oldValue == null) {
-	        this.store.put(key, value);
-			return value.length();
+		    DynamicString newValue = new DynamicString(value);
+	        this.store.put(key, newValue);
+			return newValue.length();
 		}
 		
-		String newValue = oldValue +  value;
-		this.store.put(key, newValue);
-		return newValue.length();
+		return oldValue.append(value.getBytes(DynamicString.UTF_8));
 	}
 	
 	@Override
@@ -56,29 +92,30 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
 	
 	@Override
     public long incrby(String key, long delta) {
-		String value = this.store.get(key);
+		DynamicString value = this.store.get(key);
 		long longValue = 0;
 		if(value == null) {
 			longValue = 0 + delta;
 		} else {
-			longValue = Long.parseLong(value) + delta;
+			longValue = value.longValue() + delta;
 		}
 		
-		this.store.put(key, String.valueOf(longValue));
+		// integer encoded, so that the next increment needs no parsing
+		this.store.put(key, DynamicString.valueOf(longValue));
 		return longValue;
 	}
 	
 	@Override
     public double incrbyfloat(String key, double delta) {
-		String value = this.store.get(key);
+		DynamicString value = this.store.get(key);
 		double doubleValue = 0d;
 		if(value == null) {
 			doubleValue = 0 + delta;
 		} else {
-			doubleValue = Double.parseDouble(value) + delta;
+			doubleValue = (value.isInteger() ? value.longValue() : Double.parseDouble(value.toString())) + delta;
 		}
 		
-		this.store.put(key, String.valueOf(doubleValue));
+		this.store.put(key, new DynamicString(String.valueOf(doubleValue)));
 		return doubleValue;
 	}
 	
@@ -90,8 +127,7 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
 	    
 		List<String> list = new ArrayList<String>();
 		for(String key : keys) {
-			String value = this.store.get(key);
-			list.add(value);
+			list.add(this.get(key));
 		}
 		
 		return list;
@@ -105,8 +141,7 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
 	    
 		List<String> list = new ArrayList<String>();
 		for(String key : keys) {
-			String value = this.store.get(key);
-			list.add(value);
+			list.add(this.get(key));
 		}
 		
 		return list;
@@ -114,15 +149,21 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
 	
 	@Override
     public String set(String key, String value) {
-		this.store.put(key, value);
+		this.store.put(key, DynamicString.fromString(value));
 		return "OK";
 	}
 	
+	@Override
+	public String set(String key, byte[] value) {
+	    this.store.put(key, new DynamicString(value));
+	    return "OK";
+	}
+	
 	@Override
     public String setnx(String key, String value) {
-		String oldValue = this.store.get(key);
+		DynamicString oldValue = this.store.get(key);
 		if(oldValue == null) {
-	        this.store.put(key, value);
+	        this.store.put(key, DynamicString.fromString(value));
 			return "OK";
 		}
 		
@@ -135,47 +176,23 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
 			return null;
 		}
 		
-		this.store.put(key, value);
+		this.store.put(key, DynamicString.fromString(value));
 		return "OK";
 	}
 	
 	@Override
     public String getrange(String key, int start, int end) {
-		String value = this.store.get(key);
+		DynamicString value = this.store.get(key);
 		if(value == null) {
 			return "";
 		}
 		
-		if(value.isEmpty()) {
-			return "";
-		}
-		
-		// negative values
-		int size = value.length();
-		if(start < 0) {
-			start = size + start;
-		}
-		if(end < 0) {
-			end = size + end;
-		}
-		
-		// end is inclusive in redis
-		end++;
-		
-		// bounds check
-		if(start > size) {
-			return "";
-		}
-		if(end > size) {
-			end = size;
-		}
-		
-		if(start > end) {
+		int[] range = byteRange(value, start, end);
+		if(range == null) {
 		    return "";
 		}
 		
-		// return substring
-		return value.substring(start, end);
+		return value.toString(range[0], range[1]);
 	}
 	
 	@Override
@@ -184,49 +201,33 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
             throw new IllegalArgumentException("Offset cannot be less than zero. Refer REDIS documentation.");
         }
         
-		String existing = this.store.get(key);
+		DynamicString existing = this.unshare(key, this.store.get(key));
 		if(existing == null) {
-			existing = "";
-		}
-		
-		char[] source = existing.toCharArray();
-		int size = offset + value.length();
-		if(source.length < size) {
-			source = Arrays.copyOf(source, size);
+			existing = new DynamicString();
+			this.store.put(key, existing);
 		}
 		
-		char[] chars = value.toCharArray();
-		for(int index = offset; index < size; index++) {
-			source[index] = chars[index - offset];
-		}
-		
-		this.store.put(key, new String(source));
-		return source.length;
+		return existing.setRange(offset, value.getBytes(DynamicString.UTF_8));
 	}
 	
 	@Override
     public long bitcount(String key) {
-	    return this.bitcount(key, 0, key.length());
+	    return this.bitcount(key, 0, -1);
 	}
 	
 	@Override
     public long bitcount(String key, int start, int end) {
-		String value = this.getrange(key, start, end);
+		DynamicString value = this.store.get(key);
 		if(value == null) {
 			return 0;
 		}
 		
-		if(value.isEmpty()) {
-			return 0;
-		}
-		
-		long bits = 0;
-		for(int index = 0; index < value.length(); index++) {
-			char c = value.charAt(index);
-			bits += Integer.bitCount(c);
+		int[] range = byteRange(value, start, end);
+		if(range == null) {
+		    return 0;
 		}
 		
-		return bits;
+		return value.bitCount(range[0], range[1]);
 	}
 	
 	@Override
@@ -241,12 +242,27 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
 	
 	@Override
     public String get(String key) {
-		return this.store.get(key);
+		DynamicString value = this.store.get(key);
+		if(value == null) {
+		    return null;
+		}
+		
+		return value.toString();
+	}
+	
+	@Override
+	public byte[] getBytes(String key) {
+	    DynamicString value = this.store.get(key);
+	    if(value == null) {
+	        return null;
+	    }
+	    
+	    return value.toByteArray();
 	}
 	
 	@Override
     public int strlen(String key) {
-		String value = this.store.get(key);
+		DynamicString value = this.store.get(key);
 		if(value == null) {
 			return 0;
 		}
@@ -256,20 +272,35 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
 	
 	@Override
     public String getset(String key, String value) {
-		String oldValue = this.store.get(key);
-		this.store.put(key, value);
+		String oldValue = this.get(key);
+		this.store.put(key, DynamicString.fromString(value));
 		return oldValue;
 	}
 	
     @Override
     public int bitop(DryRedisBitOperation operation, String destinationKey, String sourceKey, String... otherKeys) {
-        throw new RuntimeException("not yet implemented");
+        int count = 1 + (otherKeys == null ? 0 : otherKeys.length);
+        DynamicString[] sources = new DynamicString[count];
+        sources[0] = this.store.get(sourceKey);
+        for(int index = 1; index < count; index++) {
+            sources[index] = this.store.get(otherKeys[index - 1]);
+        }
+        
+        DynamicString result = DynamicString.bitOp(operation, sources);
+        if(result.length() == 0) {
+            // an empty result removes the destination
+            this.keyspace.remove(destinationKey);
+            return 0;
+        }
+        
+        this.store.put(destinationKey, result);
+        return result.length();
     }
 
     @Override
     public int bitpos(String key, boolean onOrOff) {
-        String value = this.store.get(key);
-        if(key == null || key.isEmpty()) {
+        DynamicString value = this.store.get(key);
+        if(value == null || value.length() == 0) {
             if(onOrOff) {
                 return -1;
             }
@@ -277,14 +308,19 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
             return 0;
         }
         
-        byte[] bytes = value.getBytes();
-        return DryRedisUtils.getNextBit(bytes, onOrOff, 0, bytes.length);
+        long position = value.bitPos(onOrOff, 0, value.length());
+        if(position == -1 && !onOrOff) {
+            // without an end, the string is considered padded with zeros
+            return value.length() * 8;
+        }
+        
+        return (int) position;
     }
 
     @Override
     public int bitpos(String key, boolean onOrOff, int startByte, int endByte) {
-        String value = this.store.get(key);
-        if(key == null || key.isEmpty()) {
+        DynamicString value = this.store.get(key);
+        if(value == null || value.length() == 0) {
             if(onOrOff) {
                 return -1;
             }
@@ -292,31 +328,282 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
             return 0;
         }
         
-        byte[] bytes = value.getBytes();
-        return DryRedisUtils.getNextBit(bytes, onOrOff, startByte, endByte);
+        int[] range = byteRange(value, startByte, endByte);
+        if(range == null) {
+            return -1;
+        }
+        
+        return (int) value.bitPos(onOrOff, range[0], range[1]);
     }
 
     @Override
     public int getbit(String key, long offset) {
-        String value = this.store.get(key);
-        if(key == null || key.isEmpty()) {
-            return 0;
-        }
+        checkBitOffset(offset);
         
-        byte[] bytes = value.getBytes();
-        int byteNum = (int) (offset / 8);
-        if(byteNum >= bytes.length) {
+        DynamicString value = this.store.get(key);
+        if(value == null) {
             return 0;
         }
         
-        byte bite = bytes[byteNum];
-        int bit = (int) (offset % 8);
-        return (bite >> bit) & 1;
+        return value.getBit(offset);
     }
 
     @Override
     public int setbit(String key, long offset, boolean onOrOff) {
-        throw new RuntimeException("not yet implemented");
+        checkBitOffset(offset);
+        
+        DynamicString value = this.unshare(key, this.store.get(key));
+        if(value == null) {
+            value = new DynamicString();
+            this.store.put(key, value);
+        }
+        
+        return value.setBit(offset, onOrOff);
+    }
+    
+    @Override
+    public List<Long> bitfield(String key, String... arguments) {
+        if(arguments == null) {
+            arguments = new String[0];
+        }
+        
+        DynamicString value = this.unshare(key, this.store.get(key));
+        List<Long> results = new ArrayList<Long>();
+        
+        String overflow = BITFIELD_WRAP;
+        int index = 0;
+        while(index < arguments.length) {
+            String subCommand = arguments[index++].toUpperCase();
+            if("OVERFLOW".equals(subCommand)) {
+                overflow = bitfieldArgument(arguments, index++).toUpperCase();
+                if(!BITFIELD_WRAP.equals(overflow) && !BITFIELD_SAT.equals(overflow) && !BITFIELD_FAIL.equals(overflow)) {
+                    throw new IllegalArgumentException("Invalid OVERFLOW type specified");
+                }
+                
+                continue;
+            }
+            
+            if(!"GET".equals(subCommand) && !"SET".equals(subCommand) && !"INCRBY".equals(subCommand)) {
+                throw new IllegalArgumentException("Unknown BITFIELD sub-command: " + subCommand);
+            }
+            
+            // type is i1 to i64, or u1 to u63
+            String type = bitfieldArgument(arguments, index++);
+            boolean signed = type.length() > 1 && (type.charAt(0) == 'i' || type.charAt(0) == 'I');
+            if(!signed && !(type.length() > 1 && (type.charAt(0) == 'u' || type.charAt(0) == 'U'))) {
+                throw new IllegalArgumentException("Invalid bitfield type. Use something like i16 u8. Note that u64 is not supported but i64 is.");
+            }
+            
+            int bits;
+            try {
+                bits = Integer.parseInt(type.substring(1));
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid bitfield type. Use something like i16 u8. Note that u64 is not supported but i64 is.");
+            }
+            
+            if(bits < 1 || bits > (signed ? 64 : 63)) {
+                throw new IllegalArgumentException("Invalid bitfield type. Use something like i16 u8. Note that u64 is not supported but i64 is.");
+            }
+            
+            // offset is in bits, or in multiples of the width when prefixed with #
+            String offsetArgument = bitfieldArgument(arguments, index++);
+            long offset;
+            try {
+                if(offsetArgument.startsWith("#")) {
+                    offset = Long.parseLong(offsetArgument.substring(1)) * bits;
+                } else {
+                    offset = Long.parseLong(offsetArgument);
+                }
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Bit offset is not an integer or out of range");
+            }
+            
+            checkBitOffset(offset);
+            checkBitOffset(offset + bits - 1);
+            
+            long current = 0;
+            if(value != null) {
+                current = value.getBits(offset, bits);
+                if(signed && bits < 64) {
+                    // sign extend
+                    current = (current << (64 - bits)) >> (64 - bits);
+                }
+            }
+            
+            if("GET".equals(subCommand)) {
+                results.add(current);
+                continue;
+            }
+            
+            long argument;
+            try {
+                argument = Long.parseLong(bitfieldArgument(arguments, index++));
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Value is not an integer or out of range");
+            }
+            
+            Long updated;
+            if("SET".equals(subCommand)) {
+                updated = bitfieldOverflow(argument, 0, bits, signed, overflow);
+            } else {
+                updated = bitfieldOverflow(current, argument, bits, signed, overflow);
+            }
+            
+            if(updated == null) {
+                // overflow with FAIL does not change the value
+                results.add(null);
+                continue;
+            }
+            
+            if(value == null) {
+                value = new DynamicString();
+                this.store.put(key, value);
+            }
+            
+            value.setBits(offset, bits, updated);
+            results.add("SET".equals(subCommand) ? current : updated);
+        }
+        
+        return results;
+    }
+    
+    // private methods
+    
+    /**
+     * Replace an integer encoded value with a copy held as bytes before it is
+     * modified in place, the same way as <code>dbUnshareStringValue</code> in
+     * Redis, as small integers are shared between keys.
+     * 
+     * @return the value to modify, or <code>null</code> if there is none
+     */
+    private DynamicString unshare(String key, DynamicString value) {
+        if(value == null || !value.isInteger()) {
+            return value;
+        }
+        
+        DynamicString raw = new DynamicString(value.toByteArray());
+        this.store.put(key, raw);
+        return raw;
+    }
+    
+    /**
+     * Convert a Redis range of bytes, where both ends are inclusive and
+     * negative values count from the end, into a range whose end is
+     * exclusive.
+     * 
+     * @return the start and end of the range, or <code>null</code> if empty
+     */
+    private static int[] byteRange(DynamicString value, int start, int end) {
+        int size = value.length();
+		if(start < 0) {
+			start = size + start;
+		}
+		if(end < 0) {
+			end = size + end;
+		}
+		
+		// end is inclusive in redis
+		end++;
+		
+		// bounds check
+		if(start < 0) {
+		    start = 0;
+		}
+		if(end > size) {
+			end = size;
+		}
+		
+		if(start >= end) {
+		    return null;
+		}
+		
+		return new int[] { start, end };
+    }
+    
+    /**
+     * Make sure a bit offset is within the 512 MB limit of Redis strings.
+     */
+    private static void checkBitOffset(long offset) {
+        if(offset < 0 || offset >= MAX_BIT_OFFSET) {
+            throw new IllegalArgumentException("Bit offset is not an integer or out of range");
+        }
+    }
+    
+    /**
+     * Check if the BITFIELD sub-commands may change the value.
+     * 
+     * @param arguments
+     *            the arguments of BITFIELD
+     * 
+     * @return <code>true</code> if there is a SET or INCRBY sub-command
+     */
+    static boolean isBitfieldWrite(String[] arguments) {
+        if(arguments == null) {
+            return false;
+        }
+        
+        for(String argument : arguments) {
+            if("SET".equalsIgnoreCase(argument) || "INCRBY".equalsIgnoreCase(argument)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private static String bitfieldArgument(String[] arguments, int index) {
+        if(index >= arguments.length) {
+            throw new IllegalArgumentException("Wrong number of arguments for BITFIELD");
+        }
+        
+        return arguments[index];
+    }
+    
+    /**
+     * Add the increment to a value stored in a bitfield of the given width,
+     * handling overflow the same way as Redis.
+     * 
+     * @return the new value, or <code>null</code> if it overflows and the
+     *         overflow type is <code>FAIL</code>
+     */
+    private static Long bitfieldOverflow(long value, long increment, int bits, boolean signed, String overflow) {
+        long max;
+        long min;
+        if(signed) {
+            max = bits == 64 ? Long.MAX_VALUE : (1l << (bits - 1)) - 1;
+            min = -max - 1;
+        } else {
+            max = (1l << bits) - 1;
+            min = 0;
+        }
+        
+        // compare against the remaining headroom, which for 64 bits can
+        // itself only be computed without overflow for one sign of the value
+        boolean up = value > max || (increment > 0 && (bits < 64 || value >= 0) && increment > max - value);
+        boolean down = value < min || (increment < 0 && (bits < 64 || value < 0) && increment < min - value);
+        if(!up && !down) {
+            return value + increment;
+        }
+        
+        if(BITFIELD_FAIL.equals(overflow)) {
+            return null;
+        }
+        
+        if(BITFIELD_SAT.equals(overflow)) {
+            return up ? max : min;
+        }
+        
+        // wrap around by keeping only the lowest bits
+        long wrapped = value + increment;
+        if(bits == 64) {
+            return wrapped;
+        }
+        
+        if(signed) {
+            return (wrapped << (64 - bits)) >> (64 - bits);
+        }
+        
+        return wrapped & max;
     }
 
 	// interface commands
@@ -326,6 +613,42 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
 		return DryRedisCacheType.STRING;
 	}
 
+	@Override
+	protected String getEncoding(DynamicString value) {
+	    if(value.isInteger()) {
+	        return "int";
+	    }
+	    
+		return "raw";
+	}
+	
+	@Override
+	protected void writeValue(DynamicString value, DryRedisEncoder encoder) {
+	    if(value.isInteger()) {
+	        encoder.writeByte(DUMP_INT);
+	        encoder.writeSignedVarint(value.longValue());
+	        return;
+	    }
+	    
+	    encoder.writeByte(DUMP_RAW);
+	    encoder.writeBytes(value.toByteArray());
+	}
+	
+	@Override
+	protected DynamicString readValue(DryRedisDecoder decoder) {
+	    byte encoding = decoder.readByte();
+	    switch(encoding) {
+	        case DUMP_INT:
+	            return DynamicString.valueOf(decoder.readSignedVarint());
+	            
+	        case DUMP_RAW:
+	            return new DynamicString(decoder.readBytes());
+	            
+	        default:
+	            throw new IllegalArgumentException("Bad data format: unknown string encoding " + encoding);
+	    }
+	}
+
     @Override
     public String mset(Map<String, String> values) {
         if(values == null || values.isEmpty()) {
@@ -333,7 +656,7 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
         }
         
         for(Entry<String, String> entry : values.entrySet()) {
-            this.store.put(entry.getKey(), entry.getValue());
+            this.store.put(entry.getKey(), DynamicString.fromString(entry.getValue()));
         }
         
         return "OK";
@@ -353,7 +676,7 @@ class DryRedisString extends DryRedisAbstractCache<String> implements DryRedisCa
         }
         
         for(String key : keys) {
-            this.store.put(key, values.get(key));
+            this.store.put(key, DynamicString.fromString(values.get(key)));
         }
         
         return 1;
@@ -42,6 +42,12 @@ interface DryRedisStringOperations {
     List<String> mget(Collection<String> keys);
 
     String set(String key, String value);
+    
+    /**
+     * Set the key to the given bytes, stored as is without any charset
+     * conversion.
+     */
+    String set(String key, byte[] value);
 
     String setnx(String key, String value);
 
@@ -60,6 +66,11 @@ interface DryRedisStringOperations {
     long decrby(String key, long delta);
 
     String get(String key);
+    
+    /**
+     * Return the bytes stored against the key, without any charset conversion.
+     */
+    byte[] getBytes(String key);
 
     int strlen(String key);
 
@@ -75,6 +86,15 @@ interface DryRedisStringOperations {
  
     int setbit(String key, long offset, boolean onOrOff);
     
+    /**
+     * Run BITFIELD sub-commands, given the same way as in Redis, such as
+     * <code>"INCRBY", "u8", "#2", "1"</code> or <code>"OVERFLOW", "SAT"</code>.
+     * 
+     * @return one result per GET, SET or INCRBY sub-command, <code>null</code>
+     *         when an overflow fails the sub-command
+     */
+    List<Long> bitfield(String key, String... arguments);
+    
     String mset(Map<String, String> values);
     
     int msetnx(Map<String, String> values);
@@ -0,0 +1,288 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import com.sangupta.dryredis.support.DryRedisBitOperation;
+
+/**
+ * Operations on bitmaps stored in byte arrays, using the bit order of Redis
+ * where bit <code>0</code> is the most significant bit of the first byte.
+ * 
+ * Bytes are read eight at a time as big-endian <code>long</code> words, so
+ * that bit <code>n</code> of the bitmap is bit <code>63 - (n % 64)</code>
+ * of its word. This lets counting, searching and combining bitmaps work on a
+ * whole word at a time using {@link Long#bitCount(long)} and
+ * {@link Long#numberOfLeadingZeros(long)}.
+ * 
+ * @author sangupta
+ *
+ */
+public class Bitmaps {
+    
+    private Bitmaps() {
+        // static methods only
+    }
+    
+    /**
+     * Count the bits that are set in the given range of bytes.
+     * 
+     * @param bytes
+     *            the bitmap
+     * 
+     * @param from
+     *            the index of the first byte, inclusive
+     * 
+     * @param to
+     *            the index of the last byte, exclusive
+     * 
+     * @return the number of bits set
+     */
+    public static long bitCount(byte[] bytes, int from, int to) {
+        long bits = 0;
+        int index = from;
+        for(; index + 8 <= to; index += 8) {
+            bits += Long.bitCount(readLong(bytes, index));
+        }
+        
+        for(; index < to; index++) {
+            bits += Integer.bitCount(bytes[index] & 0xFF);
+        }
+        
+        return bits;
+    }
+    
+    /**
+     * Find the first bit with the given value in the range of bytes.
+     * 
+     * @param bytes
+     *            the bitmap
+     * 
+     * @param bit
+     *            <code>true</code> to look for a set bit, <code>false</code>
+     *            for a clear one
+     * 
+     * @param from
+     *            the index of the first byte, inclusive
+     * 
+     * @param to
+     *            the index of the last byte, exclusive
+     * 
+     * @return the offset of the bit from the start of the bitmap, or
+     *         <code>-1</code> if no such bit exists in the range
+     */
+    public static long bitPos(byte[] bytes, boolean bit, int from, int to) {
+        int index = from;
+        for(; index + 8 <= to; index += 8) {
+            long word = readLong(bytes, index);
+            if(!bit) {
+                word = ~word;
+            }
+            
+            if(word != 0) {
+                return index * 8l + Long.numberOfLeadingZeros(word);
+            }
+        }
+        
+        for(; index < to; index++) {
+            int value = bytes[index] & 0xFF;
+            if(!bit) {
+                value = ~value & 0xFF;
+            }
+            
+            if(value != 0) {
+                return index * 8l + Integer.numberOfLeadingZeros(value) - 24;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Combine bitmaps with the given operation. Bitmaps shorter than the
+     * longest one are treated as padded with zero bytes.
+     * 
+     * @param operation
+     *            the operation, {@link DryRedisBitOperation#NOT} takes exactly
+     *            one bitmap
+     * 
+     * @param sources
+     *            the bitmaps to combine
+     * 
+     * @param lengths
+     *            the number of bytes used in each bitmap
+     * 
+     * @return the resulting bitmap, as long as the longest source
+     */
+    public static byte[] bitOp(DryRedisBitOperation operation, byte[][] sources, int[] lengths) {
+        if(operation == DryRedisBitOperation.NOT && sources.length != 1) {
+            throw new IllegalArgumentException("BITOP NOT must be called with a single source key");
+        }
+        
+        int length = 0;
+        for(int size : lengths) {
+            length = Math.max(length, size);
+        }
+        
+        byte[] result = new byte[length];
+        for(int index = 0; index < length; index += 8) {
+            long word = readLong(sources[0], lengths[0], index);
+            switch(operation) {
+                case NOT:
+                    word = ~word;
+                    break;
+                    
+                case AND:
+                    for(int source = 1; source < sources.length && word != 0; source++) {
+                        word &= readLong(sources[source], lengths[source], index);
+                    }
+                    break;
+                    
+                case OR:
+                    for(int source = 1; source < sources.length; source++) {
+                        word |= readLong(sources[source], lengths[source], index);
+                    }
+                    break;
+                    
+                case XOR:
+                    for(int source = 1; source < sources.length; source++) {
+                        word ^= readLong(sources[source], lengths[source], index);
+                    }
+                    break;
+                    
+                default:
+                    throw new IllegalArgumentException("Unknown bit operation: " + operation);
+            }
+            
+            writeLong(result, length, index, word);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Read an unsigned integer of the given width starting at a bit offset.
+     * Bits past the used length read as zero.
+     * 
+     * @param bytes
+     *            the bitmap
+     * 
+     * @param length
+     *            the number of bytes used in the bitmap
+     * 
+     * @param offset
+     *            the offset of the most significant bit of the integer
+     * 
+     * @param bits
+     *            the width of the integer, from <code>1</code> to
+     *            <code>64</code>
+     * 
+     * @return the integer in the lowest bits of the result
+     */
+    public static long getBits(byte[] bytes, int length, long offset, int bits) {
+        long value = 0;
+        for(int bit = 0; bit < bits; bit++) {
+            long position = offset + bit;
+            long index = position >>> 3;
+            int current = 0;
+            if(index < length) {
+                current = (bytes[(int) index] >> (7 - (int) (position & 7))) & 1;
+            }
+            
+            value = (value << 1) | current;
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Write the lowest bits of a value as an integer of the given width
+     * starting at a bit offset. The bitmap must be long enough.
+     * 
+     * @param bytes
+     *            the bitmap
+     * 
+     * @param offset
+     *            the offset of the most significant bit of the integer
+     * 
+     * @param bits
+     *            the width of the integer, from <code>1</code> to
+     *            <code>64</code>
+     * 
+     * @param value
+     *            the value to write
+     */
+    public static void setBits(byte[] bytes, long offset, int bits, long value) {
+        for(int bit = 0; bit < bits; bit++) {
+            long position = offset + bit;
+            int index = (int) (position >>> 3);
+            int mask = 1 << (7 - (int) (position & 7));
+            if(((value >>> (bits - 1 - bit)) & 1) != 0) {
+                bytes[index] |= mask;
+            } else {
+                bytes[index] &= ~mask;
+            }
+        }
+    }
+    
+    /**
+     * Read eight bytes starting at the given index as a big-endian word.
+     */
+    private static long readLong(byte[] bytes, int index) {
+        return ((bytes[index] & 0xFFl) << 56)
+                | ((bytes[index + 1] & 0xFFl) << 48)
+                | ((bytes[index + 2] & 0xFFl) << 40)
+                | ((bytes[index + 3] & 0xFFl) << 32)
+                | ((bytes[index + 4] & 0xFFl) << 24)
+                | ((bytes[index + 5] & 0xFFl) << 16)
+                | ((bytes[index + 6] & 0xFFl) << 8)
+                | (bytes[index + 7] & 0xFFl);
+    }
+    
+    /**
+     * Read a big-endian word where bytes past the used length read as zero.
+     */
+    private static long readLong(byte[] bytes, int length, int index) {
+        if(index + 8 <= length) {
+            return readLong(bytes, index);
+        }
+        
+        long word = 0;
+        for(int offset = 0; offset < 8; offset++) {
+            word <<= 8;
+            if(index + offset < length) {
+                word |= bytes[index + offset] & 0xFFl;
+            }
+        }
+        
+        return word;
+    }
+    
+    /**
+     * Write a big-endian word, dropping the bytes past the given length.
+     */
+    private static void writeLong(byte[] bytes, int length, int index, long word) {
+        for(int offset = 0; offset < 8 && index + offset < length; offset++) {
+            bytes[index + offset] = (byte) (word >>> (56 - 8 * offset));
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The CRC-64 checksum used by Redis to protect DUMP payloads and RDB files:
+ * the Jones polynomial <code>0xad93d23594c935a9</code>, with reflected input
+ * and output, an initial value of zero and no final xor. Bytes are processed
+ * one at a time through a table of 256 entries.
+ * 
+ * @author sangupta
+ *
+ */
+public class Crc64 {
+	
+	/**
+	 * The Jones polynomial in reflected form
+	 */
+	private static final long POLYNOMIAL = 0x95ac9329ac4bc9b5l;
+	
+	private static final long[] TABLE = new long[256];
+	
+	static {
+		for (int index = 0; index < TABLE.length; index++) {
+			long crc = index;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			
+			TABLE[index] = crc;
+		}
+	}
+	
+	private Crc64() {
+		// no instances
+	}
+	
+	/**
+	 * Update the checksum with the given bytes.
+	 * 
+	 * @param crc
+	 *            the checksum of the bytes before, <code>0</code> to start
+	 * 
+	 * @param bytes
+	 *            the bytes to add
+	 * 
+	 * @param offset
+	 *            the index of the first byte
+	 * 
+	 * @param length
+	 *            the number of bytes to add
+	 * 
+	 * @return the updated checksum
+	 */
+	public static long update(long crc, byte[] bytes, int offset, int length) {
+		final int end = offset + length;
+		for (int index = offset; index < end; index++) {
+			crc = TABLE[(int) ((crc ^ bytes[index]) & 0xff)] ^ (crc >>> 8);
+		}
+		
+		return crc;
+	}
+	
+	/**
+	 * Update the checksum with the remaining bytes of the given buffer, which
+	 * may be a direct or memory mapped buffer. The position of the buffer is
+	 * left unchanged.
+	 * 
+	 * @param crc
+	 *            the checksum of the bytes before, <code>0</code> to start
+	 * 
+	 * @param bytes
+	 *            the bytes to add
+	 * 
+	 * @return the updated checksum
+	 */
+	public static long update(long crc, ByteBuffer bytes) {
+		final int end = bytes.limit();
+		for (int index = bytes.position(); index < end; index++) {
+			crc = TABLE[(int) ((crc ^ bytes.get(index)) & 0xff)] ^ (crc >>> 8);
+		}
+		
+		return crc;
+	}
+	
+	/**
+	 * Compute the checksum of the given bytes.
+	 * 
+	 * @param bytes
+	 *            the bytes
+	 * 
+	 * @return the checksum
+	 */
+	public static long checksum(byte[] bytes) {
+		return update(0, bytes, 0, bytes.length);
+	}
+
+}
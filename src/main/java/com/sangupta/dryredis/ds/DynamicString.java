@@ -0,0 +1,683 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.sangupta.dryredis.support.DryRedisBitOperation;
+
+/**
+ * A binary-safe, mutable string of bytes modelled after the simple dynamic
+ * strings (SDS) of Redis. The bytes are kept in a buffer with spare capacity
+ * at the end, so that appending to the string or writing past its end is
+ * amortized <code>O(1)</code>, and bit operations update the buffer in place.
+ * 
+ * Like Redis, the buffer doubles in size when it grows until it reaches 1 MB,
+ * after which it grows by 1 MB at a time.
+ * 
+ * Strings are converted from and to Java {@link String}s using UTF-8.
+ * 
+ * Like the <code>OBJ_ENCODING_INT</code> of Redis, a string that holds the
+ * canonical decimal form of a <code>long</code> can be kept as the number
+ * itself, and is only converted to bytes when read. Such strings are created
+ * with {@link #valueOf(long)} or {@link #fromString(String)}, and the ones for
+ * small non-negative numbers are shared. Modifying an integer string converts
+ * it to bytes first, which is not allowed for shared strings: callers must
+ * replace them with a copy before modifying them.
+ * 
+ * @author sangupta
+ *
+ */
+public class DynamicString implements Serializable {
+    
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * The charset used to convert from and to {@link String}s
+     */
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    /**
+     * Size after which the buffer grows linearly instead of doubling
+     */
+    private static final int MAX_PREALLOCATE = 1024 * 1024;
+    
+    private static final byte[] EMPTY = new byte[0];
+    
+    /**
+     * Number of non-negative integers, starting at zero, whose strings are
+     * shared
+     */
+    public static final int SHARED_INTEGERS = 10000;
+    
+    /**
+     * Longest decimal form of a <code>long</code>, including the sign
+     */
+    private static final int MAX_LONG_DIGITS = 20;
+    
+    private static final DynamicString[] SHARED = new DynamicString[SHARED_INTEGERS];
+    
+    static {
+        for(int index = 0; index < SHARED_INTEGERS; index++) {
+            SHARED[index] = new DynamicString(index, true);
+        }
+    }
+    
+    /**
+     * The buffer, of which only the first {@link #length} bytes are used, or
+     * <code>null</code> if the string is held as an {@link #integer}
+     */
+    private byte[] bytes;
+    
+    /**
+     * Number of bytes in use
+     */
+    private int length;
+    
+    /**
+     * The value of an integer encoded string
+     */
+    private long integer;
+    
+    /**
+     * Whether this is one of the shared integer strings
+     */
+    private transient boolean shared;
+    
+    /**
+     * Create an empty string.
+     */
+    public DynamicString() {
+        this.bytes = EMPTY;
+    }
+    
+    /**
+     * Create a string holding a copy of the given bytes.
+     * 
+     * @param bytes
+     *            the bytes to copy
+     */
+    public DynamicString(byte[] bytes) {
+        this.bytes = bytes.clone();
+        this.length = bytes.length;
+    }
+    
+    /**
+     * Create a string holding the UTF-8 bytes of the given value.
+     * 
+     * @param value
+     *            the value to encode
+     */
+    public DynamicString(String value) {
+        this.bytes = value.getBytes(UTF_8);
+        this.length = this.bytes.length;
+    }
+    
+    /**
+     * Create a string over the given bytes, without copying them. The bytes
+     * must not be changed afterwards.
+     * 
+     * @param bytes
+     *            the bytes to take over
+     * 
+     * @return the string
+     */
+    public static DynamicString wrap(byte[] bytes) {
+        DynamicString string = new DynamicString();
+        string.bytes = bytes;
+        string.length = bytes.length;
+        return string;
+    }
+    
+    private DynamicString(long integer, boolean shared) {
+        this.integer = integer;
+        this.length = digits(integer);
+        this.shared = shared;
+    }
+    
+    /**
+     * Return an integer encoded string for the value, which is shared if the
+     * value is small.
+     * 
+     * @param value
+     *            the value
+     * 
+     * @return the string
+     */
+    public static DynamicString valueOf(long value) {
+        if(value >= 0 && value < SHARED_INTEGERS) {
+            return SHARED[(int) value];
+        }
+        
+        return new DynamicString(value, false);
+    }
+    
+    /**
+     * Create a string for the given value, using the integer encoding if the
+     * value is the canonical decimal form of a <code>long</code>, the same way
+     * as Redis does.
+     * 
+     * @param value
+     *            the value
+     * 
+     * @return the string
+     */
+    public static DynamicString fromString(String value) {
+        if(isCanonicalLong(value)) {
+            try {
+                return valueOf(Long.parseLong(value));
+            } catch(NumberFormatException e) {
+                // out of range
+            }
+        }
+        
+        return new DynamicString(value);
+    }
+    
+    /**
+     * @return <code>true</code> if this string is held as an integer
+     */
+    public boolean isInteger() {
+        return this.bytes == null;
+    }
+    
+    /**
+     * Return the value of this string as a <code>long</code>, parsing it only
+     * if it is not integer encoded.
+     * 
+     * @return the value
+     * 
+     * @throws NumberFormatException
+     *             if the string is not an integer
+     */
+    public long longValue() {
+        if(this.bytes == null) {
+            return this.integer;
+        }
+        
+        return Long.parseLong(this.toString());
+    }
+    
+    /**
+     * @return the number of bytes in this string
+     */
+    public int length() {
+        return this.length;
+    }
+    
+    /**
+     * @return the number of bytes that can be added without growing the buffer
+     */
+    public int available() {
+        if(this.bytes == null) {
+            return 0;
+        }
+        
+        return this.bytes.length - this.length;
+    }
+    
+    /**
+     * Return the byte at the given index.
+     * 
+     * @param index
+     *            the index of the byte
+     * 
+     * @return the byte
+     * 
+     * @throws IndexOutOfBoundsException
+     *             if the index is not within the string
+     */
+    public byte byteAt(int index) {
+        if(index < 0 || index >= this.length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", length: " + this.length);
+        }
+        
+        return this.bytes()[index];
+    }
+    
+    /**
+     * Append the given bytes to the end of this string.
+     * 
+     * @param value
+     *            the bytes to append
+     * 
+     * @return the new length of the string
+     */
+    public int append(byte[] value) {
+        this.toRaw();
+        this.ensureLength(this.length + value.length);
+        System.arraycopy(value, 0, this.bytes, this.length, value.length);
+        this.length += value.length;
+        return this.length;
+    }
+    
+    /**
+     * Overwrite the bytes starting at the given offset with the given value.
+     * If the offset is past the end of the string, the gap is filled with zero
+     * bytes.
+     * 
+     * @param offset
+     *            the index of the first byte to overwrite
+     * 
+     * @param value
+     *            the bytes to write
+     * 
+     * @return the new length of the string
+     */
+    public int setRange(int offset, byte[] value) {
+        if(offset < 0) {
+            throw new IllegalArgumentException("Offset cannot be negative");
+        }
+        
+        this.toRaw();
+        int end = offset + value.length;
+        if(end > this.length) {
+            this.ensureLength(end);
+            this.length = end;
+        }
+        
+        System.arraycopy(value, 0, this.bytes, offset, value.length);
+        return this.length;
+    }
+    
+    /**
+     * Return the bit at the given offset, where bit <code>0</code> is the most
+     * significant bit of the first byte, the same way as Redis.
+     * 
+     * @param offset
+     *            the offset of the bit
+     * 
+     * @return the bit, <code>0</code> if the offset is past the end of the
+     *         string
+     */
+    public int getBit(long offset) {
+        long index = offset >>> 3;
+        if(offset < 0 || index >= this.length) {
+            return 0;
+        }
+        
+        return (this.bytes()[(int) index] >> (7 - (int) (offset & 7))) & 1;
+    }
+    
+    /**
+     * Set or clear the bit at the given offset, growing the string with zero
+     * bytes as needed.
+     * 
+     * @param offset
+     *            the offset of the bit
+     * 
+     * @param value
+     *            <code>true</code> to set the bit, <code>false</code> to clear
+     *            it
+     * 
+     * @return the previous value of the bit
+     */
+    public int setBit(long offset, boolean value) {
+        if(offset < 0 || (offset >>> 3) >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bit offset is not an integer or out of range");
+        }
+        
+        this.toRaw();
+        int index = (int) (offset >>> 3);
+        if(index >= this.length) {
+            this.ensureLength(index + 1);
+            this.length = index + 1;
+        }
+        
+        int mask = 1 << (7 - (int) (offset & 7));
+        int previous = (this.bytes[index] & mask) != 0 ? 1 : 0;
+        if(value) {
+            this.bytes[index] |= mask;
+        } else {
+            this.bytes[index] &= ~mask;
+        }
+        
+        return previous;
+    }
+    
+    /**
+     * Count the bits that are set in the given range of bytes.
+     * 
+     * @param from
+     *            the index of the first byte, inclusive
+     * 
+     * @param to
+     *            the index of the last byte, exclusive
+     * 
+     * @return the number of bits set
+     */
+    public long bitCount(int from, int to) {
+        this.checkRange(from, to);
+        return Bitmaps.bitCount(this.bytes(), from, to);
+    }
+    
+    /**
+     * Find the first bit with the given value in the range of bytes.
+     * 
+     * @param bit
+     *            <code>true</code> to look for a set bit, <code>false</code>
+     *            for a clear one
+     * 
+     * @param from
+     *            the index of the first byte, inclusive
+     * 
+     * @param to
+     *            the index of the last byte, exclusive
+     * 
+     * @return the offset of the bit, or <code>-1</code> if there is no such
+     *         bit in the range
+     */
+    public long bitPos(boolean bit, int from, int to) {
+        this.checkRange(from, to);
+        return Bitmaps.bitPos(this.bytes(), bit, from, to);
+    }
+    
+    /**
+     * Read an unsigned integer of the given width starting at a bit offset.
+     * Bits past the end of the string read as zero.
+     * 
+     * @param offset
+     *            the offset of the most significant bit
+     * 
+     * @param bits
+     *            the width, from <code>1</code> to <code>64</code>
+     * 
+     * @return the integer in the lowest bits of the result
+     */
+    public long getBits(long offset, int bits) {
+        return Bitmaps.getBits(this.bytes(), this.length, offset, bits);
+    }
+    
+    /**
+     * Write the lowest bits of the value as an integer of the given width
+     * starting at a bit offset, growing the string with zero bytes as needed.
+     * 
+     * @param offset
+     *            the offset of the most significant bit
+     * 
+     * @param bits
+     *            the width, from <code>1</code> to <code>64</code>
+     * 
+     * @param value
+     *            the value to write
+     */
+    public void setBits(long offset, int bits, long value) {
+        long last = (offset + bits - 1) >>> 3;
+        if(offset < 0 || last >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bit offset is not an integer or out of range");
+        }
+        
+        this.toRaw();
+        if(last >= this.length) {
+            this.ensureLength((int) last + 1);
+            this.length = (int) last + 1;
+        }
+        
+        Bitmaps.setBits(this.bytes, offset, bits, value);
+    }
+    
+    /**
+     * Combine strings as bitmaps with the given operation.
+     * 
+     * @param operation
+     *            the operation to apply
+     * 
+     * @param sources
+     *            the strings to combine, where <code>null</code> is treated as
+     *            an empty string
+     * 
+     * @return a new string, as long as the longest source
+     * 
+     * @see Bitmaps#bitOp(DryRedisBitOperation, byte[][], int[])
+     */
+    public static DynamicString bitOp(DryRedisBitOperation operation, DynamicString... sources) {
+        byte[][] arrays = new byte[sources.length][];
+        int[] lengths = new int[sources.length];
+        for(int index = 0; index < sources.length; index++) {
+            if(sources[index] == null) {
+                arrays[index] = EMPTY;
+            } else {
+                arrays[index] = sources[index].bytes();
+                lengths[index] = sources[index].length;
+            }
+        }
+        
+        DynamicString result = new DynamicString();
+        result.bytes = Bitmaps.bitOp(operation, arrays, lengths);
+        result.length = result.bytes.length;
+        return result;
+    }
+    
+    /**
+     * @return a copy of the bytes of this string
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.bytes(), this.length);
+    }
+    
+    /**
+     * Return a copy of the given range of bytes.
+     * 
+     * @param from
+     *            the index of the first byte, inclusive
+     * 
+     * @param to
+     *            the index of the last byte, exclusive
+     * 
+     * @return the bytes
+     */
+    public byte[] toByteArray(int from, int to) {
+        this.checkRange(from, to);
+        return Arrays.copyOfRange(this.bytes(), from, to);
+    }
+    
+    /**
+     * Decode the given range of bytes as UTF-8.
+     * 
+     * @param from
+     *            the index of the first byte, inclusive
+     * 
+     * @param to
+     *            the index of the last byte, exclusive
+     * 
+     * @return the decoded {@link String}
+     */
+    public String toString(int from, int to) {
+        this.checkRange(from, to);
+        return new String(this.bytes(), from, to - from, UTF_8);
+    }
+    
+    /**
+     * Release the spare capacity of the buffer.
+     */
+    public void trimToSize() {
+        if(this.bytes != null && this.bytes.length != this.length) {
+            this.bytes = Arrays.copyOf(this.bytes, this.length);
+        }
+    }
+    
+    /**
+     * Decode the bytes of this string as UTF-8.
+     */
+    @Override
+    public String toString() {
+        if(this.bytes == null) {
+            return Long.toString(this.integer);
+        }
+        
+        return new String(this.bytes, 0, this.length, UTF_8);
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj) {
+            return true;
+        }
+        
+        if(!(obj instanceof DynamicString)) {
+            return false;
+        }
+        
+        DynamicString other = (DynamicString) obj;
+        if(this.length != other.length) {
+            return false;
+        }
+        
+        if(this.bytes == null && other.bytes == null) {
+            return this.integer == other.integer;
+        }
+        
+        byte[] bytes = this.bytes();
+        byte[] otherBytes = other.bytes();
+        for(int index = 0; index < this.length; index++) {
+            if(bytes[index] != otherBytes[index]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    @Override
+    public int hashCode() {
+        byte[] bytes = this.bytes();
+        int hash = 1;
+        for(int index = 0; index < this.length; index++) {
+            hash = 31 * hash + bytes[index];
+        }
+        
+        return hash;
+    }
+    
+    // private methods
+    
+    /**
+     * The buffer of this string, or the decimal bytes of an integer encoded
+     * string, which must not be modified.
+     */
+    private byte[] bytes() {
+        if(this.bytes == null) {
+            return Long.toString(this.integer).getBytes(UTF_8);
+        }
+        
+        return this.bytes;
+    }
+    
+    /**
+     * Convert an integer encoded string to bytes so that it can be modified.
+     */
+    private void toRaw() {
+        if(this.bytes != null) {
+            return;
+        }
+        
+        if(this.shared) {
+            throw new IllegalStateException("Shared integer strings cannot be modified");
+        }
+        
+        this.bytes = Long.toString(this.integer).getBytes(UTF_8);
+    }
+    
+    /**
+     * Check whether the value is an optional minus sign followed by digits
+     * without leading zeros, and is short enough to fit a <code>long</code>.
+     */
+    private static boolean isCanonicalLong(String value) {
+        int length = value.length();
+        if(length == 0 || length > MAX_LONG_DIGITS) {
+            return false;
+        }
+        
+        int start = value.charAt(0) == '-' ? 1 : 0;
+        if(start == length) {
+            return false;
+        }
+        
+        if(value.charAt(start) == '0') {
+            // only zero itself may start with a zero
+            return length == 1;
+        }
+        
+        for(int index = start; index < length; index++) {
+            char c = value.charAt(index);
+            if(c < '0' || c > '9') {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Number of bytes in the decimal form of the value.
+     */
+    private static int digits(long value) {
+        if(value == Long.MIN_VALUE) {
+            return MAX_LONG_DIGITS;
+        }
+        
+        int digits = 1;
+        if(value < 0) {
+            digits++;
+            value = -value;
+        }
+        
+        while(value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        
+        return digits;
+    }
+    
+    /**
+     * Grow the buffer so that it can hold the given number of bytes, with
+     * spare capacity for more.
+     */
+    private void ensureLength(int required) {
+        if(required < 0) {
+            throw new IllegalArgumentException("String exceeds maximum allowed size");
+        }
+        
+        if(required <= this.bytes.length) {
+            return;
+        }
+        
+        long capacity;
+        if(required < MAX_PREALLOCATE) {
+            capacity = required * 2l;
+        } else {
+            capacity = required + (long) MAX_PREALLOCATE;
+        }
+        
+        this.bytes = Arrays.copyOf(this.bytes, (int) Math.min(capacity, Integer.MAX_VALUE - 8));
+    }
+    
+    private void checkRange(int from, int to) {
+        if(from < 0 || to > this.length || from > to) {
+            throw new IndexOutOfBoundsException("Range [" + from + ", " + to + ") out of bounds for length " + this.length);
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.sangupta.dryredis.support.DryRedisGeoPoint;
+import com.sangupta.dryredis.support.RedisGeoHash;
+
+/**
+ * Stores the members of a geo key, much like Redis does, in a sorted set
+ * whose score is the 52-bit interleaved geohash of the member. Members that
+ * are close to each other have close scores, and thus all members within a
+ * geohash cell can be found with a single range seek instead of a scan of the
+ * whole key. The original coordinates are kept alongside so that positions
+ * and distances are not rounded to the cell size.
+ *
+ * @author sangupta
+ *
+ */
+public class GeoIndex {
+
+    /**
+     * Members sorted by their 52-bit geohash
+     */
+    private final SortedSetWithPriority<String> index;
+
+    /**
+     * The point of each member
+     */
+    private final Map<String, DryRedisGeoPoint> points = new HashMap<String, DryRedisGeoPoint>();
+
+    public GeoIndex() {
+        this(SortedSetWithPriority.DEFAULT_MAX_PACKED_ENTRIES, SortedSetWithPriority.DEFAULT_MAX_PACKED_VALUE);
+    }
+
+    /**
+     * Create an index whose sorted set stays packed up to the given limits.
+     *
+     * @param maxPackedEntries
+     *            the maximum number of members in the packed encoding
+     *
+     * @param maxPackedValue
+     *            the maximum length of a member in the packed encoding
+     */
+    public GeoIndex(int maxPackedEntries, int maxPackedValue) {
+        this.index = new SortedSetWithPriority<String>(maxPackedEntries, maxPackedValue);
+    }
+
+    /**
+     * Add or move a member.
+     *
+     * @param point
+     *            the point, named after the member
+     *
+     * @return <code>true</code> if the member is new, <code>false</code> if
+     *         its position was updated
+     */
+    public boolean add(DryRedisGeoPoint point) {
+        boolean added = true;
+        if(this.points.put(point.name, point) != null) {
+            this.index.remove(point.name);
+            added = false;
+        }
+
+        this.index.add(new ElementWithPriority<String>(point.name, RedisGeoHash.encode(point.latitude, point.longitude)));
+        return added;
+    }
+
+    public DryRedisGeoPoint get(String member) {
+        return this.points.get(member);
+    }
+
+    /**
+     * Return the 52-bit geohash score of the member.
+     *
+     * @param member
+     *            the member to look for
+     *
+     * @return the score, or <code>-1</code> if the member is not present
+     */
+    public long getScore(String member) {
+        Double score = this.index.getPriority(member);
+        if(score == null) {
+            return -1;
+        }
+
+        return score.longValue();
+    }
+
+    /**
+     * Add all points whose geohash score lies between the given scores to the
+     * list.
+     *
+     * @param min
+     *            the minimum score, inclusive
+     *
+     * @param max
+     *            the maximum score, exclusive
+     *
+     * @param result
+     *            the list to add the points to
+     */
+    public void collect(long min, long max, List<DryRedisGeoPoint> result) {
+        int rank = this.index.lowerRankByPriority(min, true);
+        if(rank >= this.index.size()) {
+            return;
+        }
+
+        Iterator<ElementWithPriority<String>> iterator = this.index.iterator(rank);
+        while(iterator.hasNext()) {
+            ElementWithPriority<String> element = iterator.next();
+            if(element.getPriority() >= max) {
+                break;
+            }
+
+            result.add(this.points.get(element.getData()));
+        }
+    }
+
+    public int size() {
+        return this.points.size();
+    }
+
+    public boolean isEmpty() {
+        return this.points.isEmpty();
+    }
+
+    /**
+     * Check whether the underlying sorted set is still in its compact encoding.
+     *
+     * @return <code>true</code> if packed, <code>false</code> if converted to
+     *         a skip list
+     */
+    public boolean isPacked() {
+        return this.index.isPacked();
+    }
+
+}
@@ -21,53 +21,51 @@
 
 package com.sangupta.dryredis.ds;
 
-import com.sangupta.murmur.Murmur3;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
- * Class modeled around the code from
- * https://raw.githubusercontent.com/addthis/stream-lib/master/src/main/java/com/clearspring/analytics/stream/cardinality/HyperLogLog.java
- * 
- * <br><br>
- * 
- * Java implementation of HyperLogLog (HLL) algorithm from this paper:
+ * Java implementation of HyperLogLog (HLL) algorithm modeled around the
+ * implementation in Redis, that itself follows this paper:
  * <br><br>
  * http://algo.inria.fr/flajolet/Publications/FlFuGaMe07.pdf
  * <br><br>
  * HLL is an improved version of LogLog that is capable of estimating
  * the cardinality of a set with accuracy = 1.04/sqrt(m) where
  * m = 2^b.  So we can control accuracy vs space usage by increasing
- * or decreasing b.
- * <br><br>
- * The main benefit of using HLL over LL is that it only requires 64%
- * of the space that LL does to get the same accuracy.
- * <br><br>
- * This implementation implements a single counter.  If a large (millions)
- * number of counters are required you may want to refer to:
- * <br><br>
- * http://dsiutils.dsi.unimi.it/
- * <br><br>
- * It has a more complex implementation of HLL that supports multiple counters
- * in a single object, drastically reducing the java overhead from creating
- * a large number of objects.
+ * or decreasing b. Redis uses b = 14, that is, 16384 registers and a
+ * standard error of 0.81%.
  * <br><br>
- * This implementation leveraged a javascript implementation that Yammer has
- * been working on:
+ * Elements are hashed to 64 bits with {@link MurmurHash64A}, using the same
+ * seed as Redis. The lowest b bits of the hash select the register, and the
+ * number of trailing zeros in the remaining bits gives its value.
  * <br><br>
- * https://github.com/yammer/probablyjs
+ * Each register is 6 bits wide. A counter starts out in the <b>sparse</b>
+ * representation, where runs of registers with the same value are run-length
+ * encoded with the same opcodes that Redis uses:
  * <br><br>
- * Note that this implementation does not include the long range correction function
- * defined in the original paper.  Empirical evidence shows that the correction
- * function causes more harm than good.
+ * <ul>
+ * <li><code>ZERO</code>: <code>00xxxxxx</code> - a run of 1 to 64 registers set to zero</li>
+ * <li><code>XZERO</code>: <code>01xxxxxx yyyyyyyy</code> - a run of 1 to 16384 registers set to zero</li>
+ * <li><code>VAL</code>: <code>1vvvvvxx</code> - a run of 1 to 4 registers set to a value of 1 to 32</li>
+ * </ul>
+ * <br>
+ * An empty counter thus takes 2 bytes. Once the sparse representation grows
+ * beyond {@link #SPARSE_MAX_BYTES} bytes, or a register needs a value that
+ * the opcodes cannot hold, the counter is promoted to the <b>dense</b>
+ * representation: a {@link RegisterSet} of 12288 bytes for 16384 registers.
  * <br><br>
- * Users have different motivations to use different types of hashing functions.
- * Rather than try to keep up with all available hash functions and to remove
- * the concern of causing future binary incompatibilities this class allows clients
- * to offer the value in hashed int or long form.  This way clients are free
- * to change their hash function on their own time line.  We recommend using Google's
- * Guava Murmur3_128 implementation as it provides good performance and speed when
- * high precision is required.  In our tests the 32bit MurmurHash function included
- * in this project is faster and produces better results than the 32 bit murmur3
- * implementation google provides.
+ * The cardinality is computed with the improved estimator of Otmar Ertl, as
+ * in Redis, from a histogram of the register values. It needs neither the
+ * bias correction tables nor the switch to linear counting for small
+ * cardinalities of the original algorithm. The estimate is cached till a
+ * register changes, just like the cached cardinality in the header of a Redis
+ * HyperLogLog, so counting a key that was not modified costs nothing.
  * <br><br>
  * 
  * @author sangupta
@@ -75,26 +73,102 @@ import com.sangupta.murmur.Murmur3;
  */
 public class HyperLogLog implements Cloneable {
 	
-	private static final long SEED = 3920214;
+	/**
+	 * The seed used by Redis to hash elements
+	 */
+	private static final long SEED = 0xadc83b19l;
+	
+	/**
+	 * The number of registers bits used by Redis
+	 */
+	public static final int DEFAULT_LOG2M = 14;
+	
+	/**
+	 * The size beyond which the sparse representation is promoted to dense,
+	 * same as the default of <code>hll-sparse-max-bytes</code> in Redis
+	 */
+	public static final int SPARSE_MAX_BYTES = 3000;
+	
+	private static final double ALPHA_INF = 0.721347520444481703680;
+	
+	private static final int SPARSE_ZERO_MAX_LEN = 64;
+	
+	private static final int SPARSE_XZERO_MAX_LEN = 16384;
+	
+	private static final int SPARSE_VAL_MAX_VALUE = 32;
+	
+	private static final int SPARSE_VAL_MAX_LEN = 4;
+	
+	/**
+	 * The magic bytes at the start of the string format of Redis
+	 */
+	private static final byte[] MAGIC = new byte[] { 'H', 'Y', 'L', 'L' };
+	
+	/**
+	 * Size of the header of the string format of Redis
+	 */
+	private static final int HEADER_SIZE = 16;
+	
+	private static final int ENCODING_DENSE = 0;
+	
+	private static final int ENCODING_SPARSE = 1;
+	
+	/**
+	 * Number of registers merged by each task of a parallel merge, a
+	 * multiple of 8 so that no two tasks write to the same byte
+	 */
+	private static final int PARALLEL_MERGE_REGISTERS = 2048;
 
-	private final RegisterSet registerSet;
+	/**
+	 * The registers, <code>null</code> while the counter is sparse
+	 */
+	private RegisterSet registerSet;
+	
+	/**
+	 * The sparse opcodes, <code>null</code> once the counter is dense
+	 */
+	private byte[] sparse;
+	
+	/**
+	 * Number of bytes used in {@link #sparse}
+	 */
+	private int sparseLength;
+	
+	private final int sparseMaxBytes;
 	
     private final int log2m;
     
-    private final double alphaMM;
+    /**
+     * Number of registers
+     */
+    private final int m;
+    
+    /**
+     * Number of hash bits used for the rank, the rank being at most q + 1
+     */
+    private final int q;
+    
+    /**
+     * The last computed cardinality, or <code>-1</code> if a register was
+     * changed since
+     */
+    private long cardinality = -1;
     
     @Override
     public HyperLogLog clone() {
-    	HyperLogLog hll = new HyperLogLog(this.log2m);
+    	if (this.sparse == null) {
+    		HyperLogLog hll = new HyperLogLog(this.log2m, new RegisterSet(this.registerSet.count, this.registerSet.bits()));
+    		hll.cardinality = this.cardinality;
+    		return hll;
+    	}
     	
-    	// copy all registers
-    	hll.registerSet.setFrom(this.registerSet);
-    	
-    	// return instance
+    	HyperLogLog hll = new HyperLogLog(this.log2m, this.sparseMaxBytes);
+    	hll.sparse = Arrays.copyOf(this.sparse, this.sparseLength);
+    	hll.sparseLength = this.sparseLength;
+    	hll.cardinality = this.cardinality;
     	return hll;
     }
 
-
     /**
      * Create a new HyperLogLog instance using the specified standard deviation.
      *
@@ -115,7 +189,28 @@ public class HyperLogLog implements Cloneable {
      * @param log2m - the number of bits to use as the basis for the HLL instance
      */
     public HyperLogLog(int log2m) {
-        this(log2m, new RegisterSet(1 << log2m));
+        this(log2m, SPARSE_MAX_BYTES);
+    }
+
+    /**
+     * Create a new HyperLogLog instance in the sparse representation.
+     *
+     * @param log2m - the number of bits to use as the basis for the HLL instance
+     * 
+     * @param sparseMaxBytes - the size in bytes beyond which the sparse
+     *            representation is promoted to dense
+     */
+    public HyperLogLog(int log2m, int sparseMaxBytes) {
+    	validateLog2m(log2m);
+    	this.log2m = log2m;
+    	this.m = 1 << log2m;
+    	this.q = Long.SIZE - log2m;
+    	this.sparseMaxBytes = sparseMaxBytes;
+    	
+    	this.sparse = new byte[Math.max(2, (this.m / SPARSE_XZERO_MAX_LEN) * 2)];
+    	for (int remaining = this.m; remaining > 0; remaining -= SPARSE_XZERO_MAX_LEN) {
+    		this.sparseLength = putZeros(this.sparse, this.sparseLength, Math.min(remaining, SPARSE_XZERO_MAX_LEN));
+    	}
     }
 
     /**
@@ -128,44 +223,61 @@ public class HyperLogLog implements Cloneable {
         validateLog2m(log2m);
         this.registerSet = registerSet;
         this.log2m = log2m;
-        int m = 1 << this.log2m;
-
-        this.alphaMM = getAlphaMM(log2m, m);
+        this.m = 1 << log2m;
+        this.q = Long.SIZE - log2m;
+        this.sparseMaxBytes = SPARSE_MAX_BYTES;
     }
 
     private static int log2m(double rsd) {
         return (int) (Math.log((1.106 / rsd) * (1.106 / rsd)) / Math.log(2));
     }
 
-//    private static double rsd(int log2m) {
-//        return 1.106 / Math.sqrt(Math.exp(log2m * Math.log(2)));
-//    }
-
     private static void validateLog2m(int log2m) {
-        if (log2m < 0 || log2m > 30) {
-            throw new IllegalArgumentException("log2m argument is " + log2m + " and is outside the range [0, 30]");
+        if (log2m < 4 || log2m > 30) {
+            throw new IllegalArgumentException("log2m argument is " + log2m + " and is outside the range [4, 30]");
         }
     }
 
     private boolean offerHashed(long hashedValue) {
-        // j becomes the binary address determined by the first b log2m of x
-        // j will be between 0 and 2^log2m
-        final int j = (int) (hashedValue >>> (Long.SIZE - this.log2m));
-        final int r = Long.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
-        return registerSet.updateIfGreater(j, r);
-    }
-
-    private boolean offerHashed(int hashedValue) {
-        // j becomes the binary address determined by the first b log2m of x
-        // j will be between 0 and 2^log2m
-        final int j = hashedValue >>> (Integer.SIZE - log2m);
-        final int r = Integer.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
-        return registerSet.updateIfGreater(j, r);
+        // the lowest log2m bits select the register, and the rank is the
+        // position of the first set bit in the remaining bits, at most q + 1
+        final int j = (int) (hashedValue & (this.m - 1));
+        final int r = Long.numberOfTrailingZeros((hashedValue >>> this.log2m) | (1l << this.q)) + 1;
+        return this.set(j, r);
     }
 
+    /**
+     * Add the given object to the counter.
+     * 
+     * @param o
+     *            the object to add
+     * 
+     * @return <code>true</code> if a register was changed, and the
+     *         cardinality may thus have changed
+     */
     public boolean offer(Object o) {
-    	final Long x = hash(o);
-        return offerHashed(x.intValue());
+        return offerHashed(hash(o));
+    }
+    
+    /**
+     * Add all given elements to the counter. Each element is hashed straight
+     * from its characters, without encoding it to bytes first.
+     * 
+     * @param elements
+     *            the elements to add
+     * 
+     * @return <code>true</code> if a register was changed, and the
+     *         cardinality may thus have changed
+     */
+    public boolean offerAll(Collection<String> elements) {
+    	boolean changed = false;
+    	for (String element : elements) {
+    		if (offerHashed(element == null ? 0 : MurmurHash64A.hash(element, SEED))) {
+    			changed = true;
+    		}
+    	}
+    	
+    	return changed;
     }
     
     private static long hash(Object o) {
@@ -173,88 +285,74 @@ public class HyperLogLog implements Cloneable {
             return 0;
         }
         
+        if (o instanceof CharSequence) {
+        	return MurmurHash64A.hash((CharSequence) o, SEED);
+        }
+        
         if (o instanceof Long) {
-            return hashLong((Long) o);
+            return MurmurHash64A.hash((Long) o, SEED);
         }
         
         if (o instanceof Integer) {
-            return hashLong((Integer) o);
+            return MurmurHash64A.hash((Integer) o, SEED);
         }
         
         if (o instanceof Double) {
-            return hashLong(Double.doubleToRawLongBits((Double) o));
+            return MurmurHash64A.hash(Double.doubleToRawLongBits((Double) o), SEED);
         }
         
         if (o instanceof Float) {
-            return hashLong(Float.floatToRawIntBits((Float) o));
-        }
-        
-        if (o instanceof String) {
-            return hash(((String) o).getBytes());
+            return MurmurHash64A.hash(Float.floatToRawIntBits((Float) o), SEED);
         }
         
         if (o instanceof byte[]) {
             byte[] bytes = (byte[]) o;
-            return Murmur3.hash_x86_32(bytes, bytes.length, SEED);
+            return MurmurHash64A.hash(bytes, 0, bytes.length, SEED);
         }
         
+        // hashed the same as the equal CharSequence, even when empty
         String str = o.toString();
-        if(str == null || str.isEmpty()) {
+        if(str == null) {
         	return 0;
         }
         
-        byte[] bytes = str.getBytes();
-        return Murmur3.hash_x86_32(bytes, bytes.length, SEED);
-    }
-    
-    private static int hashLong(long data) {
-        int m = 0x5bd1e995;
-        int r = 24;
-
-        int h = 0;
-
-        int k = (int) data * m;
-        k ^= k >>> r;
-        h ^= k * m;
-
-        k = (int) (data >> 32) * m;
-        k ^= k >>> r;
-        h *= m;
-        h ^= k * m;
-
-        h ^= h >>> 13;
-        h *= m;
-        h ^= h >>> 15;
-
-        return h;
+        return MurmurHash64A.hash(str, SEED);
     }
     
     public long cardinality() {
-        double registerSum = 0;
-        int count = registerSet.count;
-        double zeros = 0.0;
-        
-        for (int j = 0; j < registerSet.count; j++) {
-            int val = registerSet.get(j);
-            registerSum += 1.0 / (1 << val);
-        
-            if (val == 0) {
-                zeros++;
-            }
-        }
-
-        double estimate = alphaMM * (1 / registerSum);
-
-        if (estimate <= (5.0 / 2.0) * count) {
-            // Small Range Estimate
-            return Math.round(linearCounting(count, zeros));
-        }
-        
-        return Math.round(estimate);
+    	if (this.cardinality >= 0) {
+    		return this.cardinality;
+    	}
+    	
+    	int[] histogram = this.histogram();
+    	
+    	double z = this.m * tau((this.m - histogram[this.q + 1]) / (double) this.m);
+    	for (int j = this.q; j >= 1; j--) {
+    		z += histogram[j];
+    		z *= 0.5;
+    	}
+    	
+    	z += this.m * sigma(histogram[0] / (double) this.m);
+    	this.cardinality = Math.round(ALPHA_INF * this.m * this.m / z);
+    	return this.cardinality;
     }
 
+    /**
+     * @return the number of bytes used by the registers
+     */
     public int sizeof() {
-        return registerSet.size * 4;
+    	if (this.sparse != null) {
+    		return this.sparseLength;
+    	}
+    	
+        return registerSet.size;
+    }
+    
+    /**
+     * @return <code>true</code> if the counter uses the sparse representation
+     */
+    public boolean isSparse() {
+    	return this.sparse != null;
     }
 
     /**
@@ -266,15 +364,176 @@ public class HyperLogLog implements Cloneable {
 	 *
 	 */
     public void addAll(HyperLogLog other) {
-        if (this.sizeof() != other.sizeof()) {
+        if (this.m != other.m) {
             throw new IllegalArgumentException("Cannot merge estimators of different sizes");
         }
 
-        registerSet.merge(other.registerSet);
+        if (other.sparse == null) {
+        	if (this.sparse != null) {
+        		this.promote();
+        	}
+        	
+        	if (this.registerSet.merge(other.registerSet)) {
+        		this.cardinality = -1;
+        	}
+        	
+        	return;
+        }
+        
+        int index = 0;
+        for (int pos = 0; pos < other.sparseLength; pos++) {
+        	int op = other.sparse[pos] & 0xff;
+        	if (isZero(op)) {
+        		index += zeroLength(op);
+        	} else if (isXZero(op)) {
+        		index += xzeroLength(op, other.sparse[++pos]);
+        	} else {
+        		int value = valValue(op);
+        		for (int count = valLength(op); count > 0; count--) {
+        			this.set(index++, value);
+        		}
+        	}
+        }
+    }
+
+    /**
+     * Add all the elements of the given counters to this counter. With an
+     * executor, the dense counters are merged by splitting the registers into
+     * ranges that are merged at the same time, each task taking the maximum
+     * of its range over all counters. The calling thread merges the last
+     * range itself, and then waits for the others. Nothing is allocated for
+     * the ranges, as each task writes to its own part of the registers of
+     * this counter. Sparse counters are always merged one after the other.
+     * 
+     * @param others
+     *            the counters to add, all with the same log2m as this one
+     * 
+     * @param executor
+     *            the executor to merge in, or <code>null</code> to merge on
+     *            the calling thread
+     */
+    public void addAll(List<HyperLogLog> others, ExecutorService executor) {
+    	List<RegisterSet> dense = new ArrayList<RegisterSet>(others.size());
+    	for (HyperLogLog other : others) {
+    		if (this.m != other.m) {
+    			throw new IllegalArgumentException("Cannot merge estimators of different sizes");
+    		}
+    		
+    		if (other.sparse == null) {
+    			dense.add(other.registerSet);
+    		}
+    	}
+    	
+    	if (executor == null || dense.size() < 2) {
+    		for (HyperLogLog other : others) {
+    			this.addAll(other);
+    		}
+    		
+    		return;
+    	}
+    	
+    	if (this.sparse != null) {
+    		this.promote();
+    	}
+    	
+    	List<Future<?>> futures = new ArrayList<Future<?>>();
+    	int from = 0;
+    	for ( ; this.m - from > PARALLEL_MERGE_REGISTERS; from += PARALLEL_MERGE_REGISTERS) {
+    		futures.add(executor.submit(new MergeTask(this.registerSet, dense, from, from + PARALLEL_MERGE_REGISTERS)));
+    	}
+    	
+    	new MergeTask(this.registerSet, dense, from, this.m).run();
+    	awaitAll(futures);
+    	this.cardinality = -1;
+    	
+    	for (HyperLogLog other : others) {
+    		if (other.sparse != null) {
+    			this.addAll(other);
+    		}
+    	}
+    }
+    
+    /**
+     * Reset the counter to zero so that it may be reused, for example as the
+     * scratch space of merges. The counter is left in the dense
+     * representation, and its registers are reused if it was dense already.
+     */
+    public void clear() {
+    	if (this.sparse == null) {
+    		this.registerSet.clear();
+    	} else {
+    		this.registerSet = new RegisterSet(this.m);
+    		this.sparse = null;
+    		this.sparseLength = 0;
+    	}
+    	
+    	this.cardinality = -1;
+    }
+    
+    /**
+     * Wait for all tasks of a parallel merge, even if interrupted, as they
+     * write to the registers of this counter.
+     */
+    private static void awaitAll(List<Future<?>> futures) {
+    	boolean interrupted = false;
+    	for (Future<?> future : futures) {
+    		while (true) {
+    			try {
+    				future.get();
+    				break;
+    			} catch (InterruptedException e) {
+    				interrupted = true;
+    			} catch (ExecutionException e) {
+    				throw new IllegalStateException("Parallel merge failed", e.getCause());
+    			}
+    		}
+    	}
+    	
+    	if (interrupted) {
+    		Thread.currentThread().interrupt();
+    	}
+    }
+    
+    /**
+     * Merges a range of registers from all sources.
+     */
+    private static final class MergeTask implements Runnable {
+
+		private final RegisterSet target;
+    	
+    	private final List<RegisterSet> sources;
+    	
+    	private final int from;
+    	
+    	private final int to;
+    	
+    	MergeTask(RegisterSet target, List<RegisterSet> sources, int from, int to) {
+    		this.target = target;
+    		this.sources = sources;
+    		this.from = from;
+    		this.to = to;
+    	}
+    	
+		@Override
+		public void run() {
+			for (RegisterSet source : this.sources) {
+				this.target.merge(source, this.from, this.to);
+			}
+		}
+    	
     }
 
+    /**
+     * Merge this counter with the given counters into a new dense counter.
+     * None of the counters is modified.
+     * 
+     * @param estimators
+     *            the counters to merge with
+     * 
+     * @return the merged counter
+     */
     public HyperLogLog merge(HyperLogLog... estimators) {
-        HyperLogLog merged = new HyperLogLog(log2m, new RegisterSet(this.registerSet.count));
+        HyperLogLog merged = new HyperLogLog(log2m, new RegisterSet(this.m));
         merged.addAll(this);
 
         if (estimators == null) {
@@ -282,31 +541,393 @@ public class HyperLogLog implements Cloneable {
         }
 
         for (HyperLogLog estimator : estimators) {
-            HyperLogLog hll = (HyperLogLog) estimator;
-            merged.addAll(hll);
+            merged.addAll(estimator);
         }
 
         return merged;
     }
+    
+    /**
+     * Return the counter in the string format used by Redis: a header of 16
+     * bytes holding the magic <code>HYLL</code>, the representation and the
+     * cached cardinality, followed by the sparse opcodes or the dense
+     * registers.
+     * 
+     * @return the bytes of the counter
+     */
+    public byte[] toByteArray() {
+    	byte[] registers = this.sparse != null ? this.sparse : this.registerSet.readOnlyBits();
+    	int length = this.sparse != null ? this.sparseLength : this.registerSet.size;
+    	
+    	byte[] bytes = new byte[HEADER_SIZE + length];
+    	System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+    	bytes[4] = (byte) (this.sparse != null ? ENCODING_SPARSE : ENCODING_DENSE);
+    	
+    	if (this.cardinality >= 0) {
+    		for (int index = 0; index < 8; index++) {
+    			bytes[8 + index] = (byte) (this.cardinality >>> (index << 3));
+    		}
+    	} else {
+    		// the most significant bit marks the cached value as invalid
+    		bytes[15] = (byte) 0x80;
+    	}
+    	
+    	System.arraycopy(registers, 0, bytes, HEADER_SIZE, length);
+    	return bytes;
+    }
+    
+    /**
+     * Read a counter from the string format used by Redis, as returned by
+     * {@link #toByteArray()}. The number of registers is derived from the
+     * size of the registers.
+     * 
+     * @param bytes
+     *            the bytes of the counter
+     * 
+     * @return the counter
+     * 
+     * @throws IllegalArgumentException
+     *             if the bytes are not a valid counter
+     */
+    public static HyperLogLog fromByteArray(byte[] bytes) {
+    	if (bytes.length < HEADER_SIZE) {
+    		throw new IllegalArgumentException("Not a valid HyperLogLog: too short");
+    	}
+    	
+    	for (int index = 0; index < MAGIC.length; index++) {
+    		if (bytes[index] != MAGIC[index]) {
+    			throw new IllegalArgumentException("Not a valid HyperLogLog: bad magic");
+    		}
+    	}
+    	
+    	final int length = bytes.length - HEADER_SIZE;
+    	HyperLogLog hll;
+    	switch (bytes[4]) {
+    		case ENCODING_DENSE:
+    			int count = length * 8 / RegisterSet.REGISTER_SIZE;
+    			if (Integer.bitCount(count) != 1 || RegisterSet.getSizeForCount(count) != length) {
+    				throw new IllegalArgumentException("Not a valid HyperLogLog: bad dense size");
+    			}
+    			
+    			hll = new HyperLogLog(Integer.numberOfTrailingZeros(count), new RegisterSet(count, Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length)));
+    			break;
+    			
+    		case ENCODING_SPARSE:
+    			long registers = 0;
+    			for (int pos = HEADER_SIZE; pos < bytes.length; pos++) {
+    				int op = bytes[pos] & 0xff;
+    				if (isZero(op)) {
+    					registers += zeroLength(op);
+    				} else if (isXZero(op)) {
+    					if (++pos == bytes.length) {
+    						throw new IllegalArgumentException("Not a valid HyperLogLog: truncated opcode");
+    					}
+    					
+    					registers += xzeroLength(op, bytes[pos]);
+    				} else {
+    					registers += valLength(op);
+    				}
+    			}
+    			
+    			if (registers > Integer.MAX_VALUE || Long.bitCount(registers) != 1) {
+    				throw new IllegalArgumentException("Not a valid HyperLogLog: bad sparse size");
+    			}
+    			
+    			hll = new HyperLogLog(Long.numberOfTrailingZeros(registers));
+    			hll.sparse = Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length);
+    			hll.sparseLength = length;
+    			break;
+    			
+    		default:
+    			throw new IllegalArgumentException("Not a valid HyperLogLog: unknown encoding");
+    	}
+    	
+    	if ((bytes[15] & 0x80) == 0) {
+    		long cardinality = 0;
+    		for (int index = 0; index < 8; index++) {
+    			cardinality |= (bytes[8 + index] & 0xffl) << (index << 3);
+    		}
+    		
+    		hll.cardinality = cardinality;
+    	}
+    	
+    	return hll;
+    }
+    
+    // registers
 
-    protected static double getAlphaMM(final int p, final int m) {
-        // See the paper.
-        switch (p) {
-            case 4:
-                return 0.673 * m * m;
-                
-            case 5:
-                return 0.697 * m * m;
-                
-            case 6:
-                return 0.709 * m * m;
-                
-            default:
-                return (0.7213 / (1 + 1.079 / m)) * m * m;
-        }
+    /**
+     * Set the register to the given value, if greater than the current one.
+     * 
+     * @return <code>true</code> if the register was changed
+     */
+    private boolean set(int index, int value) {
+    	boolean changed = this.update(index, value);
+    	if (changed) {
+    		this.cardinality = -1;
+    	}
+    	
+    	return changed;
+    }
+    
+    private boolean update(int index, int value) {
+    	if (this.sparse == null) {
+    		return this.registerSet.updateIfGreater(index, value);
+    	}
+    	
+    	if (value > SPARSE_VAL_MAX_VALUE) {
+    		this.promote();
+    		return this.registerSet.updateIfGreater(index, value);
+    	}
+    	
+    	// find the opcode that covers the register
+    	byte[] bytes = this.sparse;
+    	int pos = 0;
+    	int previous = 0;
+    	int first = 0;
+    	int length = 0;
+    	int opLength = 0;
+    	while (pos < this.sparseLength) {
+    		int op = bytes[pos] & 0xff;
+    		if (isZero(op)) {
+    			length = zeroLength(op);
+    			opLength = 1;
+    		} else if (isXZero(op)) {
+    			length = xzeroLength(op, bytes[pos + 1]);
+    			opLength = 2;
+    		} else {
+    			length = valLength(op);
+    			opLength = 1;
+    		}
+    		
+    		if (index < first + length) {
+    			break;
+    		}
+    		
+    		first += length;
+    		previous = pos;
+    		pos += opLength;
+    	}
+    	
+    	int op = bytes[pos] & 0xff;
+    	boolean isValue = !isZero(op) && !isXZero(op);
+    	int current = isValue ? valValue(op) : 0;
+    	if (current >= value) {
+    		return false;
+    	}
+    	
+    	// split the opcode into at most three: before, the register, after
+    	byte[] sequence = new byte[5];
+    	int count = 0;
+    	int last = first + length - 1;
+    	if (index > first) {
+    		count = isValue ? putValue(sequence, count, current, index - first) : putZeros(sequence, count, index - first);
+    	}
+    	
+    	count = putValue(sequence, count, value, 1);
+    	
+    	if (last > index) {
+    		count = isValue ? putValue(sequence, count, current, last - index) : putZeros(sequence, count, last - index);
+    	}
+    	
+    	int newLength = this.sparseLength - opLength + count;
+    	if (newLength > bytes.length) {
+    		bytes = Arrays.copyOf(bytes, Math.max(newLength, bytes.length * 2));
+    	}
+    	
+    	System.arraycopy(bytes, pos + opLength, bytes, pos + count, this.sparseLength - pos - opLength);
+    	System.arraycopy(sequence, 0, bytes, pos, count);
+    	this.sparse = bytes;
+    	this.sparseLength = newLength;
+    	
+    	this.mergeValues(previous);
+    	
+    	if (this.sparseLength > this.sparseMaxBytes) {
+    		this.promote();
+    	}
+    	
+    	return true;
+    }
+    
+    /**
+     * Join adjacent <code>VAL</code> opcodes of the same value, starting at
+     * the given position and looking at the next few opcodes only.
+     */
+    private void mergeValues(int pos) {
+    	byte[] bytes = this.sparse;
+    	int scan = 5;
+    	while (pos < this.sparseLength && scan > 0) {
+    		int op = bytes[pos] & 0xff;
+    		if (isXZero(op)) {
+    			pos += 2;
+    			scan--;
+    			continue;
+    		}
+    		
+    		if (!isZero(op) && pos + 1 < this.sparseLength) {
+    			int next = bytes[pos + 1] & 0xff;
+    			if (!isZero(next) && !isXZero(next) && valValue(op) == valValue(next)) {
+    				int length = valLength(op) + valLength(next);
+    				if (length <= SPARSE_VAL_MAX_LEN) {
+    					putValue(bytes, pos, valValue(op), length);
+    					System.arraycopy(bytes, pos + 2, bytes, pos + 1, this.sparseLength - pos - 2);
+    					this.sparseLength--;
+    					continue;
+    				}
+    			}
+    		}
+    		
+    		pos++;
+    		scan--;
+    	}
+    }
+    
+    /**
+     * Convert the sparse representation to dense.
+     */
+    private void promote() {
+    	RegisterSet registers = new RegisterSet(this.m);
+    	int index = 0;
+    	for (int pos = 0; pos < this.sparseLength; pos++) {
+    		int op = this.sparse[pos] & 0xff;
+    		if (isZero(op)) {
+    			index += zeroLength(op);
+    		} else if (isXZero(op)) {
+    			index += xzeroLength(op, this.sparse[++pos]);
+    		} else {
+    			int value = valValue(op);
+    			for (int count = valLength(op); count > 0; count--) {
+    				registers.set(index++, value);
+    			}
+    		}
+    	}
+    	
+    	this.registerSet = registers;
+    	this.sparse = null;
+    	this.sparseLength = 0;
     }
+    
+    /**
+     * @return the number of registers for each register value
+     */
+    private int[] histogram() {
+    	int[] histogram = new int[RegisterSet.REGISTER_MAX + 1];
+    	if (this.sparse == null) {
+    		this.registerSet.histogram(histogram, this.m);
+    		return histogram;
+    	}
+    	
+    	for (int pos = 0; pos < this.sparseLength; pos++) {
+    		int op = this.sparse[pos] & 0xff;
+    		if (isZero(op)) {
+    			histogram[0] += zeroLength(op);
+    		} else if (isXZero(op)) {
+    			histogram[0] += xzeroLength(op, this.sparse[++pos]);
+    		} else {
+    			histogram[valValue(op)] += valLength(op);
+    		}
+    	}
+    	
+    	return histogram;
+    }
+    
+    // sparse opcodes
+    
+    private static boolean isZero(int op) {
+    	return (op & 0xc0) == 0;
+    }
+    
+    private static boolean isXZero(int op) {
+    	return (op & 0xc0) == 0x40;
+    }
+    
+    private static int zeroLength(int op) {
+    	return (op & 0x3f) + 1;
+    }
+    
+    private static int xzeroLength(int op, byte next) {
+    	return (((op & 0x3f) << 8) | (next & 0xff)) + 1;
+    }
+    
+    private static int valValue(int op) {
+    	return ((op >>> 2) & 0x1f) + 1;
+    }
+    
+    private static int valLength(int op) {
+    	return (op & 0x3) + 1;
+    }
+    
+    /**
+     * Write the opcode for a run of zero registers, which must not be longer
+     * than {@link #SPARSE_XZERO_MAX_LEN}.
+     * 
+     * @return the position after the opcode
+     */
+    private static int putZeros(byte[] bytes, int pos, int length) {
+    	if (length <= SPARSE_ZERO_MAX_LEN) {
+    		bytes[pos] = (byte) (length - 1);
+    		return pos + 1;
+    	}
+    	
+    	bytes[pos] = (byte) (0x40 | ((length - 1) >>> 8));
+    	bytes[pos + 1] = (byte) (length - 1);
+    	return pos + 2;
+    }
+    
+    /**
+     * Write the opcode for a run of registers with the given value, the run
+     * being no longer than {@link #SPARSE_VAL_MAX_LEN}.
+     * 
+     * @return the position after the opcode
+     */
+    private static int putValue(byte[] bytes, int pos, int value, int length) {
+    	bytes[pos] = (byte) (0x80 | ((value - 1) << 2) | (length - 1));
+    	return pos + 1;
+    }
+    
+    // estimator
 
-    protected static double linearCounting(int m, double V) {
-        return m * Math.log(m / V);
+    /**
+     * The sigma function of the improved estimator, for the registers set to
+     * zero.
+     */
+    private static double sigma(double x) {
+    	if (x == 1.0) {
+    		return Double.POSITIVE_INFINITY;
+    	}
+    	
+    	double previous;
+    	double y = 1.0;
+    	double z = x;
+    	do {
+    		x *= x;
+    		previous = z;
+    		z += x * y;
+    		y += y;
+    	} while (previous != z);
+    	
+    	return z;
+    }
+    
+    /**
+     * The tau function of the improved estimator, for the registers set to
+     * the largest possible rank.
+     */
+    private static double tau(double x) {
+    	if (x == 0.0 || x == 1.0) {
+    		return 0.0;
+    	}
+    	
+    	double previous;
+    	double y = 1.0;
+    	double z = 1 - x;
+    	do {
+    		x = Math.sqrt(x);
+    		previous = z;
+    		y *= 0.5;
+    		z -= Math.pow(1 - x, 2) * y;
+    	} while (previous != z);
+    	
+    	return z / 3;
     }
 }
@@ -0,0 +1,122 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded lock-free queue for many producer threads and one single
+ * consumer thread. Producers only ever swap the head reference, and the
+ * consumer is the only thread to move the tail, so no locks or CAS retry
+ * loops are needed on either side.
+ * 
+ * A value offered by a producer may not be visible to the consumer for a
+ * brief moment after {@link #offer(Object)} has swapped the head, and thus
+ * {@link #poll()} may return <code>null</code> even for a non-empty queue.
+ * The consumer must check again once it is woken up by the producer.
+ * 
+ * @author sangupta
+ *
+ * @param <E>
+ *            the type of element being stored
+ */
+public class MpscLinkedQueue<E> {
+    
+    /**
+     * The most recently added node, updated by producers
+     */
+    private final AtomicReference<Node<E>> head;
+    
+    /**
+     * The node before the next one to be consumed, only read and updated by
+     * the consumer
+     */
+    private Node<E> tail;
+    
+    public MpscLinkedQueue() {
+        Node<E> stub = new Node<E>(null);
+        
+        this.head = new AtomicReference<Node<E>>(stub);
+        this.tail = stub;
+    }
+    
+    /**
+     * Add an element to the queue. May be called from any thread.
+     * 
+     * @param element
+     *            the element to add, cannot be <code>null</code>
+     * 
+     * @throws IllegalArgumentException
+     *             if the element is <code>null</code>
+     */
+    public void offer(E element) {
+        if(element == null) {
+            throw new IllegalArgumentException("Cannot add null element to queue");
+        }
+        
+        Node<E> node = new Node<E>(element);
+        Node<E> previous = this.head.getAndSet(node);
+        previous.next = node;
+    }
+    
+    /**
+     * Remove and return the oldest element of the queue. Must only be called
+     * from the consumer thread.
+     * 
+     * @return the element, or <code>null</code> if none is available
+     */
+    public E poll() {
+        Node<E> next = this.tail.next;
+        if(next == null) {
+            return null;
+        }
+        
+        E element = next.value;
+        next.value = null;
+        this.tail = next;
+        return element;
+    }
+    
+    /**
+     * Check if an element is available to the consumer. Must only be called
+     * from the consumer thread.
+     * 
+     * @return <code>true</code> if no element is available, <code>false</code>
+     *         otherwise
+     */
+    public boolean isEmpty() {
+        return this.tail.next == null;
+    }
+    
+    private static final class Node<E> {
+        
+        E value;
+        
+        volatile Node<E> next;
+        
+        Node(E value) {
+            this.value = value;
+        }
+        
+    }
+
+}
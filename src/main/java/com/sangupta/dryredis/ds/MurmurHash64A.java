@@ -0,0 +1,212 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+/**
+ * The 64-bit <code>MurmurHash64A</code> function by Austin Appleby, as used by
+ * the HyperLogLog implementation of Redis. Strings are hashed as their UTF-8
+ * bytes, encoded on the fly so that no byte array is allocated.
+ * 
+ * @author sangupta
+ *
+ */
+public class MurmurHash64A {
+	
+	private static final long M = 0xc6a4a7935bd1e995l;
+	
+	private static final int R = 47;
+	
+	private MurmurHash64A() {
+		// no instances
+	}
+	
+	/**
+	 * Hash the given bytes.
+	 * 
+	 * @param bytes
+	 *            the bytes to hash
+	 * 
+	 * @param offset
+	 *            the index of the first byte
+	 * 
+	 * @param length
+	 *            the number of bytes to hash
+	 * 
+	 * @param seed
+	 *            the seed to use
+	 * 
+	 * @return the 64-bit hash
+	 */
+	public static long hash(byte[] bytes, int offset, int length, long seed) {
+		long h = seed ^ (length * M);
+		
+		int end = offset + (length & ~7);
+		int index = offset;
+		for ( ; index < end; index += 8) {
+			long k = (bytes[index] & 0xffl)
+					| (bytes[index + 1] & 0xffl) << 8
+					| (bytes[index + 2] & 0xffl) << 16
+					| (bytes[index + 3] & 0xffl) << 24
+					| (bytes[index + 4] & 0xffl) << 32
+					| (bytes[index + 5] & 0xffl) << 40
+					| (bytes[index + 6] & 0xffl) << 48
+					| (bytes[index + 7] & 0xffl) << 56;
+			
+			h = mix(h, k);
+		}
+		
+		int remaining = length & 7;
+		if (remaining > 0) {
+			long k = 0;
+			for (int shift = 0; shift < remaining; shift++) {
+				k |= (bytes[index + shift] & 0xffl) << (shift << 3);
+			}
+			
+			h ^= k;
+			h *= M;
+		}
+		
+		return finish(h);
+	}
+	
+	/**
+	 * Hash the UTF-8 encoding of the given characters, same as hashing the
+	 * bytes returned by <code>String.getBytes("UTF-8")</code>.
+	 * 
+	 * @param chars
+	 *            the characters to hash
+	 * 
+	 * @param seed
+	 *            the seed to use
+	 * 
+	 * @return the 64-bit hash
+	 */
+	public static long hash(CharSequence chars, long seed) {
+		final int size = chars.length();
+		long h = seed ^ (utf8Length(chars) * M);
+		
+		long k = 0;
+		int filled = 0;
+		for (int index = 0; index < size; index++) {
+			char c = chars.charAt(index);
+			
+			// the bytes of the character, first byte lowest
+			int encoded;
+			int count;
+			if (c < 0x80) {
+				encoded = c;
+				count = 1;
+			} else if (c < 0x800) {
+				encoded = (0xc0 | (c >>> 6)) | (0x80 | (c & 0x3f)) << 8;
+				count = 2;
+			} else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+				encoded = (0xe0 | (c >>> 12)) | (0x80 | ((c >>> 6) & 0x3f)) << 8 | (0x80 | (c & 0x3f)) << 16;
+				count = 3;
+			} else if (Character.isHighSurrogate(c) && index + 1 < size && Character.isLowSurrogate(chars.charAt(index + 1))) {
+				int codePoint = Character.toCodePoint(c, chars.charAt(++index));
+				encoded = (0xf0 | (codePoint >>> 18)) | (0x80 | ((codePoint >>> 12) & 0x3f)) << 8 | (0x80 | ((codePoint >>> 6) & 0x3f)) << 16 | (0x80 | (codePoint & 0x3f)) << 24;
+				count = 4;
+			} else {
+				// unpaired surrogate, replaced the same as the JDK encoder does
+				encoded = '?';
+				count = 1;
+			}
+			
+			for ( ; count > 0; count--) {
+				k |= (encoded & 0xffl) << (filled << 3);
+				encoded >>>= 8;
+				
+				if (++filled == 8) {
+					h = mix(h, k);
+					k = 0;
+					filled = 0;
+				}
+			}
+		}
+		
+		if (filled > 0) {
+			h ^= k;
+			h *= M;
+		}
+		
+		return finish(h);
+	}
+	
+	/**
+	 * Hash the 8 bytes of the given value in little-endian order.
+	 * 
+	 * @param value
+	 *            the value to hash
+	 * 
+	 * @param seed
+	 *            the seed to use
+	 * 
+	 * @return the 64-bit hash
+	 */
+	public static long hash(long value, long seed) {
+		return finish(mix(seed ^ (8 * M), value));
+	}
+	
+	/**
+	 * Return the number of bytes in the UTF-8 encoding of the given
+	 * characters.
+	 */
+	static int utf8Length(CharSequence chars) {
+		final int size = chars.length();
+		int length = size;
+		for (int index = 0; index < size; index++) {
+			char c = chars.charAt(index);
+			if (c < 0x80) {
+				continue;
+			}
+			
+			if (c < 0x800) {
+				length += 1;
+			} else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && index + 1 < size && Character.isLowSurrogate(chars.charAt(index + 1))) {
+				// two chars, four bytes
+				length += 2;
+				index++;
+			}
+		}
+		
+		return length;
+	}
+	
+	private static long mix(long h, long k) {
+		k *= M;
+		k ^= k >>> R;
+		k *= M;
+		
+		h ^= k;
+		return h * M;
+	}
+	
+	private static long finish(long h) {
+		h ^= h >>> R;
+		h *= M;
+		h ^= h >>> R;
+		return h;
+	}
+
+}
@@ -0,0 +1,345 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A {@link Map} that keeps small maps as keys and values alternating in a
+ * single array, much like a Redis listpack, and converts itself to a
+ * {@link HashMap} once it grows. A packed map has no per-entry objects, and
+ * for a handful of entries scanning the array is as fast as hashing.
+ * 
+ * The map is converted when it holds more than the configured number of
+ * entries, or when a {@link CharSequence} key or value longer than the
+ * configured length is added. The conversion is one-way until the map is
+ * cleared.
+ * 
+ * @author sangupta
+ *
+ * @param <K>
+ *            the type of keys
+ * 
+ * @param <V>
+ *            the type of values
+ */
+public class PackedHashMap<K, V> extends AbstractMap<K, V> {
+    
+    /**
+     * Default number of entries up to which the map stays packed
+     */
+    public static final int DEFAULT_MAX_PACKED_ENTRIES = 128;
+    
+    /**
+     * Default length of a {@link CharSequence} key or value up to which the
+     * map stays packed
+     */
+    public static final int DEFAULT_MAX_PACKED_VALUE = 64;
+    
+    private static final int INITIAL_CAPACITY = 4;
+    
+    private final int maxPackedEntries;
+    
+    private final int maxPackedValue;
+    
+    /**
+     * Keys at even and values at odd indices while packed, <code>null</code>
+     * once converted
+     */
+    private Object[] packed;
+    
+    /**
+     * Number of entries while packed
+     */
+    private int size;
+    
+    /**
+     * The entries once converted, <code>null</code> while packed
+     */
+    private HashMap<K, V> hashed;
+    
+    private Set<Map.Entry<K, V>> entrySet;
+    
+    public PackedHashMap() {
+        this(DEFAULT_MAX_PACKED_ENTRIES, DEFAULT_MAX_PACKED_VALUE);
+    }
+    
+    /**
+     * Create a map that stays packed while it has at most the given number of
+     * entries, and no key or value longer than the given length.
+     * 
+     * @param maxPackedEntries
+     *            the maximum number of entries in the packed encoding
+     * 
+     * @param maxPackedValue
+     *            the maximum length of a {@link CharSequence} key or value in
+     *            the packed encoding
+     */
+    public PackedHashMap(int maxPackedEntries, int maxPackedValue) {
+        this.maxPackedEntries = maxPackedEntries;
+        this.maxPackedValue = maxPackedValue;
+        this.clear();
+    }
+    
+    /**
+     * Check whether the map is still in its compact encoding.
+     * 
+     * @return <code>true</code> if packed, <code>false</code> if converted to
+     *         a {@link HashMap}
+     */
+    public boolean isPacked() {
+        return this.hashed == null;
+    }
+    
+    @Override
+    public int size() {
+        if(this.hashed != null) {
+            return this.hashed.size();
+        }
+        
+        return this.size;
+    }
+    
+    @Override
+    public boolean containsKey(Object key) {
+        if(this.hashed != null) {
+            return this.hashed.containsKey(key);
+        }
+        
+        return this.indexOf(key) >= 0;
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        if(this.hashed != null) {
+            return this.hashed.get(key);
+        }
+        
+        int index = this.indexOf(key);
+        if(index < 0) {
+            return null;
+        }
+        
+        return (V) this.packed[index + 1];
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(K key, V value) {
+        if(this.hashed != null) {
+            return this.hashed.put(key, value);
+        }
+        
+        if(this.isLarge(key) || this.isLarge(value)) {
+            this.convert();
+            return this.hashed.put(key, value);
+        }
+        
+        int index = this.indexOf(key);
+        if(index >= 0) {
+            V existing = (V) this.packed[index + 1];
+            this.packed[index + 1] = value;
+            return existing;
+        }
+        
+        if(this.size >= this.maxPackedEntries) {
+            this.convert();
+            return this.hashed.put(key, value);
+        }
+        
+        if(this.size * 2 == this.packed.length) {
+            this.packed = Arrays.copyOf(this.packed, this.packed.length * 2);
+        }
+        
+        this.packed[this.size * 2] = key;
+        this.packed[this.size * 2 + 1] = value;
+        this.size++;
+        return null;
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(Object key) {
+        if(this.hashed != null) {
+            return this.hashed.remove(key);
+        }
+        
+        int index = this.indexOf(key);
+        if(index < 0) {
+            return null;
+        }
+        
+        V existing = (V) this.packed[index + 1];
+        this.removeAt(index);
+        return existing;
+    }
+    
+    @Override
+    public void clear() {
+        this.packed = new Object[INITIAL_CAPACITY * 2];
+        this.size = 0;
+        this.hashed = null;
+    }
+    
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if(this.entrySet == null) {
+            this.entrySet = new EntrySet();
+        }
+        
+        return this.entrySet;
+    }
+    
+    // private methods
+    
+    /**
+     * Return the index of the key in the packed array, or <code>-1</code>.
+     */
+    private int indexOf(Object key) {
+        final int length = this.size * 2;
+        for(int index = 0; index < length; index += 2) {
+            Object existing = this.packed[index];
+            if(existing == null ? key == null : existing.equals(key)) {
+                return index;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Remove the key and value at the given index of the packed array.
+     */
+    private void removeAt(int index) {
+        final int length = this.size * 2;
+        System.arraycopy(this.packed, index + 2, this.packed, index, length - index - 2);
+        this.packed[length - 2] = null;
+        this.packed[length - 1] = null;
+        this.size--;
+    }
+    
+    private boolean isLarge(Object value) {
+        return value instanceof CharSequence && ((CharSequence) value).length() > this.maxPackedValue;
+    }
+    
+    /**
+     * Move all entries from the packed array to a {@link HashMap}.
+     */
+    @SuppressWarnings("unchecked")
+    private void convert() {
+        HashMap<K, V> map = new HashMap<K, V>();
+        final int length = this.size * 2;
+        for(int index = 0; index < length; index += 2) {
+            map.put((K) this.packed[index], (V) this.packed[index + 1]);
+        }
+        
+        this.hashed = map;
+        this.packed = null;
+        this.size = 0;
+    }
+    
+    /**
+     * View over the entries in either encoding.
+     */
+    private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            if(PackedHashMap.this.hashed != null) {
+                return PackedHashMap.this.hashed.entrySet().iterator();
+            }
+            
+            return new PackedIterator();
+        }
+
+        @Override
+        public int size() {
+            return PackedHashMap.this.size();
+        }
+        
+        @Override
+        public void clear() {
+            PackedHashMap.this.clear();
+        }
+        
+    }
+    
+    /**
+     * Iterator over the packed array whose entries write through to the map.
+     */
+    private final class PackedIterator implements Iterator<Map.Entry<K, V>> {
+        
+        private int next;
+        
+        private int lastReturned = -1;
+
+        @Override
+        public boolean hasNext() {
+            return this.next < PackedHashMap.this.size * 2;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Map.Entry<K, V> next() {
+            if(!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            
+            final int index = this.next;
+            this.lastReturned = index;
+            this.next += 2;
+            
+            return new SimpleEntry<K, V>((K) PackedHashMap.this.packed[index], (V) PackedHashMap.this.packed[index + 1]) {
+                
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public V setValue(V value) {
+                    PackedHashMap.this.packed[index + 1] = value;
+                    return super.setValue(value);
+                }
+                
+            };
+        }
+
+        @Override
+        public void remove() {
+            if(this.lastReturned < 0) {
+                throw new IllegalStateException();
+            }
+            
+            PackedHashMap.this.removeAt(this.lastReturned);
+            this.next = this.lastReturned;
+            this.lastReturned = -1;
+        }
+        
+    }
+
+}
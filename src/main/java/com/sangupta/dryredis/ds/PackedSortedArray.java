@@ -0,0 +1,309 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link SortedSetEncoding} for small sets that keeps elements in two
+ * parallel arrays sorted by priority and data, much like a Redis listpack.
+ * There are no per-element objects, and lookups scan the arrays, which for a
+ * handful of elements is as fast as hashing.
+ * 
+ * @author sangupta
+ *
+ * @param <E>
+ *            the type of element being stored
+ */
+class PackedSortedArray<E extends Comparable<E>> implements SortedSetEncoding<E> {
+    
+    private static final int INITIAL_CAPACITY = 4;
+    
+    private Object[] data;
+    
+    private double[] priorities;
+    
+    private int size;
+    
+    PackedSortedArray() {
+        this.clear();
+    }
+    
+    @Override
+    public int size() {
+        return this.size;
+    }
+    
+    @Override
+    public boolean contains(E element) {
+        return this.indexOf(element) >= 0;
+    }
+    
+    @Override
+    public Double getPriority(E element) {
+        int index = this.indexOf(element);
+        if(index < 0) {
+            return null;
+        }
+        
+        return this.priorities[index];
+    }
+    
+    @Override
+    public int rank(E element) {
+        return this.indexOf(element);
+    }
+    
+    @Override
+    public ElementWithPriority<E> getByRank(int rank) {
+        if(rank < 0 || rank >= this.size) {
+            return null;
+        }
+        
+        return this.elementAt(rank);
+    }
+    
+    @Override
+    public Iterator<ElementWithPriority<E>> iterator(int fromRank, boolean descending) {
+        if(fromRank < 0 || fromRank >= this.size) {
+            fromRank = descending ? -1 : this.size;
+        }
+        
+        return new ArrayIterator(fromRank, descending);
+    }
+    
+    @Override
+    public int countWhile(Predicate<E> predicate) {
+        int low = 0;
+        int high = this.size;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(predicate.test(this.dataAt(middle), this.priorities[middle])) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        
+        return low;
+    }
+    
+    @Override
+    public int removeRange(int fromRank, int toRank) {
+        int removed = toRank - fromRank + 1;
+        System.arraycopy(this.data, toRank + 1, this.data, fromRank, this.size - toRank - 1);
+        System.arraycopy(this.priorities, toRank + 1, this.priorities, fromRank, this.size - toRank - 1);
+        
+        Arrays.fill(this.data, this.size - removed, this.size, null);
+        this.size -= removed;
+        return removed;
+    }
+    
+    @Override
+    public void insert(final E element, final double priority) {
+        int index = this.countWhile(new Predicate<E>() {
+            
+            @Override
+            public boolean test(E data, double existing) {
+                int compare = Double.compare(existing, priority);
+                if(compare != 0) {
+                    return compare < 0;
+                }
+                
+                return data.compareTo(element) < 0;
+            }
+            
+        });
+        
+        if(this.size == this.data.length) {
+            int capacity = this.data.length * 2;
+            this.data = Arrays.copyOf(this.data, capacity);
+            this.priorities = Arrays.copyOf(this.priorities, capacity);
+        }
+        
+        System.arraycopy(this.data, index, this.data, index + 1, this.size - index);
+        System.arraycopy(this.priorities, index, this.priorities, index + 1, this.size - index);
+        
+        this.data[index] = element;
+        this.priorities[index] = priority;
+        this.size++;
+    }
+    
+    @Override
+    public void load(List<ElementWithPriority<E>> elements) {
+        int capacity = Math.max(INITIAL_CAPACITY, elements.size());
+        this.data = new Object[capacity];
+        this.priorities = new double[capacity];
+        this.size = elements.size();
+        
+        for(int index = 0; index < this.size; index++) {
+            ElementWithPriority<E> element = elements.get(index);
+            this.data[index] = element.getData();
+            this.priorities[index] = element.getPriority();
+        }
+    }
+    
+    @Override
+    public void updatePriority(E element, double priority) {
+        this.moveTo(this.indexOf(element), priority);
+    }
+    
+    @Override
+    public double incrementPriority(E element, double increment) {
+        int index = this.indexOf(element);
+        double priority = this.priorities[index] + increment;
+        this.moveTo(index, priority);
+        return priority;
+    }
+    
+    @Override
+    public boolean remove(E element) {
+        int index = this.indexOf(element);
+        if(index < 0) {
+            return false;
+        }
+        
+        this.removeRange(index, index);
+        return true;
+    }
+    
+    @Override
+    public void clear() {
+        this.data = new Object[INITIAL_CAPACITY];
+        this.priorities = new double[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+    
+    /**
+     * Change the priority at the index, shifting only the elements between the
+     * old and the new place of the element.
+     */
+    private void moveTo(int index, double priority) {
+        E element = this.dataAt(index);
+        
+        int target = index;
+        while(target > 0 && this.isAfter(target - 1, element, priority)) {
+            target--;
+        }
+        
+        if(target == index) {
+            while(target < this.size - 1 && !this.isAfter(target + 1, element, priority)) {
+                target++;
+            }
+        }
+        
+        if(target < index) {
+            System.arraycopy(this.data, target, this.data, target + 1, index - target);
+            System.arraycopy(this.priorities, target, this.priorities, target + 1, index - target);
+        } else if(target > index) {
+            System.arraycopy(this.data, index + 1, this.data, index, target - index);
+            System.arraycopy(this.priorities, index + 1, this.priorities, index, target - index);
+        }
+        
+        this.data[target] = element;
+        this.priorities[target] = priority;
+    }
+    
+    /**
+     * Check whether the element at the index sorts after the given element.
+     */
+    private boolean isAfter(int index, E element, double priority) {
+        int compare = Double.compare(this.priorities[index], priority);
+        if(compare != 0) {
+            return compare > 0;
+        }
+        
+        return this.dataAt(index).compareTo(element) > 0;
+    }
+    
+    private int indexOf(E element) {
+        for(int index = 0; index < this.size; index++) {
+            if(this.data[index].equals(element)) {
+                return index;
+            }
+        }
+        
+        return -1;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private E dataAt(int index) {
+        return (E) this.data[index];
+    }
+    
+    private ElementWithPriority<E> elementAt(int index) {
+        return new ElementWithPriority<E>(this.dataAt(index), this.priorities[index]);
+    }
+    
+    /**
+     * Iterator over the arrays in either direction.
+     */
+    private final class ArrayIterator implements Iterator<ElementWithPriority<E>> {
+        
+        private final boolean descending;
+        
+        private int next;
+        
+        private int lastReturned = -1;
+        
+        ArrayIterator(int start, boolean descending) {
+            this.next = start;
+            this.descending = descending;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next >= 0 && this.next < PackedSortedArray.this.size;
+        }
+
+        @Override
+        public ElementWithPriority<E> next() {
+            if(!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            
+            this.lastReturned = this.next;
+            this.next += this.descending ? -1 : 1;
+            return PackedSortedArray.this.elementAt(this.lastReturned);
+        }
+
+        @Override
+        public void remove() {
+            if(this.lastReturned < 0) {
+                throw new IllegalStateException();
+            }
+            
+            PackedSortedArray.this.removeRange(this.lastReturned, this.lastReturned);
+            if(!this.descending) {
+                // elements after the removed one have shifted down
+                this.next--;
+            }
+            
+            this.lastReturned = -1;
+        }
+        
+    }
+
+}
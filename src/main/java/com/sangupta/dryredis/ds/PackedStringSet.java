@@ -0,0 +1,424 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A {@link Set} of strings that uses the compact encodings of Redis sets
+ * while the set is small:
+ * 
+ * <ul>
+ * <li>an <i>intset</i>, a sorted <code>long[]</code>, while all members are
+ * integers in their canonical form</li>
+ * <li>a <i>listpack</i>, a plain <code>String[]</code> that is scanned on
+ * lookup, while the set has few and short members</li>
+ * <li>a {@link HashSet} once the set grows past the configured limits</li>
+ * </ul>
+ * 
+ * Conversions only go down the list above, until the set is cleared.
+ * 
+ * @author sangupta
+ *
+ */
+public class PackedStringSet extends AbstractSet<String> {
+    
+    /**
+     * Default number of integer members up to which an intset is used
+     */
+    public static final int DEFAULT_MAX_INTSET_ENTRIES = 512;
+    
+    /**
+     * Default number of members up to which a listpack is used
+     */
+    public static final int DEFAULT_MAX_PACKED_ENTRIES = 128;
+    
+    /**
+     * Default length of a member up to which a listpack is used
+     */
+    public static final int DEFAULT_MAX_PACKED_VALUE = 64;
+    
+    private static final int INITIAL_CAPACITY = 4;
+    
+    private final int maxIntSetEntries;
+    
+    private final int maxPackedEntries;
+    
+    private final int maxPackedValue;
+    
+    /**
+     * Sorted members while an intset, <code>null</code> otherwise
+     */
+    private long[] integers;
+    
+    /**
+     * Members while a listpack, <code>null</code> otherwise
+     */
+    private String[] packed;
+    
+    /**
+     * Number of members while an intset or a listpack
+     */
+    private int size;
+    
+    /**
+     * Members once converted, <code>null</code> otherwise
+     */
+    private HashSet<String> hashed;
+    
+    public PackedStringSet() {
+        this(DEFAULT_MAX_INTSET_ENTRIES, DEFAULT_MAX_PACKED_ENTRIES, DEFAULT_MAX_PACKED_VALUE);
+    }
+    
+    /**
+     * Create a set with the given limits for its compact encodings.
+     * 
+     * @param maxIntSetEntries
+     *            the maximum number of members in an intset
+     * 
+     * @param maxPackedEntries
+     *            the maximum number of members in a listpack
+     * 
+     * @param maxPackedValue
+     *            the maximum length of a member in a listpack
+     */
+    public PackedStringSet(int maxIntSetEntries, int maxPackedEntries, int maxPackedValue) {
+        this.maxIntSetEntries = maxIntSetEntries;
+        this.maxPackedEntries = maxPackedEntries;
+        this.maxPackedValue = maxPackedValue;
+        this.clear();
+    }
+    
+    /**
+     * Check whether the set is an intset.
+     * 
+     * @return <code>true</code> if all members are stored as integers
+     */
+    public boolean isIntSet() {
+        return this.integers != null;
+    }
+    
+    /**
+     * Check whether the set is in one of its compact encodings.
+     * 
+     * @return <code>true</code> if an intset or a listpack, <code>false</code>
+     *         if converted to a {@link HashSet}
+     */
+    public boolean isPacked() {
+        return this.hashed == null;
+    }
+    
+    @Override
+    public int size() {
+        if(this.hashed != null) {
+            return this.hashed.size();
+        }
+        
+        return this.size;
+    }
+    
+    @Override
+    public boolean contains(Object o) {
+        if(this.hashed != null) {
+            return this.hashed.contains(o);
+        }
+        
+        if(!(o instanceof String)) {
+            return false;
+        }
+        
+        if(this.integers != null) {
+            Long value = parseInteger((String) o);
+            return value != null && Arrays.binarySearch(this.integers, 0, this.size, value) >= 0;
+        }
+        
+        return this.indexOf(o) >= 0;
+    }
+    
+    @Override
+    public boolean add(String member) {
+        if(this.integers != null) {
+            Long value = parseInteger(member);
+            if(value != null) {
+                int index = Arrays.binarySearch(this.integers, 0, this.size, value);
+                if(index >= 0) {
+                    return false;
+                }
+                
+                if(this.size < this.maxIntSetEntries) {
+                    this.insertInteger(-index - 1, value);
+                    return true;
+                }
+            }
+            
+            // the member does not fit an intset anymore
+            this.convertIntegers(this.size < this.maxPackedEntries && member.length() <= this.maxPackedValue);
+        }
+        
+        if(this.packed != null) {
+            if(this.indexOf(member) >= 0) {
+                return false;
+            }
+            
+            if(this.size < this.maxPackedEntries && member.length() <= this.maxPackedValue) {
+                if(this.size == this.packed.length) {
+                    this.packed = Arrays.copyOf(this.packed, this.packed.length * 2);
+                }
+                
+                this.packed[this.size++] = member;
+                return true;
+            }
+            
+            this.convertPacked();
+        }
+        
+        return this.hashed.add(member);
+    }
+    
+    @Override
+    public boolean remove(Object o) {
+        if(this.hashed != null) {
+            return this.hashed.remove(o);
+        }
+        
+        if(!(o instanceof String)) {
+            return false;
+        }
+        
+        if(this.integers != null) {
+            Long value = parseInteger((String) o);
+            if(value == null) {
+                return false;
+            }
+            
+            int index = Arrays.binarySearch(this.integers, 0, this.size, value);
+            if(index < 0) {
+                return false;
+            }
+            
+            this.removeAt(index);
+            return true;
+        }
+        
+        int index = this.indexOf(o);
+        if(index < 0) {
+            return false;
+        }
+        
+        this.removeAt(index);
+        return true;
+    }
+    
+    @Override
+    public void clear() {
+        this.integers = new long[INITIAL_CAPACITY];
+        this.packed = null;
+        this.hashed = null;
+        this.size = 0;
+    }
+    
+    @Override
+    public Iterator<String> iterator() {
+        if(this.hashed != null) {
+            return this.hashed.iterator();
+        }
+        
+        return new PackedIterator();
+    }
+    
+    // private methods
+    
+    /**
+     * Parse the string as a <code>long</code> if it is the canonical
+     * representation of one, so that it converts back to the same string.
+     * 
+     * @return the value, or <code>null</code> if not an integer
+     */
+    private static Long parseInteger(String string) {
+        final int length = string.length();
+        if(length == 0 || length > 20) {
+            return null;
+        }
+        
+        int index = 0;
+        boolean negative = false;
+        if(string.charAt(0) == '-') {
+            if(length == 1) {
+                return null;
+            }
+            
+            negative = true;
+            index = 1;
+        }
+        
+        // no leading zeros, and no negative zero
+        if(string.charAt(index) == '0' && (length > index + 1 || negative)) {
+            return null;
+        }
+        
+        long value = 0;
+        for(; index < length; index++) {
+            char ch = string.charAt(index);
+            if(ch < '0' || ch > '9') {
+                return null;
+            }
+            
+            int digit = ch - '0';
+            
+            // accumulate negatively to be able to hold Long.MIN_VALUE
+            if(value < (Long.MIN_VALUE + digit) / 10) {
+                return null;
+            }
+            
+            value = value * 10 - digit;
+        }
+        
+        if(!negative) {
+            if(value == Long.MIN_VALUE) {
+                return null;
+            }
+            
+            value = -value;
+        }
+        
+        return value;
+    }
+    
+    private int indexOf(Object member) {
+        for(int index = 0; index < this.size; index++) {
+            if(this.packed[index].equals(member)) {
+                return index;
+            }
+        }
+        
+        return -1;
+    }
+    
+    private void insertInteger(int index, long value) {
+        if(this.size == this.integers.length) {
+            this.integers = Arrays.copyOf(this.integers, this.integers.length * 2);
+        }
+        
+        System.arraycopy(this.integers, index, this.integers, index + 1, this.size - index);
+        this.integers[index] = value;
+        this.size++;
+    }
+    
+    /**
+     * Remove the member at the given index of the intset or listpack.
+     */
+    private void removeAt(int index) {
+        if(this.integers != null) {
+            System.arraycopy(this.integers, index + 1, this.integers, index, this.size - index - 1);
+        } else {
+            System.arraycopy(this.packed, index + 1, this.packed, index, this.size - index - 1);
+            this.packed[this.size - 1] = null;
+        }
+        
+        this.size--;
+    }
+    
+    /**
+     * Move the members of the intset to a listpack or a {@link HashSet}.
+     */
+    private void convertIntegers(boolean toPacked) {
+        if(toPacked) {
+            String[] members = new String[Math.max(INITIAL_CAPACITY, this.size * 2)];
+            for(int index = 0; index < this.size; index++) {
+                members[index] = String.valueOf(this.integers[index]);
+            }
+            
+            this.packed = members;
+        } else {
+            HashSet<String> set = new HashSet<String>();
+            for(int index = 0; index < this.size; index++) {
+                set.add(String.valueOf(this.integers[index]));
+            }
+            
+            this.hashed = set;
+            this.size = 0;
+        }
+        
+        this.integers = null;
+    }
+    
+    /**
+     * Move the members of the listpack to a {@link HashSet}.
+     */
+    private void convertPacked() {
+        HashSet<String> set = new HashSet<String>();
+        for(int index = 0; index < this.size; index++) {
+            set.add(this.packed[index]);
+        }
+        
+        this.hashed = set;
+        this.packed = null;
+        this.size = 0;
+    }
+    
+    /**
+     * Iterator over an intset or a listpack.
+     */
+    private final class PackedIterator implements Iterator<String> {
+        
+        private int next;
+        
+        private int lastReturned = -1;
+
+        @Override
+        public boolean hasNext() {
+            return this.next < PackedStringSet.this.size;
+        }
+
+        @Override
+        public String next() {
+            if(!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            
+            this.lastReturned = this.next++;
+            if(PackedStringSet.this.integers != null) {
+                return String.valueOf(PackedStringSet.this.integers[this.lastReturned]);
+            }
+            
+            return PackedStringSet.this.packed[this.lastReturned];
+        }
+
+        @Override
+        public void remove() {
+            if(this.lastReturned < 0) {
+                throw new IllegalStateException();
+            }
+            
+            PackedStringSet.this.removeAt(this.lastReturned);
+            this.next = this.lastReturned;
+            this.lastReturned = -1;
+        }
+        
+    }
+
+}
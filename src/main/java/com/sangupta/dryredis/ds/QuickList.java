@@ -0,0 +1,702 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link List} modelled after the Redis quicklist: a doubly-linked list of
+ * fixed-size array chunks. Pushing and popping at either end is O(1) and never
+ * shifts more than a single chunk, access by index walks the chunks from the
+ * nearer end, and trimming drops whole chunks at once.
+ *
+ * Elements are stored in the middle of a chunk, between an offset and the
+ * offset plus the count, so that a chunk can grow in both directions. Chunks
+ * that become sparse after removals are merged with their neighbour.
+ *
+ * @author sangupta
+ *
+ * @param <E>
+ *            the type of elements
+ */
+public class QuickList<E> extends AbstractList<E> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default number of elements in a chunk
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 128;
+
+    /**
+     * A chunk of elements
+     */
+    private static final class Node {
+
+        final Object[] items;
+
+        int offset;
+
+        int count;
+
+        Node previous;
+
+        Node next;
+
+        Node(int capacity, int offset) {
+            this.items = new Object[capacity];
+            this.offset = offset;
+        }
+
+    }
+
+    /**
+     * Number of elements in a chunk
+     */
+    private final int chunkSize;
+
+    private transient Node head;
+
+    private transient Node tail;
+
+    private transient int size;
+
+    /**
+     * Number of chunks in the list
+     */
+    private transient int nodes;
+
+    public QuickList() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Create a list with the given number of elements in a chunk.
+     *
+     * @param chunkSize
+     *            the number of elements in a chunk, at least 2
+     */
+    public QuickList(int chunkSize) {
+        if(chunkSize < 2) {
+            throw new IllegalArgumentException("Chunk size must be at least 2");
+        }
+
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Return the number of chunks in the list.
+     *
+     * @return the number of chunks
+     */
+    public int chunks() {
+        return this.nodes;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Add an element at the head of the list.
+     *
+     * @param element
+     *            the element to add
+     */
+    public void addFirst(E element) {
+        Node node = this.head;
+        if(node == null || node.count == this.chunkSize) {
+            // fill a new chunk from its end so that more pushes need no shifting
+            node = this.linkBefore(this.head, this.chunkSize);
+        } else if(node.offset == 0) {
+            int shift = this.chunkSize - node.count;
+            System.arraycopy(node.items, 0, node.items, shift, node.count);
+            clear(node.items, 0, shift);
+            node.offset = shift;
+        }
+
+        node.items[--node.offset] = element;
+        node.count++;
+        this.size++;
+        this.modCount++;
+    }
+
+    /**
+     * Add an element at the tail of the list.
+     *
+     * @param element
+     *            the element to add
+     */
+    public void addLast(E element) {
+        Node node = this.tail;
+        if(node == null || node.count == this.chunkSize) {
+            node = this.linkBefore(null, 0);
+        } else if(node.offset + node.count == this.chunkSize) {
+            System.arraycopy(node.items, node.offset, node.items, 0, node.count);
+            clear(node.items, node.count, this.chunkSize);
+            node.offset = 0;
+        }
+
+        node.items[node.offset + node.count] = element;
+        node.count++;
+        this.size++;
+        this.modCount++;
+    }
+
+    /**
+     * Remove and return the element at the head of the list.
+     *
+     * @return the element, or <code>null</code> if the list is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E pollFirst() {
+        Node node = this.head;
+        if(node == null) {
+            return null;
+        }
+
+        E element = (E) node.items[node.offset];
+        node.items[node.offset] = null;
+        node.offset++;
+        this.removed(node);
+        return element;
+    }
+
+    /**
+     * Remove and return the element at the tail of the list.
+     *
+     * @return the element, or <code>null</code> if the list is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E pollLast() {
+        Node node = this.tail;
+        if(node == null) {
+            return null;
+        }
+
+        int last = node.offset + node.count - 1;
+        E element = (E) node.items[last];
+        node.items[last] = null;
+        this.removed(node);
+        return element;
+    }
+
+    @Override
+    public boolean add(E element) {
+        this.addLast(element);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E get(int index) {
+        this.checkIndex(index);
+
+        Cursor cursor = this.seek(index);
+        return (E) cursor.node.items[cursor.node.offset + cursor.position];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E set(int index, E element) {
+        this.checkIndex(index);
+
+        Cursor cursor = this.seek(index);
+        int slot = cursor.node.offset + cursor.position;
+        E previous = (E) cursor.node.items[slot];
+        cursor.node.items[slot] = element;
+        return previous;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        if(index == 0) {
+            this.addFirst(element);
+            return;
+        }
+
+        if(index == this.size) {
+            this.addLast(element);
+            return;
+        }
+
+        this.checkIndex(index);
+        Cursor cursor = this.seek(index);
+        this.insert(cursor.node, cursor.position, element);
+    }
+
+    @Override
+    public E remove(int index) {
+        this.checkIndex(index);
+
+        Cursor cursor = this.seek(index);
+        return this.delete(cursor.node, cursor.position);
+    }
+
+    @Override
+    public void clear() {
+        this.head = null;
+        this.tail = null;
+        this.size = 0;
+        this.nodes = 0;
+        this.modCount++;
+    }
+
+    /**
+     * Keep only the elements between the given indices, dropping whole chunks
+     * outside the range.
+     *
+     * @param fromIndex
+     *            the index of the first element to keep, inclusive
+     *
+     * @param toIndex
+     *            the index of the last element to keep, exclusive
+     */
+    public void trim(int fromIndex, int toIndex) {
+        if(fromIndex < 0 || toIndex > this.size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("Range: " + fromIndex + " to " + toIndex + ", Size: " + this.size);
+        }
+
+        if(fromIndex == toIndex) {
+            this.clear();
+            return;
+        }
+
+        // drop from the tail
+        int drop = this.size - toIndex;
+        while(drop > 0) {
+            Node node = this.tail;
+            if(node.count <= drop) {
+                drop -= node.count;
+                this.size -= node.count;
+                this.unlink(node);
+                continue;
+            }
+
+            clear(node.items, node.offset + node.count - drop, node.offset + node.count);
+            node.count -= drop;
+            this.size -= drop;
+            drop = 0;
+        }
+
+        // drop from the head
+        drop = fromIndex;
+        while(drop > 0) {
+            Node node = this.head;
+            if(node.count <= drop) {
+                drop -= node.count;
+                this.size -= node.count;
+                this.unlink(node);
+                continue;
+            }
+
+            clear(node.items, node.offset, node.offset + drop);
+            node.offset += drop;
+            node.count -= drop;
+            this.size -= drop;
+            drop = 0;
+        }
+
+        this.modCount++;
+    }
+
+    /**
+     * Copy the elements between the given indices to a new list.
+     *
+     * @param fromIndex
+     *            the index of the first element, inclusive
+     *
+     * @param toIndex
+     *            the index of the last element, exclusive
+     *
+     * @return the elements
+     */
+    public List<E> copy(int fromIndex, int toIndex) {
+        if(fromIndex < 0 || toIndex > this.size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("Range: " + fromIndex + " to " + toIndex + ", Size: " + this.size);
+        }
+
+        List<E> result = new ArrayList<E>(toIndex - fromIndex);
+        Iterator<E> iterator = this.iterator(fromIndex);
+        for(int index = fromIndex; index < toIndex; index++) {
+            result.add(iterator.next());
+        }
+
+        return result;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return this.iterator(0);
+    }
+
+    /**
+     * Return an iterator from head to tail that starts at the given index.
+     *
+     * @param fromIndex
+     *            the index of the first element to return
+     *
+     * @return the iterator, which supports removal
+     */
+    public Iterator<E> iterator(int fromIndex) {
+        if(fromIndex < 0 || fromIndex > this.size) {
+            throw new IndexOutOfBoundsException("Index: " + fromIndex + ", Size: " + this.size);
+        }
+
+        if(fromIndex == this.size) {
+            return new Itr(null, 0, false);
+        }
+
+        Cursor cursor = this.seek(fromIndex);
+        return new Itr(cursor.node, cursor.position, false);
+    }
+
+    /**
+     * Return an iterator from tail to head.
+     *
+     * @return the iterator, which supports removal
+     */
+    public Iterator<E> descendingIterator() {
+        if(this.tail == null) {
+            return new Itr(null, 0, true);
+        }
+
+        return new Itr(this.tail, this.tail.count - 1, true);
+    }
+
+    // internal methods
+
+    /**
+     * A position within a chunk
+     */
+    private static final class Cursor {
+
+        final Node node;
+
+        final int position;
+
+        Cursor(Node node, int position) {
+            this.node = node;
+            this.position = position;
+        }
+
+    }
+
+    /**
+     * Find the chunk holding the element at the given index, walking from the
+     * nearer end of the list.
+     */
+    private Cursor seek(int index) {
+        if(index < this.size / 2) {
+            Node node = this.head;
+            while(index >= node.count) {
+                index -= node.count;
+                node = node.next;
+            }
+
+            return new Cursor(node, index);
+        }
+
+        Node node = this.tail;
+        int fromEnd = this.size - index;
+        while(fromEnd > node.count) {
+            fromEnd -= node.count;
+            node = node.previous;
+        }
+
+        return new Cursor(node, node.count - fromEnd);
+    }
+
+    /**
+     * Insert the element at the given position in the chunk, splitting the
+     * chunk in two halves if it is full.
+     */
+    private void insert(Node node, int position, E element) {
+        if(node.count == this.chunkSize) {
+            int half = node.count / 2;
+            Node right = this.linkBefore(node.next, 0);
+            System.arraycopy(node.items, node.offset + half, right.items, 0, node.count - half);
+            clear(node.items, node.offset + half, node.offset + node.count);
+            right.count = node.count - half;
+            node.count = half;
+
+            if(position > half) {
+                node = right;
+                position -= half;
+            }
+        }
+
+        int start = node.offset;
+        if(start + node.count < this.chunkSize) {
+            // shift the elements after the position right
+            System.arraycopy(node.items, start + position, node.items, start + position + 1, node.count - position);
+        } else {
+            // shift the elements before the position left
+            System.arraycopy(node.items, start, node.items, start - 1, position);
+            node.offset--;
+        }
+
+        node.items[node.offset + position] = element;
+        node.count++;
+        this.size++;
+        this.modCount++;
+    }
+
+    /**
+     * Remove the element at the given position in the chunk, shifting the
+     * shorter side of the chunk.
+     */
+    @SuppressWarnings("unchecked")
+    private E delete(Node node, int position) {
+        int start = node.offset;
+        E element = (E) node.items[start + position];
+
+        if(position < node.count / 2) {
+            System.arraycopy(node.items, start, node.items, start + 1, position);
+            node.items[start] = null;
+            node.offset++;
+        } else {
+            System.arraycopy(node.items, start + position + 1, node.items, start + position, node.count - position - 1);
+            node.items[start + node.count - 1] = null;
+        }
+
+        this.removed(node);
+        return element;
+    }
+
+    /**
+     * Update the counts after an element was removed from the chunk, and drop
+     * or merge the chunk when it becomes empty or sparse.
+     */
+    private void removed(Node node) {
+        node.count--;
+        this.size--;
+        this.modCount++;
+
+        if(node.count == 0) {
+            this.unlink(node);
+            return;
+        }
+
+        if(node.count < this.chunkSize / 4) {
+            Node next = node.next;
+            if(next != null && node.count + next.count <= this.chunkSize / 2) {
+                this.merge(node, next);
+            }
+        }
+    }
+
+    /**
+     * Move all elements of the next chunk into the given chunk.
+     */
+    private void merge(Node node, Node next) {
+        System.arraycopy(node.items, node.offset, node.items, 0, node.count);
+        System.arraycopy(next.items, next.offset, node.items, node.count, next.count);
+        node.offset = 0;
+        node.count += next.count;
+        clear(node.items, node.count, this.chunkSize);
+        this.unlink(next);
+    }
+
+    /**
+     * Create an empty chunk before the given chunk, or at the tail if
+     * <code>null</code>.
+     */
+    private Node linkBefore(Node successor, int offset) {
+        Node node = new Node(this.chunkSize, offset);
+        node.next = successor;
+
+        if(successor == null) {
+            node.previous = this.tail;
+            this.tail = node;
+        } else {
+            node.previous = successor.previous;
+            successor.previous = node;
+        }
+
+        if(node.previous == null) {
+            this.head = node;
+        } else {
+            node.previous.next = node;
+        }
+
+        this.nodes++;
+        return node;
+    }
+
+    private void unlink(Node node) {
+        if(node.previous == null) {
+            this.head = node.next;
+        } else {
+            node.previous.next = node.next;
+        }
+
+        if(node.next == null) {
+            this.tail = node.previous;
+        } else {
+            node.next.previous = node.previous;
+        }
+
+        this.nodes--;
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+    }
+
+    private static void clear(Object[] items, int from, int to) {
+        for(int index = from; index < to; index++) {
+            items[index] = null;
+        }
+    }
+
+    /**
+     * Iterates over the chunks in either direction
+     */
+    private final class Itr implements Iterator<E> {
+
+        private final boolean descending;
+
+        private Node node;
+
+        private int position;
+
+        private Node lastNode;
+
+        private int lastPosition = -1;
+
+        private int expectedModCount = modCount;
+
+        Itr(Node node, int position, boolean descending) {
+            this.node = node;
+            this.position = position;
+            this.descending = descending;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.node != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E next() {
+            if(modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            if(this.node == null) {
+                throw new NoSuchElementException();
+            }
+
+            this.lastNode = this.node;
+            this.lastPosition = this.position;
+            E element = (E) this.node.items[this.node.offset + this.position];
+
+            if(this.descending) {
+                this.position--;
+                if(this.position < 0) {
+                    this.node = this.node.previous;
+                    this.position = this.node == null ? 0 : this.node.count - 1;
+                }
+            } else {
+                this.position++;
+                if(this.position == this.node.count) {
+                    this.node = this.node.next;
+                    this.position = 0;
+                }
+            }
+
+            return element;
+        }
+
+        @Override
+        public void remove() {
+            if(this.lastPosition < 0) {
+                throw new IllegalStateException();
+            }
+
+            if(modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            // positions after the removed one move down by one, even if the
+            // chunk was merged with its successor or unlinked when emptied
+            Node removedFrom = this.lastNode;
+            delete(removedFrom, this.lastPosition);
+
+            if(this.descending) {
+                this.node = removedFrom;
+                this.position = this.lastPosition - 1;
+                if(this.position < 0) {
+                    this.node = removedFrom.previous;
+                    this.position = this.node == null ? 0 : this.node.count - 1;
+                }
+            } else if(removedFrom.count > 0 && this.lastPosition < removedFrom.count) {
+                this.node = removedFrom;
+                this.position = this.lastPosition;
+            } else {
+                this.node = removedFrom.next;
+                this.position = 0;
+            }
+
+            this.lastNode = null;
+            this.lastPosition = -1;
+            this.expectedModCount = modCount;
+        }
+
+    }
+
+    // serialization
+
+    private void writeObject(ObjectOutputStream stream) throws IOException {
+        stream.defaultWriteObject();
+        stream.writeInt(this.size);
+        for(Node node = this.head; node != null; node = node.next) {
+            for(int index = 0; index < node.count; index++) {
+                stream.writeObject(node.items[node.offset + index]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+        stream.defaultReadObject();
+        int count = stream.readInt();
+        for(int index = 0; index < count; index++) {
+            this.addLast((E) stream.readObject());
+        }
+    }
+
+}
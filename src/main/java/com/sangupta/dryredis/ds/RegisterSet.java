@@ -21,15 +21,67 @@
 
 package com.sangupta.dryredis.ds;
 
+import java.util.Arrays;
+
+/**
+ * A set of 6-bit registers packed into a byte array, in the same layout as
+ * the dense representation of a Redis HyperLogLog. Register <code>i</code>
+ * starts at bit <code>6 * i</code>, with the least significant bits of the
+ * register in the least significant bits of the byte, so that 16384
+ * registers take exactly 12288 bytes.
+ * <br><br>
+ * Every 6 bytes hold exactly 8 registers. Merging and counting work on such
+ * chunks at once: a chunk is read into a <code>long</code>, split into its
+ * even and odd registers so that each register has 6 spare bits above it,
+ * and the registers are then compared all together with a few arithmetic
+ * operations, without any branches.
+ * 
+ * @author sangupta
+ *
+ */
 class RegisterSet {
 
-	public final static int LOG2_BITS_PER_WORD = 6;
-	public final static int REGISTER_SIZE = 5;
+	/**
+	 * Number of bits in each register
+	 */
+	public final static int REGISTER_SIZE = 6;
 
+	/**
+	 * The largest value a register can hold
+	 */
+	public final static int REGISTER_MAX = (1 << REGISTER_SIZE) - 1;
+
+	/**
+	 * Number of registers
+	 */
 	public final int count;
+
+	/**
+	 * Number of bytes used by the registers
+	 */
 	public final int size;
 
-	private final int[] M;
+	/**
+	 * Number of bytes in a chunk
+	 */
+	private static final int CHUNK_BYTES = 6;
+	
+	/**
+	 * Number of registers in a chunk
+	 */
+	private static final int CHUNK_REGISTERS = 8;
+	
+	/**
+	 * Mask over the even registers of a chunk
+	 */
+	private static final long EVEN_LANES = 0x3f03f03f03fl;
+	
+	/**
+	 * The lowest spare bit above each even register of a chunk
+	 */
+	private static final long GUARD_BITS = 0x40040040040l;
+
+	private final byte[] M;
 
 	public RegisterSet(int count) {
 		this(count, null);
@@ -43,80 +95,179 @@ class RegisterSet {
 		System.arraycopy(other.M, 0, this.M, 0, other.M.length);
     }
 
-	public RegisterSet(int count, int[] initialValues) {
+	public RegisterSet(int count, byte[] initialValues) {
 		this.count = count;
 
 		if (initialValues == null) {
-			this.M = new int[getSizeForCount(count)];
+			this.M = new byte[getSizeForCount(count)];
 		} else {
 			this.M = initialValues;
 		}
 		this.size = this.M.length;
 	}
 
-	public static int getBits(int count) {
-		return count / LOG2_BITS_PER_WORD;
-	}
-
 	public static int getSizeForCount(int count) {
-		int bits = getBits(count);
-		if (bits == 0) {
-			return 1;
-		} else if (bits % Integer.SIZE == 0) {
-			return bits;
-		} else {
-			return bits + 1;
-		}
+		return (count * REGISTER_SIZE + 7) / 8;
 	}
 
 	public void set(int position, int value) {
-		int bucketPos = position / LOG2_BITS_PER_WORD;
-		int shift = REGISTER_SIZE * (position - (bucketPos * LOG2_BITS_PER_WORD));
-		this.M[bucketPos] = (this.M[bucketPos] & ~(0x1f << shift)) | (value << shift);
+		int bit = position * REGISTER_SIZE;
+		int index = bit >>> 3;
+		int shift = bit & 7;
+		
+		this.M[index] = (byte) ((this.M[index] & ~(REGISTER_MAX << shift)) | (value << shift));
+		
+		// the register spills over into the next byte
+		if (shift > 8 - REGISTER_SIZE) {
+			int spill = 8 - shift;
+			this.M[index + 1] = (byte) ((this.M[index + 1] & ~(REGISTER_MAX >>> spill)) | (value >>> spill));
+		}
 	}
 
 	public int get(int position) {
-		int bucketPos = position / LOG2_BITS_PER_WORD;
-		int shift = REGISTER_SIZE * (position - (bucketPos * LOG2_BITS_PER_WORD));
-		return (this.M[bucketPos] & (0x1f << shift)) >>> shift;
+		int bit = position * REGISTER_SIZE;
+		int index = bit >>> 3;
+		int shift = bit & 7;
+		
+		int value = (this.M[index] & 0xff) >>> shift;
+		if (shift > 8 - REGISTER_SIZE) {
+			value |= (this.M[index + 1] & 0xff) << (8 - shift);
+		}
+		
+		return value & REGISTER_MAX;
 	}
 
 	public boolean updateIfGreater(int position, int value) {
-		int bucket = position / LOG2_BITS_PER_WORD;
-		int shift = REGISTER_SIZE * (position - (bucket * LOG2_BITS_PER_WORD));
-		int mask = 0x1f << shift;
-
-		// Use long to avoid sign issues with the left-most shift
-		long curVal = this.M[bucket] & mask;
-		long newVal = value << shift;
-		if (curVal < newVal) {
-			this.M[bucket] = (int) ((this.M[bucket] & ~mask) | newVal);
+		if (this.get(position) < value) {
+			this.set(position, value);
 			return true;
-		} else {
-			return false;
 		}
+		
+		return false;
 	}
 
-	public void merge(RegisterSet that) {
-		for (int bucket = 0; bucket < M.length; bucket++) {
-			int word = 0;
-			for (int j = 0; j < LOG2_BITS_PER_WORD; j++) {
-				int mask = 0x1f << (REGISTER_SIZE * j);
-
-				int thisVal = (this.M[bucket] & mask);
-				int thatVal = (that.M[bucket] & mask);
-				word |= (thisVal < thatVal) ? thatVal : thisVal;
+	/**
+	 * Set each register to the larger of its value and the value of the
+	 * same register in the given set.
+	 * 
+	 * @return <code>true</code> if any register was changed
+	 */
+	public boolean merge(RegisterSet that) {
+		return this.merge(that, 0, this.count);
+	}
+	
+	/**
+	 * Merge the given range of registers only. Merges of ranges that do not
+	 * overlap may run at the same time, as long as each range starts at a
+	 * multiple of 8 registers.
+	 * 
+	 * @param that
+	 *            the registers to merge from
+	 * 
+	 * @param from
+	 *            the first register to merge, a multiple of 8
+	 * 
+	 * @param to
+	 *            the register after the last one to merge
+	 * 
+	 * @return <code>true</code> if any register was changed
+	 */
+	public boolean merge(RegisterSet that, int from, int to) {
+		if (from % CHUNK_REGISTERS != 0) {
+			throw new IllegalArgumentException("Range must start at a multiple of " + CHUNK_REGISTERS);
+		}
+		
+		boolean changed = false;
+		
+		final int chunks = to / CHUNK_REGISTERS;
+		for (int offset = (from / CHUNK_REGISTERS) * CHUNK_BYTES; offset < chunks * CHUNK_BYTES; offset += CHUNK_BYTES) {
+			long a = readChunk(this.M, offset);
+			long b = readChunk(that.M, offset);
+			
+			long max = maxLanes(a & EVEN_LANES, b & EVEN_LANES) | (maxLanes((a >>> REGISTER_SIZE) & EVEN_LANES, (b >>> REGISTER_SIZE) & EVEN_LANES) << REGISTER_SIZE);
+			if (max != a) {
+				writeChunk(this.M, offset, max);
+				changed = true;
+			}
+		}
+		
+		for (int position = Math.max(from, chunks * CHUNK_REGISTERS); position < to; position++) {
+			if (this.updateIfGreater(position, that.get(position))) {
+				changed = true;
+			}
+		}
+		
+		return changed;
+	}
+	
+	/**
+	 * Count the registers of each value, among the given number of leading
+	 * registers.
+	 * 
+	 * @param histogram
+	 *            the counts to add to, indexed by register value
+	 * 
+	 * @param registers
+	 *            the number of registers to count
+	 */
+	public void histogram(int[] histogram, int registers) {
+		final int chunks = registers / CHUNK_REGISTERS;
+		for (int offset = 0; offset < chunks * CHUNK_BYTES; offset += CHUNK_BYTES) {
+			long chunk = readChunk(this.M, offset);
+			for (int lane = 0; lane < CHUNK_REGISTERS; lane++) {
+				histogram[(int) (chunk & REGISTER_MAX)]++;
+				chunk >>>= REGISTER_SIZE;
 			}
-			this.M[bucket] = word;
 		}
+		
+		for (int position = chunks * CHUNK_REGISTERS; position < registers; position++) {
+			histogram[this.get(position)]++;
+		}
+	}
+	
+	/**
+	 * Compute the larger of each pair of registers, for registers under
+	 * {@link #EVEN_LANES}. The subtraction leaves the guard bit of a
+	 * register set if the register of <code>x</code> is not smaller, and the
+	 * guard bits are then widened into a mask over those registers.
+	 */
+	private static long maxLanes(long x, long y) {
+		long greater = ((x | GUARD_BITS) - y) & GUARD_BITS;
+		long mask = greater - (greater >>> REGISTER_SIZE);
+		return (x & mask) | (y & ~mask);
+	}
+	
+	private static long readChunk(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xffl)
+				| (bytes[offset + 1] & 0xffl) << 8
+				| (bytes[offset + 2] & 0xffl) << 16
+				| (bytes[offset + 3] & 0xffl) << 24
+				| (bytes[offset + 4] & 0xffl) << 32
+				| (bytes[offset + 5] & 0xffl) << 40;
+	}
+	
+	private static void writeChunk(byte[] bytes, int offset, long chunk) {
+		bytes[offset] = (byte) chunk;
+		bytes[offset + 1] = (byte) (chunk >>> 8);
+		bytes[offset + 2] = (byte) (chunk >>> 16);
+		bytes[offset + 3] = (byte) (chunk >>> 24);
+		bytes[offset + 4] = (byte) (chunk >>> 32);
+		bytes[offset + 5] = (byte) (chunk >>> 40);
+	}
+
+	/**
+	 * Set all registers to zero.
+	 */
+	public void clear() {
+		Arrays.fill(this.M, (byte) 0);
 	}
 
-	int[] readOnlyBits() {
+	byte[] readOnlyBits() {
 		return M;
 	}
 
-	public int[] bits() {
-		int[] copy = new int[size];
+	public byte[] bits() {
+		byte[] copy = new byte[size];
 		System.arraycopy(M, 0, copy, 0, M.length);
 		return copy;
 	}
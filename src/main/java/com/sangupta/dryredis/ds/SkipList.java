@@ -0,0 +1,545 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link SortedSetEncoding} that keeps elements in a skip list where each
+ * forward link also stores the number of elements it skips over (its span),
+ * the same way Redis implements sorted sets. This allows finding the rank of
+ * an element, or the element at a given rank, in <code>O(log n)</code>. A
+ * dictionary from element data to skip list node makes membership checks and
+ * priority lookups <code>O(1)</code>. Priorities are stored unboxed in the
+ * nodes, and a change of priority moves the existing node.
+ * 
+ * @author sangupta
+ *
+ * @param <E>
+ *            the type of element being stored
+ */
+class SkipList<E extends Comparable<E>> implements SortedSetEncoding<E> {
+    
+    /**
+     * Maximum number of levels in the skip list, enough for 2^64 elements
+     */
+    private static final int MAX_LEVEL = 32;
+    
+    /**
+     * Chance of a node being promoted to the next level, as a fraction of 65536
+     */
+    private static final int LEVEL_THRESHOLD = (int) (0.25d * 0xFFFF);
+    
+    /**
+     * Sentinel node before the first element, with links on all levels
+     */
+    private final Node<E> header = new Node<E>(null, 0, MAX_LEVEL);
+    
+    /**
+     * The last node of the list
+     */
+    private Node<E> tail;
+    
+    /**
+     * The number of levels currently in use
+     */
+    private int level = 1;
+    
+    /**
+     * Skip list node for each element data
+     */
+    private final Map<E, Node<E>> nodes = new HashMap<E, Node<E>>();
+    
+    /**
+     * State for generating random node levels
+     */
+    private int randomSeed = (int) System.nanoTime() | 1;
+    
+    @Override
+    public int size() {
+        return this.nodes.size();
+    }
+    
+    @Override
+    public boolean contains(E data) {
+        return this.nodes.containsKey(data);
+    }
+    
+    @Override
+    public Double getPriority(E data) {
+        Node<E> node = this.nodes.get(data);
+        if(node == null) {
+            return null;
+        }
+        
+        return node.priority;
+    }
+    
+    @Override
+    public int rank(E data) {
+        Node<E> node = this.nodes.get(data);
+        if(node == null) {
+            return -1;
+        }
+        
+        int rank = 0;
+        Node<E> current = this.header;
+        for(int index = this.level - 1; index >= 0; index--) {
+            while(current.forward[index] != null && compare(current.forward[index], node.data, node.priority) <= 0) {
+                rank += current.span[index];
+                current = current.forward[index];
+            }
+            
+            if(current == node) {
+                return rank - 1;
+            }
+        }
+        
+        // not reachable for a node in this list
+        return -1;
+    }
+    
+    @Override
+    public ElementWithPriority<E> getByRank(int rank) {
+        Node<E> node = this.nodeByRank(rank + 1);
+        if(node == null) {
+            return null;
+        }
+        
+        return node.toElement();
+    }
+    
+    @Override
+    public Iterator<ElementWithPriority<E>> iterator(int fromRank, boolean descending) {
+        return new NodeIterator(this.nodeByRank(fromRank + 1), descending);
+    }
+    
+    @Override
+    public int countWhile(Predicate<E> predicate) {
+        int count = 0;
+        Node<E> current = this.header;
+        for(int index = this.level - 1; index >= 0; index--) {
+            while(current.forward[index] != null && predicate.test(current.forward[index].data, current.forward[index].priority)) {
+                count += current.span[index];
+                current = current.forward[index];
+            }
+        }
+        
+        return count;
+    }
+    
+    @Override
+    public int removeRange(int fromRank, int toRank) {
+        // find the nodes before the first one to remove, using 1-based ranks
+        Node<E>[] update = newNodeArray(MAX_LEVEL);
+        int traversed = 0;
+        Node<E> current = this.header;
+        for(int index = this.level - 1; index >= 0; index--) {
+            while(current.forward[index] != null && traversed + current.span[index] <= fromRank) {
+                traversed += current.span[index];
+                current = current.forward[index];
+            }
+            
+            update[index] = current;
+        }
+        
+        int removed = 0;
+        current = current.forward[0];
+        while(current != null && removed <= toRank - fromRank) {
+            Node<E> next = current.forward[0];
+            this.deleteNode(current, update);
+            this.nodes.remove(current.data);
+            removed++;
+            current = next;
+        }
+        
+        return removed;
+    }
+    
+    @Override
+    public void insert(E data, double priority) {
+        Node<E> node = new Node<E>(data, priority, this.randomLevel());
+        this.insertNode(node);
+        this.nodes.put(data, node);
+    }
+    
+    /**
+     * Build the list from sorted elements without any comparisons. The last
+     * node seen on each level is remembered, and each new node is linked after
+     * the last nodes of its levels.
+     */
+    @Override
+    public void load(List<ElementWithPriority<E>> elements) {
+        this.clear();
+        
+        Node<E>[] last = newNodeArray(MAX_LEVEL);
+        int[] lastRank = new int[MAX_LEVEL];
+        Arrays.fill(last, this.header);
+        
+        Node<E> previous = null;
+        int rank = 0;
+        for(ElementWithPriority<E> element : elements) {
+            rank++;
+            Node<E> node = new Node<E>(element.getData(), element.getPriority(), this.randomLevel());
+            for(int index = 0; index < node.forward.length; index++) {
+                last[index].forward[index] = node;
+                last[index].span[index] = rank - lastRank[index];
+                last[index] = node;
+                lastRank[index] = rank;
+            }
+            
+            if(node.forward.length > this.level) {
+                this.level = node.forward.length;
+            }
+            
+            node.backward = previous;
+            previous = node;
+            this.nodes.put(node.data, node);
+        }
+        
+        // links to the end of the list skip the remaining elements
+        for(int index = 0; index < this.level; index++) {
+            last[index].span[index] = rank - lastRank[index];
+        }
+        
+        this.tail = previous;
+    }
+    
+    @Override
+    public void updatePriority(E data, double priority) {
+        this.reposition(this.nodes.get(data), priority);
+    }
+    
+    @Override
+    public double incrementPriority(E data, double increment) {
+        Node<E> node = this.nodes.get(data);
+        double priority = node.priority + increment;
+        this.reposition(node, priority);
+        return priority;
+    }
+    
+    @Override
+    public boolean remove(E data) {
+        Node<E> node = this.nodes.remove(data);
+        if(node == null) {
+            return false;
+        }
+        
+        this.deleteNode(node);
+        return true;
+    }
+    
+    @Override
+    public void clear() {
+        for(int index = 0; index < MAX_LEVEL; index++) {
+            this.header.forward[index] = null;
+            this.header.span[index] = 0;
+        }
+        
+        this.tail = null;
+        this.level = 1;
+        this.nodes.clear();
+    }
+    
+    // private methods
+    
+    /**
+     * Create an array of nodes, as arrays of a generic type cannot be
+     * created directly.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <E extends Comparable<E>> Node<E>[] newNodeArray(int length) {
+        return new Node[length];
+    }
+    
+    /**
+     * Compare the node with the given data and priority, by priority first and
+     * then by data.
+     */
+    private static <E extends Comparable<E>> int compare(Node<E> node, E data, double priority) {
+        int compare = Double.compare(node.priority, priority);
+        if(compare != 0) {
+            return compare;
+        }
+        
+        if(node.data == data) {
+            return 0;
+        }
+        
+        return node.data.compareTo(data);
+    }
+    
+    /**
+     * Change the priority of the node. Like Redis, the node is updated in
+     * place when it stays between its neighbours, and is otherwise unlinked
+     * and linked again at its new place without creating a new node.
+     */
+    private void reposition(Node<E> node, double priority) {
+        final Node<E> previous = node.backward;
+        final Node<E> next = node.forward[0];
+        if((previous == null || compare(previous, node.data, priority) < 0) && (next == null || compare(next, node.data, priority) > 0)) {
+            node.priority = priority;
+            return;
+        }
+        
+        this.deleteNode(node);
+        node.priority = priority;
+        this.insertNode(node);
+    }
+    
+    /**
+     * Random level for a new node, where each level is a quarter as likely as
+     * the one below.
+     */
+    private int randomLevel() {
+        int level = 1;
+        while(level < MAX_LEVEL) {
+            // xorshift
+            int x = this.randomSeed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            this.randomSeed = x;
+            
+            if((x & 0xFFFF) >= LEVEL_THRESHOLD) {
+                break;
+            }
+            
+            level++;
+        }
+        
+        return level;
+    }
+    
+    /**
+     * Link the node at its place, using the level it was created with. The
+     * data must not be present in the list.
+     */
+    private void insertNode(Node<E> node) {
+        Node<E>[] update = newNodeArray(MAX_LEVEL);
+        int[] rank = new int[MAX_LEVEL];
+        
+        Node<E> current = this.header;
+        for(int index = this.level - 1; index >= 0; index--) {
+            rank[index] = index == this.level - 1 ? 0 : rank[index + 1];
+            while(current.forward[index] != null && compare(current.forward[index], node.data, node.priority) < 0) {
+                rank[index] += current.span[index];
+                current = current.forward[index];
+            }
+            
+            update[index] = current;
+        }
+        
+        final int size = this.nodes.size();
+        final int newLevel = node.forward.length;
+        if(newLevel > this.level) {
+            for(int index = this.level; index < newLevel; index++) {
+                rank[index] = 0;
+                update[index] = this.header;
+                update[index].span[index] = size;
+            }
+            
+            this.level = newLevel;
+        }
+        
+        for(int index = 0; index < newLevel; index++) {
+            node.forward[index] = update[index].forward[index];
+            update[index].forward[index] = node;
+            
+            node.span[index] = update[index].span[index] - (rank[0] - rank[index]);
+            update[index].span[index] = (rank[0] - rank[index]) + 1;
+        }
+        
+        // levels above the new node now skip one more element
+        for(int index = newLevel; index < this.level; index++) {
+            update[index].span[index]++;
+        }
+        
+        node.backward = update[0] == this.header ? null : update[0];
+        if(node.forward[0] != null) {
+            node.forward[0].backward = node;
+        } else {
+            this.tail = node;
+        }
+    }
+    
+    /**
+     * Unlink the given node, which must be present in the list. Does not
+     * update the dictionary.
+     */
+    private void deleteNode(Node<E> node) {
+        Node<E>[] update = newNodeArray(MAX_LEVEL);
+        
+        Node<E> current = this.header;
+        for(int index = this.level - 1; index >= 0; index--) {
+            while(current.forward[index] != null && compare(current.forward[index], node.data, node.priority) < 0) {
+                current = current.forward[index];
+            }
+            
+            update[index] = current;
+        }
+        
+        this.deleteNode(node, update);
+    }
+    
+    /**
+     * Unlink the given node given the last node before it on each level.
+     */
+    private void deleteNode(Node<E> node, Node<E>[] update) {
+        for(int index = 0; index < this.level; index++) {
+            if(update[index].forward[index] == node) {
+                update[index].span[index] += node.span[index] - 1;
+                update[index].forward[index] = node.forward[index];
+            } else {
+                update[index].span[index]--;
+            }
+        }
+        
+        if(node.forward[0] != null) {
+            node.forward[0].backward = node.backward;
+        } else {
+            this.tail = node.backward;
+        }
+        
+        while(this.level > 1 && this.header.forward[this.level - 1] == null) {
+            this.level--;
+        }
+    }
+    
+    /**
+     * Find the node at the given 1-based rank.
+     */
+    private Node<E> nodeByRank(int rank) {
+        if(rank < 1 || rank > this.nodes.size()) {
+            return null;
+        }
+        
+        int traversed = 0;
+        Node<E> current = this.header;
+        for(int index = this.level - 1; index >= 0; index--) {
+            while(current.forward[index] != null && traversed + current.span[index] <= rank) {
+                traversed += current.span[index];
+                current = current.forward[index];
+            }
+            
+            if(traversed == rank) {
+                return current;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * A node in the skip list.
+     *
+     * @param <E>
+     *            the type of element being stored
+     */
+    private static final class Node<E extends Comparable<E>> {
+        
+        final E data;
+        
+        /**
+         * The priority, kept unboxed so that comparisons need no lookups
+         */
+        double priority;
+        
+        /**
+         * Next node on each level of this node
+         */
+        final Node<E>[] forward;
+        
+        /**
+         * Number of elements skipped by each forward link
+         */
+        final int[] span;
+        
+        /**
+         * Previous node on the lowest level
+         */
+        Node<E> backward;
+        
+        Node(E data, double priority, int level) {
+            this.data = data;
+            this.priority = priority;
+            this.forward = newNodeArray(level);
+            this.span = new int[level];
+        }
+        
+        ElementWithPriority<E> toElement() {
+            return new ElementWithPriority<E>(this.data, this.priority);
+        }
+        
+    }
+    
+    /**
+     * Iterator that walks the lowest level of the skip list in either
+     * direction.
+     */
+    private final class NodeIterator implements Iterator<ElementWithPriority<E>> {
+        
+        private final boolean descending;
+        
+        private Node<E> next;
+        
+        private Node<E> lastReturned;
+        
+        NodeIterator(Node<E> start, boolean descending) {
+            this.next = start;
+            this.descending = descending;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        @Override
+        public ElementWithPriority<E> next() {
+            if(this.next == null) {
+                throw new NoSuchElementException();
+            }
+            
+            this.lastReturned = this.next;
+            this.next = this.descending ? this.next.backward : this.next.forward[0];
+            return this.lastReturned.toElement();
+        }
+
+        @Override
+        public void remove() {
+            if(this.lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            
+            SkipList.this.remove(this.lastReturned.data);
+            this.lastReturned = null;
+        }
+        
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The storage used by a {@link SortedSetWithPriority}. Elements are ordered
+ * by priority first and then by data, and ranks are zero-based positions in
+ * that order. Small sets use a {@link PackedSortedArray}, which is converted
+ * to a {@link SkipList} once the set grows.
+ * 
+ * @author sangupta
+ *
+ * @param <E>
+ *            the type of element being stored
+ */
+interface SortedSetEncoding<E extends Comparable<E>> {
+    
+    public int size();
+    
+    public boolean contains(E data);
+    
+    /**
+     * @return the priority of the element, or <code>null</code> if absent
+     */
+    public Double getPriority(E data);
+    
+    /**
+     * @return the rank of the element, or <code>-1</code> if absent
+     */
+    public int rank(E data);
+    
+    /**
+     * @return the element at the rank, or <code>null</code> if out of bounds
+     */
+    public ElementWithPriority<E> getByRank(int rank);
+    
+    /**
+     * Iterate over the elements starting at the given rank, in ascending or
+     * descending order. The iterator supports removal.
+     * 
+     * @param fromRank
+     *            the rank of the first element returned, may be out of bounds
+     *            in which case the iterator is empty
+     * 
+     * @param descending
+     *            the direction to iterate in
+     * 
+     * @return the iterator
+     */
+    public Iterator<ElementWithPriority<E>> iterator(int fromRank, boolean descending);
+    
+    /**
+     * Count the elements from the lowest one for which the predicate holds.
+     * The predicate must hold for a prefix of the elements only.
+     */
+    public int countWhile(Predicate<E> predicate);
+    
+    /**
+     * Change the priority of an element that is present, moving it to its new
+     * place.
+     */
+    public void updatePriority(E data, double priority);
+    
+    /**
+     * Add to the priority of an element that is present, moving it to its new
+     * place.
+     * 
+     * @return the new priority
+     */
+    public double incrementPriority(E data, double increment);
+    
+    /**
+     * Remove the elements between the two ranks, both inclusive and within
+     * bounds.
+     * 
+     * @return the number of elements removed
+     */
+    public int removeRange(int fromRank, int toRank);
+    
+    /**
+     * Insert an element that is not yet present.
+     */
+    public void insert(E data, double priority);
+    
+    /**
+     * Replace all elements with the given ones in a single pass. The elements
+     * must be sorted and their data unique.
+     */
+    public void load(List<ElementWithPriority<E>> elements);
+    
+    public boolean remove(E data);
+    
+    public void clear();
+    
+    /**
+     * Test on an element used when seeking in the set.
+     *
+     * @param <E>
+     *            the type of element being stored
+     */
+    public static interface Predicate<E> {
+        
+        public boolean test(E data, double priority);
+        
+    }
+
+}
@@ -23,11 +23,11 @@ package com.sangupta.dryredis.ds;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -37,58 +37,94 @@ import com.sangupta.dryredis.support.DryRedisSetAggregationType;
  * A {@link SortedSet} implementation that uses a floating-point priority for
  * sorting first, and then natural sorting if needed.
  * 
+ * Like Redis, small sets are kept in a {@link PackedSortedArray} that has no
+ * per-element objects. Once the set holds more than the configured number of
+ * elements, or an element longer than the configured length is added, it is
+ * converted to a {@link SkipList} that supports finding ranks in
+ * <code>O(log n)</code>. The conversion is one-way until the set is cleared.
+ * 
+ * Elements are considered equal when their data is equal, irrespective of
+ * priority. Adding an element whose data is already present does not change
+ * the set.
+ * 
  * @author sangupta
  *
  * @param <E>
  *            the type of element being stored
  */
 public class SortedSetWithPriority<E extends Comparable<E>> implements SortedSet<ElementWithPriority<E>>, Cloneable {
-
-    private final TreeSet<ElementWithPriority<E>> delegate;
-
-    private final Map<ElementWithPriority<E>, Double> priorities = new HashMap<ElementWithPriority<E>, Double>();
+    
+    /**
+     * Default number of elements up to which the set stays packed
+     */
+    public static final int DEFAULT_MAX_PACKED_ENTRIES = 128;
+    
+    /**
+     * Default length of a {@link CharSequence} element up to which the set
+     * stays packed
+     */
+    public static final int DEFAULT_MAX_PACKED_VALUE = 64;
+    
+    private final Comparator<ElementWithPriority<E>> comparator = new Comparator<ElementWithPriority<E>>() {
+        
+        @Override
+        public int compare(ElementWithPriority<E> object1, ElementWithPriority<E> object2) {
+            return SortedSetWithPriority.compare(object1, object2);
+        }
+        
+    };
+    
+    private final int maxPackedEntries;
+    
+    private final int maxPackedValue;
+    
+    /**
+     * The current storage of elements
+     */
+    private SortedSetEncoding<E> encoding;
 
     public SortedSetWithPriority() {
-        this.delegate = new TreeSet<ElementWithPriority<E>>(new Comparator<ElementWithPriority<E>>() {
-
-            @Override
-            public int compare(ElementWithPriority<E> object1, ElementWithPriority<E> object2) {
-                if(object1 == object2) {
-                    return 0;
-                }
-                
-                Double priority1 = SortedSetWithPriority.this.priorities.get(object1);
-                if(priority1 == null) {
-                    priority1 = object1.getPriority();
-                }
-                
-                Double priority2 = SortedSetWithPriority.this.priorities.get(object2);
-                if(priority2 == null) {
-                    priority2 = object2.getPriority();
-                }
-
-                int compare = priority1.compareTo(priority2);
-                if (compare != 0) {
-                    return compare;
-                }
-
-                return object1.getData().compareTo(object2.getData());
-            }
-
-        });
+        this(DEFAULT_MAX_PACKED_ENTRIES, DEFAULT_MAX_PACKED_VALUE);
+    }
+    
+    /**
+     * Create a set that stays packed while it has at most the given number of
+     * elements, and no element longer than the given length.
+     * 
+     * @param maxPackedEntries
+     *            the maximum number of elements in the packed encoding
+     * 
+     * @param maxPackedValue
+     *            the maximum length of a {@link CharSequence} element in the
+     *            packed encoding
+     */
+    public SortedSetWithPriority(int maxPackedEntries, int maxPackedValue) {
+        this.maxPackedEntries = maxPackedEntries;
+        this.maxPackedValue = maxPackedValue;
+        this.encoding = new PackedSortedArray<E>();
     }
     
     @Override
     public SortedSetWithPriority<E> clone() {
-        SortedSetWithPriority<E> newSet = new SortedSetWithPriority<E>();
+        SortedSetWithPriority<E> newSet = new SortedSetWithPriority<E>(this.maxPackedEntries, this.maxPackedValue);
         
-        for(ElementWithPriority<E> element : this.delegate) {
+        for(ElementWithPriority<E> element : this) {
             newSet.add(element.clone());
         }
         
         return newSet;
     }
     
+    /**
+     * Check whether the set is still in its compact encoding.
+     * 
+     * @return <code>true</code> if packed, <code>false</code> if converted to
+     *         a skip list
+     */
+    public boolean isPacked() {
+        return this.encoding instanceof PackedSortedArray;
+    }
+    
     /**
 	 * Apply a new weight to priority of all elements in this set.
 	 * 
@@ -101,130 +137,355 @@ public class SortedSetWithPriority<E extends Comparable<E>> implements SortedSet
             return;
         }
         
-        // modify the weigths in original objects
-        Iterator<ElementWithPriority<E>> iterator = this.iterator();
-        while(iterator.hasNext()) {
-            ElementWithPriority<E> element = iterator.next();
-            element.setPriority(element.getPriority() * weight);
-
-            // for priority list
-            this.priorities.put(element, element.getPriority());
+        // a negative weight reverses the order, so re-insert all elements
+        List<ElementWithPriority<E>> elements = this.toList();
+        
+        this.encoding.clear();
+        for(ElementWithPriority<E> element : elements) {
+            this.encoding.insert(element.getData(), element.getPriority() * weight);
         }
     }
 
     public Iterator<ElementWithPriority<E>> descendingIterator() {
-        return this.delegate.descendingIterator();
+        return this.encoding.iterator(this.encoding.size() - 1, true);
     }
     
     public Double getPriority(ElementWithPriority<E> element) {
-        return this.priorities.get(element);
+        return this.getPriority(element.getData());
     }
     
     public Double getPriority(E element) {
-        return this.priorities.get(new ElementWithPriority<E>(element, 0));
+        return this.encoding.getPriority(element);
+    }
+    
+    /**
+     * Change the priority of an element, moving it to its new place.
+     * 
+     * @param element
+     *            the data of the element
+     * 
+     * @param priority
+     *            the new priority
+     * 
+     * @return <code>true</code> if the element is present and was updated,
+     *         <code>false</code> if it is not present
+     */
+    public boolean updatePriority(E element, double priority) {
+        if(!this.encoding.contains(element)) {
+            return false;
+        }
+        
+        this.encoding.updatePriority(element, priority);
+        return true;
+    }
+    
+    /**
+     * Add to the priority of an element, adding the element with the increment
+     * as its priority if it is not present.
+     * 
+     * @param element
+     *            the data of the element
+     * 
+     * @param increment
+     *            the value to add to the priority
+     * 
+     * @return the new priority
+     */
+    public double incrementPriority(E element, double increment) {
+        if(!this.encoding.contains(element)) {
+            this.insert(element, increment);
+            return increment;
+        }
+        
+        return this.encoding.incrementPriority(element, increment);
+    }
+    
+    /**
+     * Return the rank of the element, that is its zero-based position in
+     * ascending order.
+     * 
+     * @param element
+     *            the data of the element to look for
+     * 
+     * @return the rank of the element, or <code>-1</code> if it is not present
+     */
+    public int rank(E element) {
+        return this.encoding.rank(element);
+    }
+    
+    /**
+     * Return the element at the given zero-based rank in ascending order.
+     * 
+     * @param rank
+     *            the rank to look for
+     * 
+     * @return the element at that rank, or <code>null</code> if the rank is
+     *         out of bounds
+     */
+    public ElementWithPriority<E> getByRank(int rank) {
+        return this.encoding.getByRank(rank);
+    }
+    
+    /**
+     * Return an iterator in ascending order that starts at the given rank.
+     * 
+     * @param fromRank
+     *            the zero-based rank of the first element to return
+     * 
+     * @return the iterator
+     */
+    public Iterator<ElementWithPriority<E>> iterator(int fromRank) {
+        return this.encoding.iterator(fromRank, false);
+    }
+    
+    /**
+     * Return an iterator in descending order that starts at the given rank
+     * counted from the highest element.
+     * 
+     * @param fromRank
+     *            the zero-based rank, in descending order, of the first element
+     *            to return
+     * 
+     * @return the iterator
+     */
+    public Iterator<ElementWithPriority<E>> descendingIterator(int fromRank) {
+        if(fromRank < 0) {
+            return this.encoding.iterator(-1, true);
+        }
+        
+        return this.encoding.iterator(this.encoding.size() - 1 - fromRank, true);
+    }
+    
+    /**
+     * Return the rank of the first element whose priority is above the given
+     * priority, or equal to it if inclusive.
+     * 
+     * @param priority
+     *            the lower bound of the priority
+     * 
+     * @param inclusive
+     *            whether the bound itself is part of the range
+     * 
+     * @return the zero-based rank, or {@link #size()} if there is no such
+     *         element
+     */
+    public int lowerRankByPriority(final double priority, final boolean inclusive) {
+        return this.encoding.countWhile(new SortedSetEncoding.Predicate<E>() {
+            
+            @Override
+            public boolean test(E data, double existing) {
+                int compare = Double.compare(existing, priority);
+                return inclusive ? compare < 0 : compare <= 0;
+            }
+            
+        });
+    }
+    
+    /**
+     * Return the rank of the last element whose priority is below the given
+     * priority, or equal to it if inclusive.
+     * 
+     * @param priority
+     *            the upper bound of the priority
+     * 
+     * @param inclusive
+     *            whether the bound itself is part of the range
+     * 
+     * @return the zero-based rank, or <code>-1</code> if there is no such
+     *         element
+     */
+    public int upperRankByPriority(final double priority, final boolean inclusive) {
+        return this.encoding.countWhile(new SortedSetEncoding.Predicate<E>() {
+            
+            @Override
+            public boolean test(E data, double existing) {
+                int compare = Double.compare(existing, priority);
+                return inclusive ? compare <= 0 : compare < 0;
+            }
+            
+        }) - 1;
+    }
+    
+    /**
+     * Return the rank of the first element whose data is above the given
+     * data, or equal to it if inclusive. Only meaningful when all elements
+     * have the same priority, as elements are ordered by priority first.
+     * 
+     * @param data
+     *            the lower bound of the data, <code>null</code> for no bound
+     * 
+     * @param inclusive
+     *            whether the bound itself is part of the range
+     * 
+     * @return the zero-based rank, or {@link #size()} if there is no such
+     *         element
+     */
+    public int lowerRankByData(final E data, final boolean inclusive) {
+        if(data == null) {
+            return 0;
+        }
+        
+        return this.encoding.countWhile(new SortedSetEncoding.Predicate<E>() {
+            
+            @Override
+            public boolean test(E existing, double priority) {
+                int compare = existing.compareTo(data);
+                return inclusive ? compare < 0 : compare <= 0;
+            }
+            
+        });
+    }
+    
+    /**
+     * Return the rank of the last element whose data is below the given data,
+     * or equal to it if inclusive. Only meaningful when all elements have the
+     * same priority, as elements are ordered by priority first.
+     * 
+     * @param data
+     *            the upper bound of the data, <code>null</code> for no bound
+     * 
+     * @param inclusive
+     *            whether the bound itself is part of the range
+     * 
+     * @return the zero-based rank, or <code>-1</code> if there is no such
+     *         element
+     */
+    public int upperRankByData(final E data, final boolean inclusive) {
+        if(data == null) {
+            return this.encoding.size() - 1;
+        }
+        
+        return this.encoding.countWhile(new SortedSetEncoding.Predicate<E>() {
+            
+            @Override
+            public boolean test(E existing, double priority) {
+                int compare = existing.compareTo(data);
+                return inclusive ? compare <= 0 : compare < 0;
+            }
+            
+        }) - 1;
+    }
+    
+    /**
+     * Remove all elements with a rank between the given ranks, both inclusive.
+     * 
+     * @param fromRank
+     *            the zero-based rank of the first element to remove
+     * 
+     * @param toRank
+     *            the zero-based rank of the last element to remove
+     * 
+     * @return the number of elements removed
+     */
+    public int removeRange(int fromRank, int toRank) {
+        if(fromRank < 0) {
+            fromRank = 0;
+        }
+        
+        if(toRank >= this.encoding.size()) {
+            toRank = this.encoding.size() - 1;
+        }
+        
+        if(fromRank > toRank) {
+            return 0;
+        }
+        
+        return this.encoding.removeRange(fromRank, toRank);
     }
 
     @Override
     public int size() {
-        return this.delegate.size();
+        return this.encoding.size();
     }
 
     @Override
     public boolean isEmpty() {
-        return this.delegate.isEmpty();
+        return this.encoding.size() == 0;
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     public boolean contains(Object o) {
-        return this.delegate.contains(o);
+        if(o instanceof ElementWithPriority) {
+            return this.encoding.contains(((ElementWithPriority<E>) o).getData());
+        }
+        
+        if(o instanceof Comparable) {
+            return this.encoding.contains((E) o);
+        }
+        
+        return false;
     }
 
     @Override
     public Iterator<ElementWithPriority<E>> iterator() {
-        return this.delegate.iterator();
+        return this.encoding.iterator(0, false);
     }
 
     @Override
     public Object[] toArray() {
-        return this.delegate.toArray();
+        return this.toList().toArray();
     }
 
     @Override
     public <T> T[] toArray(T[] a) {
-        return this.delegate.toArray(a);
+        return this.toList().toArray(a);
     }
 
     @Override
     public boolean add(ElementWithPriority<E> e) {
-        // ordering is important here
-        boolean added = this.delegate.add(e);
-        if(added) {
-            this.priorities.put(e, e.getPriority());
+        if(this.encoding.contains(e.getData())) {
+            return false;
         }
         
-        return added;
+        this.insert(e.getData(), e.getPriority());
+        return true;
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     public boolean remove(Object o) {
-        boolean removed = this.delegate.remove(o);
-        if(removed) {
-            this.priorities.remove(o);
+        if(o instanceof ElementWithPriority) {
+            return this.encoding.remove(((ElementWithPriority<E>) o).getData());
         }
         
-        return removed;
+        if(o instanceof Comparable) {
+            return this.encoding.remove((E) o);
+        }
+        
+        return false;
     }
 
     @Override
     public boolean containsAll(Collection<?> c) {
-        return this.delegate.containsAll(c);
+        for(Object o : c) {
+            if(!this.contains(o)) {
+                return false;
+            }
+        }
+        
+        return true;
     }
     
     public boolean addAll(SortedSetWithPriority<E> set, double weight, DryRedisSetAggregationType aggregation) {
         boolean modified = false;
         
-        for(ElementWithPriority<E> incomingElement : set.delegate) {
-            Double existingPriority = this.priorities.get(incomingElement);
-            if(existingPriority != null) {
-                // update the existing priority
-                
-                double incomingPriority = set.getPriority(incomingElement);
-                incomingPriority = incomingPriority * weight;
-                
-                // choose final priority
-                double finalPriority;
-                
-                switch(aggregation) {
-                    case MAX:
-                        finalPriority = Math.max(existingPriority, incomingPriority);
-                        break;
-                    
-                    case MIN:
-                        finalPriority = Math.min(existingPriority, incomingPriority);
-                        break;
-
-                    case SUM:
-                        finalPriority = existingPriority + incomingPriority;
-                        break;
-
-                    default:
-                        throw new IllegalArgumentException("Unknown aggregation type");
-                }
-                
-                if(finalPriority != incomingPriority) {
-                    // priority needs to be updated
-                    // resorting will happen
-                    this.remove(incomingElement);
-                    
-                    // update priority of element
-                    this.add(new ElementWithPriority<E>(incomingElement.getData(), finalPriority));
-                    
-                    // updated
-                    modified = true;
-                }
-            } else {
+        for(ElementWithPriority<E> incoming : set.toList()) {
+            E data = incoming.getData();
+            double incomingPriority = incoming.getPriority() * weight;
+            
+            Double existingPriority = this.encoding.getPriority(data);
+            if(existingPriority == null) {
                 // new element
-                this.add(incomingElement);
+                this.insert(data, incomingPriority);
+                modified = true;
+                continue;
+            }
+            
+            // update the existing priority
+            double finalPriority = aggregation.aggregate(existingPriority, incomingPriority);
+            if(finalPriority != existingPriority) {
+                this.encoding.updatePriority(data, finalPriority);
                 modified = true;
             }
         }
@@ -244,81 +505,88 @@ public class SortedSetWithPriority<E extends Comparable<E>> implements SortedSet
         return added;
     }
 
+    /**
+     * Replace the contents of this set with the given elements. Instead of
+     * inserting the elements one by one, the list is sorted once and the
+     * encoding is built from it in a single pass.
+     * 
+     * @param elements
+     *            the elements to load, whose data must be unique. The list is
+     *            sorted in place.
+     */
+    public void load(List<ElementWithPriority<E>> elements) {
+        sort(elements);
+        
+        boolean packed = elements.size() <= this.maxPackedEntries;
+        for(int index = 0; packed && index < elements.size(); index++) {
+            packed = !this.isLarge(elements.get(index).getData());
+        }
+        
+        SortedSetEncoding<E> encoding;
+        if(packed) {
+            encoding = new PackedSortedArray<E>();
+        } else {
+            encoding = new SkipList<E>();
+        }
+        
+        encoding.load(elements);
+        this.encoding = encoding;
+    }
+    
+    /**
+     * Sort the elements in the order of a {@link SortedSetWithPriority}, that
+     * is by priority first and then by data.
+     * 
+     * @param elements
+     *            the elements to sort
+     */
+    public static <E extends Comparable<E>> void sort(List<ElementWithPriority<E>> elements) {
+        Collections.sort(elements, new Comparator<ElementWithPriority<E>>() {
+            
+            @Override
+            public int compare(ElementWithPriority<E> object1, ElementWithPriority<E> object2) {
+                return SortedSetWithPriority.compare(object1, object2);
+            }
+            
+        });
+    }
+    
     public boolean retainAll(SortedSetWithPriority<E> set, double weight, DryRedisSetAggregationType aggregation) {
         boolean modified = false;
         
-        Iterator<ElementWithPriority<E>> iterator = this.iterator();
-        List<ElementWithPriority<E>> toBeAdded = new ArrayList<ElementWithPriority<E>>();
-        
-        while(iterator.hasNext()) {
-            ElementWithPriority<E> ourElement = iterator.next();
+        // collect first, as updates move elements around
+        for(ElementWithPriority<E> ours : this.toList()) {
+            E data = ours.getData();
             
-            Double incomingPriority = set.getPriority(ourElement);
+            Double incomingPriority = set.getPriority(data);
             if(incomingPriority == null) {
                 // the element is not present in the incoming set
                 // remove from current set
-                this.remove(ourElement);
+                this.encoding.remove(data);
                 modified = true;
                 continue;
             }
             
             // update the existing priority
-            
-            double existingPriority = this.priorities.get(ourElement);
-            incomingPriority = incomingPriority * weight;
-            
-            // choose final priority
-            double finalPriority;
-            
-            switch(aggregation) {
-                case MAX:
-                    finalPriority = Math.max(existingPriority, incomingPriority);
-                    break;
-                
-                case MIN:
-                    finalPriority = Math.min(existingPriority, incomingPriority);
-                    break;
-
-                case SUM:
-                    finalPriority = existingPriority + incomingPriority;
-                    break;
-
-                default:
-                    throw new IllegalArgumentException("Unknown aggregation type");
-            }
+            double existingPriority = ours.getPriority();
+            double finalPriority = aggregation.aggregate(existingPriority, incomingPriority * weight);
             
             if(finalPriority != existingPriority) {
-                // priority needs to be updated
-                // resorting will happen
-                iterator.remove();
-                
-                // update priority of element
-                ourElement.setPriority(finalPriority);
-                
-                // these are added - to prevent concurrentmodificationexception
-                toBeAdded.add(ourElement);
-                
-                // updated
+                this.encoding.updatePriority(data, finalPriority);
                 modified = true;
             }
         }
         
-        if(!toBeAdded.isEmpty()) {
-            for(ElementWithPriority<E> element : toBeAdded) {
-                this.add(element);
-            }
-        }
-        
         return modified;
     }
     
     @Override
     public boolean retainAll(Collection<?> c) {
         boolean modified = false;
-        
-        for(ElementWithPriority<E> ourElement : this.delegate) {
-            if(!c.contains(ourElement)) {
-                this.remove(ourElement);
+        Iterator<ElementWithPriority<E>> iterator = this.iterator();
+        while(iterator.hasNext()) {
+            if(!c.contains(iterator.next())) {
+                iterator.remove();
                 modified = true;
             }
         }
@@ -340,38 +608,124 @@ public class SortedSetWithPriority<E extends Comparable<E>> implements SortedSet
 
     @Override
     public void clear() {
-        this.delegate.clear();
-        this.priorities.clear();
+        this.encoding = new PackedSortedArray<E>();
     }
 
     @Override
     public Comparator<? super ElementWithPriority<E>> comparator() {
-        return this.delegate.comparator();
+        return this.comparator;
     }
 
+    /**
+     * Returns a snapshot of the elements in the given range. Unlike
+     * {@link TreeSet#subSet(Object, Object)} changes to this set are not
+     * reflected in the returned set.
+     */
     @Override
     public SortedSet<ElementWithPriority<E>> subSet(ElementWithPriority<E> fromElement, ElementWithPriority<E> toElement) {
-        return this.delegate.subSet(fromElement, toElement);
+        return Collections.unmodifiableSortedSet(this.toTreeSet().subSet(fromElement, toElement));
     }
 
+    /**
+     * Returns a snapshot of the elements before the given one. Unlike
+     * {@link TreeSet#headSet(Object)} changes to this set are not reflected in
+     * the returned set.
+     */
     @Override
     public SortedSet<ElementWithPriority<E>> headSet(ElementWithPriority<E> toElement) {
-        return this.delegate.headSet(toElement);
+        return Collections.unmodifiableSortedSet(this.toTreeSet().headSet(toElement));
     }
 
+    /**
+     * Returns a snapshot of the elements from the given one onwards. Unlike
+     * {@link TreeSet#tailSet(Object)} changes to this set are not reflected in
+     * the returned set.
+     */
     @Override
     public SortedSet<ElementWithPriority<E>> tailSet(ElementWithPriority<E> fromElement) {
-        return this.delegate.tailSet(fromElement);
+        return Collections.unmodifiableSortedSet(this.toTreeSet().tailSet(fromElement));
     }
 
     @Override
     public ElementWithPriority<E> first() {
-        return this.delegate.first();
+        ElementWithPriority<E> first = this.encoding.getByRank(0);
+        if(first == null) {
+            throw new NoSuchElementException();
+        }
+        
+        return first;
     }
 
     @Override
     public ElementWithPriority<E> last() {
-        return this.delegate.last();
+        ElementWithPriority<E> last = this.encoding.getByRank(this.encoding.size() - 1);
+        if(last == null) {
+            throw new NoSuchElementException();
+        }
+        
+        return last;
+    }
+    
+    // private methods
+    
+    /**
+     * Compare two elements by priority and then by data.
+     */
+    private static <E extends Comparable<E>> int compare(ElementWithPriority<E> element1, ElementWithPriority<E> element2) {
+        if(element1 == element2) {
+            return 0;
+        }
+        
+        int compare = Double.compare(element1.getPriority(), element2.getPriority());
+        if(compare != 0) {
+            return compare;
+        }
+        
+        return element1.getData().compareTo(element2.getData());
+    }
+    
+    /**
+     * Insert an element that is not present, converting to a skip list first
+     * if the packed encoding would grow past its limits.
+     */
+    private void insert(E data, double priority) {
+        if(this.isPacked() && (this.encoding.size() >= this.maxPackedEntries || this.isLarge(data))) {
+            this.convert();
+        }
+        
+        this.encoding.insert(data, priority);
+    }
+    
+    private boolean isLarge(E data) {
+        return data instanceof CharSequence && ((CharSequence) data).length() > this.maxPackedValue;
+    }
+    
+    /**
+     * Move all elements from the packed encoding to a skip list.
+     */
+    private void convert() {
+        SortedSetEncoding<E> skipList = new SkipList<E>();
+        for(ElementWithPriority<E> element : this.toList()) {
+            skipList.insert(element.getData(), element.getPriority());
+        }
+        
+        this.encoding = skipList;
+    }
+    
+    private List<ElementWithPriority<E>> toList() {
+        List<ElementWithPriority<E>> list = new ArrayList<ElementWithPriority<E>>(this.encoding.size());
+        Iterator<ElementWithPriority<E>> iterator = this.encoding.iterator(0, false);
+        while(iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+        
+        return list;
+    }
+    
+    private TreeSet<ElementWithPriority<E>> toTreeSet() {
+        TreeSet<ElementWithPriority<E>> set = new TreeSet<ElementWithPriority<E>>(this.comparator);
+        set.addAll(this.toList());
+        return set;
     }
 
 }
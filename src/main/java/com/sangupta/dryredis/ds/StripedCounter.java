@@ -0,0 +1,166 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads its value over a number of cells, much like the
+ * <code>LongAdder</code> of Java 8. Each thread adds to a cell of its own
+ * choosing, and moves to another cell when it finds its cell contended, so
+ * that threads incrementing the same counter do not wait for each other.
+ *
+ * The value of the counter is the sum of all cells. A sum read while other
+ * threads are adding is not an atomic snapshot: it includes every addition
+ * that completed before the read started, and may or may not include
+ * additions running at the same time.
+ *
+ * @author sangupta
+ *
+ */
+public class StripedCounter {
+
+    /**
+     * Number of <code>long</code>s between two cells, so that each cell sits
+     * on its own cache line
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * Default number of cells, twice the number of processors but not more
+     * than 64
+     */
+    public static final int DEFAULT_CELLS = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The probe of each thread used to pick a cell
+     */
+    private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+
+        @Override
+        protected int[] initialValue() {
+            // mix the thread id so that consecutive threads pick distant cells
+            long id = Thread.currentThread().getId();
+            int probe = (int) (id * 0x9E3779B97F4A7C15l >>> 32);
+            return new int[] { probe == 0 ? 1 : probe };
+        }
+
+    };
+
+    private final AtomicLongArray cells;
+
+    /**
+     * Mask to convert a probe into a cell index
+     */
+    private final int mask;
+
+    public StripedCounter() {
+        this(DEFAULT_CELLS);
+    }
+
+    /**
+     * Create a counter with the given number of cells.
+     *
+     * @param cells
+     *            the number of cells, rounded up to the next power of two
+     */
+    public StripedCounter(int cells) {
+        if(cells <= 0) {
+            throw new IllegalArgumentException("Number of cells must be positive");
+        }
+
+        int size = Integer.highestOneBit(cells);
+        if(size < cells) {
+            size = size << 1;
+        }
+
+        this.cells = new AtomicLongArray(size * PADDING);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Add the given value to the counter without blocking.
+     *
+     * @param value
+     *            the value to add
+     */
+    public void add(long value) {
+        int[] probe = PROBE.get();
+        int h = probe[0];
+        while(true) {
+            int index = (h & this.mask) * PADDING;
+            long current = this.cells.get(index);
+            if(this.cells.compareAndSet(index, current, current + value)) {
+                return;
+            }
+
+            // contended, move this thread to another cell
+            h ^= h << 13;
+            h ^= h >>> 17;
+            h ^= h << 5;
+            probe[0] = h;
+        }
+    }
+
+    /**
+     * @return the sum of all cells
+     */
+    public long sum() {
+        long sum = 0;
+        for(int index = 0; index < this.cells.length(); index += PADDING) {
+            sum += this.cells.get(index);
+        }
+
+        return sum;
+    }
+
+    /**
+     * Return the sum of all cells and set them to zero. Each cell is read and
+     * cleared atomically, so every addition is either included in the
+     * returned sum or left in the counter, but never both or neither.
+     *
+     * @return the sum of all cells
+     */
+    public long sumThenReset() {
+        long sum = 0;
+        for(int index = 0; index < this.cells.length(); index += PADDING) {
+            if(this.cells.get(index) != 0) {
+                sum += this.cells.getAndSet(index, 0);
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * @return the number of cells
+     */
+    public int cells() {
+        return this.mask + 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(this.sum());
+    }
+
+}
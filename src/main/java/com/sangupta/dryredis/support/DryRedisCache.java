@@ -91,5 +91,17 @@ public interface DryRedisCache {
     public void flushCache();
     
     public int pexpireat(String key, long epochAsMilliseconds);
+    
+    /**
+	 * Return the name of the internal encoding of the value stored against
+	 * the key, as returned by the OBJECT ENCODING command.
+	 * 
+	 * @param key
+	 *            the key to look for
+	 * 
+	 * @return the name of the encoding, or <code>null</code> if no such key
+	 *         exists
+	 */
+    public String encoding(String key);
 
 }
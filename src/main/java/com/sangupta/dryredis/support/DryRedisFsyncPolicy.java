@@ -0,0 +1,48 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.support;
+
+/**
+ * How often the append only file is synced to disk.
+ * 
+ * @author sangupta
+ *
+ */
+public enum DryRedisFsyncPolicy {
+	
+	/**
+	 * Sync before a command returns. Commands running at the same time share
+	 * one sync.
+	 */
+	ALWAYS,
+	
+	/**
+	 * Sync once every second, losing at most the last second of commands
+	 */
+	EVERYSEC,
+	
+	/**
+	 * Never sync, leaving it to the operating system
+	 */
+	NO;
+
+}
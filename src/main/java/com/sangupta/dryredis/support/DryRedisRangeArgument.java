@@ -30,6 +30,16 @@ package com.sangupta.dryredis.support;
  */
 public class DryRedisRangeArgument {
     
+    /**
+     * Value used for the lowest possible bound
+     */
+    public static final String MINUS_INFINITY = "-";
+    
+    /**
+     * Value used for the highest possible bound
+     */
+    public static final String PLUS_INFINITY = "+";
+    
     private final boolean infinity;
     
     private final boolean inclusive;
@@ -37,17 +47,17 @@ public class DryRedisRangeArgument {
     private final String value;
     
     public DryRedisRangeArgument(String value) {
-        if(value.equals("-")) {
+        if(value.equals(MINUS_INFINITY) || value.equals("-inf")) {
             this.inclusive = true;
             this.infinity = true;
-            this.value = value;
+            this.value = MINUS_INFINITY;
             return;
         }
         
-        if(value.equals("+")) {
+        if(value.equals(PLUS_INFINITY) || value.equals("+inf")) {
             this.inclusive = true;
             this.infinity = true;
-            this.value = value;
+            this.value = PLUS_INFINITY;
             return;
         }
         
@@ -59,7 +69,8 @@ public class DryRedisRangeArgument {
             this.value = value;
         }
         
-        this.inclusive = value.startsWith("[");
+        // a plain score without a prefix is inclusive, as in Redis
+        this.inclusive = !value.startsWith("(");
     }
     
     public boolean lessThan(String s) {
@@ -134,6 +145,30 @@ public class DryRedisRangeArgument {
         return this.inclusive;
     }
     
+    public boolean isInfinity() {
+        return this.infinity;
+    }
+    
+    /**
+     * Return the value of this argument as a score.
+     * 
+     * @return the score, or an infinite value for the infinite bounds
+     * 
+     * @throws NumberFormatException
+     *             if the value is not a number
+     */
+    public double getScore() {
+        if(this.infinity) {
+            if(MINUS_INFINITY.equals(this.value)) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            
+            return Double.POSITIVE_INFINITY;
+        }
+        
+        return Double.parseDouble(this.value);
+    }
+    
     public String getValue() {
         return this.value;
     }
@@ -29,4 +29,31 @@ public enum DryRedisSetAggregationType {
     
     MAX;
     
+    /**
+     * Combine the score an element already has with an incoming score.
+     * 
+     * @param existing
+     *            the score collected so far
+     * 
+     * @param incoming
+     *            the weighted score from the next set
+     * 
+     * @return the combined score
+     */
+    public double aggregate(double existing, double incoming) {
+        switch(this) {
+            case MAX:
+                return Math.max(existing, incoming);
+            
+            case MIN:
+                return Math.min(existing, incoming);
+            
+            case SUM:
+                return existing + incoming;
+            
+            default:
+                throw new IllegalArgumentException("Unknown aggregation type");
+        }
+    }
+    
 }
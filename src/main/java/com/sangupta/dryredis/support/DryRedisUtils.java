@@ -21,60 +21,16 @@
 
 package com.sangupta.dryredis.support;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.nio.charset.Charset;
 import java.util.List;
 
-import com.sangupta.dryredis.DryRedis;
+import com.sangupta.dryredis.ds.Bitmaps;
 
 public class DryRedisUtils {
-    
-    private static final Charset UTF_8 = Charset.forName("UTF-8"); 
 
 	public static <V> List<V> subList(List<V> list, int start, int stop) {
 		return list.subList(start, stop);
 	}
 
-	public static byte[] createDump(DryRedisCacheType cacheType, String key, Object value) {
-	    ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-	    
-	    outStream.write(DryRedis.DRY_REDIS_DUMP_VERSION);
-	    outStream.write(cacheType.getCode());
-	    
-	    // write the key
-	    outStream.write(key.length());
-	    try {
-            outStream.write(key.getBytes(UTF_8));
-        } catch (IOException e) {
-            // eat up
-        }
-	    
-	    // write a dummy length for now
-	    final int pointer = outStream.size();
-	    outStream.write(0);
-	    
-	    // write the object itself
-	    try {
-            ObjectOutputStream objectStream = new ObjectOutputStream(outStream);
-            objectStream.writeObject(value);
-            objectStream.close();
-        } catch (IOException e) {
-            // eat up
-        }
-	    
-	    final int bytesWrittenForObject = outStream.size() - pointer;
-	    
-	    byte[] bytes = outStream.toByteArray();
-	    
-	    // TODO: write the bytes written for object to the
-	    
-	    // TODO: write and compute checksum
-	    
-	    return bytes;
-	}
-
 	public static boolean wildcardMatch(String string, String pattern) {
         int i = 0;
         int j = 0;
@@ -105,8 +61,26 @@ public class DryRedisUtils {
         return j == pattern.length();
     }
 
+    /**
+     * Find the first bit with the given value in a range of bytes, counting
+     * bits from the most significant bit of the first byte.
+     * 
+     * @param bytes
+     *            the bytes to search
+     * 
+     * @param onOrOff
+     *            the value of the bit to look for
+     * 
+     * @param start
+     *            the index of the first byte, inclusive
+     * 
+     * @param end
+     *            the index of the last byte, exclusive
+     * 
+     * @return the offset of the bit, or <code>-1</code> if not found
+     */
     public static int getNextBit(byte[] bytes, boolean onOrOff, int start, int end) {
-        throw new RuntimeException("not yet implemented");
+        return (int) Bitmaps.bitPos(bytes, onOrOff, start, end);
     }
 	
 }
@@ -30,7 +30,12 @@ package com.sangupta.dryredis.support;
  */
 public class Haversine {
 
-    private static final int EARTH_RADIUS = 6371; // Approx Earth radius in KM
+    /**
+     * Approximate earth radius in kilometers. {@link RedisGeoHash} sizes its
+     * search cells with it as well, so that they cover every point found
+     * within the radius.
+     */
+    static final double EARTH_RADIUS_IN_KM = 6371;
     
     private Haversine() {
     	// prevent initialization
@@ -47,7 +52,7 @@ public class Haversine {
         double a = haversin(dLat) + Math.cos(startLat) * Math.cos(endLat) * haversin(dLong);
         double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
 
-        return EARTH_RADIUS * c; // <-- d
+        return EARTH_RADIUS_IN_KM * c; // <-- d
     }
 
     public static double haversin(double val) {
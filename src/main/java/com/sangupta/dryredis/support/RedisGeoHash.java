@@ -47,6 +47,26 @@ public class RedisGeoHash {
     
     private static final GeoHashRange latRange = new GeoHashRange(GEO_LAT_MAX, GEO_LAT_MIN);
     
+    /**
+     * Range used by the standard geohash, which spans all latitudes
+     */
+    private static final GeoHashRange standardLatRange = new GeoHashRange(90d, -90d);
+    
+    /**
+     * Number of bits per coordinate in the 52-bit score that Redis uses
+     */
+    public static final int GEO_STEP_MAX = 26;
+    
+    /**
+     * Half the circumference of the earth in the Mercator projection, in meters
+     */
+    private static final double MERCATOR_MAX = 20037726.37d;
+    
+    /**
+     * Earth radius in meters, the same as the distances are computed with
+     */
+    private static final double EARTH_RADIUS_IN_METERS = Haversine.EARTH_RADIUS_IN_KM * 1000d;
+    
     public static void main(String[] args) {
         System.out.println(geoHash(38.115556395496299d, 13.361389338970184d));
     }
@@ -115,9 +135,14 @@ public class RedisGeoHash {
     private static final int[] S = {1, 2, 4, 8, 16};
     
     private static long interLeave64(double xlo, double ylo) {
-        long x = Double.valueOf(xlo).intValue();
-        long y = Double.valueOf(ylo).intValue();
-        
+        return interleave(Double.valueOf(xlo).intValue(), Double.valueOf(ylo).intValue());
+    }
+    
+    /**
+     * Interleave the bits of the two 32-bit values, with <code>x</code> in the
+     * even bits and <code>y</code> in the odd bits.
+     */
+    private static long interleave(long x, long y) {
         x = (x | (x << S[4])) & B[4];
         y = (y | (y << S[4])) & B[4];
 
@@ -136,8 +161,187 @@ public class RedisGeoHash {
         return x | (y << 1);
     }
 
+    /**
+     * Return the 11 character standard geohash of the given point, the same
+     * string that Redis returns for <code>GEOHASH</code>.
+     * 
+     * @param latitude
+     *            the latitude of the point
+     * 
+     * @param longitude
+     *            the longitude of the point
+     * 
+     * @return the geohash string
+     */
     public static String hash(double latitude, double longitude) {
-        return encodeHash(latitude, longitude, 210);
+        long latIndex = cellIndex(latitude, standardLatRange, GEO_STEP_MAX);
+        long longIndex = cellIndex(longitude, longRange, GEO_STEP_MAX);
+        long bits = interleave(latIndex, longIndex);
+        
+        char[] chars = new char[11];
+        for(int index = 0; index < 11; index++) {
+            int value = 0;
+            if(index < 10) {
+                value = (int) ((bits >> (52 - ((index + 1) * 5))) & 0x1f);
+            }
+            
+            chars[index] = BASE32.charAt(value);
+        }
+        
+        return new String(chars);
+    }
+    
+    /**
+     * Check whether the given point can be indexed, that is it lies within the
+     * Mercator projection limits used by Redis.
+     * 
+     * @param latitude
+     *            the latitude of the point
+     * 
+     * @param longitude
+     *            the longitude of the point
+     * 
+     * @return <code>true</code> if the point is valid
+     */
+    public static boolean isValid(double latitude, double longitude) {
+        return latitude >= GEO_LAT_MIN && latitude <= GEO_LAT_MAX && longitude >= GEO_LONG_MIN && longitude <= GEO_LONG_MAX;
+    }
+    
+    /**
+     * Encode the given point as the 52-bit interleaved geohash that Redis uses
+     * as the score of a member in a geo key. Points that are close to each
+     * other share a common prefix, and thus lie in a narrow range of scores.
+     * 
+     * @param latitude
+     *            the latitude of the point
+     * 
+     * @param longitude
+     *            the longitude of the point
+     * 
+     * @return the 52-bit geohash
+     */
+    public static long encode(double latitude, double longitude) {
+        return interleave(cellIndex(latitude, latRange, GEO_STEP_MAX), cellIndex(longitude, longRange, GEO_STEP_MAX));
+    }
+    
+    /**
+     * Return the ranges of 52-bit geohash scores that together cover the
+     * circle of the given radius around the point. The precision of the cells
+     * is chosen such that the cell of the point and its 8 neighbours contain
+     * the whole circle. Ranges are returned as pairs of a minimum, inclusive,
+     * and a maximum, exclusive, score.
+     * 
+     * @param latitude
+     *            the latitude of the center
+     * 
+     * @param longitude
+     *            the longitude of the center
+     * 
+     * @param radiusInMeters
+     *            the radius of the circle in meters
+     * 
+     * @return the score ranges, at most 9 pairs
+     */
+    public static long[] getRadiusRanges(double latitude, double longitude, double radiusInMeters) {
+        int step = estimateStep(latitude, radiusInMeters);
+        long cells = 1l << step;
+        long latIndex = cellIndex(latitude, latRange, step);
+        long longIndex = cellIndex(longitude, longRange, step);
+        int shift = 2 * (GEO_STEP_MAX - step);
+        
+        long[] ranges = new long[18];
+        int found = 0;
+        for(long latCell = latIndex - 1; latCell <= latIndex + 1; latCell++) {
+            if(latCell < 0 || latCell >= cells) {
+                continue;
+            }
+            
+            for(long longCell = longIndex - 1; longCell <= longIndex + 1; longCell++) {
+                // longitude wraps around the anti-meridian
+                long hash = interleave(latCell, (longCell + cells) % cells);
+                long min = hash << shift;
+                
+                boolean duplicate = false;
+                for(int index = 0; index < found; index += 2) {
+                    if(ranges[index] == min) {
+                        duplicate = true;
+                        break;
+                    }
+                }
+                
+                if(!duplicate) {
+                    ranges[found++] = min;
+                    ranges[found++] = (hash + 1) << shift;
+                }
+            }
+        }
+        
+        long[] result = new long[found];
+        System.arraycopy(ranges, 0, result, 0, found);
+        return result;
+    }
+    
+    /**
+     * Find the number of bits per coordinate such that a cell is at least as
+     * large as the radius in both directions. This makes sure that the 3x3
+     * cells around the center cover the bounding box of the circle.
+     * 
+     * @param latitude
+     *            the latitude of the center
+     * 
+     * @param radiusInMeters
+     *            the radius in meters
+     * 
+     * @return the step, between 1 and {@link #GEO_STEP_MAX}
+     */
+    static int estimateStep(double latitude, double radiusInMeters) {
+        if(radiusInMeters <= 0) {
+            return GEO_STEP_MAX;
+        }
+        
+        // start from the same estimate as Redis
+        int step = 1;
+        double range = radiusInMeters;
+        while(range < MERCATOR_MAX && step < 64) {
+            range *= 2;
+            step++;
+        }
+        step = Math.max(1, Math.min(GEO_STEP_MAX, step - 2));
+        
+        // and make sure that the bounding box fits the neighbouring cells
+        double latDelta = Math.toDegrees(radiusInMeters / EARTH_RADIUS_IN_METERS);
+        double cos = Math.cos(Math.toRadians(Math.min(GEO_LAT_MAX, Math.abs(latitude) + latDelta)));
+        double longDelta = cos > 0 ? latDelta / cos : GEO_LONG_MAX;
+        
+        while(step > 1) {
+            double cellHeight = (latRange.max - latRange.min) / (1l << step);
+            double cellWidth = (longRange.max - longRange.min) / (1l << step);
+            if(cellHeight >= latDelta && cellWidth >= longDelta) {
+                break;
+            }
+            
+            step--;
+        }
+        
+        return step;
+    }
+    
+    /**
+     * Return the index of the cell that contains the value when the range is
+     * split in <code>2^step</code> cells.
+     */
+    private static long cellIndex(double value, GeoHashRange range, int step) {
+        long cells = 1l << step;
+        long index = (long) ((value - range.min) / (range.max - range.min) * cells);
+        if(index < 0) {
+            return 0;
+        }
+        
+        if(index >= cells) {
+            return cells - 1;
+        }
+        
+        return index;
     }
     
     public static String encodeHash(double latitude, double longitude, int length) {
@@ -1,5 +1,12 @@
 package com.sangupta.dryredis;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -18,4 +25,383 @@ public class TestDryRedis {
         Assert.assertTrue(instance == DryRedis.getDatabase("sangupta"));
     }
     
+    @Test
+    public void testConcurrentDatabases() {
+        DryRedis instance = DryRedis.getConcurrentDatabase("concurrent");
+        Assert.assertTrue(instance.isConcurrent());
+        Assert.assertTrue(instance == DryRedis.getConcurrentDatabase("concurrent"));
+        Assert.assertTrue(instance == DryRedis.getDatabase("concurrent"));
+        
+        Assert.assertFalse(DryRedis.getDatabase().isConcurrent());
+        
+        DryRedis.getDatabase("single");
+        try {
+            DryRedis.getConcurrentDatabase("single");
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // expected
+        }
+        
+        try {
+            DryRedis.getConcurrentDatabase(" ");
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testConcurrentCommands() throws InterruptedException {
+        final DryRedis redis = DryRedis.getConcurrentDatabase("concurrent-commands");
+        redis.flushdb();
+        
+        final int threads = 8;
+        final int iterations = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        
+        for(int index = 0; index < iterations; index++) {
+            redis.sadd("source", "member-" + index);
+        }
+        
+        List<Thread> workers = new ArrayList<Thread>();
+        for(int thread = 0; thread < threads; thread++) {
+            final int id = thread;
+            Thread worker = new Thread(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    
+                    for(int index = 0; index < iterations; index++) {
+                        redis.incr("counter");
+                        redis.hincrby("hash", "field", 2);
+                        redis.rpush("list", "value");
+                        redis.smove("source", "destination-" + (id % 2), "member-" + index);
+                    }
+                }
+                
+            });
+            
+            workers.add(worker);
+            worker.start();
+        }
+        
+        start.countDown();
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        
+        Assert.assertEquals("" + (threads * iterations), redis.get("counter"));
+        Assert.assertEquals("" + (threads * iterations * 2), redis.hget("hash", "field"));
+        Assert.assertEquals(threads * iterations, redis.llen("list"));
+        Assert.assertEquals(0, redis.scard("source"));
+        Assert.assertEquals(iterations, redis.scard("destination-0") + redis.scard("destination-1"));
+    }
+    
+    @Test
+    public void testCounters() throws InterruptedException {
+        Assert.assertFalse(DryRedis.getDatabase().enableCounter("counter"));
+        
+        final DryRedis redis = DryRedis.getConcurrentDatabase("counters");
+        redis.flushdb();
+        
+        Assert.assertTrue(redis.enableCounter("counter"));
+        Assert.assertFalse(redis.enableCounter("counter"));
+        Assert.assertTrue(redis.enableCounter("hash", "field"));
+        Assert.assertTrue(redis.enableCounter("closing"));
+        
+        // a single thread sees exact values
+        Assert.assertEquals(1, redis.incr("counter"));
+        Assert.assertEquals(3, redis.incrby("counter", 2));
+        Assert.assertEquals(2, redis.decr("counter"));
+        Assert.assertEquals("2", redis.get("counter"));
+        Assert.assertEquals(7, redis.incrby("counter", 5));
+        Assert.assertEquals("OK", redis.set("counter", "100"));
+        Assert.assertEquals(101, redis.incr("counter"));
+        Assert.assertEquals(1, redis.del("counter"));
+        Assert.assertEquals(1, redis.incr("counter"));
+        Assert.assertEquals(5, redis.hincrby("hash", "field", 5));
+        Assert.assertEquals(6, redis.hincrby("hash", "field", 1));
+        Assert.assertEquals("6", redis.hget("hash", "field"));
+        redis.del("counter");
+        redis.del("hash");
+        
+        final int threads = 8;
+        final int iterations = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final boolean[] ordered = new boolean[] { true };
+        
+        List<Thread> workers = new ArrayList<Thread>();
+        for(int thread = 0; thread < threads; thread++) {
+            final int id = thread;
+            Thread worker = new Thread(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    
+                    long last = 0;
+                    for(int index = 0; index < iterations; index++) {
+                        redis.incr("counter");
+                        redis.hincrby("hash", "field", 2);
+                        redis.incr("closing");
+                        
+                        if(id == 0 && index == iterations / 2) {
+                            redis.disableCounter("closing");
+                        }
+                        
+                        // reads see every increment that completed before
+                        if(index % 100 == 0) {
+                            long value = Long.parseLong(redis.get("counter"));
+                            if(value < last || value <= index) {
+                                ordered[0] = false;
+                            }
+                            
+                            last = value;
+                        }
+                    }
+                }
+                
+            });
+            
+            workers.add(worker);
+            worker.start();
+        }
+        
+        start.countDown();
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        
+        Assert.assertTrue(ordered[0]);
+        Assert.assertEquals("" + (threads * iterations), redis.get("counter"));
+        Assert.assertEquals("" + (threads * iterations * 2), redis.hget("hash", "field"));
+        Assert.assertEquals("" + (threads * iterations), redis.get("closing"));
+        Assert.assertTrue(redis.disableCounter("counter"));
+        Assert.assertTrue(redis.disableCounter("hash", "field"));
+        Assert.assertFalse(redis.disableCounter("closing"));
+        Assert.assertEquals(threads * iterations + 1, redis.incr("counter"));
+        
+        // flushing drops increments not yet applied
+        redis.enableCounter("counter");
+        redis.incr("counter");
+        redis.incr("counter");
+        redis.flushdb();
+        Assert.assertNull(redis.get("counter"));
+    }
+    
+    @Test
+    public void testCounterExpiry() throws InterruptedException {
+        final DryRedis redis = DryRedis.getConcurrentDatabase("counter-expiry");
+        redis.flushdb();
+        
+        // increments after the key expired start from scratch
+        redis.enableCounter("counter");
+        redis.set("counter", "10");
+        redis.pexpire("counter", 50);
+        Assert.assertEquals(11, redis.incr("counter"));
+        Assert.assertEquals(12, redis.incr("counter"));
+        Assert.assertEquals(13, redis.incr("counter"));
+        
+        Thread.sleep(100);
+        Assert.assertEquals(1, redis.incr("counter"));
+        Assert.assertEquals(2, redis.incr("counter"));
+        Assert.assertEquals("2", redis.get("counter"));
+        Assert.assertEquals(-1, redis.ttl("counter"));
+        
+        // increments not yet applied expire along with the key
+        redis.pexpire("counter", 50);
+        Assert.assertEquals(3, redis.incr("counter"));
+        Assert.assertEquals(4, redis.incr("counter"));
+        Thread.sleep(100);
+        Assert.assertNull(redis.get("counter"));
+        Assert.assertEquals(1, redis.incr("counter"));
+        
+        // the same for hash fields
+        redis.enableCounter("hash", "field");
+        Assert.assertEquals(5, redis.hincrby("hash", "field", 5));
+        redis.pexpire("hash", 50);
+        Assert.assertEquals(6, redis.hincrby("hash", "field", 1));
+        Assert.assertEquals(7, redis.hincrby("hash", "field", 1));
+        Thread.sleep(100);
+        Assert.assertEquals(1, redis.hincrby("hash", "field", 1));
+        Assert.assertEquals("1", redis.hget("hash", "field"));
+    }
+    
+    @Test
+    public void testBackgroundExpiry() throws InterruptedException {
+        Assert.assertFalse(DryRedis.getDatabase().setBackgroundExpiry(true));
+        
+        final DryRedis redis = DryRedis.getConcurrentDatabase("background-expiry");
+        redis.flushdb();
+        redis.setActiveExpiry(10, DryRedisExpiry.DEFAULT_CPU_BUDGET_PERCENT);
+        Assert.assertTrue(redis.setBackgroundExpiry(true));
+        
+        try {
+            redis.set("persistent", "value");
+            redis.set("volatile", "value");
+            redis.pexpire("volatile", 20);
+            
+            // reclaimed while no command runs
+            long deadline = System.currentTimeMillis() + 5000;
+            while(redis.keyspace.size() > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            
+            Assert.assertEquals(1, redis.keyspace.size());
+        } finally {
+            redis.setBackgroundExpiry(false);
+            redis.setActiveExpiry(DryRedisExpiry.DEFAULT_CYCLE_INTERVAL_MILLIS, DryRedisExpiry.DEFAULT_CPU_BUDGET_PERCENT);
+        }
+    }
+    
+    @Test
+    public void testConcurrentBlockingPop() throws InterruptedException {
+        final DryRedis redis = DryRedis.getConcurrentDatabase("concurrent-blocking");
+        redis.flushdb();
+        
+        final String[] popped = new String[1];
+        Thread consumer = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                popped[0] = redis.brpoplpush("queue", "processing", 5);
+            }
+            
+        });
+        
+        consumer.start();
+        Thread.sleep(50);
+        redis.lpush("queue", "job");
+        consumer.join();
+        
+        Assert.assertEquals("job", popped[0]);
+        Assert.assertEquals(0, redis.llen("queue"));
+        Assert.assertEquals("job", redis.lindex("processing", 0));
+        
+        Assert.assertNull(redis.blpop("queue", 0));
+    }
+    
+    @Test
+    public void testConcurrentBlockingMove() throws InterruptedException {
+        final DryRedis redis = DryRedis.getConcurrentDatabase("concurrent-blocking-move");
+        redis.flushdb();
+        
+        // the destination is no longer a list when the value arrives
+        final Exception[] failure = new Exception[1];
+        Thread consumer = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                try {
+                    redis.brpoplpush("source", "destination", 5);
+                } catch(IllegalArgumentException e) {
+                    failure[0] = e;
+                }
+            }
+            
+        });
+        
+        consumer.start();
+        awaitBlocked(redis, "source");
+        redis.set("destination", "string");
+        redis.rpush("source", "precious");
+        consumer.join();
+        
+        Assert.assertNotNull(failure[0]);
+        Assert.assertEquals(Arrays.asList("precious"), redis.lrange("source", 0, -1));
+        Assert.assertEquals("string", redis.get("destination"));
+        
+        // a moved value serves the clients blocked on the destination
+        final List<String> popped = Collections.synchronizedList(new ArrayList<String>());
+        Thread mover = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                popped.add(redis.brpoplpush("first", "second", 5));
+            }
+            
+        });
+        
+        Thread receiver = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                popped.add(redis.blpop("second", 5));
+            }
+            
+        });
+        
+        mover.start();
+        receiver.start();
+        awaitBlocked(redis, "first");
+        awaitBlocked(redis, "second");
+        redis.lpush("first", "job");
+        mover.join();
+        receiver.join();
+        
+        Assert.assertEquals(Arrays.asList("job", "job"), popped);
+        Assert.assertEquals(0, redis.llen("first"));
+        Assert.assertEquals(0, redis.llen("second"));
+    }
+    
+    @Test
+    public void testConcurrentBlockingKeys() throws InterruptedException {
+        final DryRedis redis = DryRedis.getConcurrentDatabase("concurrent-blocking-keys");
+        redis.flushdb();
+        
+        // many idle consumers, each on its own key
+        final int consumers = 50;
+        final String[] popped = new String[consumers];
+        Thread[] threads = new Thread[consumers];
+        for(int index = 0; index < consumers; index++) {
+            final int consumer = index;
+            threads[index] = new Thread(new Runnable() {
+                
+                @Override
+                public void run() {
+                    List<String> result = redis.brpop(Arrays.asList("queue" + consumer, "shared"), 10, TimeUnit.SECONDS);
+                    popped[consumer] = result.get(0) + "=" + result.get(1);
+                }
+                
+            });
+            threads[index].start();
+        }
+        
+        Thread.sleep(100);
+        for(int index = consumers - 1; index >= 0; index--) {
+            redis.lpush("queue" + index, "job" + index);
+        }
+        
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        
+        for(int index = 0; index < consumers; index++) {
+            Assert.assertEquals("queue" + index + "=job" + index, popped[index]);
+            Assert.assertEquals(0, redis.llen("queue" + index));
+        }
+        
+        // a waiter that was served is no longer blocked on its other keys
+        redis.lpush("shared", "left");
+        Assert.assertEquals(1, redis.llen("shared"));
+    }
+    
+    /**
+     * Wait till a client is blocked on the given key.
+     */
+    private static void awaitBlocked(DryRedis redis, String key) throws InterruptedException {
+        while(redis.listCommands.countBlocked(key) == 0) {
+            Thread.sleep(1);
+        }
+    }
+    
 }
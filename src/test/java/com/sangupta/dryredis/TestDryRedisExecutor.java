@@ -0,0 +1,198 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DryRedisExecutor}.
+ * 
+ * @author sangupta
+ *
+ */
+public class TestDryRedisExecutor {
+    
+    @Test
+    public void testExecute() {
+        DryRedisExecutor executor = new DryRedisExecutor("test-execute");
+        try {
+            Assert.assertEquals("OK", executor.execute(new DryRedisCommand<String>() {
+                
+                @Override
+                public String execute(DryRedis redis) {
+                    return redis.set("key", "value");
+                }
+                
+            }));
+            
+            Assert.assertEquals("value", executor.execute(new DryRedisCommand<String>() {
+                
+                @Override
+                public String execute(DryRedis redis) {
+                    return redis.get("key");
+                }
+                
+            }));
+            
+            // blocking commands do not wait
+            Assert.assertNull(executor.execute(new DryRedisCommand<String>() {
+                
+                @Override
+                public String execute(DryRedis redis) {
+                    return redis.blpop("list", 60);
+                }
+                
+            }));
+            
+            try {
+                executor.execute(new DryRedisCommand<Integer>() {
+                    
+                    @Override
+                    public Integer execute(DryRedis redis) {
+                        return redis.hlen("key");
+                    }
+                    
+                });
+                
+                Assert.fail();
+            } catch(IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testSubmitFromManyThreads() throws Exception {
+        final DryRedisExecutor executor = new DryRedisExecutor("test-submit");
+        final int threads = 8;
+        final int iterations = 1000;
+        
+        final DryRedisCommand<Long> increment = new DryRedisCommand<Long>() {
+            
+            @Override
+            public Long execute(DryRedis redis) {
+                // two calls in one command are never interleaved
+                redis.rpush("list", "value");
+                return redis.incr("counter");
+            }
+            
+        };
+        
+        final List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for(int thread = 0; thread < threads; thread++) {
+            Thread worker = new Thread(new Runnable() {
+                
+                @Override
+                public void run() {
+                    for(int index = 0; index < iterations; index++) {
+                        Future<Long> future = executor.submit(increment);
+                        synchronized (futures) {
+                            futures.add(future);
+                        }
+                    }
+                }
+                
+            });
+            
+            workers.add(worker);
+            worker.start();
+        }
+        
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        
+        long max = 0;
+        for(Future<Long> future : futures) {
+            max = Math.max(max, future.get());
+        }
+        
+        Assert.assertEquals(threads * iterations, max);
+        Assert.assertEquals(Integer.valueOf(threads * iterations), executor.execute(new DryRedisCommand<Integer>() {
+            
+            @Override
+            public Integer execute(DryRedis redis) {
+                return redis.llen("list");
+            }
+            
+        }));
+        
+        executor.shutdown();
+    }
+    
+    @Test
+    public void testShutdown() throws Exception {
+        DryRedisExecutor executor = new DryRedisExecutor("test-shutdown");
+        Future<String> future = executor.submit(new DryRedisCommand<String>() {
+            
+            @Override
+            public String execute(DryRedis redis) {
+                return redis.set("key", "value");
+            }
+            
+        });
+        
+        executor.shutdown();
+        Assert.assertEquals("OK", future.get());
+        
+        try {
+            executor.submit(new DryRedisCommand<String>() {
+                
+                @Override
+                public String execute(DryRedis redis) {
+                    return redis.get("key");
+                }
+                
+            });
+            
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // expected
+        }
+        
+        Future<Object> failing = new DryRedisExecutor("test-failure").submit(new DryRedisCommand<Object>() {
+            
+            @Override
+            public Object execute(DryRedis redis) {
+                throw new IllegalStateException("failure");
+            }
+            
+        });
+        
+        try {
+            failing.get();
+            Assert.fail();
+        } catch(ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+    
+}
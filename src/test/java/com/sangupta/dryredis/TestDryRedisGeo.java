@@ -21,8 +21,17 @@
 
 package com.sangupta.dryredis;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
 import org.junit.Test;
 
+import com.sangupta.dryredis.support.DryRedisGeoUnit;
+import com.sangupta.dryredis.support.DryRedisSortOrder;
+import com.sangupta.dryredis.support.Haversine;
+
 /**
  * Unit tests for {@link DryRedisGeo}.
  * 
@@ -32,8 +41,129 @@ import org.junit.Test;
 public class TestDryRedisGeo {
 
     @Test
-    public void test() {
+    public void testGEOADD() {
+        DryRedisGeoOperations redis = getRedis();
+        
+        Assert.assertEquals(1, redis.geoadd("Sicily", 13.361389d, 38.115556d, "Palermo"));
+        Assert.assertEquals(1, redis.geoadd("Sicily", 15.087269d, 37.502669d, "Catania"));
+        Assert.assertEquals(0, redis.geoadd("Sicily", 15.087269d, 37.502669d, "Catania"));
+        
+        double[] position = redis.geopos("Sicily", "Palermo");
+        Assert.assertEquals(38.115556d, position[0], 0.000001d);
+        Assert.assertEquals(13.361389d, position[1], 0.000001d);
+        Assert.assertNull(redis.geopos("Sicily", "Agrigento"));
+        
+        Assert.assertEquals("sqc8b49rny0", redis.geohash("Sicily", "Palermo"));
+        Assert.assertEquals("sqdtr74hyu0", redis.geohash("Sicily", "Catania"));
+        
+        try {
+            redis.geoadd("Sicily", 13.361389d, 89d, "North");
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testGEODIST() {
+        DryRedisGeoOperations redis = getRedis();
+        
+        redis.geoadd("Sicily", 13.361389d, 38.115556d, "Palermo");
+        redis.geoadd("Sicily", 15.087269d, 37.502669d, "Catania");
+        
+        Assert.assertEquals(166.274d, redis.geodist("Sicily", "Palermo", "Catania", DryRedisGeoUnit.KiloMeters), 0.5d);
+        Assert.assertNull(redis.geodist("Sicily", "Palermo", "Agrigento", DryRedisGeoUnit.KiloMeters));
+    }
+    
+    @Test
+    public void testGEORADIUS() {
+        DryRedisGeoOperations redis = getRedis();
+        
+        Assert.assertNull(redis.georadius("Sicily", 15d, 37d, 100, DryRedisGeoUnit.KiloMeters));
+        
+        redis.geoadd("Sicily", 13.361389d, 38.115556d, "Palermo");
+        redis.geoadd("Sicily", 15.087269d, 37.502669d, "Catania");
+        
+        Assert.assertEquals(TestUtils.asList("Catania"), redis.georadius("Sicily", 15d, 37d, 100, DryRedisGeoUnit.KiloMeters));
+        Assert.assertEquals(TestUtils.asList("Catania"), redis.georadius("Sicily", 15d, 37d, 100000, DryRedisGeoUnit.Meters));
+        Assert.assertTrue(TestUtils.equalUnsorted(TestUtils.asList("Catania", "Palermo"), redis.georadius("Sicily", 15d, 37d, 200, DryRedisGeoUnit.KiloMeters)));
+        
+        // sorting and count
+        Assert.assertEquals(TestUtils.asList("Catania", "Palermo"), redis.georadius("Sicily", 15d, 37d, 200, DryRedisGeoUnit.KiloMeters, false, false, false, 0, DryRedisSortOrder.ASC));
+        Assert.assertEquals(TestUtils.asList("Palermo", "Catania"), redis.georadius("Sicily", 15d, 37d, 200, DryRedisGeoUnit.KiloMeters, false, false, false, 0, DryRedisSortOrder.DESC));
+        Assert.assertEquals(TestUtils.asList("Catania"), redis.georadius("Sicily", 15d, 37d, 200, DryRedisGeoUnit.KiloMeters, false, false, false, 1));
+        Assert.assertEquals(TestUtils.asList("Palermo"), redis.georadius("Sicily", 15d, 37d, 200, DryRedisGeoUnit.KiloMeters, false, false, false, 1, DryRedisSortOrder.DESC));
+        
+        // distance is returned in the unit of the radius
+        List<String> result = redis.georadius("Sicily", 15d, 37d, 200, DryRedisGeoUnit.KiloMeters, false, true, false, 0, DryRedisSortOrder.ASC);
+        Assert.assertEquals(4, result.size());
+        Assert.assertEquals("Catania", result.get(0));
+        Assert.assertEquals(56.4413d, Double.parseDouble(result.get(1)), 0.5d);
+        Assert.assertEquals("Palermo", result.get(2));
+        Assert.assertEquals(190.4424d, Double.parseDouble(result.get(3)), 0.5d);
+        
+        // the hash is the 52-bit score
+        result = redis.georadius("Sicily", 15d, 37d, 100, DryRedisGeoUnit.KiloMeters, false, false, true, 0);
+        Assert.assertEquals(TestUtils.asList("Catania", "3479447370796909"), result);
+    }
+    
+    @Test
+    public void testGEORADIUSBYMEMBER() {
+        DryRedisGeoOperations redis = getRedis();
+        
+        redis.geoadd("Sicily", 13.583333d, 37.316667d, "Agrigento");
+        redis.geoadd("Sicily", 13.361389d, 38.115556d, "Palermo");
+        redis.geoadd("Sicily", 15.087269d, 37.502669d, "Catania");
+        
+        Assert.assertEquals(TestUtils.asList("Agrigento", "Palermo"), redis.georadiusbymember("Sicily", "Agrigento", 100, DryRedisGeoUnit.KiloMeters, false, false, false, 0, DryRedisSortOrder.ASC));
+        Assert.assertNull(redis.georadiusbymember("Sicily", "Messina", 100, DryRedisGeoUnit.KiloMeters));
+    }
+    
+    @Test
+    public void testGEORADIUSAgainstScan() {
+        DryRedisGeoOperations redis = getRedis();
+        
+        Random random = new Random(42);
+        int members = 2000;
+        double[] latitudes = new double[members];
+        double[] longitudes = new double[members];
+        
+        // cluster most points, and spread a few across the globe and the anti-meridian
+        for(int index = 0; index < members; index++) {
+            if(index % 10 == 0) {
+                latitudes[index] = random.nextDouble() * 170d - 85d;
+                longitudes[index] = random.nextDouble() * 360d - 180d;
+            } else if(index % 10 == 1) {
+                latitudes[index] = random.nextDouble() * 2d - 1d;
+                longitudes[index] = (random.nextBoolean() ? 179d : -180d) + random.nextDouble();
+            } else {
+                latitudes[index] = 28.6d + random.nextDouble() * 0.5d;
+                longitudes[index] = 77.2d + random.nextDouble() * 0.5d;
+            }
+            
+            redis.geoadd("points", longitudes[index], latitudes[index], "m" + index);
+        }
         
+        double[][] queries = { { 28.8d, 77.4d, 5d }, { 28.8d, 77.4d, 50d }, { 0d, 179.9d, 150d }, { 0d, -180d, 300d }, { 84d, 10d, 2000d }, { 10d, 10d, 20000d } };
+        for(double[] query : queries) {
+            List<String> expected = new ArrayList<String>();
+            for(int index = 0; index < members; index++) {
+                if(Haversine.distance(query[0], query[1], latitudes[index], longitudes[index]) <= query[2]) {
+                    expected.add("m" + index);
+                }
+            }
+            
+            int found = expected.size();
+            List<String> actual = redis.georadius("points", query[1], query[0], query[2], DryRedisGeoUnit.KiloMeters);
+            Assert.assertTrue(TestUtils.equalUnsorted(expected, actual));
+            
+            // count keeps the nearest ones, in order
+            List<String> nearest = redis.georadius("points", query[1], query[0], query[2], DryRedisGeoUnit.KiloMeters, false, true, false, 5);
+            Assert.assertEquals(Math.min(5, found) * 2, nearest.size());
+            for(int index = 3; index < nearest.size(); index += 2) {
+                Assert.assertTrue(Double.parseDouble(nearest.get(index - 2)) <= Double.parseDouble(nearest.get(index)));
+            }
+        }
     }
     
     protected DryRedisGeoOperations getRedis() {
@@ -21,7 +21,9 @@
 
 package com.sangupta.dryredis;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.Assert;
@@ -54,20 +56,85 @@ public class TestDryRedisHyperLogLog {
         Assert.assertTrue(error < 0.1d);
     }
     
-//    @Test
-//    public void testUnionCount() {
-//    	DryRedisHyperLogLogOperations hll = getRedis();
-//		
-//        hll.pfadd("test", "foo");
-//        hll.pfadd("test", "bar");
-//        hll.pfadd("test", "zap");
-//        
-//        hll.pfadd("test2", "1");
-//        hll.pfadd("test2", "2");
-//        hll.pfadd("test2", "3");
-//        
-//        Assert.assertEquals(6, hll.pfcount(Arrays.asList("test", "test2")));
-//    }
+    @Test
+    public void testUnionCount() {
+    	DryRedisHyperLogLogOperations hll = getRedis();
+		
+        hll.pfadd("test", "foo");
+        hll.pfadd("test", "bar");
+        hll.pfadd("test", "zap");
+        
+        hll.pfadd("test2", "1");
+        hll.pfadd("test2", "2");
+        hll.pfadd("test2", "3");
+        
+        Assert.assertEquals(6, hll.pfcount(Arrays.asList("test", "test2")));
+        
+        // sources are not modified
+        Assert.assertEquals(3, hll.pfcount("test"));
+        Assert.assertEquals(3, hll.pfcount("test2"));
+    }
+    
+    @Test
+    public void testPFADD() {
+    	DryRedisHyperLogLogOperations hll = getRedis();
+    	
+    	Assert.assertEquals(1, hll.pfadd("test", "foo"));
+    	Assert.assertEquals(0, hll.pfadd("test", "foo"));
+    	Assert.assertEquals(1, hll.pfadd("test", "bar"));
+    	Assert.assertEquals(2, hll.pfcount("test"));
+    }
+    
+    @Test
+    public void testPFADDMultiple() {
+    	DryRedisHyperLogLogOperations hll = getRedis();
+    	
+    	Assert.assertEquals(1, hll.pfadd("test", Arrays.asList("foo", "bar", "zap")));
+    	Assert.assertEquals(0, hll.pfadd("test", Arrays.asList("foo", "bar")));
+    	Assert.assertEquals(1, hll.pfadd("test", Arrays.asList("foo", "baz")));
+    	Assert.assertEquals(4, hll.pfcount("test"));
+    	
+    	Assert.assertEquals(1, hll.pfadd("empty", new ArrayList<String>()));
+    	Assert.assertEquals(0, hll.pfcount("empty"));
+    }
+    
+    @Test
+    public void testPFMERGE() {
+    	DryRedisHyperLogLogOperations hll = getRedis();
+    	
+    	for(int index = 0; index < 10000; index++) {
+    		hll.pfadd("test", "a" + index);
+    		hll.pfadd("test2", "b" + index);
+    	}
+    	
+    	Assert.assertEquals("OK", hll.pfmerge("merged", Arrays.asList("test", "test2", "missing")));
+    	
+    	long count = hll.pfcount("merged");
+    	Assert.assertEquals(hll.pfcount(Arrays.asList("test", "test2")), count);
+    	Assert.assertTrue(Math.abs(count - 20000) < 20000 * 0.03);
+    }
+    
+    @Test
+    public void testPFCOUNTManyKeys() {
+    	DryRedisHyperLogLogOperations hll = getRedis();
+    	
+    	List<String> keys = new ArrayList<String>();
+    	for(int key = 0; key < 10; key++) {
+    		keys.add("day" + key);
+    		for(int index = 0; index < 5000; index++) {
+    			// half of the users come back the next day
+    			hll.pfadd("day" + key, "user" + (key * 2500 + index));
+    		}
+    	}
+    	
+    	long count = hll.pfcount(keys);
+    	Assert.assertTrue(Math.abs(count - 27500) < 27500 * 0.03);
+    	Assert.assertEquals(count, hll.pfcount(keys));
+    	
+    	Assert.assertEquals("OK", hll.pfmerge("month", keys));
+    	Assert.assertEquals(count, hll.pfcount("month"));
+    	Assert.assertEquals(5000, hll.pfcount("day0"), 5000 * 0.03);
+    }
     
     protected DryRedisHyperLogLogOperations getRedis() {
         return new DryRedisHyperLogLog();
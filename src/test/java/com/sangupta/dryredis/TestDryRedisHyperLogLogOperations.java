@@ -21,6 +21,12 @@
 
 package com.sangupta.dryredis;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
 /**
  * Test {@link DryRedisHyperLogLogOperations} using {@link DryRedis} instance.
  * 
@@ -35,5 +41,28 @@ public class TestDryRedisHyperLogLogOperations extends TestDryRedisHyperLogLog {
         redis.flushdb();
         return redis;
     }
+    
+    @Test
+    public void testParallelMergeConfig() {
+        DryRedis redis = DryRedis.getDatabase("test-hll-parallel");
+        redis.flushdb();
+        
+        Assert.assertEquals(TestUtils.asList("hll-parallel-merge-keys", "8"), redis.configGet("hll-*"));
+        
+        List<String> keys = new ArrayList<String>();
+        for(int key = 0; key < 8; key++) {
+            keys.add("key" + key);
+            for(int index = 0; index < 3000; index++) {
+                redis.pfadd("key" + key, key + "-" + index);
+            }
+        }
+        
+        long parallel = redis.pfcount(keys);
+        
+        Assert.assertEquals("OK", redis.configSet("hll-parallel-merge-keys", "0"));
+        Assert.assertEquals(parallel, redis.pfcount(keys));
+        
+        Assert.assertEquals("OK", redis.configSet("hll-parallel-merge-keys", "8"));
+    }
 
 }
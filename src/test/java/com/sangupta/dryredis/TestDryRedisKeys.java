@@ -1,9 +1,30 @@
 package com.sangupta.dryredis;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashSet;
+
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sangupta.dryredis.ds.Crc64;
+import com.sangupta.dryredis.ds.DynamicString;
+import com.sangupta.dryredis.ds.HyperLogLog;
+import com.sangupta.dryredis.support.DryRedisFsyncPolicy;
 
 public class TestDryRedisKeys {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     @Test
     public void testDEL() {
@@ -23,26 +44,146 @@ public class TestDryRedisKeys {
         
         redis.set("key3", "value");
         Assert.assertEquals(3, redis.del("ke*"));
+        
+        // expired keys are removed, but not counted
+        redis.set("k1", "value");
+        redis.set("k2", "value");
+        redis.pexpireat("k2", System.currentTimeMillis() - 1000);
+        Assert.assertEquals(TestUtils.asList("k1"), redis.keys("k*"));
+        Assert.assertEquals(1, redis.del("k*"));
+        Assert.assertEquals(0, redis.keyspace.size());
     }
     
     @Test
     public void testEXPIRE() {
+        DryRedis redis = getRedis();
         
+        Assert.assertEquals(0, redis.expire("key", 10));
+        
+        redis.set("key", "value");
+        Assert.assertEquals(1, redis.expire("key", 10));
+        Assert.assertEquals(10, redis.ttl("key"));
+        
+        Assert.assertEquals(1, redis.expire("key", -1));
+        Assert.assertNull(redis.get("key"));
+        Assert.assertEquals(0, redis.exists("key"));
     }
     
     @Test
     public void testEXPIREAT() {
+        DryRedis redis = getRedis();
         
+        redis.sadd("key", "value");
+        Assert.assertEquals(1, redis.expireat("key", System.currentTimeMillis() / 1000l + 100));
+        Assert.assertTrue(redis.ttl("key") > 90);
+        
+        Assert.assertEquals(1, redis.expireat("key", 1));
+        Assert.assertEquals(0, redis.scard("key"));
+        Assert.assertNull(redis.type("key"));
     }
     
     @Test
-    public void testPEXPIRE() {
+    public void testPEXPIRE() throws InterruptedException {
+        DryRedis redis = getRedis();
+        
+        redis.lpush("key", "value");
+        Assert.assertEquals(1, redis.pexpire("key", 20));
+        Assert.assertEquals(1, redis.llen("key"));
         
+        Thread.sleep(30);
+        Assert.assertEquals(0, redis.llen("key"));
+        Assert.assertTrue(redis.keys("*").isEmpty());
     }
     
     @Test
     public void testPEXPIREAT() {
+        DryRedis redis = getRedis();
+        
+        redis.hset("key", "field", "value");
+        Assert.assertEquals(1, redis.pexpireat("key", System.currentTimeMillis() + 100000));
+        Assert.assertEquals("value", redis.hget("key", "field"));
         
+        // renaming moves the expiry along
+        Assert.assertEquals("OK", redis.rename("key", "new-key"));
+        Assert.assertTrue(redis.pttl("new-key") > 90000);
+        
+        Assert.assertEquals(1, redis.pexpireat("new-key", System.currentTimeMillis() - 1));
+        Assert.assertNull(redis.hget("new-key", "field"));
+    }
+    
+    @Test
+    public void testPERSIST() {
+        DryRedis redis = getRedis();
+        
+        Assert.assertEquals(0, redis.persist("key"));
+        
+        redis.set("key", "value");
+        Assert.assertEquals(0, redis.persist("key"));
+        
+        redis.expire("key", 10);
+        Assert.assertEquals(1, redis.persist("key"));
+        Assert.assertEquals(-1, redis.ttl("key"));
+        Assert.assertEquals(0, redis.persist("key"));
+    }
+    
+    @Test
+    public void testActiveExpiry() {
+        DryRedis redis = getRedis();
+        
+        try {
+            // no cycles while the keys are set up
+            redis.setActiveExpiry(DryRedisExpiry.DEFAULT_CYCLE_INTERVAL_MILLIS, 0);
+            long past = System.currentTimeMillis() - 1000;
+            for(int index = 0; index < 1000; index++) {
+                redis.set("key" + index, "value");
+                redis.pexpireat("key" + index, past);
+            }
+            
+            redis.set("persistent", "value");
+            Assert.assertEquals(1001, redis.keyspace.size());
+            
+            // the next command runs one cycle, with time enough for all keys
+            redis.setActiveExpiry(60000, 100);
+            
+            // keys are reclaimed without being accessed
+            redis.set("other", "value");
+            Assert.assertEquals(2, redis.keyspace.size());
+        } finally {
+            redis.setActiveExpiry(DryRedisExpiry.DEFAULT_CYCLE_INTERVAL_MILLIS, DryRedisExpiry.DEFAULT_CPU_BUDGET_PERCENT);
+        }
+        
+        try {
+            redis.setActiveExpiry(0, 10);
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testExpiryReleasesValues() throws InterruptedException {
+        DryRedis redis = getRedis();
+        
+        // deleted and renamed keys are not held on to till their deadline
+        redis.set("deleted", "value");
+        redis.pexpire("deleted", 3600000);
+        WeakReference<Object> deleted = new WeakReference<Object>(redis.keyspace.getEntry("deleted").value);
+        redis.del("deleted");
+        
+        redis.set("renamed", "value");
+        redis.pexpire("renamed", 3600000);
+        WeakReference<Object> renamed = new WeakReference<Object>(redis.keyspace.getEntry("renamed"));
+        redis.rename("renamed", "target");
+        
+        for(int attempt = 0; attempt < 20 && (deleted.get() != null || renamed.get() != null); attempt++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        
+        Assert.assertNull(deleted.get());
+        Assert.assertNull(renamed.get());
+        Assert.assertEquals("value", redis.get("target"));
+        Assert.assertTrue(redis.pttl("target") > 0);
     }
     
     @Test
@@ -90,7 +231,47 @@ public class TestDryRedisKeys {
     
     @Test
     public void testKEYS() {
+        DryRedis redis = getRedis();
+        
+        Assert.assertTrue(redis.keys("*").isEmpty());
+        
+        redis.set("key1", "value");
+        redis.hset("key2", "field", "value");
+        redis.sadd("key3", "value");
+        redis.lpush("other", "value");
+        
+        Assert.assertEquals(4, redis.keys("*").size());
+        Assert.assertTrue(TestUtils.equalUnsorted(redis.keys("key*"), TestUtils.asList("key1", "key2", "key3")));
+    }
+    
+    @Test
+    public void testTYPE() {
+        DryRedis redis = getRedis();
+        
+        Assert.assertNull(redis.type("key"));
+        Assert.assertEquals(0, redis.exists("key"));
+        
+        redis.set("key", "value");
+        Assert.assertEquals("string", redis.type("key"));
+        Assert.assertEquals(1, redis.exists("key"));
         
+        redis.zadd("zkey", 1, "member");
+        Assert.assertEquals("sorted_set", redis.type("zkey"));
+        
+        // a key of different type cannot be operated upon
+        try {
+            redis.hset("key", "field", "value");
+            Assert.fail("Expected a type mismatch");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        
+        // renaming keeps the type
+        Assert.assertEquals("OK", redis.rename("zkey", "key"));
+        Assert.assertEquals("sorted_set", redis.type("key"));
+        Assert.assertEquals(0, redis.exists("zkey"));
+        Assert.assertEquals(1, redis.del("key"));
+        Assert.assertNull(redis.type("key"));
     }
     
     @Test
@@ -103,6 +284,84 @@ public class TestDryRedisKeys {
         
     }
     
+    @Test
+    public void testOBJECT() {
+        DryRedis redis = DryRedis.getDatabase("test-object-encoding");
+        redis.flushdb();
+        
+        Assert.assertEquals("OK", redis.configSet("hash-max-listpack-entries", "2"));
+        Assert.assertEquals("OK", redis.configSet("SET-MAX-INTSET-ENTRIES", "2"));
+        Assert.assertEquals("OK", redis.configSet("set-max-listpack-entries", "3"));
+        Assert.assertEquals("OK", redis.configSet("zset-max-ziplist-entries", "2"));
+        Assert.assertEquals(TestUtils.asList("zset-max-listpack-entries", "2", "zset-max-listpack-value", "64", "zset-max-ziplist-entries", "2", "zset-max-ziplist-value", "64"), redis.configGet("zset-*"));
+        
+        Assert.assertNull(redis.object("encoding", "key"));
+        
+        redis.hset("hash", "field1", "value");
+        redis.hset("hash", "field2", "value");
+        Assert.assertEquals("listpack", redis.object("encoding", "hash"));
+        redis.hset("hash", "field3", "value");
+        Assert.assertEquals("hashtable", redis.object("ENCODING", "hash"));
+        
+        redis.sadd("set", TestUtils.asList("1", "2"));
+        Assert.assertEquals("intset", redis.object("encoding", "set"));
+        redis.sadd("set", "member");
+        Assert.assertEquals("listpack", redis.object("encoding", "set"));
+        redis.sadd("set", "another");
+        Assert.assertEquals("hashtable", redis.object("encoding", "set"));
+        
+        redis.zadd("zset", 1, "one");
+        redis.zadd("zset", 2, "two");
+        Assert.assertEquals("listpack", redis.object("encoding", "zset"));
+        redis.zadd("zset", 3, "three");
+        Assert.assertEquals("skiplist", redis.object("encoding", "zset"));
+        Assert.assertEquals(TestUtils.asList("one", "two", "three"), redis.zrange("zset", 0, -1, false));
+        
+        // values created before a change keep their encoding
+        redis.zadd("small", 1, "one");
+        Assert.assertEquals("OK", redis.configSet("zset-max-listpack-value", "2"));
+        Assert.assertEquals("listpack", redis.object("encoding", "small"));
+        redis.zadd("other", 1, "one");
+        Assert.assertEquals("skiplist", redis.object("encoding", "other"));
+        
+        // geo keys are sorted sets too
+        redis.geoadd("geo", 13.361389d, 38.115556d, "p");
+        Assert.assertEquals("listpack", redis.object("encoding", "geo"));
+        redis.geoadd("geo", 15.087269d, 37.502669d, "Catania");
+        Assert.assertEquals("skiplist", redis.object("encoding", "geo"));
+        
+        redis.set("string", "value");
+        Assert.assertEquals("raw", redis.object("encoding", "string"));
+        redis.set("string", "12345");
+        Assert.assertEquals("int", redis.object("encoding", "string"));
+        redis.incr("string");
+        Assert.assertEquals("int", redis.object("encoding", "string"));
+        redis.append("string", "6");
+        Assert.assertEquals("raw", redis.object("encoding", "string"));
+        Assert.assertEquals("123466", redis.get("string"));
+        
+        redis.rpush("list", "value");
+        Assert.assertEquals("listpack", redis.object("encoding", "list"));
+        for(int index = 0; index < 200; index++) {
+            redis.lpush("list", "value" + index);
+        }
+        Assert.assertEquals("quicklist", redis.object("encoding", "list"));
+        
+        try {
+            redis.configSet("not-a-parameter", "1");
+            Assert.fail("Expected an unsupported parameter");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        
+        try {
+            redis.configSet("hash-max-listpack-value", "-1");
+            Assert.fail("Expected an invalid value");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
     @Test
     public void testRANDOMKEY() {
         
@@ -110,12 +369,29 @@ public class TestDryRedisKeys {
     
     @Test
     public void testTTL() {
+        DryRedis redis = getRedis();
         
+        Assert.assertEquals(-2, redis.ttl("key"));
+        
+        redis.set("key", "value");
+        Assert.assertEquals(-1, redis.ttl("key"));
+        
+        redis.expire("key", 100);
+        Assert.assertEquals(100, redis.ttl("key"));
     }
     
     @Test
     public void testPTTL() {
+        DryRedis redis = getRedis();
         
+        Assert.assertEquals(-2, redis.pttl("key"));
+        
+        redis.zadd("key", 1, "member");
+        Assert.assertEquals(-1, redis.pttl("key"));
+        
+        redis.pexpire("key", 100000);
+        long pttl = redis.pttl("key");
+        Assert.assertTrue(pttl > 90000 && pttl <= 100000);
     }
     
     @Test
@@ -126,11 +402,908 @@ public class TestDryRedisKeys {
         Assert.assertEquals(0, redis.wait(10, 10l));
     }
     
+    @Test
+    public void testDUMPAndRESTORE() {
+        DryRedis redis = getRedis();
+        
+        Assert.assertNull(redis.dump("key"));
+        
+        redis.set("string", "hello world");
+        redis.set("int", "-12345");
+        redis.rpush("list", Arrays.asList("a", "b", "c"));
+        redis.sadd("set", Arrays.asList("x", "y", "z"));
+        redis.hset("hash", "field1", "value1");
+        redis.hset("hash", "field2", "value2");
+        redis.zadd("zset", 2, "two");
+        redis.zadd("zset", 1.5, "one");
+        redis.geoadd("geo", 13.361389, 38.115556, "Palermo");
+        redis.pfadd("hll", Arrays.asList("a", "b", "c", "d"));
+        
+        String[] keys = { "string", "int", "list", "set", "hash", "zset", "geo", "hll" };
+        for(String key : keys) {
+            byte[] dump = redis.dump(key);
+            Assert.assertNotNull(dump);
+            Assert.assertEquals("OK", redis.restore(key + "-copy", dump));
+            Assert.assertEquals(redis.type(key), redis.type(key + "-copy"));
+            Assert.assertEquals(redis.object("ENCODING", key), redis.object("ENCODING", key + "-copy"));
+        }
+        
+        Assert.assertEquals("hello world", redis.get("string-copy"));
+        Assert.assertEquals(-12344, redis.incr("int-copy"));
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), redis.lrange("list-copy", 0, -1));
+        Assert.assertEquals(redis.smembers("set"), redis.smembers("set-copy"));
+        Assert.assertEquals(redis.hgetall("hash"), redis.hgetall("hash-copy"));
+        Assert.assertEquals(Arrays.asList("one", "1.5", "two", "2.0"), redis.zrange("zset-copy", 0, -1, true));
+        Assert.assertArrayEquals(redis.geopos("geo", "Palermo"), redis.geopos("geo-copy", "Palermo"), 0d);
+        Assert.assertEquals(4, redis.pfcount("hll-copy"));
+        Assert.assertEquals(-1, redis.pttl("hll-copy"));
+    }
+    
+    @Test
+    public void testRESTOREReplace() {
+        DryRedis redis = getRedis();
+        
+        redis.set("key", "value");
+        byte[] dump = redis.dump("key");
+        
+        redis.rpush("list", "item");
+        try {
+            redis.restore("list", dump);
+            Assert.fail("restore must not replace an existing key");
+        } catch(IllegalArgumentException e) {
+            Assert.assertEquals("BUSYKEY Target key name already exists.", e.getMessage());
+        }
+        
+        Assert.assertEquals("list", redis.type("list"));
+        
+        redis.pexpire("list", 100000);
+        Assert.assertEquals("OK", redis.restore("list", 0, dump, true, false));
+        Assert.assertEquals("string", redis.type("list"));
+        Assert.assertEquals("value", redis.get("list"));
+        Assert.assertEquals(-1, redis.pttl("list"));
+    }
+    
+    @Test
+    public void testRESTOREWithTTL() {
+        DryRedis redis = getRedis();
+        
+        redis.set("key", "value");
+        byte[] dump = redis.dump("key");
+        
+        Assert.assertEquals("OK", redis.restore("relative", 100000, dump));
+        long pttl = redis.pttl("relative");
+        Assert.assertTrue(pttl > 90000 && pttl <= 100000);
+        
+        Assert.assertEquals("OK", redis.restore("absolute", System.currentTimeMillis() + 100000, dump, false, true));
+        pttl = redis.pttl("absolute");
+        Assert.assertTrue(pttl > 90000 && pttl <= 100000);
+        
+        // a time in the past leaves no key behind
+        Assert.assertEquals("OK", redis.restore("key", 1000, dump, true, true));
+        Assert.assertEquals(0, redis.exists("key"));
+        
+        try {
+            redis.restore("negative", -1, dump);
+            Assert.fail("negative ttl must be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testRESTORECorrupt() {
+        DryRedis redis = getRedis();
+        
+        redis.rpush("list", Arrays.asList("a", "b", "c"));
+        byte[] dump = redis.dump("list");
+        
+        byte[] corrupt = dump.clone();
+        corrupt[2] ^= 1;
+        assertRestoreFails(redis, corrupt);
+        
+        byte[] version = dump.clone();
+        version[version.length - 10]++;
+        assertRestoreFails(redis, version);
+        
+        assertRestoreFails(redis, new byte[] { 1, 2, 3 });
+        assertRestoreFails(redis, null);
+        
+        Assert.assertEquals(0, redis.exists("copy"));
+    }
+    
+    private void assertRestoreFails(DryRedis redis, byte[] dump) {
+        try {
+            redis.restore("copy", dump);
+            Assert.fail("corrupt dump must be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testSAVEAndLoad() throws IOException {
+        DryRedis redis = getRedis();
+        
+        redis.set("string", "hello world");
+        redis.set("int", "42");
+        redis.rpush("list", Arrays.asList("a", "b", "c"));
+        redis.sadd("set", Arrays.asList("x", "y", "z"));
+        redis.hset("hash", "field", "value");
+        redis.zadd("zset", 1.5, "one");
+        redis.geoadd("geo", 13.361389, 38.115556, "Palermo");
+        redis.pfadd("hll", Arrays.asList("a", "b", "c", "d"));
+        redis.set("expiring", "soon");
+        redis.pexpire("expiring", 100000);
+        
+        File file = new File(this.folder.getRoot(), "dump.rdb");
+        long before = redis.lastsave();
+        Assert.assertEquals("OK", redis.save(file));
+        Assert.assertTrue(file.exists());
+        Assert.assertTrue(redis.lastsave() >= before);
+        
+        DryRedis copy = DryRedis.getDatabase("snapshot-copy");
+        copy.flushdb();
+        copy.set("stale", "value");
+        Assert.assertEquals(9, copy.load(file));
+        
+        Assert.assertEquals(0, copy.exists("stale"));
+        Assert.assertEquals("hello world", copy.get("string"));
+        Assert.assertEquals(43, copy.incr("int"));
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), copy.lrange("list", 0, -1));
+        Assert.assertEquals(redis.smembers("set"), copy.smembers("set"));
+        Assert.assertEquals(Arrays.asList("field", "value"), copy.hgetall("hash"));
+        Assert.assertEquals(Double.valueOf(1.5), copy.zscore("zset", "one"));
+        Assert.assertArrayEquals(redis.geopos("geo", "Palermo"), copy.geopos("geo", "Palermo"), 0d);
+        Assert.assertEquals(4, copy.pfcount("hll"));
+        Assert.assertEquals(-1, copy.pttl("string"));
+        
+        long pttl = copy.pttl("expiring");
+        Assert.assertTrue(pttl > 90000 && pttl <= 100000);
+    }
+    
+    @Test
+    public void testSAVEManySections() throws IOException {
+        DryRedis redis = getRedis();
+        
+        final int keys = 100000;
+        for(int index = 0; index < keys; index++) {
+            redis.set("key-" + index, "value-" + index + "-0123456789abcdef");
+        }
+        
+        File file = new File(this.folder.getRoot(), "dump.rdb");
+        redis.save(file);
+        Assert.assertTrue(file.length() > 2 * DryRedisSnapshot.SECTION_BYTES);
+        
+        redis.flushdb();
+        Assert.assertEquals(keys, redis.load(file));
+        for(int index = 0; index < keys; index += 997) {
+            Assert.assertEquals("value-" + index + "-0123456789abcdef", redis.get("key-" + index));
+        }
+    }
+    
+    @Test
+    public void testBGSAVE() throws IOException, InterruptedException {
+        DryRedis redis = getRedis();
+        
+        redis.set("key", "before");
+        File file = new File(this.folder.getRoot(), "dump.rdb");
+        Assert.assertEquals("Background saving started", redis.bgsave(file));
+        
+        // changes after BGSAVE returned are not in the snapshot
+        redis.set("key", "after");
+        redis.awaitBackgroundSave();
+        
+        Assert.assertEquals(1, redis.load(file));
+        Assert.assertEquals("before", redis.get("key"));
+    }
+    
+    @Test
+    public void testBGSAVEConcurrentWriters() throws IOException, InterruptedException {
+        final DryRedis redis = DryRedis.getConcurrentDatabase("bgsave-concurrent");
+        redis.flushdb();
+        
+        final int keys = 20000;
+        for(int index = 0; index < keys; index++) {
+            redis.set("string-" + index, "before");
+            redis.hset("hash-" + (index % 100), "field-" + index, "before");
+        }
+        
+        redis.rpush("list", Arrays.asList("a", "b", "c"));
+        redis.sadd("set", Arrays.asList("x", "y"));
+        redis.set("counter", "10");
+        redis.enableCounter("counter");
+        redis.set("renamed", "before");
+        
+        File file = new File(this.folder.getRoot(), "dump.rdb");
+        redis.bgsave(file);
+        
+        // changes made while the snapshot is written are not part of it
+        final int threads = 4;
+        Thread[] writers = new Thread[threads];
+        for(int thread = 0; thread < threads; thread++) {
+            final int id = thread;
+            writers[thread] = new Thread() {
+                
+                @Override
+                public void run() {
+                    for(int index = id; index < keys; index += threads) {
+                        redis.set("string-" + index, "after");
+                        redis.hset("hash-" + (index % 100), "field-" + index, "after");
+                        redis.incr("counter");
+                    }
+                }
+                
+            };
+            writers[thread].start();
+        }
+        
+        redis.rpush("list", "d");
+        redis.srem("set", "x");
+        redis.rename("renamed", "target");
+        redis.set("added", "after");
+        
+        for(Thread writer : writers) {
+            writer.join();
+        }
+        
+        redis.awaitBackgroundSave();
+        Assert.assertEquals(String.valueOf(10 + keys), redis.get("counter"));
+        
+        DryRedis copy = getRedis("bgsave-concurrent-copy");
+        Assert.assertEquals(keys + 100 + 4, copy.load(file));
+        for(int index = 0; index < keys; index++) {
+            Assert.assertEquals("before", copy.get("string-" + index));
+            Assert.assertEquals("before", copy.hget("hash-" + (index % 100), "field-" + index));
+        }
+        
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), copy.lrange("list", 0, -1));
+        Assert.assertEquals(2, copy.scard("set"));
+        Assert.assertEquals("10", copy.get("counter"));
+        Assert.assertEquals("before", copy.get("renamed"));
+        Assert.assertEquals(0, copy.exists("target"));
+        Assert.assertEquals(0, copy.exists("added"));
+    }
+    
+    @Test
+    public void testBGSAVEFlushedWhileSaving() throws IOException, InterruptedException {
+        DryRedis redis = DryRedis.getConcurrentDatabase("bgsave-flushed");
+        redis.flushdb();
+        
+        for(int index = 0; index < 1000; index++) {
+            redis.rpush("list-" + index, Arrays.asList("a", "b"));
+        }
+        
+        File file = new File(this.folder.getRoot(), "dump.rdb");
+        redis.bgsave(file);
+        redis.flushdb();
+        redis.rpush("list-0", "c");
+        redis.awaitBackgroundSave();
+        
+        DryRedis copy = getRedis("bgsave-flushed-copy");
+        Assert.assertEquals(1000, copy.load(file));
+        Assert.assertEquals(Arrays.asList("a", "b"), copy.lrange("list-0", 0, -1));
+        Assert.assertEquals(Arrays.asList("a", "b"), copy.lrange("list-999", 0, -1));
+    }
+    
+    @Test
+    public void testLoadCorrupt() throws IOException {
+        DryRedis redis = getRedis();
+        
+        redis.rpush("list", Arrays.asList("a", "b", "c"));
+        File file = new File(this.folder.getRoot(), "dump.rdb");
+        redis.save(file);
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() / 2);
+            int value = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(value ^ 1);
+        } finally {
+            raf.close();
+        }
+        
+        redis.set("key", "value");
+        try {
+            redis.load(file);
+            Assert.fail("corrupt snapshot must be rejected");
+        } catch(IOException e) {
+            // expected
+        }
+        
+        // nothing was replaced
+        Assert.assertEquals("value", redis.get("key"));
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), redis.lrange("list", 0, -1));
+        
+        try {
+            redis.load(new File(this.folder.getRoot(), "missing.rdb"));
+            Assert.fail("missing snapshot must be rejected");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testAppendOnlyReplay() throws IOException {
+        DryRedis redis = getRedis("aof-replay");
+        File file = new File(this.folder.getRoot(), "appendonly.aof");
+        Assert.assertEquals("OK", redis.appendonly(file, DryRedisFsyncPolicy.EVERYSEC));
+        Assert.assertTrue(redis.isAppendOnly());
+        
+        redis.set("string", "hello");
+        redis.append("string", " world");
+        redis.incrby("counter", 40);
+        redis.incr("counter");
+        redis.incr("counter");
+        redis.incrbyfloat("float", 1.5);
+        redis.rpush("list", Arrays.asList("a", "b", "c", "d"));
+        redis.lpop("list");
+        redis.lset("list", 0, "B");
+        redis.rpoplpush("list", "other");
+        redis.sadd("set", Arrays.asList("x", "y", "z"));
+        redis.srem("set", "y");
+        redis.hset("hash", "field", "value");
+        redis.hincrby("hash", "count", 5);
+        redis.zadd("zset", 1.5, "one");
+        redis.zadd("zset", 2.5, "two");
+        redis.zincrby("zset", 1, "one");
+        redis.sunionstore("union", "set", "missing");
+        redis.set("expiring", "soon");
+        redis.pexpire("expiring", 100000);
+        redis.set("gone", "value");
+        redis.del("gone");
+        redis.set("renamed", "value");
+        redis.rename("renamed", "target");
+        
+        Assert.assertEquals("OK", redis.closeAppendOnly());
+        Assert.assertFalse(redis.isAppendOnly());
+        
+        DryRedis copy = getRedis("aof-replay-copy");
+        copy.appendonly(file, DryRedisFsyncPolicy.NO);
+        try {
+            Assert.assertEquals("hello world", copy.get("string"));
+            Assert.assertEquals("42", copy.get("counter"));
+            Assert.assertEquals("1.5", copy.get("float"));
+            Assert.assertEquals(Arrays.asList("B", "c"), copy.lrange("list", 0, -1));
+            Assert.assertEquals(Arrays.asList("d"), copy.lrange("other", 0, -1));
+            Assert.assertEquals(redis.smembers("set"), copy.smembers("set"));
+            Assert.assertEquals(redis.smembers("union"), copy.smembers("union"));
+            Assert.assertEquals("value", copy.hget("hash", "field"));
+            Assert.assertEquals("5", copy.hget("hash", "count"));
+            Assert.assertEquals(Double.valueOf(2.5), copy.zscore("zset", "one"));
+            Assert.assertEquals(Double.valueOf(2.5), copy.zscore("zset", "two"));
+            Assert.assertEquals(0, copy.exists("gone"));
+            Assert.assertEquals(0, copy.exists("renamed"));
+            Assert.assertEquals("value", copy.get("target"));
+            
+            long pttl = copy.pttl("expiring");
+            Assert.assertTrue(pttl > 90000 && pttl <= 100000);
+            
+            // the replayed file is appended to
+            copy.set("string", "changed");
+        } finally {
+            copy.closeAppendOnly();
+        }
+        
+        copy.flushdb();
+        copy.appendonly(file, DryRedisFsyncPolicy.ALWAYS);
+        try {
+            Assert.assertEquals("changed", copy.get("string"));
+        } finally {
+            copy.closeAppendOnly();
+        }
+    }
+    
+    @Test
+    public void testAppendOnlyTornTail() throws IOException {
+        DryRedis redis = getRedis("aof-torn");
+        File file = new File(this.folder.getRoot(), "appendonly.aof");
+        redis.appendonly(file, DryRedisFsyncPolicy.ALWAYS);
+        redis.set("key1", "value1");
+        redis.set("key2", "value2");
+        redis.closeAppendOnly();
+        
+        // a record cut short by a crash
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(new byte[] { 100, 0, 0, 0, 1, 2, 3 });
+        } finally {
+            raf.close();
+        }
+        
+        redis.flushdb();
+        redis.appendonly(file, DryRedisFsyncPolicy.ALWAYS);
+        Assert.assertEquals("value1", redis.get("key1"));
+        Assert.assertEquals("value2", redis.get("key2"));
+        
+        // the torn record is dropped before new records are added
+        redis.set("key3", "value3");
+        redis.closeAppendOnly();
+        
+        redis.flushdb();
+        redis.appendonly(file, DryRedisFsyncPolicy.NO);
+        try {
+            Assert.assertEquals("value1", redis.get("key1"));
+            Assert.assertEquals("value3", redis.get("key3"));
+        } finally {
+            redis.closeAppendOnly();
+        }
+    }
+    
+    @Test
+    public void testAppendOnlyNotAnAof() throws IOException {
+        DryRedis redis = getRedis("aof-invalid");
+        File file = new File(this.folder.getRoot(), "dump.rdb");
+        redis.set("key", "value");
+        redis.save(file);
+        
+        try {
+            redis.appendonly(file, DryRedisFsyncPolicy.ALWAYS);
+            Assert.fail("a snapshot is not an append only file");
+        } catch(IOException e) {
+            // expected
+        }
+        
+        Assert.assertFalse(redis.isAppendOnly());
+    }
+    
+    @Test
+    public void testBGREWRITEAOF() throws IOException, InterruptedException {
+        DryRedis redis = getRedis("aof-rewrite");
+        File file = new File(this.folder.getRoot(), "appendonly.aof");
+        redis.appendonly(file, DryRedisFsyncPolicy.EVERYSEC);
+        
+        for(int index = 0; index < 1000; index++) {
+            redis.set("key", "value-" + index);
+            redis.rpush("list", "item-" + index);
+            redis.ltrim("list", -10, -1);
+        }
+        
+        Assert.assertEquals("Background append only file rewriting started", redis.bgrewriteaof());
+        Assert.assertTrue(redis.awaitRewrite());
+        redis.set("after", "rewrite");
+        redis.closeAppendOnly();
+        
+        // one record per key instead of 3000 changes
+        Assert.assertTrue(file.length() < 1024);
+        
+        DryRedis copy = getRedis("aof-rewrite-copy");
+        copy.appendonly(file, DryRedisFsyncPolicy.NO);
+        try {
+            Assert.assertEquals("value-999", copy.get("key"));
+            Assert.assertEquals(redis.lrange("list", 0, -1), copy.lrange("list", 0, -1));
+            Assert.assertEquals("rewrite", copy.get("after"));
+        } finally {
+            copy.closeAppendOnly();
+        }
+    }
+    
+    @Test
+    public void testBGREWRITEAOFConcurrentWriters() throws IOException, InterruptedException {
+        final DryRedis redis = DryRedis.getConcurrentDatabase("aof-concurrent");
+        redis.flushdb();
+        File file = new File(this.folder.getRoot(), "appendonly.aof");
+        redis.appendonly(file, DryRedisFsyncPolicy.ALWAYS);
+        
+        for(int index = 0; index < 5000; index++) {
+            redis.set("key-" + index, "initial");
+        }
+        
+        final int threads = 4;
+        final int increments = 2000;
+        Thread[] writers = new Thread[threads];
+        for(int thread = 0; thread < threads; thread++) {
+            final int id = thread;
+            writers[thread] = new Thread() {
+                
+                @Override
+                public void run() {
+                    for(int index = 0; index < increments; index++) {
+                        redis.incr("counter");
+                        redis.set("key-" + (index * threads + id) % 5000, "thread-" + id);
+                        redis.rpush("list-" + id, String.valueOf(index));
+                    }
+                }
+                
+            };
+            writers[thread].start();
+        }
+        
+        redis.bgrewriteaof();
+        for(Thread writer : writers) {
+            writer.join();
+        }
+        
+        Assert.assertTrue(redis.awaitRewrite());
+        redis.closeAppendOnly();
+        
+        DryRedis copy = getRedis("aof-concurrent-copy");
+        copy.appendonly(file, DryRedisFsyncPolicy.NO);
+        try {
+            Assert.assertEquals(String.valueOf(threads * increments), copy.get("counter"));
+            for(int index = 0; index < 5000; index++) {
+                Assert.assertEquals(redis.get("key-" + index), copy.get("key-" + index));
+            }
+            
+            for(int thread = 0; thread < threads; thread++) {
+                Assert.assertEquals(increments, copy.llen("list-" + thread));
+                Assert.assertEquals(redis.lrange("list-" + thread, 0, -1), copy.lrange("list-" + thread, 0, -1));
+            }
+        } finally {
+            copy.closeAppendOnly();
+        }
+    }
+    
+    @Test
+    public void testAppendOnlyBlockingPop() throws IOException, InterruptedException {
+        final DryRedis redis = DryRedis.getConcurrentDatabase("aof-blocking");
+        redis.flushdb();
+        File file = new File(this.folder.getRoot(), "appendonly.aof");
+        redis.appendonly(file, DryRedisFsyncPolicy.ALWAYS);
+        
+        final String[] popped = new String[1];
+        Thread consumer = new Thread() {
+            
+            @Override
+            public void run() {
+                popped[0] = redis.blpop("queue", 10);
+            }
+            
+        };
+        consumer.start();
+        
+        // the element handed to the waiting client is never stored
+        Thread.sleep(100);
+        redis.rpush("queue", "first");
+        consumer.join();
+        redis.rpush("queue", "second");
+        redis.closeAppendOnly();
+        Assert.assertEquals("first", popped[0]);
+        
+        DryRedis copy = getRedis("aof-blocking-copy");
+        copy.appendonly(file, DryRedisFsyncPolicy.NO);
+        try {
+            Assert.assertEquals(Arrays.asList("second"), copy.lrange("queue", 0, -1));
+        } finally {
+            copy.closeAppendOnly();
+        }
+    }
+    
+    @Test
+    public void testLoadRdb() throws IOException {
+        DryRedis redis = getRedis();
+        redis.set("key", "value");
+        
+        HyperLogLog hll = new HyperLogLog(14);
+        hll.offer("a");
+        hll.offer("b");
+        hll.offer("c");
+        
+        RdbBuilder rdb = new RdbBuilder(11);
+        rdb.opcode(250).string("redis-ver").string("7.2.0");
+        rdb.opcode(250).string("ctime").raw(0xc2, 0x6d, 0x08, 0xbc, 0x65);
+        rdb.opcode(254).length(0);
+        rdb.opcode(251).length(20).length(1);
+        
+        // strings in all encodings
+        rdb.type(0, "plain").string("value");
+        rdb.type(0, "small").raw(0xc0, 0xfb);
+        rdb.type(0, "medium").raw(0xc1, 0xe8, 0x03);
+        rdb.type(0, "large").raw(0xc2, 0xa0, 0x86, 0x01, 0x00);
+        rdb.type(0, "compressed").raw(0xc3).length(7).length(15).raw(0x02, 'a', 'b', 'c', 0xe0, 0x03, 0x02);
+        rdb.type(0, "hll").string(hll.toByteArray());
+        
+        // lists
+        rdb.type(1, "list").length(2).string("a").string("b");
+        rdb.type(18, "quicklist").length(2).length(2).string(listpack("x", 7, -100)).length(1).string("big");
+        rdb.type(14, "ziplist").length(1).string(ziplist("a", 12, 300));
+        
+        // sets
+        rdb.type(2, "set").length(1).string("p");
+        rdb.type(11, "intset").string(intset(1, 2, 3));
+        rdb.type(20, "listpack-set").string(listpack("m", "n"));
+        
+        // hashes
+        rdb.type(4, "hash").length(1).string("k").string("v");
+        rdb.type(13, "ziplist-hash").string(ziplist("a", 1));
+        rdb.type(16, "listpack-hash").string(listpack("f1", "v1", "f2", 5));
+        
+        // sorted sets
+        rdb.type(3, "zset").length(2).string("d").raw(254).string("e").raw(3, '1', '.', '5');
+        rdb.type(5, "zset2").length(1).string("c").raw(0, 0, 0, 0, 0, 0, 0x08, 0x40);
+        rdb.type(17, "listpack-zset").string(listpack("a", 1, "b", "2.5"));
+        
+        // expiry
+        long expiry = System.currentTimeMillis() + 100000;
+        rdb.opcode(252).int64(expiry).type(0, "expiring").string("soon");
+        rdb.opcode(252).int64(1000).type(1, "expired").length(1).string("gone");
+        rdb.opcode(253).raw(0x01, 0, 0, 0).type(0, "expired-seconds").string("gone");
+        
+        // another database
+        rdb.opcode(254).length(1);
+        rdb.type(0, "other").string("db1");
+        
+        File file = new File(this.folder.getRoot(), "redis.rdb");
+        rdb.write(file);
+        
+        Assert.assertEquals(19, redis.loadRdb(file));
+        Assert.assertEquals(0, redis.exists("key"));
+        
+        Assert.assertEquals("value", redis.get("plain"));
+        Assert.assertEquals("-5", redis.get("small"));
+        Assert.assertEquals("1000", redis.get("medium"));
+        Assert.assertEquals("100000", redis.get("large"));
+        Assert.assertEquals(100001, redis.incr("large"));
+        Assert.assertEquals("abcabcabcabcabc", redis.get("compressed"));
+        Assert.assertEquals(3, redis.pfcount("hll"));
+        
+        Assert.assertEquals(Arrays.asList("a", "b"), redis.lrange("list", 0, -1));
+        Assert.assertEquals(Arrays.asList("x", "7", "-100", "big"), redis.lrange("quicklist", 0, -1));
+        Assert.assertEquals(Arrays.asList("a", "12", "300"), redis.lrange("ziplist", 0, -1));
+        
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("p")), redis.smembers("set"));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("1", "2", "3")), redis.smembers("intset"));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("m", "n")), redis.smembers("listpack-set"));
+        
+        Assert.assertEquals("v", redis.hget("hash", "k"));
+        Assert.assertEquals("1", redis.hget("ziplist-hash", "a"));
+        Assert.assertEquals("v1", redis.hget("listpack-hash", "f1"));
+        Assert.assertEquals("5", redis.hget("listpack-hash", "f2"));
+        
+        Assert.assertEquals(Double.POSITIVE_INFINITY, redis.zscore("zset", "d"), 0);
+        Assert.assertEquals(1.5, redis.zscore("zset", "e"), 0);
+        Assert.assertEquals(3.0, redis.zscore("zset2", "c"), 0);
+        Assert.assertEquals(Arrays.asList("a", "b"), redis.zrange("listpack-zset", 0, -1, false));
+        Assert.assertEquals(2.5, redis.zscore("listpack-zset", "b"), 0);
+        
+        Assert.assertEquals("soon", redis.get("expiring"));
+        Assert.assertTrue(redis.pttl("expiring") > 0);
+        Assert.assertEquals(0, redis.exists("expired"));
+        Assert.assertEquals(0, redis.exists("expired-seconds"));
+        Assert.assertEquals(0, redis.exists("other"));
+        
+        // only the selected database
+        Assert.assertEquals(1, redis.loadRdb(file, 1));
+        Assert.assertEquals("db1", redis.get("other"));
+        Assert.assertEquals(0, redis.exists("plain"));
+    }
+    
+    @Test
+    public void testLoadRdbEmpty() throws IOException {
+        DryRedis redis = getRedis();
+        redis.set("key", "value");
+        
+        // an empty database saved by Redis 7.2
+        String hex = "524544495330303131fa0972656469732d76657205372e322e30fa0a72656469732d62697473c040fa056374696d65c26d08bc65fa08757365642d6d656dc2b0c41000fa08616f662d62617365c000fff06e3bfec0ff5aa2";
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int index = 0; index < bytes.length; index++) {
+            bytes[index] = (byte) Integer.parseInt(hex.substring(index * 2, index * 2 + 2), 16);
+        }
+        
+        File file = new File(this.folder.getRoot(), "empty.rdb");
+        write(file, bytes);
+        
+        Assert.assertEquals(0, redis.loadRdb(file));
+        Assert.assertEquals(0, redis.exists("key"));
+    }
+    
+    @Test
+    public void testLoadRdbCorrupt() throws IOException {
+        DryRedis redis = getRedis();
+        redis.set("key", "value");
+        
+        RdbBuilder rdb = new RdbBuilder(9);
+        rdb.opcode(254).length(0);
+        rdb.type(0, "plain").string("value");
+        byte[] bytes = rdb.toByteArray();
+        bytes[bytes.length - 1] ^= 1;
+        
+        File file = new File(this.folder.getRoot(), "corrupt.rdb");
+        write(file, bytes);
+        
+        try {
+            redis.loadRdb(file);
+            Assert.fail("corrupt file was loaded");
+        } catch(IOException e) {
+            // expected
+        }
+        
+        Assert.assertEquals("value", redis.get("key"));
+        Assert.assertEquals(0, redis.exists("plain"));
+        
+        // a stream cannot be loaded
+        rdb = new RdbBuilder(11);
+        rdb.opcode(254).length(0);
+        rdb.type(21, "stream").string(listpack("a"));
+        rdb.write(file);
+        
+        try {
+            redis.loadRdb(file);
+            Assert.fail("stream was loaded");
+        } catch(IOException e) {
+            // expected
+        }
+        
+        Assert.assertEquals("value", redis.get("key"));
+        
+        // not an RDB file at all
+        write(file, "REDIS0099".getBytes(DynamicString.UTF_8));
+        try {
+            redis.loadRdb(file);
+            Assert.fail("unknown version was loaded");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+    
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(bytes);
+        } finally {
+            stream.close();
+        }
+    }
+    
+    /**
+     * Builds an RDB file the way Redis writes it.
+     */
+    private static class RdbBuilder {
+        
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        RdbBuilder(int version) {
+            this.raw(String.format("REDIS%04d", version).getBytes(DynamicString.UTF_8));
+        }
+        
+        RdbBuilder raw(int... values) {
+            for(int value : values) {
+                this.bytes.write(value);
+            }
+            
+            return this;
+        }
+        
+        RdbBuilder raw(byte[] values) {
+            this.bytes.write(values, 0, values.length);
+            return this;
+        }
+        
+        RdbBuilder opcode(int opcode) {
+            return this.raw(opcode);
+        }
+        
+        RdbBuilder type(int type, String key) {
+            return this.raw(type).string(key);
+        }
+        
+        RdbBuilder length(long length) {
+            if(length < 64) {
+                return this.raw((int) length);
+            }
+            
+            if(length < 16384) {
+                return this.raw(0x40 | (int) (length >>> 8), (int) length & 0xff);
+            }
+            
+            return this.raw(0x80).raw(ByteBuffer.allocate(4).putInt((int) length).array());
+        }
+        
+        RdbBuilder string(String value) {
+            return this.string(value.getBytes(DynamicString.UTF_8));
+        }
+        
+        RdbBuilder string(byte[] value) {
+            return this.length(value.length).raw(value);
+        }
+        
+        RdbBuilder int64(long value) {
+            return this.raw(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array());
+        }
+        
+        byte[] toByteArray() {
+            this.raw(255);
+            byte[] body = this.bytes.toByteArray();
+            this.int64(Crc64.checksum(body));
+            return this.bytes.toByteArray();
+        }
+        
+        void write(File file) throws IOException {
+            TestDryRedisKeys.write(file, this.toByteArray());
+        }
+        
+    }
+    
+    /**
+     * Encode strings and small integers as a ziplist.
+     */
+    private static byte[] ziplist(Object... entries) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int previous = 0;
+        for(Object entry : entries) {
+            int start = body.size();
+            body.write(previous);
+            if(entry instanceof Integer) {
+                int value = (Integer) entry;
+                if(value >= 0 && value <= 12) {
+                    body.write(0xf1 + value);
+                } else {
+                    body.write(0xc0);
+                    body.write(value & 0xff);
+                    body.write((value >>> 8) & 0xff);
+                }
+            } else {
+                byte[] value = ((String) entry).getBytes(DynamicString.UTF_8);
+                body.write(value.length);
+                body.write(value, 0, value.length);
+            }
+            
+            previous = body.size() - start;
+        }
+        
+        body.write(0xff);
+        
+        ByteBuffer buffer = ByteBuffer.allocate(10 + body.size()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(10 + body.size()).putInt(0).putShort((short) entries.length).put(body.toByteArray());
+        return buffer.array();
+    }
+    
+    /**
+     * Encode strings and small integers as a listpack.
+     */
+    private static byte[] listpack(Object... entries) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for(Object entry : entries) {
+            int start = body.size();
+            if(entry instanceof Integer) {
+                int value = (Integer) entry;
+                if(value >= 0 && value <= 127) {
+                    body.write(value);
+                } else {
+                    body.write(0xc0 | ((value >>> 8) & 0x1f));
+                    body.write(value & 0xff);
+                }
+            } else {
+                byte[] value = ((String) entry).getBytes(DynamicString.UTF_8);
+                body.write(0x80 | value.length);
+                body.write(value, 0, value.length);
+            }
+            
+            body.write(body.size() - start);
+        }
+        
+        body.write(0xff);
+        
+        ByteBuffer buffer = ByteBuffer.allocate(6 + body.size()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(6 + body.size()).putShort((short) entries.length).put(body.toByteArray());
+        return buffer.array();
+    }
+    
+    /**
+     * Encode integers as an intset of 16-bit values.
+     */
+    private static byte[] intset(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 2 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(2).putInt(values.length);
+        for(int value : values) {
+            buffer.putShort((short) value);
+        }
+        
+        return buffer.array();
+    }
+    
     protected DryRedis getRedis() {
         DryRedis redis = DryRedis.getDatabase();
         redis.flushdb();
         return redis;
     }
+    
+    private DryRedis getRedis(String name) {
+        DryRedis redis = DryRedis.getDatabase(name);
+        redis.flushdb();
+        return redis;
+    }
 
 }
 
@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -97,6 +98,85 @@ public class TestDryRedisList {
         Assert.assertNotNull(redis.brpop("test", 3));
     }
     
+    @Test
+    public void testMultiKeyBLPOP() throws InterruptedException {
+        final DryRedisListOperations redis = getRedis();
+        
+        // values are taken from the first non-empty list
+        redis.rpush("second", "value2");
+        redis.rpush("third", "value3");
+        Assert.assertEquals(TestUtils.asList("second", "value2"), redis.blpop(TestUtils.asList("first", "second", "third"), 1, TimeUnit.SECONDS));
+        Assert.assertEquals(TestUtils.asList("third", "value3"), redis.brpop(TestUtils.asList("first", "second", "third"), 1, TimeUnit.SECONDS));
+        
+        // millisecond timeouts
+        long start = System.currentTimeMillis();
+        Assert.assertNull(redis.blpop(TestUtils.asList("first", "second"), 50, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        
+        // a zero timeout does not wait
+        Assert.assertNull(redis.brpop(TestUtils.asList("first"), 0, TimeUnit.SECONDS));
+        
+        // a push to any of the keys wakes the waiter
+        final List<List<String>> popped = Collections.synchronizedList(new ArrayList<List<String>>());
+        Thread consumer = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                popped.add(redis.blpop(TestUtils.asList("first", "second"), 5, TimeUnit.SECONDS));
+            }
+            
+        });
+        
+        consumer.start();
+        Thread.sleep(100);
+        redis.rpush("second", "pushed");
+        consumer.join();
+        
+        Assert.assertEquals(TestUtils.asList("second", "pushed"), popped.get(0));
+        Assert.assertEquals(0, redis.llen("second"));
+    }
+    
+    @Test
+    public void testBlockingOrder() throws InterruptedException {
+        final DryRedisListOperations redis = getRedis();
+        final String[] popped = new String[3];
+        
+        // two waiters on one key, and one on another
+        List<Thread> consumers = new ArrayList<Thread>();
+        String[] keys = { "queue", "queue", "other" };
+        for(int index = 0; index < keys.length; index++) {
+            final String key = keys[index];
+            final int consumerIndex = index;
+            Thread consumer = new Thread(new Runnable() {
+                
+                @Override
+                public void run() {
+                    popped[consumerIndex] = redis.blpop(key, 5);
+                }
+                
+            });
+            
+            consumer.start();
+            consumers.add(consumer);
+            
+            // the next consumer must queue up behind this one
+            this.awaitBlocked(redis, key, key.equals("queue") ? index + 1 : 1);
+        }
+        
+        // a push to one key only serves waiters of that key, oldest first
+        redis.rpush("queue", TestUtils.asList("job1", "job2"));
+        consumers.get(0).join();
+        consumers.get(1).join();
+        Assert.assertEquals("job1", popped[0]);
+        Assert.assertEquals("job2", popped[1]);
+        Assert.assertTrue(consumers.get(2).isAlive());
+        Assert.assertEquals(0, redis.llen("queue"));
+        
+        redis.lpush("other", "job3");
+        consumers.get(2).join();
+        Assert.assertEquals("job3", popped[2]);
+    }
+    
     @Test
     public void testBRPOPLPUSH() {
         final DryRedisListOperations redis = getRedis();
@@ -465,4 +545,13 @@ public class TestDryRedisList {
         return new DryRedisList();
     }
     
+    /**
+     * Wait till the given number of clients are blocked on the key.
+     */
+    protected void awaitBlocked(DryRedisListOperations redis, String key, int clients) throws InterruptedException {
+        while(((DryRedisList) redis).countBlocked(key) < clients) {
+            Thread.sleep(1);
+        }
+    }
+    
 }
@@ -35,5 +35,12 @@ public class TestDryRedisListOperations extends TestDryRedisList {
         redis.flushdb();
         return redis;
     }
+    
+    @Override
+    protected void awaitBlocked(DryRedisListOperations redis, String key, int clients) throws InterruptedException {
+        while(((DryRedis) redis).listCommands.countBlocked(key) < clients) {
+            Thread.sleep(1);
+        }
+    }
 
 }
@@ -24,6 +24,7 @@ package com.sangupta.dryredis;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.sangupta.dryredis.support.DryRedisRangeArgument;
 import com.sangupta.dryredis.support.DryRedisSetAggregationType;
 
 /**
@@ -49,6 +50,156 @@ public class TestDryRedisSortedSet {
         Assert.assertEquals(0, redis.zadd("key", 0, "c"));
         Assert.assertEquals(0, redis.zadd("key", 0, "d"));
         Assert.assertEquals(0, redis.zadd("key", 0, "e"));
+        
+        // updating a score moves the member
+        Assert.assertEquals(0, redis.zadd("key", 5, "a"));
+        Assert.assertEquals(5, redis.zscore("key", "a"), 0d);
+        Assert.assertEquals(TestUtils.asList("b", "c", "d", "e", "a"), redis.zrange("key", 0, -1, false));
+    }
+    
+    @Test
+    public void testZINCRBY() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        Assert.assertEquals(2, redis.zincrby("key", 2, "one"), 0d);
+        redis.zadd("key", 3, "two");
+        redis.zadd("key", 4, "three");
+        Assert.assertEquals(TestUtils.asList("one", "two", "three"), redis.zrange("key", 0, -1, false));
+        
+        // moves past both neighbours
+        Assert.assertEquals(5, redis.zincrby("key", 3, "one"), 0d);
+        Assert.assertEquals(TestUtils.asList("two", "three", "one"), redis.zrange("key", 0, -1, false));
+        Assert.assertEquals(2, (int) redis.zrank("key", "one"));
+        
+        // stays in place
+        Assert.assertEquals(3.5, redis.zincrby("key", 0.5, "two"), 0d);
+        Assert.assertEquals(0, (int) redis.zrank("key", "two"));
+        
+        // moves to the front
+        Assert.assertEquals(-1, redis.zincrby("key", -6, "one"), 0d);
+        Assert.assertEquals(TestUtils.asList("one", "two", "three"), redis.zrange("key", 0, -1, false));
+        Assert.assertEquals(-1, redis.zscore("key", "one"), 0d);
+        
+        try {
+            redis.zincrby("key", Double.NaN, "one");
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testZRANGE() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        redis.zadd("key", 1, "one");
+        redis.zadd("key", 2, "two");
+        redis.zadd("key", 3, "three");
+        
+        Assert.assertEquals(TestUtils.asList("one", "two", "three"), redis.zrange("key", 0, -1, false));
+        Assert.assertEquals(TestUtils.asList("three"), redis.zrange("key", 2, 3, false));
+        Assert.assertEquals(TestUtils.asList("two", "three"), redis.zrange("key", -2, -1, false));
+        Assert.assertEquals(TestUtils.asList("one", "1.0", "two", "2.0"), redis.zrange("key", -10, 1, true));
+        Assert.assertTrue(redis.zrange("key", 5, 10, false).isEmpty());
+    }
+    
+    @Test
+    public void testZRANK() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        redis.zadd("key", 3, "three");
+        redis.zadd("key", 1, "one");
+        redis.zadd("key", 2, "two");
+        
+        Assert.assertEquals((Integer) 0, redis.zrank("key", "one"));
+        Assert.assertEquals((Integer) 2, redis.zrank("key", "three"));
+        Assert.assertEquals((Integer) null, redis.zrank("key", "four"));
+        Assert.assertEquals((Integer) null, redis.zrank("no-key", "one"));
+        
+        Assert.assertEquals(1, redis.zrem("key", "two"));
+        Assert.assertEquals(0, redis.zrem("key", "two"));
+        Assert.assertEquals((Integer) 1, redis.zrank("key", "three"));
+    }
+    
+    @Test
+    public void testZREMRANGEBYRANK() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        redis.zadd("key", 1, "one");
+        redis.zadd("key", 2, "two");
+        redis.zadd("key", 3, "three");
+        redis.zadd("key", 4, "four");
+        
+        Assert.assertEquals(2, redis.zremrangebyrank("key", 0, 1));
+        Assert.assertEquals(TestUtils.asList("three", "four"), redis.zrange("key", 0, -1, false));
+        Assert.assertEquals(1, redis.zremrangebyrank("key", -1, 10));
+        Assert.assertEquals(0, redis.zremrangebyrank("key", 3, 10));
+        Assert.assertEquals(TestUtils.asList("three"), redis.zrange("key", 0, -1, false));
+    }
+    
+    @Test
+    public void testZRANGEBYSCORE() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        for(int index = 1; index <= 10; index++) {
+            redis.zadd("key", index, "member" + index);
+        }
+        
+        Assert.assertEquals(10, redis.zrangebyscore("key", new DryRedisRangeArgument("-inf"), new DryRedisRangeArgument("+inf"), false).size());
+        Assert.assertEquals(TestUtils.asList("member3", "member4", "member5"), redis.zrangebyscore("key", new DryRedisRangeArgument("3"), new DryRedisRangeArgument("5"), false));
+        Assert.assertEquals(TestUtils.asList("member4", "4.0"), redis.zrangebyscore("key", new DryRedisRangeArgument("(3"), new DryRedisRangeArgument("(5"), true));
+        Assert.assertEquals(TestUtils.asList("member5", "member6"), redis.zrangebyscore("key", new DryRedisRangeArgument("3"), new DryRedisRangeArgument("+"), false, 2, 2));
+        Assert.assertTrue(redis.zrangebyscore("key", new DryRedisRangeArgument("3"), new DryRedisRangeArgument("+"), false, 20, 2).isEmpty());
+        Assert.assertTrue(redis.zrangebyscore("key", new DryRedisRangeArgument("5"), new DryRedisRangeArgument("3"), false).isEmpty());
+        Assert.assertNull(redis.zrangebyscore("no-key", new DryRedisRangeArgument("-"), new DryRedisRangeArgument("+"), false));
+        
+        Assert.assertEquals(TestUtils.asList("member5", "member4", "member3"), redis.zrevrangebyscore("key", new DryRedisRangeArgument("5"), new DryRedisRangeArgument("3"), false));
+        Assert.assertEquals(TestUtils.asList("member8", "member7"), redis.zrevrangebyscore("key", new DryRedisRangeArgument("+inf"), new DryRedisRangeArgument("-inf"), false, 2, 2));
+        Assert.assertEquals(TestUtils.asList("member1", "1.0"), redis.zrevrangebyscore("key", new DryRedisRangeArgument("(2"), new DryRedisRangeArgument("-"), true));
+    }
+    
+    @Test
+    public void testZCOUNT() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        Assert.assertEquals(0, redis.zcount("key", 0, 10));
+        
+        redis.zadd("key", 1, "one");
+        redis.zadd("key", 2, "two");
+        redis.zadd("key", 3, "three");
+        
+        Assert.assertEquals(3, redis.zcount("key", Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+        Assert.assertEquals(2, redis.zcount("key", 1, 2));
+        Assert.assertEquals(1, redis.zcount("key", 1.5, 2.5));
+        Assert.assertEquals(0, redis.zcount("key", 4, 5));
+    }
+    
+    @Test
+    public void testZREMRANGEBYSCORE() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        redis.zadd("key", 1, "one");
+        redis.zadd("key", 2, "two");
+        redis.zadd("key", 3, "three");
+        
+        Assert.assertEquals(0, redis.zremrangebyscore("key", new DryRedisRangeArgument("(3"), new DryRedisRangeArgument("+")));
+        Assert.assertEquals(2, redis.zremrangebyscore("key", new DryRedisRangeArgument("-"), new DryRedisRangeArgument("(3")));
+        Assert.assertEquals(TestUtils.asList("three"), redis.zrange("key", 0, -1, false));
+    }
+    
+    @Test
+    public void testZREMRANGEBYLEX() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        redis.zadd("key", 0, "a");
+        redis.zadd("key", 0, "b");
+        redis.zadd("key", 0, "c");
+        redis.zadd("key", 0, "d");
+        
+        Assert.assertEquals(TestUtils.asList("d", "c", "b"), redis.zrevrangebylex("key", "[b", "+"));
+        Assert.assertEquals(2, redis.zremrangebylex("key", "(a", "[c"));
+        Assert.assertEquals(TestUtils.asList("a", "d"), redis.zrangebylex("key", "-", "+"));
+        Assert.assertEquals(0, redis.zremrangebylex("key", "(d", "+"));
     }
     
     @Test
@@ -165,6 +316,89 @@ public class TestDryRedisSortedSet {
         Assert.assertEquals(12.0d, redis.zscore("result", "b"), 0d);
     }
     
+    @Test
+    public void testZUNIONSTORE() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        redis.zadd("key1", 1, "a");
+        redis.zadd("key1", 2, "b");
+        
+        redis.zadd("key2", 3, "a");
+        redis.zadd("key2", 4, "c");
+        
+        Assert.assertEquals(3, redis.zunionstore("result", TestUtils.asList("key1", "key2", "missing")));
+        Assert.assertEquals(TestUtils.asList("b", "2.0", "a", "4.0", "c", "4.0"), redis.zrange("result", 0, -1, true));
+        
+        Assert.assertEquals(3, redis.zunionstore("result", TestUtils.asList("key1", "key2"), new double[] { 2.0d, -1.0d }, DryRedisSetAggregationType.MAX));
+        Assert.assertEquals(TestUtils.asList("c", "-4.0", "a", "2.0", "b", "4.0"), redis.zrange("result", 0, -1, true));
+        
+        // large results are built as a skip list
+        for(int index = 0; index < 200; index++) {
+            redis.zadd("large1", index, "m" + index);
+            redis.zadd("large2", 200 - index, "m" + index);
+        }
+        
+        Assert.assertEquals(200, redis.zunionstore("result", TestUtils.asList("large1", "large2"), new double[] { 2.0d, 1.0d }, DryRedisSetAggregationType.SUM));
+        for(int index = 0; index < 200; index++) {
+            Assert.assertEquals(index, (int) redis.zrank("result", "m" + index));
+            Assert.assertEquals(200 + index, redis.zscore("result", "m" + index), 0d);
+        }
+    }
+    
+    @Test
+    public void testZINTER() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        redis.zadd("key1", 1, "a");
+        redis.zadd("key1", 2, "b");
+        redis.zadd("key1", 3, "c");
+        
+        redis.zadd("key2", 5, "b");
+        redis.zadd("key2", 1, "c");
+        
+        Assert.assertEquals(TestUtils.asList("c", "b"), redis.zinter(TestUtils.asList("key1", "key2"), false));
+        Assert.assertEquals(TestUtils.asList("c", "4.0", "b", "7.0"), redis.zinter(TestUtils.asList("key1", "key2"), true));
+        Assert.assertEquals(TestUtils.asList("c", "1.0", "b", "2.0"), redis.zinter(TestUtils.asList("key1", "key2"), new double[] { 1.0d, 1.0d }, DryRedisSetAggregationType.MIN, true));
+        Assert.assertTrue(redis.zinter(TestUtils.asList("key1", "missing"), false).isEmpty());
+        
+        // nothing is stored
+        Assert.assertEquals(3, redis.zcard("key1"));
+        Assert.assertEquals(2, redis.zcard("key2"));
+    }
+    
+    @Test
+    public void testZUNION() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        redis.zadd("key1", 1, "a");
+        redis.zadd("key1", 2, "b");
+        
+        redis.zadd("key2", 5, "b");
+        redis.zadd("key2", 4, "c");
+        
+        Assert.assertEquals(TestUtils.asList("a", "c", "b"), redis.zunion(TestUtils.asList("key1", "key2"), false));
+        Assert.assertEquals(TestUtils.asList("a", "1.0", "c", "4.0", "b", "7.0"), redis.zunion(TestUtils.asList("key1", "key2", "missing"), true));
+        Assert.assertEquals(TestUtils.asList("a", "3.0", "c", "4.0", "b", "6.0"), redis.zunion(TestUtils.asList("key1", "key2"), new double[] { 3.0d, 1.0d }, DryRedisSetAggregationType.MAX, true));
+        Assert.assertTrue(redis.zunion(TestUtils.asList("missing"), false).isEmpty());
+    }
+    
+    @Test
+    public void testZDIFF() {
+        DryRedisSortedSetOperations redis = getRedis();
+        
+        redis.zadd("key1", 1, "a");
+        redis.zadd("key1", 2, "b");
+        redis.zadd("key1", 3, "c");
+        
+        redis.zadd("key2", 1, "a");
+        redis.zadd("key3", 7, "c");
+        
+        Assert.assertEquals(TestUtils.asList("b", "c"), redis.zdiff(TestUtils.asList("key1", "key2"), false));
+        Assert.assertEquals(TestUtils.asList("b", "2.0"), redis.zdiff(TestUtils.asList("key1", "key2", "key3"), true));
+        Assert.assertEquals(TestUtils.asList("a", "1.0", "b", "2.0", "c", "3.0"), redis.zdiff(TestUtils.asList("key1"), true));
+        Assert.assertTrue(redis.zdiff(TestUtils.asList("missing", "key1"), false).isEmpty());
+    }
+    
     // helper methods
 
     protected DryRedisSortedSetOperations getRedis() {
@@ -22,6 +22,7 @@
 package com.sangupta.dryredis;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -30,6 +31,9 @@ import java.util.Map;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.sangupta.dryredis.ds.DynamicString;
+import com.sangupta.dryredis.support.DryRedisBitOperation;
+
 public class TestDryRedisString {
 
     @Test
@@ -54,6 +58,35 @@ public class TestDryRedisString {
         Assert.assertEquals(101, str.incr("test"));
     }
     
+    @Test
+    public void testIntegerValues() {
+        DryRedisStringOperations str = getRedis();
+        
+        str.set("one", "10");
+        str.set("two", "10");
+        Assert.assertEquals(11, str.incr("one"));
+        Assert.assertEquals("10", str.get("two"));
+        
+        // modifying a shared value does not affect other keys
+        Assert.assertEquals(3, str.append("one", "5"));
+        Assert.assertEquals("115", str.get("one"));
+        Assert.assertEquals("10", str.get("two"));
+        Assert.assertEquals(116, str.incr("one"));
+        
+        Assert.assertEquals(2, str.setrange("two", 0, "2"));
+        Assert.assertEquals("20", str.get("two"));
+        
+        str.set("three", "10");
+        Assert.assertEquals(0, str.setbit("three", 6, true));
+        Assert.assertEquals("30", str.get("three"));
+        Assert.assertEquals(2, str.strlen("three"));
+        Assert.assertEquals(10.5d, str.incrbyfloat("two", -9.5d), 0d);
+        
+        str.set("four", "10");
+        Assert.assertEquals("10", str.get("four"));
+        Assert.assertEquals(10, str.incrby("four", 0));
+    }
+    
     @Test
     public void testINCRBY() {
         DryRedisStringOperations str = getRedis();
@@ -221,6 +254,179 @@ public class TestDryRedisString {
         Assert.assertEquals(0, str.bitcount("non-existent"));
     }
     
+    @Test
+    public void testGETBIT() {
+        DryRedisStringOperations str = getRedis();
+        
+        Assert.assertEquals(0, str.getbit("test", 0));
+        
+        // 'a' is 0x61, so bits 1, 2 and 7 are set counting from the most significant bit
+        str.set("test", "a");
+        int[] expected = { 0, 1, 1, 0, 0, 0, 0, 1 };
+        for(int offset = 0; offset < expected.length; offset++) {
+            Assert.assertEquals(expected[offset], str.getbit("test", offset));
+        }
+        
+        Assert.assertEquals(0, str.getbit("test", 100));
+    }
+    
+    @Test
+    public void testSETBIT() {
+        DryRedisStringOperations str = getRedis();
+        
+        Assert.assertEquals(0, str.setbit("test", 7, true));
+        Assert.assertEquals(1, str.setbit("test", 7, true));
+        Assert.assertEquals(1, str.strlen("test"));
+        Assert.assertArrayEquals(new byte[] { 1 }, str.getBytes("test"));
+        
+        // grows the string with zero bytes
+        Assert.assertEquals(0, str.setbit("test", 100, true));
+        Assert.assertEquals(13, str.strlen("test"));
+        Assert.assertEquals(1, str.getbit("test", 100));
+        Assert.assertEquals(2, str.bitcount("test"));
+        
+        Assert.assertEquals(1, str.setbit("test", 7, false));
+        Assert.assertEquals(0, str.getbit("test", 7));
+        Assert.assertEquals(1, str.bitcount("test"));
+        
+        try {
+            str.setbit("test", 1l << 32, true);
+            Assert.fail("Expected an offset past 512 MB to be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testBITPOS() {
+        DryRedisStringOperations str = getRedis();
+        
+        Assert.assertEquals(-1, str.bitpos("test", true));
+        Assert.assertEquals(0, str.bitpos("test", false));
+        
+        str.set("test", new byte[] { (byte) 0xFF, (byte) 0xF0, 0 });
+        Assert.assertEquals(12, str.bitpos("test", false));
+        Assert.assertEquals(0, str.bitpos("test", true));
+        Assert.assertEquals(8, str.bitpos("test", true, 1, -1));
+        Assert.assertEquals(-1, str.bitpos("test", true, 2, -1));
+        Assert.assertEquals(16, str.bitpos("test", false, 2, 2));
+        
+        // without an end, clear bits are found past the end of the string
+        str.set("test", new byte[] { (byte) 0xFF, (byte) 0xFF });
+        Assert.assertEquals(16, str.bitpos("test", false));
+        Assert.assertEquals(-1, str.bitpos("test", false, 0, -1));
+        
+        // across words
+        byte[] bytes = new byte[40];
+        bytes[33] = 0x04;
+        str.set("test", bytes);
+        Assert.assertEquals(33 * 8 + 5, str.bitpos("test", true));
+    }
+    
+    @Test
+    public void testBITOP() {
+        DryRedisStringOperations str = getRedis();
+        
+        str.set("key1", "foobar");
+        str.set("key2", "abcdef");
+        
+        Assert.assertEquals(6, str.bitop(DryRedisBitOperation.AND, "dest", "key1", "key2"));
+        Assert.assertEquals("`bc`ab", str.get("dest"));
+        
+        Assert.assertEquals(6, str.bitop(DryRedisBitOperation.OR, "dest", "key1", "key2"));
+        Assert.assertEquals("goofev", str.get("dest"));
+        
+        Assert.assertEquals(6, str.bitop(DryRedisBitOperation.XOR, "dest", "key1", "key2"));
+        Assert.assertArrayEquals(new byte[] { 7, 13, 12, 6, 4, 20 }, str.getBytes("dest"));
+        
+        Assert.assertEquals(6, str.bitop(DryRedisBitOperation.NOT, "dest", "key1"));
+        Assert.assertArrayEquals(new byte[] { (byte) ~'f', (byte) ~'o', (byte) ~'o', (byte) ~'b', (byte) ~'a', (byte) ~'r' }, str.getBytes("dest"));
+        
+        // shorter and missing strings are padded with zeros
+        str.set("short", "a");
+        Assert.assertEquals(6, str.bitop(DryRedisBitOperation.OR, "dest", "short", "key1", "missing"));
+        Assert.assertEquals("goobar", str.get("dest"));
+        Assert.assertEquals(6, str.bitop(DryRedisBitOperation.AND, "dest", "short", "key1"));
+        Assert.assertArrayEquals(new byte[] { 'a' & 'f', 0, 0, 0, 0, 0 }, str.getBytes("dest"));
+        
+        // an empty result removes the destination
+        Assert.assertEquals(0, str.bitop(DryRedisBitOperation.OR, "dest", "missing"));
+        Assert.assertNull(str.get("dest"));
+        
+        try {
+            str.bitop(DryRedisBitOperation.NOT, "dest", "key1", "key2");
+            Assert.fail("Expected NOT with two sources to be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testBITFIELD() {
+        DryRedisStringOperations str = getRedis();
+        
+        // reading does not create the key
+        Assert.assertEquals(Arrays.asList(0l), str.bitfield("test", "GET", "u8", "0"));
+        Assert.assertNull(str.get("test"));
+        
+        Assert.assertEquals(Arrays.asList(0l, 100l), str.bitfield("test", "SET", "i8", "#0", "100", "GET", "i8", "0"));
+        Assert.assertEquals(Arrays.asList(100l, -56l), str.bitfield("test", "GET", "u8", "0", "INCRBY", "i8", "0", "100"));
+        
+        // overflow handling
+        str.set("counter", new byte[0]);
+        Assert.assertEquals(Arrays.asList(1l, 1l), str.bitfield("counter", "INCRBY", "u2", "100", "1", "OVERFLOW", "SAT", "INCRBY", "u2", "102", "1"));
+        Assert.assertEquals(Arrays.asList(2l, 2l), str.bitfield("counter", "INCRBY", "u2", "100", "1", "OVERFLOW", "SAT", "INCRBY", "u2", "102", "1"));
+        Assert.assertEquals(Arrays.asList(3l, 3l), str.bitfield("counter", "INCRBY", "u2", "100", "1", "OVERFLOW", "SAT", "INCRBY", "u2", "102", "1"));
+        Assert.assertEquals(Arrays.asList(0l, 3l), str.bitfield("counter", "INCRBY", "u2", "100", "1", "OVERFLOW", "SAT", "INCRBY", "u2", "102", "1"));
+        Assert.assertEquals(Arrays.asList((Long) null), str.bitfield("counter", "OVERFLOW", "FAIL", "INCRBY", "u2", "102", "1"));
+        Assert.assertEquals(Arrays.asList(3l), str.bitfield("counter", "GET", "u2", "102"));
+        
+        // signed 64-bit values
+        Assert.assertEquals(Arrays.asList(0l, Long.MAX_VALUE), str.bitfield("wide", "SET", "i64", "3", String.valueOf(Long.MAX_VALUE), "GET", "i64", "3"));
+        Assert.assertEquals(Arrays.asList(Long.MIN_VALUE), str.bitfield("wide", "INCRBY", "i64", "3", "1"));
+        Assert.assertEquals(Arrays.asList(Long.MIN_VALUE), str.bitfield("wide", "OVERFLOW", "SAT", "INCRBY", "i64", "3", "-1"));
+        Assert.assertEquals(Arrays.asList(-1l), str.bitfield("wide", "INCRBY", "i64", "3", String.valueOf(Long.MAX_VALUE)));
+        
+        try {
+            str.bitfield("test", "GET", "u64", "0");
+            Assert.fail("Expected u64 to be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        
+        try {
+            str.bitfield("test", "INCRBY", "i8", "0");
+            Assert.fail("Expected a missing increment to be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testBinaryValues() {
+        DryRedisStringOperations str = getRedis();
+        
+        Assert.assertNull(str.getBytes("test"));
+        
+        byte[] bytes = { 0, (byte) 0xFF, (byte) 0xC3, 0x28, 0x7F };
+        Assert.assertEquals("OK", str.set("test", bytes));
+        Assert.assertArrayEquals(bytes, str.getBytes("test"));
+        Assert.assertEquals(bytes.length, str.strlen("test"));
+        Assert.assertEquals(21, str.bitcount("test"));
+        
+        // appending keeps the existing bytes as is
+        Assert.assertEquals(7, str.append("test", "ab"));
+        Assert.assertArrayEquals(new byte[] { 0, (byte) 0xFF, (byte) 0xC3, 0x28, 0x7F, 'a', 'b' }, str.getBytes("test"));
+        
+        // lengths are in bytes, not characters
+        str.set("utf", "\u00e9t\u00e9");
+        Assert.assertEquals(5, str.strlen("utf"));
+        Assert.assertEquals("\u00e9t\u00e9", str.get("utf"));
+        Assert.assertEquals("t", str.getrange("utf", 2, 2));
+        Assert.assertEquals(7, str.append("utf", "\u00e9"));
+        Assert.assertArrayEquals("\u00e9t\u00e9\u00e9".getBytes(DynamicString.UTF_8), str.getBytes("utf"));
+    }
+    
     @Test
     public void testSTRLEN() {
         DryRedisStringOperations str = getRedis();
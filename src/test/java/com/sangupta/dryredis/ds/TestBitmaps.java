@@ -0,0 +1,179 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sangupta.dryredis.support.DryRedisBitOperation;
+
+/**
+ * Unit tests for {@link Bitmaps} class, comparing the word-level operations
+ * with a bit-by-bit computation.
+ *  
+ * @author sangupta
+ *
+ */
+public class TestBitmaps {
+    
+    private static final Random RANDOM = new Random(42);
+    
+    @Test
+    public void testBitCount() {
+        for(int run = 0; run < 100; run++) {
+            byte[] bytes = randomBytes(RANDOM.nextInt(50));
+            int from = bytes.length == 0 ? 0 : RANDOM.nextInt(bytes.length);
+            int to = from + RANDOM.nextInt(bytes.length - from + 1);
+            
+            long expected = 0;
+            for(long bit = from * 8l; bit < to * 8l; bit++) {
+                expected += bitAt(bytes, bit);
+            }
+            
+            Assert.assertEquals(expected, Bitmaps.bitCount(bytes, from, to));
+        }
+    }
+    
+    @Test
+    public void testBitPos() {
+        for(int run = 0; run < 200; run++) {
+            // sparse bitmaps so that searches run over several words
+            byte[] bytes = new byte[RANDOM.nextInt(50)];
+            if(bytes.length > 0) {
+                bytes[RANDOM.nextInt(bytes.length)] = (byte) (1 << RANDOM.nextInt(8));
+            }
+            
+            boolean bit = RANDOM.nextBoolean();
+            if(!bit) {
+                for(int index = 0; index < bytes.length; index++) {
+                    bytes[index] = (byte) ~bytes[index];
+                }
+            }
+            
+            int from = bytes.length == 0 ? 0 : RANDOM.nextInt(bytes.length);
+            int to = from + RANDOM.nextInt(bytes.length - from + 1);
+            
+            long expected = -1;
+            for(long position = from * 8l; position < to * 8l; position++) {
+                if(bitAt(bytes, position) == (bit ? 1 : 0)) {
+                    expected = position;
+                    break;
+                }
+            }
+            
+            Assert.assertEquals(expected, Bitmaps.bitPos(bytes, bit, from, to));
+        }
+    }
+    
+    @Test
+    public void testBitOp() {
+        for(DryRedisBitOperation operation : DryRedisBitOperation.values()) {
+            for(int run = 0; run < 20; run++) {
+                int count = operation == DryRedisBitOperation.NOT ? 1 : 1 + RANDOM.nextInt(4);
+                byte[][] sources = new byte[count][];
+                int[] lengths = new int[count];
+                int length = 0;
+                for(int index = 0; index < count; index++) {
+                    // leave spare capacity that must not be read
+                    lengths[index] = RANDOM.nextInt(30);
+                    sources[index] = randomBytes(lengths[index] + RANDOM.nextInt(5));
+                    length = Math.max(length, lengths[index]);
+                }
+                
+                byte[] result = Bitmaps.bitOp(operation, sources, lengths);
+                Assert.assertEquals(length, result.length);
+                
+                for(int index = 0; index < length; index++) {
+                    int expected = byteAt(sources[0], lengths[0], index);
+                    for(int source = 1; source < count; source++) {
+                        int value = byteAt(sources[source], lengths[source], index);
+                        switch(operation) {
+                            case AND:
+                                expected &= value;
+                                break;
+                                
+                            case OR:
+                                expected |= value;
+                                break;
+                                
+                            case XOR:
+                                expected ^= value;
+                                break;
+                                
+                            default:
+                                Assert.fail();
+                        }
+                    }
+                    
+                    if(operation == DryRedisBitOperation.NOT) {
+                        expected = ~expected;
+                    }
+                    
+                    Assert.assertEquals((byte) expected, result[index]);
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testGetAndSetBits() {
+        byte[] bytes = new byte[20];
+        for(int run = 0; run < 200; run++) {
+            int bits = 1 + RANDOM.nextInt(64);
+            long offset = RANDOM.nextInt(bytes.length * 8 - bits + 1);
+            long value = RANDOM.nextLong();
+            long mask = bits == 64 ? -1l : (1l << bits) - 1;
+            
+            byte[] before = bytes.clone();
+            Bitmaps.setBits(bytes, offset, bits, value);
+            Assert.assertEquals(value & mask, Bitmaps.getBits(bytes, bytes.length, offset, bits));
+            
+            // bits outside the field are untouched
+            for(long position = 0; position < bytes.length * 8l; position++) {
+                if(position < offset || position >= offset + bits) {
+                    Assert.assertEquals(bitAt(before, position), bitAt(bytes, position));
+                }
+            }
+        }
+        
+        // bits past the length read as zero
+        Assert.assertEquals(0, Bitmaps.getBits(new byte[] { (byte) 0xFF }, 0, 0, 8));
+        Assert.assertEquals(0xF0, Bitmaps.getBits(new byte[] { (byte) 0xFF }, 1, 4, 8));
+    }
+    
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+    
+    private static int bitAt(byte[] bytes, long position) {
+        return (bytes[(int) (position / 8)] >> (7 - (int) (position % 8))) & 1;
+    }
+    
+    private static int byteAt(byte[] bytes, int length, int index) {
+        return index < length ? bytes[index] & 0xFF : 0;
+    }
+
+}
@@ -0,0 +1,74 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+
+package com.sangupta.dryredis.ds;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Crc64}.
+ * 
+ * @author sangupta
+ *
+ */
+public class TestCrc64 {
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    @Test
+    public void testChecksum() {
+        Assert.assertEquals(0l, Crc64.checksum(new byte[0]));
+        Assert.assertEquals(0xe9c6d914c4b8d9caL, Crc64.checksum("123456789".getBytes(UTF_8)));
+    }
+    
+    @Test
+    public void testUpdate() {
+        byte[] bytes = "The quick brown fox jumps over the lazy dog".getBytes(UTF_8);
+        
+        long crc = Crc64.update(0, bytes, 0, 10);
+        crc = Crc64.update(crc, bytes, 10, bytes.length - 10);
+        Assert.assertEquals(Crc64.checksum(bytes), crc);
+    }
+    
+    @Test
+    public void testUpdateBuffer() {
+        byte[] bytes = "The quick brown fox jumps over the lazy dog".getBytes(UTF_8);
+        
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.limit(10);
+        long crc = Crc64.update(0, buffer);
+        Assert.assertEquals(0, buffer.position());
+        
+        buffer.limit(bytes.length).position(10);
+        crc = Crc64.update(crc, buffer.slice());
+        Assert.assertEquals(Crc64.checksum(bytes), crc);
+        
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        Assert.assertEquals(Crc64.checksum(bytes), Crc64.update(0, direct));
+    }
+    
+}
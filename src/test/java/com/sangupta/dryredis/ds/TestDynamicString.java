@@ -0,0 +1,178 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link DynamicString} class.
+ *  
+ * @author sangupta
+ *
+ */
+public class TestDynamicString {
+    
+    @Test
+    public void testAppend() {
+        DynamicString string = new DynamicString();
+        Assert.assertEquals(0, string.length());
+        Assert.assertEquals("", string.toString());
+        
+        StringBuilder expected = new StringBuilder();
+        for(int index = 0; index < 1000; index++) {
+            String value = String.valueOf(index);
+            expected.append(value);
+            Assert.assertEquals(expected.length(), string.append(value.getBytes(DynamicString.UTF_8)));
+        }
+        
+        Assert.assertEquals(expected.toString(), string.toString());
+        Assert.assertTrue(string.available() > 0);
+        
+        string.trimToSize();
+        Assert.assertEquals(0, string.available());
+        Assert.assertEquals(expected.toString(), string.toString());
+    }
+    
+    @Test
+    public void testSetRange() {
+        DynamicString string = new DynamicString("hello world");
+        Assert.assertEquals(11, string.setRange(6, "redis".getBytes(DynamicString.UTF_8)));
+        Assert.assertEquals("hello redis", string.toString());
+        
+        // writing past the end pads with zero bytes
+        Assert.assertEquals(15, string.setRange(13, "!!".getBytes(DynamicString.UTF_8)));
+        Assert.assertEquals("hello redis\0\0!!", string.toString());
+        Assert.assertEquals(0, string.byteAt(11));
+        Assert.assertEquals("redis", string.toString(6, 11));
+        
+        try {
+            string.setRange(-1, new byte[1]);
+            Assert.fail("Expected a negative offset to be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        
+        try {
+            string.byteAt(15);
+            Assert.fail("Expected an index past the end to be rejected");
+        } catch(IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testBits() {
+        DynamicString string = new DynamicString();
+        Assert.assertEquals(0, string.getBit(0));
+        
+        // bit 0 is the most significant bit of the first byte
+        Assert.assertEquals(0, string.setBit(1, true));
+        Assert.assertEquals(1, string.length());
+        Assert.assertEquals(0x40, string.byteAt(0));
+        Assert.assertEquals(1, string.getBit(1));
+        
+        // setting a far bit grows the string
+        Assert.assertEquals(0, string.setBit(23, true));
+        Assert.assertEquals(3, string.length());
+        Assert.assertEquals(1, string.byteAt(2));
+        Assert.assertEquals(2, string.bitCount(0, 3));
+        
+        // clearing returns the previous value
+        Assert.assertEquals(1, string.setBit(1, false));
+        Assert.assertEquals(0, string.getBit(1));
+        Assert.assertEquals(1, string.bitCount(0, 3));
+        Assert.assertEquals(0, string.bitCount(0, 2));
+    }
+    
+    @Test
+    public void testEquality() {
+        DynamicString string = new DynamicString(new byte[] { 1, 2, 3 });
+        DynamicString other = new DynamicString();
+        other.append(new byte[] { 1, 2 });
+        Assert.assertNotEquals(string, other);
+        
+        other.append(new byte[] { 3 });
+        Assert.assertEquals(string, other);
+        Assert.assertEquals(string.hashCode(), other.hashCode());
+        Assert.assertArrayEquals(new byte[] { 2, 3 }, other.toByteArray(1, 3));
+    }
+    
+    @Test
+    public void testWrap() {
+        byte[] bytes = "hello".getBytes(DynamicString.UTF_8);
+        DynamicString string = DynamicString.wrap(bytes);
+        Assert.assertEquals(new DynamicString("hello"), string);
+        Assert.assertEquals(5, string.length());
+        
+        // changes copy the bytes when they must grow
+        string.append(" world".getBytes(DynamicString.UTF_8));
+        Assert.assertEquals("hello world", string.toString());
+        Assert.assertEquals("hello", new String(bytes, DynamicString.UTF_8));
+    }
+
+    @Test
+    public void testInteger() {
+        // small values are shared
+        Assert.assertSame(DynamicString.valueOf(42), DynamicString.valueOf(42));
+        Assert.assertNotSame(DynamicString.valueOf(DynamicString.SHARED_INTEGERS), DynamicString.valueOf(DynamicString.SHARED_INTEGERS));
+        
+        // only canonical longs are integer encoded
+        Assert.assertTrue(DynamicString.fromString("0").isInteger());
+        Assert.assertTrue(DynamicString.fromString("-123").isInteger());
+        Assert.assertTrue(DynamicString.fromString(String.valueOf(Long.MIN_VALUE)).isInteger());
+        Assert.assertFalse(DynamicString.fromString("007").isInteger());
+        Assert.assertFalse(DynamicString.fromString("+1").isInteger());
+        Assert.assertFalse(DynamicString.fromString("-").isInteger());
+        Assert.assertFalse(DynamicString.fromString("-0").isInteger());
+        Assert.assertFalse(DynamicString.fromString("1.5").isInteger());
+        Assert.assertFalse(DynamicString.fromString("").isInteger());
+        Assert.assertFalse(DynamicString.fromString("9223372036854775808").isInteger());
+        
+        // reads see the decimal bytes
+        DynamicString string = DynamicString.valueOf(-12345);
+        Assert.assertEquals(6, string.length());
+        Assert.assertEquals("-12345", string.toString());
+        Assert.assertEquals("23", string.toString(2, 4));
+        Assert.assertEquals('-', string.byteAt(0));
+        Assert.assertEquals(new DynamicString("-12345"), string);
+        Assert.assertEquals(new DynamicString("-12345").hashCode(), string.hashCode());
+        Assert.assertEquals(-12345, new DynamicString("-12345").longValue());
+        Assert.assertEquals(String.valueOf(Long.MIN_VALUE).length(), DynamicString.valueOf(Long.MIN_VALUE).length());
+        
+        // writes convert to bytes
+        Assert.assertEquals(7, string.append("6".getBytes(DynamicString.UTF_8)));
+        Assert.assertFalse(string.isInteger());
+        Assert.assertEquals("-123456", string.toString());
+        
+        // except for shared ones
+        try {
+            DynamicString.valueOf(7).append(new byte[] { 1 });
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // expected
+        }
+        
+        Assert.assertEquals("7", DynamicString.valueOf(7).toString());
+    }
+    
+}
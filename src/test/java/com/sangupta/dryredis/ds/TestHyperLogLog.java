@@ -21,8 +21,12 @@
 
 package com.sangupta.dryredis.ds;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -120,6 +124,207 @@ public class TestHyperLogLog {
         first.merge(second);
     }
 
+    @Test
+    public void testSparse() {
+        HyperLogLog sparse = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        HyperLogLog dense = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M, 0);
+        
+        Assert.assertTrue(sparse.isSparse());
+        Assert.assertEquals(2, sparse.sizeof());
+        Assert.assertEquals(0, sparse.cardinality());
+        
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            String element = Long.toHexString(random.nextLong());
+            Assert.assertEquals(dense.offer(element), sparse.offer(element));
+            Assert.assertFalse(sparse.offer(element));
+            
+            if (i % 500 == 0) {
+                Assert.assertEquals(dense.cardinality(), sparse.cardinality());
+            }
+            
+            if (sparse.isSparse()) {
+                Assert.assertTrue(sparse.sizeof() <= HyperLogLog.SPARSE_MAX_BYTES);
+            }
+        }
+        
+        Assert.assertFalse(dense.isSparse());
+        Assert.assertFalse(sparse.isSparse());
+        Assert.assertEquals(12288, sparse.sizeof());
+        Assert.assertEquals(dense.cardinality(), sparse.cardinality());
+    }
+    
+    @Test
+    public void testSmallCardinality() {
+        HyperLogLog hyperLogLog = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        for (int i = 1; i <= 1000; i++) {
+            hyperLogLog.offer("element-" + i);
+            
+            long estimate = hyperLogLog.cardinality();
+            Assert.assertTrue(Math.abs(estimate - i) <= Math.max(1, i * 0.02));
+        }
+        
+        Assert.assertTrue(hyperLogLog.isSparse());
+    }
+    
+    @Test
+    public void testMergeSparse() {
+        HyperLogLog first = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        HyperLogLog second = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        HyperLogLog baseline = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M, 0);
+        for (int i = 0; i < 500; i++) {
+            first.offer("a" + i);
+            second.offer("b" + i);
+            baseline.offer("a" + i);
+            baseline.offer("b" + i);
+        }
+        
+        HyperLogLog clone = first.clone();
+        clone.addAll(second);
+        Assert.assertTrue(clone.isSparse());
+        Assert.assertEquals(baseline.cardinality(), clone.cardinality());
+        Assert.assertEquals(baseline.cardinality(), first.merge(second).cardinality());
+        Assert.assertEquals(baseline.cardinality(), baseline.clone().cardinality());
+        
+        // sources are not modified
+        Assert.assertTrue(first.cardinality() < baseline.cardinality());
+    }
+
+    @Test
+    public void testCachedCardinality() {
+        HyperLogLog hyperLogLog = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        Assert.assertEquals(0, hyperLogLog.cardinality());
+        
+        Assert.assertTrue(hyperLogLog.offer("foo"));
+        Assert.assertEquals(1, hyperLogLog.cardinality());
+        
+        Assert.assertFalse(hyperLogLog.offer("foo"));
+        Assert.assertEquals(1, hyperLogLog.cardinality());
+        
+        Assert.assertTrue(hyperLogLog.offer("bar"));
+        Assert.assertEquals(2, hyperLogLog.cardinality());
+        
+        HyperLogLog clone = hyperLogLog.clone();
+        Assert.assertEquals(2, clone.cardinality());
+        
+        HyperLogLog other = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        other.offer("zap");
+        clone.addAll(other);
+        Assert.assertEquals(3, clone.cardinality());
+        Assert.assertEquals(2, hyperLogLog.cardinality());
+    }
+    
+    @Test
+    public void testOfferAll() {
+        HyperLogLog single = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        HyperLogLog bulk = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        
+        List<String> elements = new ArrayList<String>();
+        for (int i = 0; i < 50000; i++) {
+            String element = "element-" + i;
+            elements.add(element);
+            single.offer(element);
+        }
+        
+        Assert.assertTrue(bulk.offerAll(elements));
+        Assert.assertFalse(bulk.offerAll(elements));
+        Assert.assertEquals(single.cardinality(), bulk.cardinality());
+        
+        double err = Math.abs(bulk.cardinality() - 50000) / 50000d;
+        Assert.assertTrue(err < 0.03);
+    }
+
+    @Test
+    public void testParallelMerge() {
+        List<HyperLogLog> counters = new ArrayList<HyperLogLog>();
+        for (int i = 0; i < 12; i++) {
+            HyperLogLog counter = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+            
+            // a few stay sparse
+            int size = i % 4 == 0 ? 100 : 20000;
+            for (int j = 0; j < size; j++) {
+                counter.offer(i + "-" + j);
+            }
+            
+            counters.add(counter);
+        }
+        
+        HyperLogLog sequential = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        sequential.addAll(counters, null);
+        
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            HyperLogLog parallel = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+            parallel.clear();
+            parallel.addAll(counters, pool);
+            
+            Assert.assertEquals(sequential.cardinality(), parallel.cardinality());
+            Assert.assertEquals(counters.get(0).merge(counters.subList(1, counters.size()).toArray(new HyperLogLog[0])).cardinality(), parallel.cardinality());
+            
+            double err = Math.abs(parallel.cardinality() - 180300) / 180300d;
+            Assert.assertTrue(err < 0.03);
+            
+            // the scratch can be reused
+            parallel.clear();
+            Assert.assertFalse(parallel.isSparse());
+            Assert.assertEquals(0, parallel.cardinality());
+            parallel.addAll(counters.subList(0, 2), pool);
+            Assert.assertEquals(counters.get(0).merge(counters.get(1)).cardinality(), parallel.cardinality());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testEmptyElement() {
+        HyperLogLog hyperLogLog = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        Assert.assertTrue(hyperLogLog.offer(""));
+        
+        // an element whose string form is empty counts as the empty string
+        Object empty = new Object() {
+            
+            @Override
+            public String toString() {
+                return "";
+            }
+            
+        };
+        
+        Assert.assertFalse(hyperLogLog.offer(empty));
+        Assert.assertFalse(hyperLogLog.offer(new StringBuilder()));
+        Assert.assertEquals(1, hyperLogLog.cardinality());
+    }
+
+    @Test
+    public void testByteArray() {
+        HyperLogLog sparse = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        for (int i = 0; i < 100; i++) {
+            sparse.offer("sparse-" + i);
+        }
+        
+        HyperLogLog dense = new HyperLogLog(HyperLogLog.DEFAULT_LOG2M);
+        for (int i = 0; i < 50000; i++) {
+            dense.offer("dense-" + i);
+        }
+        
+        for (HyperLogLog counter : new HyperLogLog[] { sparse, dense }) {
+            long cardinality = counter.cardinality();
+            byte[] bytes = counter.toByteArray();
+            HyperLogLog copy = HyperLogLog.fromByteArray(bytes);
+            
+            Assert.assertEquals(counter.isSparse(), copy.isSparse());
+            Assert.assertEquals(cardinality, copy.cardinality());
+            Assert.assertArrayEquals(bytes, copy.toByteArray());
+        }
+        
+        try {
+            HyperLogLog.fromByteArray("HYLX".getBytes());
+            Assert.fail("bad magic must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
     protected static String streamElement(int i) {
         return Long.toHexString(RANDOM.nextLong());
     }
@@ -0,0 +1,88 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sangupta.murmur.Murmur2;
+
+/**
+ * Unit tests for {@link MurmurHash64A}.
+ * 
+ * @author sangupta
+ *
+ */
+public class TestMurmurHash64A {
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private static final long SEED = 0xadc83b19l;
+	
+	@Test
+	public void testBytes() {
+		Random random = new Random(11);
+		for (int length = 0; length < 64; length++) {
+			byte[] bytes = new byte[length + 3];
+			random.nextBytes(bytes);
+			
+			byte[] slice = new byte[length];
+			System.arraycopy(bytes, 3, slice, 0, length);
+			
+			Assert.assertEquals(Murmur2.hash64(slice, length, SEED), MurmurHash64A.hash(bytes, 3, length, SEED));
+		}
+	}
+	
+	@Test
+	public void testString() {
+		String[] strings = new String[] { "", "a", "hello", "hello world!", "0123456789abcdefXYZ", "h\u00e9llo w\u00f6rld \u20ac",
+				"\ud83d\ude00x", "broken \ud83d surrogate", "\ude00", "end \ud83d" };
+		
+		for (String string : strings) {
+			byte[] bytes = string.getBytes(UTF_8);
+			Assert.assertEquals(bytes.length, MurmurHash64A.utf8Length(string));
+			Assert.assertEquals(MurmurHash64A.hash(bytes, 0, bytes.length, SEED), MurmurHash64A.hash(string, SEED));
+		}
+		
+		Random random = new Random(13);
+		for (int index = 0; index < 1000; index++) {
+			char[] chars = new char[random.nextInt(40)];
+			for (int c = 0; c < chars.length; c++) {
+				chars[c] = (char) random.nextInt(random.nextBoolean() ? 0x80 : 0x10000);
+			}
+			
+			String string = new String(chars);
+			byte[] bytes = string.getBytes(UTF_8);
+			Assert.assertEquals(MurmurHash64A.hash(bytes, 0, bytes.length, SEED), MurmurHash64A.hash(string, SEED));
+		}
+	}
+	
+	@Test
+	public void testLong() {
+		byte[] bytes = new byte[] { 1, 2, 3, 4, 5, 6, 7, (byte) 0x88 };
+		Assert.assertEquals(MurmurHash64A.hash(bytes, 0, 8, SEED), MurmurHash64A.hash(0x8807060504030201l, SEED));
+	}
+
+}
@@ -0,0 +1,138 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PackedHashMap} class.
+ *  
+ * @author sangupta
+ *
+ */
+public class TestPackedHashMap {
+    
+    @Test
+    public void testPackedOperations() {
+        PackedHashMap<String, String> map = new PackedHashMap<String, String>(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        this.compareWithHashMap(map);
+        Assert.assertTrue(map.isPacked());
+    }
+    
+    @Test
+    public void testConvertedOperations() {
+        PackedHashMap<String, String> map = new PackedHashMap<String, String>();
+        this.compareWithHashMap(map);
+        Assert.assertFalse(map.isPacked());
+    }
+    
+    @Test
+    public void testConversion() {
+        PackedHashMap<String, String> map = new PackedHashMap<String, String>(2, 5);
+        map.put("a", "1");
+        map.put("b", "2");
+        Assert.assertTrue(map.isPacked());
+        
+        // replacing a value does not grow the map
+        Assert.assertEquals("2", map.put("b", "3"));
+        Assert.assertTrue(map.isPacked());
+        
+        // a third entry converts the map
+        map.put("c", "4");
+        Assert.assertFalse(map.isPacked());
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals("1", map.get("a"));
+        Assert.assertEquals("3", map.get("b"));
+        Assert.assertEquals("4", map.get("c"));
+        
+        // clearing goes back to packed
+        map.clear();
+        Assert.assertTrue(map.isPacked());
+        
+        // so does a long value
+        map.put("a", "123456");
+        Assert.assertFalse(map.isPacked());
+        Assert.assertEquals("123456", map.get("a"));
+        
+        // and a long key
+        map.clear();
+        map.put("abcdef", "1");
+        Assert.assertFalse(map.isPacked());
+    }
+    
+    @Test
+    public void testIteratorRemoval() {
+        PackedHashMap<String, String> map = new PackedHashMap<String, String>();
+        for(int index = 0; index < 10; index++) {
+            map.put("key" + index, "value" + index);
+        }
+        
+        Iterator<Map.Entry<String, String>> iterator = map.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            if(entry.getKey().endsWith("5") || entry.getKey().endsWith("0")) {
+                iterator.remove();
+            } else {
+                entry.setValue("updated");
+            }
+        }
+        
+        Assert.assertEquals(8, map.size());
+        Assert.assertFalse(map.containsKey("key0"));
+        Assert.assertFalse(map.containsKey("key5"));
+        Assert.assertEquals("updated", map.get("key9"));
+    }
+    
+    private void compareWithHashMap(PackedHashMap<String, String> map) {
+        Map<String, String> expected = new HashMap<String, String>();
+        
+        Random random = new Random(42);
+        for(int index = 0; index < 5000; index++) {
+            String key = String.valueOf(random.nextInt(1000));
+            String value = String.valueOf(random.nextInt());
+            
+            if(random.nextInt(4) == 0) {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Assert.assertEquals(expected.put(key, value), map.put(key, value));
+            }
+            
+            Assert.assertEquals(expected.size(), map.size());
+        }
+        
+        Assert.assertEquals(expected, map);
+        for(String key : expected.keySet()) {
+            Assert.assertTrue(map.containsKey(key));
+            Assert.assertEquals(expected.get(key), map.get(key));
+        }
+        
+        Assert.assertFalse(map.containsKey("not-present"));
+        Assert.assertNull(map.get("not-present"));
+    }
+
+}
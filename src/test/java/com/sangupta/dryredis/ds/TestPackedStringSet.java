@@ -0,0 +1,169 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PackedStringSet} class.
+ *  
+ * @author sangupta
+ *
+ */
+public class TestPackedStringSet {
+    
+    @Test
+    public void testIntSetOperations() {
+        PackedStringSet set = new PackedStringSet(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        this.compareWithHashSet(set, false);
+        Assert.assertTrue(set.isIntSet());
+    }
+    
+    @Test
+    public void testPackedOperations() {
+        PackedStringSet set = new PackedStringSet(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        this.compareWithHashSet(set, true);
+        Assert.assertFalse(set.isIntSet());
+        Assert.assertTrue(set.isPacked());
+    }
+    
+    @Test
+    public void testConvertedOperations() {
+        PackedStringSet set = new PackedStringSet();
+        this.compareWithHashSet(set, true);
+        Assert.assertFalse(set.isPacked());
+    }
+    
+    @Test
+    public void testIntegers() {
+        PackedStringSet set = new PackedStringSet();
+        String[] integers = { "0", "-1", "42", "9223372036854775807", "-9223372036854775808" };
+        for(String integer : integers) {
+            Assert.assertTrue(set.add(integer));
+        }
+        
+        Assert.assertTrue(set.isIntSet());
+        for(String integer : integers) {
+            Assert.assertTrue(set.contains(integer));
+        }
+        
+        // members that do not convert back to the same string
+        String[] notIntegers = { "-0", "007", "+1", "1.0", "", "-", "9223372036854775808", "-9223372036854775809", "12a" };
+        for(String notInteger : notIntegers) {
+            Assert.assertFalse(set.contains(notInteger));
+            Assert.assertFalse(set.remove(notInteger));
+        }
+        
+        Assert.assertTrue(set.isIntSet());
+        
+        // each is kept as is once added
+        for(String notInteger : notIntegers) {
+            Assert.assertTrue(set.add(notInteger));
+        }
+        
+        Assert.assertFalse(set.isIntSet());
+        Assert.assertEquals(integers.length + notIntegers.length, set.size());
+        for(String notInteger : notIntegers) {
+            Assert.assertTrue(set.contains(notInteger));
+        }
+    }
+    
+    @Test
+    public void testConversion() {
+        PackedStringSet set = new PackedStringSet(3, 4, 5);
+        set.add("1");
+        set.add("2");
+        set.add("3");
+        Assert.assertTrue(set.isIntSet());
+        
+        // a fourth integer still fits a listpack
+        set.add("4");
+        Assert.assertFalse(set.isIntSet());
+        Assert.assertTrue(set.isPacked());
+        
+        // a fifth member does not
+        set.add("5");
+        Assert.assertFalse(set.isPacked());
+        Assert.assertEquals(5, set.size());
+        
+        // clearing goes back to an intset
+        set.clear();
+        Assert.assertTrue(set.isIntSet());
+        
+        // a long member goes straight to a hash set
+        set.add("1");
+        set.add("abcdef");
+        Assert.assertFalse(set.isPacked());
+        Assert.assertTrue(set.contains("1"));
+        Assert.assertTrue(set.contains("abcdef"));
+    }
+    
+    @Test
+    public void testIteratorRemoval() {
+        PackedStringSet set = new PackedStringSet();
+        for(int index = 0; index < 10; index++) {
+            set.add(String.valueOf(index));
+        }
+        
+        Iterator<String> iterator = set.iterator();
+        while(iterator.hasNext()) {
+            if(Integer.parseInt(iterator.next()) % 2 == 0) {
+                iterator.remove();
+            }
+        }
+        
+        Assert.assertEquals(5, set.size());
+        for(int index = 0; index < 10; index++) {
+            Assert.assertEquals(index % 2 == 1, set.contains(String.valueOf(index)));
+        }
+    }
+    
+    private void compareWithHashSet(PackedStringSet set, boolean strings) {
+        Set<String> expected = new HashSet<String>();
+        
+        Random random = new Random(42);
+        for(int index = 0; index < 5000; index++) {
+            String member = String.valueOf(random.nextInt(1000) - 500);
+            if(strings && random.nextInt(10) == 0) {
+                member = "member" + member;
+            }
+            
+            if(random.nextInt(4) == 0) {
+                Assert.assertEquals(expected.remove(member), set.remove(member));
+            } else {
+                Assert.assertEquals(expected.add(member), set.add(member));
+            }
+            
+            Assert.assertEquals(expected.size(), set.size());
+        }
+        
+        Assert.assertEquals(expected, set);
+        Assert.assertFalse(set.contains("not-present"));
+    }
+
+}
@@ -0,0 +1,220 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link QuickList} class.
+ *  
+ * @author sangupta
+ *
+ */
+public class TestQuickList {
+    
+    @Test
+    public void testEnds() {
+        QuickList<Integer> list = new QuickList<Integer>(4);
+        Assert.assertNull(list.pollFirst());
+        Assert.assertNull(list.pollLast());
+        
+        for(int index = 0; index < 10; index++) {
+            list.addFirst(-index);
+            list.addLast(index);
+        }
+        
+        Assert.assertEquals(20, list.size());
+        Assert.assertEquals(Integer.valueOf(-9), list.get(0));
+        Assert.assertEquals(Integer.valueOf(9), list.get(19));
+        Assert.assertEquals(Integer.valueOf(0), list.get(9));
+        
+        for(int index = 9; index >= 0; index--) {
+            Assert.assertEquals(Integer.valueOf(-index), list.pollFirst());
+            Assert.assertEquals(Integer.valueOf(index), list.pollLast());
+        }
+        
+        Assert.assertTrue(list.isEmpty());
+        Assert.assertEquals(0, list.chunks());
+    }
+    
+    @Test
+    public void testAgainstArrayList() {
+        Random random = new Random(7);
+        QuickList<Integer> list = new QuickList<Integer>(8);
+        List<Integer> expected = new ArrayList<Integer>();
+        
+        for(int round = 0; round < 20000; round++) {
+            int value = random.nextInt(50);
+            int operation = random.nextInt(10);
+            int size = expected.size();
+            
+            switch(operation) {
+                case 0:
+                    list.addFirst(value);
+                    expected.add(0, value);
+                    break;
+                    
+                case 1:
+                    list.addLast(value);
+                    expected.add(value);
+                    break;
+                    
+                case 2:
+                    Assert.assertEquals(size == 0 ? null : expected.remove(0), list.pollFirst());
+                    break;
+                    
+                case 3:
+                    Assert.assertEquals(size == 0 ? null : expected.remove(size - 1), list.pollLast());
+                    break;
+                    
+                case 4: {
+                    int index = random.nextInt(size + 1);
+                    list.add(index, value);
+                    expected.add(index, value);
+                    break;
+                }
+                
+                case 5:
+                    if(size > 0) {
+                        int index = random.nextInt(size);
+                        Assert.assertEquals(expected.remove(index), list.remove(index));
+                    }
+                    break;
+                    
+                case 6:
+                    if(size > 0) {
+                        int index = random.nextInt(size);
+                        Assert.assertEquals(expected.set(index, value), list.set(index, value));
+                    }
+                    break;
+                    
+                case 7: {
+                    // remove all occurrences through the iterator
+                    Iterator<Integer> iterator = list.iterator();
+                    while(iterator.hasNext()) {
+                        if(iterator.next().intValue() == value) {
+                            iterator.remove();
+                        }
+                    }
+                    
+                    Iterator<Integer> other = expected.iterator();
+                    while(other.hasNext()) {
+                        if(other.next().intValue() == value) {
+                            other.remove();
+                        }
+                    }
+                    break;
+                }
+                
+                case 8: {
+                    // remove from the tail through the descending iterator
+                    Iterator<Integer> iterator = list.descendingIterator();
+                    while(iterator.hasNext()) {
+                        if(iterator.next().intValue() == value) {
+                            iterator.remove();
+                        }
+                    }
+                    
+                    ListIterator<Integer> other = expected.listIterator(expected.size());
+                    while(other.hasPrevious()) {
+                        if(other.previous().intValue() == value) {
+                            other.remove();
+                        }
+                    }
+                    break;
+                }
+                
+                case 9:
+                    if(size > 0 && random.nextInt(10) == 0) {
+                        int from = random.nextInt(size);
+                        int to = from + random.nextInt(size - from + 1);
+                        list.trim(from, to);
+                        expected = new ArrayList<Integer>(expected.subList(from, to));
+                    }
+                    break;
+            }
+            
+            Assert.assertEquals(expected.size(), list.size());
+            if(round % 100 == 0) {
+                Assert.assertEquals(expected, list.copy(0, list.size()));
+                
+                List<Integer> reversed = new ArrayList<Integer>();
+                Iterator<Integer> iterator = list.descendingIterator();
+                while(iterator.hasNext()) {
+                    reversed.add(0, iterator.next());
+                }
+                Assert.assertEquals(expected, reversed);
+            }
+        }
+    }
+    
+    @Test
+    public void testTrim() {
+        QuickList<Integer> list = new QuickList<Integer>(4);
+        for(int index = 0; index < 100; index++) {
+            list.addLast(index);
+        }
+        
+        Assert.assertEquals(25, list.chunks());
+        list.trim(10, 20);
+        Assert.assertEquals(10, list.size());
+        Assert.assertTrue(list.chunks() <= 4);
+        Assert.assertEquals(Integer.valueOf(10), list.get(0));
+        Assert.assertEquals(Integer.valueOf(19), list.get(9));
+        
+        list.trim(3, 3);
+        Assert.assertTrue(list.isEmpty());
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSerialization() throws Exception {
+        QuickList<String> list = new QuickList<String>(4);
+        for(int index = 0; index < 10; index++) {
+            list.addFirst("value" + index);
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(list);
+        out.close();
+        
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        QuickList<String> copy = (QuickList<String>) in.readObject();
+        Assert.assertEquals(list, copy);
+        
+        copy.addFirst("first");
+        Assert.assertEquals("first", copy.get(0));
+    }
+    
+}
@@ -25,7 +25,9 @@ import java.util.Random;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 /**
  * Unit tests for {@link RegisterSet}.
@@ -61,6 +63,79 @@ public class TestRegisterSet {
 		assertEquals(11, rs.get(0));
 	}
 
+	@Test
+	public void testDenseLayout() throws Exception {
+		RegisterSet rs = new RegisterSet(16384);
+		assertEquals(12288, rs.size);
+		
+		for (int i = 0; i < rs.count; i++) {
+			rs.set(i, (i * 7) % 64);
+		}
+		
+		for (int i = 0; i < rs.count; i++) {
+			assertEquals((i * 7) % 64, rs.get(i));
+		}
+		
+		// same bytes as the dense representation of Redis
+		rs = new RegisterSet(4);
+		rs.set(0, 1);
+		rs.set(1, 63);
+		assertEquals((byte) 0xc1, rs.bits()[0]);
+		assertEquals((byte) 0x0f, rs.bits()[1]);
+	}
+
+	@Test
+	public void testMergeAllValues() {
+		Random rand = new Random(5);
+		int[] counts = new int[] { 5, 8, 13, 64, 16384 };
+		for (int count : counts) {
+			RegisterSet first = new RegisterSet(count);
+			RegisterSet second = new RegisterSet(count);
+			int[] expected = new int[count];
+			for (int pos = 0; pos < count; pos++) {
+				int a = rand.nextInt(64);
+				int b = rand.nextInt(4) == 0 ? a : rand.nextInt(64);
+				first.set(pos, a);
+				second.set(pos, b);
+				expected[pos] = Math.max(a, b);
+			}
+			
+			byte[] bits = second.bits();
+			first.merge(second);
+			for (int pos = 0; pos < count; pos++) {
+				assertEquals(expected[pos], first.get(pos));
+			}
+			
+			assertArrayEquals(bits, second.bits());
+			
+			// merging again changes nothing
+			assertFalse(first.merge(second));
+			
+			second.set(count - 1, 63);
+			assertEquals(expected[count - 1] != 63, first.merge(second));
+			assertEquals(63, first.get(count - 1));
+		}
+	}
+	
+	@Test
+	public void testHistogram() {
+		Random rand = new Random(3);
+		RegisterSet rs = new RegisterSet(1003);
+		int[] expected = new int[64];
+		for (int pos = 0; pos < rs.count; pos++) {
+			int value = rand.nextInt(64);
+			rs.set(pos, value);
+			
+			if (pos < 1001) {
+				expected[value]++;
+			}
+		}
+		
+		int[] histogram = new int[64];
+		rs.histogram(histogram, 1001);
+		assertArrayEquals(expected, histogram);
+	}
+
 	@Test
 	public void testMerge() {
 		Random rand = new Random(2);
@@ -21,7 +21,13 @@
 
 package com.sangupta.dryredis.ds;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -72,4 +78,224 @@ public class TestSortedSetWithPriority {
         
         Assert.assertEquals(MAX_ELEMENTS, count);
     }
+    
+    @Test
+    public void testRanks() {
+        SortedSetWithPriority<String> set = new SortedSetWithPriority<String>();
+        this.checkRanks(set, 10000, false);
+    }
+    
+    @Test
+    public void testPackedRanks() {
+        SortedSetWithPriority<String> set = new SortedSetWithPriority<String>(Integer.MAX_VALUE, 64);
+        this.checkRanks(set, 1000, true);
+    }
+    
+    @Test
+    public void testConversion() {
+        SortedSetWithPriority<String> set = new SortedSetWithPriority<String>(4, 8);
+        for(int index = 0; index < 4; index++) {
+            set.add(new ElementWithPriority<String>("e" + index, 4 - index));
+        }
+        
+        Assert.assertTrue(set.isPacked());
+        
+        // a fifth element converts the set
+        set.add(new ElementWithPriority<String>("e4", 0));
+        Assert.assertFalse(set.isPacked());
+        Assert.assertEquals(5, set.size());
+        for(int index = 0; index < 5; index++) {
+            Assert.assertEquals("e" + (4 - index), set.getByRank(index).getData());
+        }
+        
+        // clearing goes back to packed
+        set.clear();
+        Assert.assertTrue(set.isPacked());
+        
+        // so does a long element
+        set.add(new ElementWithPriority<String>("e0", 1));
+        set.add(new ElementWithPriority<String>("a-long-element", 0));
+        Assert.assertFalse(set.isPacked());
+        Assert.assertEquals(0, set.rank("a-long-element"));
+        Assert.assertEquals(1, set.rank("e0"));
+        
+        // clones keep the thresholds
+        SortedSetWithPriority<String> clone = new SortedSetWithPriority<String>(4, 8).clone();
+        for(int index = 0; index < 5; index++) {
+            clone.add(new ElementWithPriority<String>("e" + index, index));
+        }
+        
+        Assert.assertFalse(clone.isPacked());
+    }
+    
+    @Test
+    public void testUpdatePriority() {
+        this.checkUpdates(new SortedSetWithPriority<String>(), 5000, false);
+        this.checkUpdates(new SortedSetWithPriority<String>(Integer.MAX_VALUE, 64), 500, true);
+    }
+    
+    @Test
+    public void testLoad() {
+        for(int size : new int[] { 0, 1, 100, 5000 }) {
+            List<ElementWithPriority<String>> elements = new ArrayList<ElementWithPriority<String>>();
+            Random random = new Random(size);
+            for(int index = 0; index < size; index++) {
+                elements.add(new ElementWithPriority<String>("e" + index, random.nextInt(size / 2 + 1)));
+            }
+            
+            SortedSetWithPriority<String> expected = new SortedSetWithPriority<String>();
+            expected.addAll(elements);
+            
+            SortedSetWithPriority<String> set = new SortedSetWithPriority<String>();
+            set.add(new ElementWithPriority<String>("replaced", 1));
+            set.load(elements);
+            
+            Assert.assertEquals(size <= SortedSetWithPriority.DEFAULT_MAX_PACKED_ENTRIES, set.isPacked());
+            Assert.assertEquals(size, set.size());
+            Assert.assertEquals(-1, set.rank("replaced"));
+            
+            int rank = 0;
+            for(ElementWithPriority<String> element : expected) {
+                Assert.assertEquals(rank, set.rank(element.getData()));
+                Assert.assertEquals(element.getData(), set.getByRank(rank).getData());
+                rank++;
+            }
+            
+            Iterator<ElementWithPriority<String>> descending = set.descendingIterator();
+            for(int index = size - 1; index >= 0; index--) {
+                Assert.assertEquals(expected.getByRank(index).getData(), descending.next().getData());
+            }
+            
+            Assert.assertFalse(descending.hasNext());
+            
+            // the loaded set stays usable
+            set.add(new ElementWithPriority<String>("first", -1));
+            Assert.assertEquals(0, set.rank("first"));
+            Assert.assertEquals(size, set.removeRange(1, size));
+            Assert.assertEquals(1, set.size());
+        }
+    }
+    
+    private void checkUpdates(SortedSetWithPriority<String> set, int operations, boolean packed) {
+        Map<String, Double> expected = new HashMap<String, Double>();
+        
+        Random random = new Random(42);
+        for(int index = 0; index < operations; index++) {
+            String data = String.valueOf(random.nextInt(operations / 5));
+            double priority = random.nextInt(100);
+            
+            if(random.nextBoolean()) {
+                Double current = expected.get(data);
+                double updated = current == null ? priority : current + priority - 50;
+                Assert.assertEquals(updated, set.incrementPriority(data, current == null ? priority : priority - 50), 0d);
+                expected.put(data, updated);
+            } else {
+                Assert.assertEquals(expected.containsKey(data), set.updatePriority(data, priority));
+                if(expected.containsKey(data)) {
+                    expected.put(data, priority);
+                }
+            }
+        }
+        
+        Assert.assertEquals(expected.size(), set.size());
+        Assert.assertEquals(packed, set.isPacked());
+        
+        TreeSet<ElementWithPriority<String>> sorted = new TreeSet<ElementWithPriority<String>>(set.comparator());
+        for(Map.Entry<String, Double> entry : expected.entrySet()) {
+            sorted.add(new ElementWithPriority<String>(entry.getKey(), entry.getValue()));
+        }
+        
+        int rank = 0;
+        Iterator<ElementWithPriority<String>> iterator = set.iterator();
+        for(ElementWithPriority<String> element : sorted) {
+            ElementWithPriority<String> actual = iterator.next();
+            Assert.assertEquals(element.getData(), actual.getData());
+            Assert.assertEquals(element.getPriority(), actual.getPriority(), 0d);
+            Assert.assertEquals(element.getPriority(), set.getPriority(element.getData()), 0d);
+            Assert.assertEquals(rank++, set.rank(element.getData()));
+        }
+        
+        Assert.assertFalse(iterator.hasNext());
+    }
+    
+    private void checkRanks(SortedSetWithPriority<String> set, int operations, boolean packed) {
+        TreeSet<ElementWithPriority<String>> expected = new TreeSet<ElementWithPriority<String>>(set.comparator());
+        
+        Random random = new Random(42);
+        for(int index = 0; index < operations; index++) {
+            String data = String.valueOf(random.nextInt(operations / 2));
+            ElementWithPriority<String> element = new ElementWithPriority<String>(data, random.nextInt(100));
+            
+            if(random.nextInt(4) == 0) {
+                boolean removed = set.remove(data);
+                Assert.assertEquals(removed, removeData(expected, data));
+            } else if(!set.contains(data)) {
+                Assert.assertTrue(set.add(element));
+                expected.add(element);
+            } else {
+                Assert.assertFalse(set.add(element));
+            }
+        }
+        
+        Assert.assertEquals(expected.size(), set.size());
+        
+        List<ElementWithPriority<String>> list = new ArrayList<ElementWithPriority<String>>(expected);
+        for(int rank = 0; rank < list.size(); rank++) {
+            ElementWithPriority<String> element = list.get(rank);
+            Assert.assertEquals(rank, set.rank(element.getData()));
+            Assert.assertEquals(element.getData(), set.getByRank(rank).getData());
+        }
+        
+        Assert.assertEquals(-1, set.rank("not-present"));
+        Assert.assertNull(set.getByRank(-1));
+        Assert.assertNull(set.getByRank(list.size()));
+        
+        // iterate from the middle in both directions
+        int middle = list.size() / 2;
+        Assert.assertEquals(list.get(middle).getData(), set.iterator(middle).next().getData());
+        Assert.assertEquals(list.get(list.size() - 1 - middle).getData(), set.descendingIterator(middle).next().getData());
+        
+        // remove a range and compare
+        Assert.assertEquals(100, set.removeRange(10, 109));
+        list.subList(10, 110).clear();
+        
+        // remove while iterating and compare
+        Iterator<ElementWithPriority<String>> removing = set.iterator(5);
+        for(int index = 0; index < 5; index++) {
+            removing.next();
+            removing.remove();
+        }
+        
+        Assert.assertEquals(list.get(10).getData(), removing.next().getData());
+        list.subList(5, 10).clear();
+        
+        Assert.assertEquals(list.size(), set.size());
+        Iterator<ElementWithPriority<String>> iterator = set.iterator();
+        for(ElementWithPriority<String> element : list) {
+            Assert.assertEquals(element.getData(), iterator.next().getData());
+        }
+        
+        Assert.assertFalse(iterator.hasNext());
+        Assert.assertEquals(list.get(list.size() - 1).getData(), set.last().getData());
+        Assert.assertEquals(list.get(0).getData(), set.first().getData());
+        Assert.assertEquals(packed, set.isPacked());
+        
+        set.clear();
+        Assert.assertTrue(set.isEmpty());
+        Assert.assertEquals(0, set.removeRange(0, 10));
+        Assert.assertTrue(set.isPacked());
+    }
+    
+    private static boolean removeData(TreeSet<ElementWithPriority<String>> set, String data) {
+        Iterator<ElementWithPriority<String>> iterator = set.iterator();
+        while(iterator.hasNext()) {
+            if(iterator.next().getData().equals(data)) {
+                iterator.remove();
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
 }
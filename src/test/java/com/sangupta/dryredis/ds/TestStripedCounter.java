@@ -0,0 +1,109 @@
+/**
+ *
+ * dry-redis: In-memory pure java implementation to Redis
+ * Copyright (c) 2016, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/dry-redis
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.dryredis.ds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link StripedCounter} class.
+ * 
+ * @author sangupta
+ *
+ */
+public class TestStripedCounter {
+    
+    @Test
+    public void testCounter() {
+        StripedCounter counter = new StripedCounter(5);
+        Assert.assertEquals(8, counter.cells());
+        Assert.assertEquals(0, counter.sum());
+        
+        counter.add(10);
+        counter.add(-3);
+        Assert.assertEquals(7, counter.sum());
+        Assert.assertEquals("7", counter.toString());
+        
+        Assert.assertEquals(7, counter.sumThenReset());
+        Assert.assertEquals(0, counter.sum());
+        Assert.assertEquals(0, counter.sumThenReset());
+        
+        try {
+            new StripedCounter(0);
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testConcurrentAdds() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        final AtomicLong drained = new AtomicLong();
+        
+        final int threads = 8;
+        final int iterations = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        
+        List<Thread> workers = new ArrayList<Thread>();
+        for(int thread = 0; thread < threads; thread++) {
+            final int id = thread;
+            Thread worker = new Thread(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    
+                    for(int index = 0; index < iterations; index++) {
+                        counter.add(1);
+                        
+                        // draining while adding loses nothing
+                        if(id == 0 && index % 1000 == 0) {
+                            drained.addAndGet(counter.sumThenReset());
+                        }
+                    }
+                }
+                
+            });
+            
+            workers.add(worker);
+            worker.start();
+        }
+        
+        start.countDown();
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        
+        Assert.assertEquals(threads * iterations, drained.get() + counter.sum());
+    }
+    
+}